@@ -2,23 +2,37 @@ package io.ably.lib.http;
 
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.ably.lib.http.Http.RequestBody;
 import io.ably.lib.http.Http.ResponseHandler;
 import io.ably.lib.transport.Hosts;
 import io.ably.lib.types.AblyException;
 import io.ably.lib.types.Callback;
+import io.ably.lib.types.ClientOptions;
 import io.ably.lib.types.ErrorInfo;
 import io.ably.lib.types.Param;
 import io.ably.lib.util.Log;
 
-public class AsyncHttp extends ThreadPoolExecutor {
+/**
+ * Executes REST requests asynchronously on a pool of worker threads.
+ * Requests awaiting execution are held in a bounded queue, and are taken
+ * from each channel in turn.
+ * With a {@link NonBlockingHttpEngine}, workers only start requests, and the
+ * number in flight is limited by the engine instead of the pool size.
+ */
+public class AsyncHttp {
 
 	/**
 	 * Async HTTP GET for Ably host, with fallbacks
@@ -89,6 +103,10 @@ public class AsyncHttp extends ThreadPoolExecutor {
 				disposeConnection();
 			}
 		}
+		@Override
+		void start() {
+			http.httpExecuteWithRetryAsync(url, method, headers, requestBody, responseHandler, false, executor, completion);
+		}
 		private final URL url;
 	}
 
@@ -122,6 +140,10 @@ public class AsyncHttp extends ThreadPoolExecutor {
 				disposeConnection();
 			}
 		}
+		@Override
+		void start() {
+			startAttempt(host, path, true, completion);
+		}
 		private final String host;
 		private final String path;
 	}
@@ -169,14 +191,43 @@ public class AsyncHttp extends ThreadPoolExecutor {
 				}
 			}
 		}
+		@Override
+		void start() {
+			retryCountRemaining = Hosts.isRestFallbackSupported(http.host) ? http.options.httpMaxRetryCount : 0;
+			attempt(http.host);
+		}
+		private void attempt(final String candidateHost) {
+			startAttempt(candidateHost, path, true, new Http.ResultListener<T>() {
+				@Override
+				public void onResult(T result) {
+					completion.onResult(result);
+				}
+				@Override
+				public void onError(AblyException e) {
+					if(e instanceof AblyException.HostFailedException && !isCancelled) {
+						if(--retryCountRemaining < 0) {
+							completion.onError(AblyException.fromErrorInfo(new ErrorInfo("Connection failed; no host available", 404, 80000)));
+							return;
+						}
+						Log.d(TAG, "Connection failed to host `" + candidateHost + "`. Searching for new host...");
+						String fallbackHost = Hosts.getFallback(candidateHost);
+						Log.d(TAG, "Switched to `" + fallbackHost + "`.");
+						attempt(fallbackHost);
+						return;
+					}
+					completion.onError(e);
+				}
+			});
+		}
 		private final String path;
+		private int retryCountRemaining;
 	}
 
 	/**
 	 * A class encapsulating a scheduled or in-process async HTTP request
 	 * @param <T>
 	 */
-	private abstract class AsyncRequest<T> implements Future<T> {
+	private abstract class AsyncRequest<T> implements Future<T>, Runnable {
 		private AsyncRequest(
 				final String method,
 				final Param[] headers,
@@ -244,6 +295,40 @@ public class AsyncHttp extends ThreadPoolExecutor {
 		 *        Private
 		 **************************/
 
+		/**
+		 * Start the request with a non-blocking engine, calling
+		 * completion once it has succeeded or failed
+		 */
+		abstract void start();
+
+		protected void startAttempt(String host, String path, boolean allowAblyAuth, Http.ResultListener<T> listener) {
+			URL url = Http.buildURL(http.scheme, host, http.port, path, params);
+			http.httpExecuteWithRetryAsync(url, method, headers, requestBody, responseHandler, allowAblyAuth, executor, listener);
+		}
+
+		protected final Http.ResultListener<T> completion = new Http.ResultListener<T>() {
+			@Override
+			public void onResult(T result) {
+				try {
+					setResult(result);
+				} catch(Throwable t) {
+					Log.e(TAG, "Unexpected exception in request callback", t);
+				} finally {
+					onAsyncComplete();
+				}
+			}
+			@Override
+			public void onError(AblyException e) {
+				try {
+					setError(e.errorInfo);
+				} catch(Throwable t) {
+					Log.e(TAG, "Unexpected exception in request callback", t);
+				} finally {
+					onAsyncComplete();
+				}
+			}
+		};
+
 		protected T httpExecuteWithRetry(URL url) throws AblyException {
 			return http.httpExecuteWithRetry(url, method, headers, requestBody, responseHandler, false);
 		}
@@ -290,17 +375,117 @@ public class AsyncHttp extends ThreadPoolExecutor {
 		protected final RequestBody requestBody;
 		protected final ResponseHandler<T> responseHandler;
 		protected final Callback<T> callback;
-		protected boolean isCancelled = false;
+		protected volatile boolean isCancelled = false;
 		protected boolean isDone = false;
-}
+		protected long queuedAt;
+	}
+
+	/**
+	 * What happens when a request is made while the queue of
+	 * requests awaiting execution is full
+	 */
+	public enum RejectionPolicy {
+		/**
+		 * The request fails immediately
+		 */
+		reject,
+		/**
+		 * The request is executed on the calling thread
+		 */
+		callerRuns,
+		/**
+		 * The caller waits until there is space in the queue
+		 */
+		block
+	}
+
+	/**
+	 * A snapshot of the counters of an AsyncHttp
+	 */
+	public static class Stats {
+		/**
+		 * The number of requests awaiting execution
+		 */
+		public int queueDepth;
+
+		/**
+		 * The number of requests being executed
+		 */
+		public int inFlight;
+
+		/**
+		 * The number of requests executed
+		 */
+		public long executed;
+
+		/**
+		 * The number of requests rejected because the queue was full
+		 */
+		public long rejected;
+
+		/**
+		 * The total time spent by executed requests awaiting execution, in milliseconds
+		 */
+		public long totalQueueWaitTime;
+
+		/**
+		 * The longest time spent by a single request awaiting execution, in milliseconds
+		 */
+		public long maxQueueWaitTime;
+	}
 
 	public AsyncHttp(Http http) {
-		super(DEFAULT_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
 		this.http = http;
+		ClientOptions options = http.options;
+		this.threadPoolSize = Math.max(1, options.asyncHttpThreadpoolSize);
+		this.queueSize = options.asyncHttpQueueSize;
+		this.rejectionPolicy = (options.asyncHttpRejectionPolicy != null) ? options.asyncHttpRejectionPolicy : RejectionPolicy.reject;
+		this.nonBlocking = (http.engine instanceof NonBlockingHttpEngine);
+		this.maxInFlight = nonBlocking ? Math.max(1, ((NonBlockingHttpEngine)http.engine).getMaxConcurrentRequests()) : Integer.MAX_VALUE;
+		this.executor = new ThreadPoolExecutor(threadPoolSize, threadPoolSize, KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "ably-async-http-" + threadCount.incrementAndGet());
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
 	}
 
+	/**
+	 * Set the maximum number of requests executed concurrently
+	 * @param size
+	 */
 	public void setThreadPoolSize(int size) {
-		this.setCorePoolSize(size);
+		size = Math.max(1, size);
+		synchronized(lock) {
+			if(size > threadPoolSize) {
+				executor.setMaximumPoolSize(size);
+				executor.setCorePoolSize(size);
+			} else {
+				executor.setCorePoolSize(size);
+				executor.setMaximumPoolSize(size);
+			}
+			threadPoolSize = size;
+			if(startWorkers())
+				return;
+		}
+		failQueued(REASON_DISPOSED);
+	}
+
+	/**
+	 * Get the current queue and execution counters
+	 */
+	public Stats getStats() {
+		synchronized(lock) {
+			Stats stats = new Stats();
+			stats.queueDepth = queued;
+			stats.inFlight = inFlight;
+			stats.executed = executed;
+			stats.rejected = rejected;
+			stats.totalQueueWaitTime = TimeUnit.NANOSECONDS.toMillis(totalQueueWaitTime);
+			stats.maxQueueWaitTime = TimeUnit.NANOSECONDS.toMillis(maxQueueWaitTime);
+			return stats;
+		}
 	}
 
 	/**
@@ -324,7 +509,7 @@ public class AsyncHttp extends ThreadPoolExecutor {
 			final Callback<T> callback) {
 
 		UrlRequest<T> request = new UrlRequest<>(url, method, headers, null, requestBody, withCredentials, responseHandler, callback);
-		execute(request);
+		submit(url.getHost(), request);
 		return request;
 	}
 
@@ -349,7 +534,7 @@ public class AsyncHttp extends ThreadPoolExecutor {
 			final Callback<T> callback) {
 
 		AblyRequestWithFallback<T> request = new AblyRequestWithFallback<>(path, method, headers, null, requestBody, responseHandler, callback);
-		execute(request);
+		submit(laneForPath(path), request);
 		return request;
 	}
 
@@ -376,23 +561,231 @@ public class AsyncHttp extends ThreadPoolExecutor {
 			final Callback<T> callback) {
 
 		AblyRequestWithRetry<T> request = new AblyRequestWithRetry<>(host, path, method, headers, null, requestBody, responseHandler, callback);
-		execute(request);
+		submit(laneForPath(path), request);
 		return request;
 	}
 
 	public void dispose() {
-		shutdown();
+		executor.shutdown();
 		try {
-			awaitTermination(SHUTDOWN_TIME, TimeUnit.MILLISECONDS);
+			executor.awaitTermination(SHUTDOWN_TIME, TimeUnit.MILLISECONDS);
 		} catch (InterruptedException e) {
-			this.shutdownNow();
+			executor.shutdownNow();
+		}
+	}
+
+	/**************************
+	 *        Scheduling
+	 **************************/
+
+	/**
+	 * Queue a request for execution.
+	 * Requests are queued in lanes, one per channel (or per path, for
+	 * requests not relating to a channel), and workers take requests
+	 * from the lanes in turn, so that a burst of requests for one channel
+	 * does not delay requests for others.
+	 */
+	private void submit(String lane, AsyncRequest<?> request) {
+		ErrorInfo reason = null;
+		synchronized(lock) {
+			if(queueSize > 0 && rejectionPolicy == RejectionPolicy.block) {
+				try {
+					while(queued >= queueSize)
+						lock.wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					reason = REASON_INTERRUPTED;
+				}
+			}
+			if(reason == null && (queueSize <= 0 || queued < queueSize)) {
+				ArrayDeque<AsyncRequest<?>> requests = lanes.get(lane);
+				if(requests == null) {
+					lanes.put(lane, (requests = new ArrayDeque<AsyncRequest<?>>()));
+					laneOrder.add(lane);
+				}
+				request.queuedAt = System.nanoTime();
+				requests.add(request);
+				++queued;
+				if(startWorkers())
+					return;
+				/* disposed; fail everything awaiting execution */
+				reason = REASON_DISPOSED;
+			} else if(reason == null && rejectionPolicy == RejectionPolicy.callerRuns) {
+				++inFlight;
+			} else {
+				if(reason == null) {
+					Log.w(TAG, "submit(): request rejected; queue depth = " + queued);
+					reason = REASON_QUEUE_FULL;
+				}
+				++rejected;
+			}
+		}
+		if(reason == null) {
+			/* callerRuns, with the queue full */
+			runRequest(request);
+		} else if(reason == REASON_DISPOSED) {
+			failQueued(reason);
+		} else {
+			request.setError(reason);
+		}
+	}
+
+	/**
+	 * Start workers for queued requests, up to the pool size.
+	 * Called with the lock held
+	 * @return false if the executor has been shut down
+	 */
+	private boolean startWorkers() {
+		while(activeWorkers < threadPoolSize && activeWorkers < queued && inFlight < maxInFlight) {
+			try {
+				executor.execute(worker);
+				++activeWorkers;
+			} catch(RejectedExecutionException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void failQueued(ErrorInfo reason) {
+		ArrayList<AsyncRequest<?>> failed = new ArrayList<AsyncRequest<?>>();
+		synchronized(lock) {
+			AsyncRequest<?> request;
+			while((request = next()) != null)
+				failed.add(request);
+			rejected += failed.size();
+		}
+		for(AsyncRequest<?> request : failed)
+			request.setError(reason);
+	}
+
+	/**
+	 * Take the next request, from the next lane in turn.
+	 * Called with the lock held
+	 */
+	private AsyncRequest<?> next() {
+		String lane = laneOrder.poll();
+		if(lane == null)
+			return null;
+		ArrayDeque<AsyncRequest<?>> requests = lanes.get(lane);
+		AsyncRequest<?> request = requests.poll();
+		if(requests.isEmpty())
+			lanes.remove(lane);
+		else
+			laneOrder.add(lane);
+		--queued;
+		long waitTime = System.nanoTime() - request.queuedAt;
+		totalQueueWaitTime += waitTime;
+		if(waitTime > maxQueueWaitTime)
+			maxQueueWaitTime = waitTime;
+		lock.notifyAll();
+		return request;
+	}
+
+	private void runRequest(AsyncRequest<?> request) {
+		if(nonBlocking) {
+			startRequest(request);
+			return;
+		}
+		try {
+			if(!request.isCancelled)
+				request.run();
+		} catch(Throwable t) {
+			Log.e(TAG, "runRequest(): Unexpected exception executing request", t);
+		} finally {
+			synchronized(lock) {
+				--inFlight;
+				++executed;
+			}
 		}
 	}
 
+	/**
+	 * Start a request with a non-blocking engine; it remains
+	 * in flight until its completion is called
+	 */
+	private void startRequest(AsyncRequest<?> request) {
+		if(!request.isCancelled) {
+			try {
+				request.start();
+				return;
+			} catch(Throwable t) {
+				Log.e(TAG, "startRequest(): Unexpected exception starting request", t);
+			}
+		}
+		onAsyncComplete();
+	}
+
+	private void onAsyncComplete() {
+		synchronized(lock) {
+			--inFlight;
+			++executed;
+			if(startWorkers())
+				return;
+		}
+		failQueued(REASON_DISPOSED);
+	}
+
+	/**
+	 * Each worker executes queued requests until none remain
+	 */
+	private final Runnable worker = new Runnable() {
+		@Override
+		public void run() {
+			while(true) {
+				AsyncRequest<?> request;
+				synchronized(lock) {
+					if(activeWorkers > threadPoolSize || inFlight >= maxInFlight || (request = next()) == null) {
+						--activeWorkers;
+						return;
+					}
+					++inFlight;
+				}
+				runRequest(request);
+			}
+		}
+	};
+
+	/**
+	 * Get the lane for a path: requests for a channel share a lane
+	 */
+	private static String laneForPath(String path) {
+		if(path.startsWith(CHANNELS_PATH)) {
+			int end = path.indexOf('/', CHANNELS_PATH.length());
+			return (end < 0) ? path : path.substring(0, end);
+		}
+		return path;
+	}
+
+	/**************************
+	 *     Private members
+	 **************************/
+
 	private final Http http;
+	private final ThreadPoolExecutor executor;
+	private final int queueSize;
+	private final RejectionPolicy rejectionPolicy;
+	private final boolean nonBlocking;
+	private final int maxInFlight;
+	private final AtomicInteger threadCount = new AtomicInteger();
+
+	/* scheduling state, guarded by lock */
+	private final Object lock = new Object();
+	private final HashMap<String, ArrayDeque<AsyncRequest<?>>> lanes = new HashMap<String, ArrayDeque<AsyncRequest<?>>>();
+	private final ArrayDeque<String> laneOrder = new ArrayDeque<String>();
+	private int threadPoolSize;
+	private int activeWorkers;
+	private int queued;
+	private int inFlight;
+	private long executed;
+	private long rejected;
+	private long totalQueueWaitTime;
+	private long maxQueueWaitTime;
 
-	private static final int DEFAULT_POOL_SIZE = 0;
-	private static final int MAX_POOL_SIZE = 64;
+	private static final ErrorInfo REASON_QUEUE_FULL = new ErrorInfo("Async HTTP request rejected; too many requests queued", 503, 50000);
+	private static final ErrorInfo REASON_INTERRUPTED = new ErrorInfo("Async HTTP request interrupted while awaiting space in queue", 500, 50000);
+	private static final ErrorInfo REASON_DISPOSED = new ErrorInfo("Async HTTP request rejected; client disposed", 500, 50000);
+	private static final String CHANNELS_PATH = "/channels/";
 	private static final long KEEP_ALIVE_TIME = 2000L;
 	private static final long SHUTDOWN_TIME = 5000L;
 	private static final String TAG = AsyncHttp.class.getName();
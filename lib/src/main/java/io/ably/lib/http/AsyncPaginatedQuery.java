@@ -1,5 +1,6 @@
 package io.ably.lib.http;
 
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.Collection;
@@ -9,7 +10,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import io.ably.lib.http.Http.BodyHandler;
-import io.ably.lib.http.Http.ResponseHandler;
+import io.ably.lib.http.Http.StreamingResponseHandler;
 import io.ably.lib.types.AblyException;
 import io.ably.lib.types.AsyncPaginatedResult;
 import io.ably.lib.types.Callback;
@@ -21,7 +22,7 @@ import io.ably.lib.types.Param;
  *
  * @param <T> the body response type.
  */
-public class AsyncPaginatedQuery<T> implements ResponseHandler<AsyncPaginatedResult<T>> {
+public class AsyncPaginatedQuery<T> implements StreamingResponseHandler<AsyncPaginatedResult<T>> {
 
 	/**
 	 * Construct a PaginatedQuery
@@ -126,6 +127,12 @@ public class AsyncPaginatedQuery<T> implements ResponseHandler<AsyncPaginatedRes
 		return new ResultPage(responseContents, linkHeaders);
 	}
 
+	@Override
+	public ResultPage handleResponse(int statusCode, String contentType, Collection<String> linkHeaders, InputStream body) throws AblyException {
+		T[] responseContents = Http.handleResponseBody(bodyHandler, contentType, body, null);
+		return new ResultPage(responseContents, linkHeaders);
+	}
+
 	/****************
 	 * internal
 	 ****************/
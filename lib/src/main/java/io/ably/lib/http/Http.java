@@ -3,20 +3,21 @@ package io.ably.lib.http;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.reflect.Field;
-import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.google.gson.JsonParseException;
 
+import io.ably.lib.http.HttpEngine.Request;
+import io.ably.lib.http.HttpEngine.Response;
 import io.ably.lib.rest.Auth;
 import io.ably.lib.rest.Auth.AuthMethod;
 import io.ably.lib.transport.Defaults;
@@ -60,6 +61,41 @@ public class Http {
 		T[] handleResponseBody(String contentType, byte[] body) throws AblyException;
 	}
 
+	/**
+	 * Interface for an entity that performs type-specific processing on an http response,
+	 * reading a successful response body directly from the connection
+	 * @param <T>
+	 */
+	public interface StreamingResponseHandler<T> extends ResponseHandler<T> {
+		T handleResponse(int statusCode, String contentType, Collection<String> linkHeaders, InputStream body) throws AblyException;
+	}
+
+	/**
+	 * Interface for a BodyHandler that decodes the items of a response body as it is read
+	 * @param <T>
+	 */
+	public interface StreamingBodyHandler<T> extends BodyHandler<T> {
+		/**
+		 * Decode a response body from a stream
+		 * @param contentType
+		 * @param body
+		 * @param itemHandler if not null, each item is passed to this handler
+		 * as it is decoded, and an empty array is returned
+		 * @return the decoded items
+		 * @throws AblyException
+		 */
+		T[] handleResponseBody(String contentType, InputStream body, ItemHandler<T> itemHandler) throws AblyException;
+	}
+
+	/**
+	 * Interface for an entity that processes the items of a response body
+	 * as they are decoded, so that a large response need not be held in memory
+	 * @param <T>
+	 */
+	public interface ItemHandler<T> {
+		void onItem(T item) throws AblyException;
+	}
+
 	/**
 	 * Interface for an entity that supplies an http request body
 	 * @param <T>
@@ -83,34 +119,12 @@ public class Http {
 	}
 
 	/**
-	 * A type encapsulating an http response
+	 * Interface for the recipient of the result of a request made without blocking
+	 * @param <T>
 	 */
-	private static class Response {
-		int statusCode;
-		String statusLine;
-		Map<String,List<String>> headers;
-		String contentType;
-		int contentLength;
-		byte[] body;
-
-		/**
-		 * Returns the value of the named header field.
-		 * <p>
-		 * If called on a connection that sets the same header multiple times
-		 * with possibly different values, only the last value is returned.
-		 *
-		 *
-		 * @param   name   the name of a header field.
-		 * @return  the value of the named header field, or {@code null}
-		 *          if there is no such field in the header.
-		 */
-		public List<String> getHeaderFields(String name) {
-			if(headers == null) {
-				return null;
-			}
-
-			return headers.get(name.toLowerCase());
-		}
+	interface ResultListener<T> {
+		void onResult(T result);
+		void onError(AblyException e);
 	}
 
 	/**
@@ -155,6 +169,8 @@ public class Http {
 		this.scheme = options.tls ? "https://" : "http://";
 		this.port = Defaults.getPort(options);
 
+		this.engine = (options.httpEngineFactory != null) ? options.httpEngineFactory.getEngine(options) : new HttpURLConnectionEngine(options);
+
 		this.proxyOptions = options.proxy;
 		if(proxyOptions != null) {
 			String proxyHost = proxyOptions.host;
@@ -306,6 +322,7 @@ public class Http {
 	synchronized void dispose() {
 		if(!isDisposed) {
 			isDisposed = true;
+			engine.close();
 		}
 	}
 
@@ -372,69 +389,68 @@ public class Http {
 	 * @throws AblyException
 	 */
 	<T> T httpExecute(URL url, Proxy proxy, String method, Param[] headers, RequestBody requestBody, boolean withCredentials, ResponseHandler<T> responseHandler) throws AblyException {
-		HttpURLConnection conn = null;
+		String authHeader = withCredentials ? this.authHeader : null;
+		Request request = newRequest(url, proxy, method, headers, requestBody, authHeader);
+		request.streaming = responseHandler instanceof StreamingResponseHandler;
+		Response response;
 		try {
-			conn = (HttpURLConnection)url.openConnection(proxy);
-			boolean withProxyCredentials = (proxy != Proxy.NO_PROXY) && (proxyAuth != null);
-			return httpExecute(conn, method, headers, requestBody, withCredentials, withProxyCredentials, responseHandler);
+			response = engine.execute(request);
 		} catch(IOException ioe) {
 			throw AblyException.fromThrowable(ioe);
+		}
+
+		try {
+			return handleResponse(authHeader != null, response, responseHandler);
 		} finally {
-			if(conn != null) {
-				conn.disconnect();
+			if(response.bodyStream != null) {
+				try {
+					response.bodyStream.close();
+				} catch (IOException e) {}
 			}
 		}
 	}
 
 	/**
-	 * Make a synchronous HTTP request with a given HttpURLConnection
-	 * @param conn
+	 * Prepare a request for the engine
+	 * @param url
+	 * @param proxy
 	 * @param method
 	 * @param headers
 	 * @param requestBody
-	 * @param withCredentials
-	 * @param responseHandler
+	 * @param authHeader the Authorization header to include, if any
 	 * @return
 	 * @throws AblyException
 	 */
-	<T> T httpExecute(HttpURLConnection conn, String method, Param[] headers, RequestBody requestBody, boolean withCredentials, boolean withProxyCredentials, ResponseHandler<T> responseHandler) throws AblyException {
-		Response response;
-		boolean credentialsIncluded = false;
-		try {
-			/* prepare connection */
-			conn.setRequestMethod(method);
-			conn.setConnectTimeout(options.httpOpenTimeout);
-			conn.setReadTimeout(options.httpRequestTimeout);
-			conn.setDoInput(true);
-			if(withCredentials && authHeader != null) {
-				conn.setRequestProperty(AUTHORIZATION, authHeader);
-				credentialsIncluded = true;
-			}
-			if(withProxyCredentials && proxyAuth.hasChallenge()) {
-				byte[] encodedRequestBody = (requestBody != null) ? requestBody.getEncoded() : null;
-				String proxyAuthorizationHeader = proxyAuth.getAuthorizationHeader(method, conn.getURL().getPath(), encodedRequestBody);
-				conn.setRequestProperty(PROXY_AUTHORIZATION, proxyAuthorizationHeader);
-			}
-			boolean acceptSet = false;
-			if(headers != null) {
-				for(Param header: headers) {
-					conn.setRequestProperty(header.key, header.value);
-					if(header.key.equals(ACCEPT)) { acceptSet = true; }
-				}
-			}
-			if(!acceptSet) { conn.setRequestProperty(ACCEPT, JSON); }
-
-			/* send request body */
-			if(requestBody != null) {
-				writeRequestBody(requestBody, conn);
+	private Request newRequest(URL url, Proxy proxy, String method, Param[] headers, RequestBody requestBody, String authHeader) throws AblyException {
+		Request request = new Request();
+		request.url = url;
+		request.proxy = (proxy != null) ? proxy : Proxy.NO_PROXY;
+		request.method = method;
+		request.connectTimeout = options.httpOpenTimeout;
+		request.readTimeout = options.httpRequestTimeout;
+		if(authHeader != null) {
+			request.headers.put(AUTHORIZATION, authHeader);
+		}
+		boolean withProxyCredentials = (request.proxy != Proxy.NO_PROXY) && (proxyAuth != null);
+		if(withProxyCredentials && proxyAuth.hasChallenge()) {
+			byte[] encodedRequestBody = (requestBody != null) ? requestBody.getEncoded() : null;
+			String proxyAuthorizationHeader = proxyAuth.getAuthorizationHeader(method, url.getPath(), encodedRequestBody);
+			request.headers.put(PROXY_AUTHORIZATION, proxyAuthorizationHeader);
+		}
+		boolean acceptSet = false;
+		if(headers != null) {
+			for(Param header: headers) {
+				request.headers.put(header.key, header.value);
+				if(header.key.equals(ACCEPT)) { acceptSet = true; }
 			}
-
-			response = readResponse(conn);
-		} catch(IOException ioe) {
-			throw AblyException.fromThrowable(ioe);
 		}
+		if(!acceptSet) { request.headers.put(ACCEPT, JSON); }
 
-		return handleResponse(conn, credentialsIncluded, response, responseHandler);
+		if(requestBody != null) {
+			request.body = requestBody.getEncoded();
+			request.headers.put(CONTENT_TYPE, requestBody.getContentType());
+		}
+		return request;
 	}
 
 	/**
@@ -476,16 +492,161 @@ public class Http {
 		}
 	}
 
+	/**
+	 * Make an HTTP request specified by URL without blocking, retrying if necessary
+	 * on WWW-Authenticate. Requests that the engine cannot make without
+	 * blocking are made on the calling thread.
+	 * @param url
+	 * @param method
+	 * @param headers
+	 * @param requestBody
+	 * @param responseHandler
+	 * @param allowAblyAuth
+	 * @param executor the executor on which the response is handled, and
+	 * any reauthentication performed, before the listener is called
+	 * @param listener
+	 */
+	<T> void httpExecuteWithRetryAsync(URL url, String method, Param[] headers, RequestBody requestBody, ResponseHandler<T> responseHandler, boolean allowAblyAuth, Executor executor, ResultListener<T> listener) {
+		new AsyncExchange<T>(url, method, headers, requestBody, responseHandler, allowAblyAuth, executor, listener).attempt();
+	}
+
+	/**
+	 * A request made without blocking, with the state of any reauthentication
+	 * @param <T>
+	 */
+	private class AsyncExchange<T> implements NonBlockingHttpEngine.ResponseListener {
+		private AsyncExchange(URL url, String method, Param[] headers, RequestBody requestBody, ResponseHandler<T> responseHandler, boolean allowAblyAuth, Executor executor, ResultListener<T> listener) {
+			this.url = url;
+			this.method = method;
+			this.headers = headers;
+			this.requestBody = requestBody;
+			this.responseHandler = responseHandler;
+			this.allowAblyAuth = allowAblyAuth;
+			this.executor = executor;
+			this.listener = listener;
+		}
+
+		private void attempt() {
+			authHeader = Http.this.authHeader;
+			Request request;
+			try {
+				request = newRequest(url, getProxy(url), method, headers, requestBody, authHeader);
+			} catch(AblyException e) {
+				listener.onError(e);
+				return;
+			}
+			if(engine instanceof NonBlockingHttpEngine && ((NonBlockingHttpEngine)engine).isNonBlocking(request)) {
+				((NonBlockingHttpEngine)engine).executeAsync(request, this);
+				return;
+			}
+			/* the request would block the engine; make it on this thread, which is
+			 * one of the caller's workers, so the threads blocked are bounded */
+			Response response;
+			try {
+				response = engine.execute(request);
+			} catch(IOException e) {
+				listener.onError(AblyException.fromThrowable(e));
+				return;
+			}
+			handle(response);
+		}
+
+		@Override
+		public void onResponse(final Response response) {
+			dispatch(new Runnable() {
+				@Override
+				public void run() {
+					handle(response);
+				}
+			});
+		}
+
+		@Override
+		public void onError(final IOException e) {
+			dispatch(new Runnable() {
+				@Override
+				public void run() {
+					listener.onError(AblyException.fromThrowable(e));
+				}
+			});
+		}
+
+		private void handle(Response response) {
+			T result;
+			try {
+				try {
+					result = handleResponse(authHeader != null, response, responseHandler);
+				} catch(AuthRequiredException are) {
+					if(!retry(are))
+						throw are;
+					attempt();
+					return;
+				}
+			} catch(AblyException e) {
+				listener.onError(e);
+				return;
+			}
+			listener.onResult(result);
+		}
+
+		/**
+		 * Process an auth challenge, as httpExecuteWithRetry does
+		 * @return true if the request should be made again
+		 */
+		private boolean retry(AuthRequiredException are) throws AblyException {
+			if(are.authChallenge != null && allowAblyAuth) {
+				if(authPending) {
+					authorise(false);
+					authPending = false;
+					return true;
+				}
+				if(are.expired && renewPending) {
+					authorise(true);
+					renewPending = false;
+					return true;
+				}
+			}
+			if(are.proxyAuthChallenge != null && proxyAuthPending && proxyAuth != null) {
+				proxyAuth.processAuthenticateHeaders(are.proxyAuthChallenge);
+				proxyAuthPending = false;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Handle the result off the engine's I/O thread, as response handlers and
+		 * reauthentication may block
+		 */
+		private void dispatch(Runnable task) {
+			try {
+				executor.execute(task);
+			} catch(RejectedExecutionException e) {
+				task.run();
+			}
+		}
+
+		private final URL url;
+		private final String method;
+		private final Param[] headers;
+		private final RequestBody requestBody;
+		private final ResponseHandler<T> responseHandler;
+		private final boolean allowAblyAuth;
+		private final Executor executor;
+		private final ResultListener<T> listener;
+		private String authHeader;
+		private boolean authPending = true, renewPending = true, proxyAuthPending = true;
+	}
+
 	/**
 	 * Handle HTTP response
-	 * @param conn
 	 * @param credentialsIncluded
 	 * @param response
 	 * @param responseHandler
 	 * @return
 	 * @throws AblyException
 	 */
-	private <T> T handleResponse(HttpURLConnection conn, boolean credentialsIncluded, Response response, ResponseHandler<T> responseHandler) throws AblyException {
+	private <T> T handleResponse(boolean credentialsIncluded, Response response, ResponseHandler<T> responseHandler) throws AblyException {
 		if (response.statusCode == 0) {
 			return null;
 		}
@@ -512,8 +673,8 @@ public class Http {
 
 			/* handle error details in header instead of body */
 			if(error == null) {
-				String errorCodeHeader = conn.getHeaderField("X-Ably-ErrorCode");
-				String errorMessageHeader = conn.getHeaderField("X-Ably-ErrorMessage");
+				String errorCodeHeader = response.getHeaderField("X-Ably-ErrorCode");
+				String errorMessageHeader = response.getHeaderField("X-Ably-ErrorMessage");
 				if(errorCodeHeader != null) {
 					try {
 						error = new ErrorInfo(errorMessageHeader, response.statusCode, Integer.parseInt(errorCodeHeader));
@@ -521,6 +682,11 @@ public class Http {
 				}
 			}
 
+			/* a batch request that failed only in part: the body holds the result of each item */
+			if(error != null && error.code == BATCH_PARTIAL_FAILURE && responseHandler != null && response.body != null) {
+				return responseHandler.handleResponse(response.statusCode, response.contentType, response.getHeaderFields(LINK), response.body);
+			}
+
 			/* handle www-authenticate */
 			if(response.statusCode == 401) {
 				boolean stale = (error != null && error.code == 40140);
@@ -563,73 +729,35 @@ public class Http {
 		}
 
 		List<String> linkHeaders = response.getHeaderFields(LINK);
+		if(response.bodyStream != null)
+			return ((StreamingResponseHandler<T>)responseHandler).handleResponse(response.statusCode, response.contentType, linkHeaders, response.bodyStream);
 		return responseHandler.handleResponse(response.statusCode, response.contentType, linkHeaders, response.body);
 	}
 
 	/**
-	 * Emit the request body for an HTTP request
-	 * @param requestBody
-	 * @param conn
-	 * @throws IOException
-	 */
-	private void writeRequestBody(RequestBody requestBody, HttpURLConnection conn) throws IOException {
-		conn.setDoOutput(true);
-		byte[] body = requestBody.getEncoded();
-		int length = body.length;
-		conn.setFixedLengthStreamingMode(length);
-		conn.setRequestProperty(CONTENT_TYPE, requestBody.getContentType());
-		conn.setRequestProperty(CONTENT_LENGTH, Integer.toString(length));
-		OutputStream os = conn.getOutputStream();
-		os.write(body);
-	}
-
-	/**
-	 * Read the response for an HTTP request
-	 * @param connection
-	 * @return
-	 * @throws IOException
+	 * Decode a response body read from a stream, using the given BodyHandler.
+	 * If the handler does not support streaming, the body is read in full first.
+	 * @param itemHandler if not null, each item is passed to this handler
+	 * as it is decoded, and an empty array is returned
 	 */
-	private Response readResponse(HttpURLConnection connection) throws IOException {
-		Response response = new Response();
-		response.statusCode = connection.getResponseCode();
-		response.statusLine = connection.getResponseMessage();
-
-		/* Store all header field names in lower-case to eliminate case insensitivity */
-		Map<String, List<String>> caseSensitiveHeaders = connection.getHeaderFields();
-		response.headers = new HashMap<>(caseSensitiveHeaders.size(), 1f);
-
-		for (Map.Entry<String, List<String>> entry : caseSensitiveHeaders.entrySet()) {
-			if (entry.getKey() != null) {
-				response.headers.put(entry.getKey().toLowerCase(), entry.getValue());
-			}
-		}
-
-		if(response.statusCode == HttpURLConnection.HTTP_NO_CONTENT) {
-			return response;
-		}
-
-		response.contentType = connection.getContentType();
-		response.contentLength = connection.getContentLength();
-
-		int successStatusCode = (POST.equals(connection.getRequestMethod())) ? HttpURLConnection.HTTP_CREATED : HttpURLConnection.HTTP_OK;
-		InputStream is = (response.statusCode == successStatusCode) ? connection.getInputStream() : connection.getErrorStream();
+	static <T> T[] handleResponseBody(BodyHandler<T> bodyHandler, String contentType, InputStream body, ItemHandler<T> itemHandler) throws AblyException {
+		if(bodyHandler instanceof StreamingBodyHandler)
+			return ((StreamingBodyHandler<T>)bodyHandler).handleResponseBody(contentType, body, itemHandler);
 
+		T[] items;
 		try {
-			response.body = readInputStream(is, response.contentLength);
-		} catch (NullPointerException e) {
-			/* nothing to read */
-		} finally {
-			if (is != null) {
-				try {
-					is.close();
-				} catch (IOException e) {}
-			}
+			items = bodyHandler.handleResponseBody(contentType, readInputStream(body, -1));
+		} catch(IOException ioe) {
+			throw AblyException.fromThrowable(ioe);
 		}
-
-		return response;
+		if(itemHandler == null || items == null)
+			return items;
+		for(T item : items)
+			itemHandler.onItem(item);
+		return Arrays.copyOf(items, 0);
 	}
 
-	private byte[] readInputStream(InputStream inputStream, int bytes) throws IOException {
+	static byte[] readInputStream(InputStream inputStream, int bytes) throws IOException {
 		/* If there is nothing to read */
 		if (inputStream == null) {
 			throw new NullPointerException("inputStream == null");
@@ -649,7 +777,9 @@ public class Http {
 		else {
 			int idx = 0;
 			byte[] output = new byte[bytes];
-			while((bytesRead = inputStream.read(output,  idx, bytes - idx)) > -1) {
+			/* stop at the end of the body, without waiting for the stream
+			 * to end, as it does not end if the connection is kept alive */
+			while(idx < bytes && (bytesRead = inputStream.read(output,  idx, bytes - idx)) > -1) {
 				idx += bytesRead;
 			}
 
@@ -711,24 +841,11 @@ public class Http {
 	 *     Private state
 	 *************************/
 
-	static {
-		/* if on Android, check version */
-		Field androidVersionField = null;
-		int androidVersion = 0;
-		try {
-	        androidVersionField = Class.forName("android.os.Build$VERSION").getField("SDK_INT");
-	        androidVersion = androidVersionField.getInt(androidVersionField);
-	    } catch (Exception e) {}
-		if(androidVersionField != null && androidVersion < 8) {
-			/* HTTP connection reuse which was buggy pre-froyo */
-			System.setProperty("http.keepAlive", "false");
-		}
-	}
-
 	final String scheme;
 	String host;
 	final int port;
 	final ClientOptions options;
+	final HttpEngine engine;
 
 	private final Auth auth;
 	private String authHeader;
@@ -741,10 +858,10 @@ public class Http {
 	private static final String LINK                = "Link";
 	private static final String ACCEPT              = "Accept";
 	private static final String CONTENT_TYPE        = "Content-Type";
-	private static final String CONTENT_LENGTH      = "Content-Length";
 	private static final String JSON                =  "application/json";
 	private static final String WWW_AUTHENTICATE    = "WWW-Authenticate";
 	private static final String PROXY_AUTHENTICATE  = "Proxy-Authenticate";
 	private static final String AUTHORIZATION       = "Authorization";
 	private static final String PROXY_AUTHORIZATION = "Proxy-Authorization";
+	private static final int BATCH_PARTIAL_FAILURE  = 40020;
 }
@@ -0,0 +1,130 @@
+package io.ably.lib.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+
+/**
+ * The means by which {@link Http} makes HTTP requests. Http prepares each
+ * request, including its auth headers, and interprets each response;
+ * the engine only transfers them.
+ * The default engine, {@link HttpURLConnectionEngine}, uses one connection
+ * per request in flight. Set ClientOptions.httpEngineFactory to use another,
+ * such as {@link io.ably.lib.transport.Http2Engine}. Engines that can make
+ * requests without blocking implement {@link NonBlockingHttpEngine}.
+ */
+public interface HttpEngine {
+
+	/**
+	 * Make a request, blocking until the response has been received
+	 * @param request
+	 * @return the response
+	 * @throws IOException if no response was received
+	 */
+	Response execute(Request request) throws IOException;
+
+	/**
+	 * Close any connections held by this engine
+	 */
+	void close();
+
+	/**
+	 * Interface for an entity that creates engines
+	 */
+	interface Factory {
+		HttpEngine getEngine(ClientOptions options) throws AblyException;
+	}
+
+	/**
+	 * A request to be made by an engine
+	 */
+	class Request {
+		public URL url;
+		public Proxy proxy = Proxy.NO_PROXY;
+		public String method;
+
+		/**
+		 * Request headers, by name. Engines add any headers relating
+		 * to the connection or the length of the body.
+		 */
+		public final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+		/**
+		 * The encoded request body, or null
+		 */
+		public byte[] body;
+
+		/**
+		 * Timeouts, in milliseconds
+		 */
+		public int connectTimeout;
+		public int readTimeout;
+
+		/**
+		 * If true, the body of a successful response may be returned
+		 * unread, as Response.bodyStream, for the caller to read and close
+		 */
+		public boolean streaming;
+
+		/**
+		 * The status code of a successful response, whose body may be
+		 * returned unread if streaming
+		 */
+		public int successStatusCode() {
+			return Http.POST.equals(method) ? 201 : 200;
+		}
+	}
+
+	/**
+	 * A response received by an engine
+	 */
+	class Response {
+		public int statusCode;
+		public String statusLine;
+
+		/**
+		 * Response headers, by lower-case name
+		 */
+		public Map<String, List<String>> headers;
+		public String contentType;
+		public int contentLength;
+
+		/**
+		 * The response body, if read
+		 */
+		public byte[] body;
+
+		/**
+		 * The response body, if left unread
+		 */
+		public InputStream bodyStream;
+
+		/**
+		 * Returns the values of the named header field, or null
+		 * @param name the name of a header field, in any case
+		 */
+		public List<String> getHeaderFields(String name) {
+			if(headers == null) {
+				return null;
+			}
+
+			return headers.get(name.toLowerCase());
+		}
+
+		/**
+		 * Returns the last value of the named header field, or null
+		 * @param name the name of a header field, in any case
+		 */
+		public String getHeaderField(String name) {
+			List<String> values = getHeaderFields(name);
+			return (values == null || values.isEmpty()) ? null : values.get(values.size() - 1);
+		}
+	}
+}
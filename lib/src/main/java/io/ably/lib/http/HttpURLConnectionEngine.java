@@ -0,0 +1,193 @@
+package io.ably.lib.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import io.ably.lib.types.ClientOptions;
+
+/**
+ * An HttpEngine using HttpURLConnection. Each request in flight occupies
+ * a connection and the calling thread. If ClientOptions.httpKeepAlive is
+ * set, idle connections are kept alive between requests by the JDK's
+ * keep-alive cache; otherwise each is closed after its request.
+ * Internal
+ */
+public class HttpURLConnectionEngine implements HttpEngine {
+
+	public HttpURLConnectionEngine(ClientOptions options) {
+		this.keepAlive = options.httpKeepAlive;
+		if(options.tls && options.sslContext != null) {
+			/* a single factory, so that its TLS sessions are resumed by later connections */
+			this.sslSocketFactory = options.sslContext.getSocketFactory();
+		}
+	}
+
+	@Override
+	public Response execute(Request request) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection)request.url.openConnection(request.proxy);
+		boolean disconnect = true;
+		try {
+			if(sslSocketFactory != null && conn instanceof HttpsURLConnection) {
+				((HttpsURLConnection)conn).setSSLSocketFactory(sslSocketFactory);
+			}
+			conn.setRequestMethod(request.method);
+			conn.setConnectTimeout(request.connectTimeout);
+			conn.setReadTimeout(request.readTimeout);
+			conn.setDoInput(true);
+			if(!keepAlive) {
+				conn.setRequestProperty(CONNECTION, "close");
+			}
+			for(Map.Entry<String, String> header : request.headers.entrySet()) {
+				conn.setRequestProperty(header.getKey(), header.getValue());
+			}
+
+			/* send request body */
+			if(request.body != null) {
+				writeRequestBody(request.body, conn);
+			}
+
+			Response response = readResponse(conn, request);
+			/* the connection is returned to the keep-alive cache once its
+			 * response stream is closed, unless it is disconnected */
+			if(response.bodyStream != null && !keepAlive) {
+				response.bodyStream = new DisconnectingInputStream(response.bodyStream, conn);
+			}
+			disconnect = !keepAlive && response.bodyStream == null;
+			return response;
+		} finally {
+			if(disconnect) {
+				conn.disconnect();
+			}
+		}
+	}
+
+	@Override
+	public void close() {}
+
+	/*******************
+	 * internal
+	 ******************/
+
+	/**
+	 * Emit the request body for an HTTP request
+	 * @param body
+	 * @param conn
+	 * @throws IOException
+	 */
+	private static void writeRequestBody(byte[] body, HttpURLConnection conn) throws IOException {
+		conn.setDoOutput(true);
+		int length = body.length;
+		conn.setFixedLengthStreamingMode(length);
+		conn.setRequestProperty(CONTENT_LENGTH, Integer.toString(length));
+		OutputStream os = conn.getOutputStream();
+		os.write(body);
+	}
+
+	/**
+	 * Read the response for an HTTP request
+	 * @param connection
+	 * @param request if streaming, the body of a successful response is
+	 * left unread, to be read by the caller
+	 * @return
+	 * @throws IOException
+	 */
+	private static Response readResponse(HttpURLConnection connection, Request request) throws IOException {
+		Response response = new Response();
+		response.statusCode = connection.getResponseCode();
+		response.statusLine = connection.getResponseMessage();
+
+		/* Store all header field names in lower-case to eliminate case insensitivity */
+		Map<String, List<String>> caseSensitiveHeaders = connection.getHeaderFields();
+		response.headers = new HashMap<>(caseSensitiveHeaders.size(), 1f);
+
+		for (Map.Entry<String, List<String>> entry : caseSensitiveHeaders.entrySet()) {
+			if (entry.getKey() != null) {
+				response.headers.put(entry.getKey().toLowerCase(), entry.getValue());
+			}
+		}
+
+		if(response.statusCode == HttpURLConnection.HTTP_NO_CONTENT) {
+			return response;
+		}
+
+		response.contentType = connection.getContentType();
+		response.contentLength = connection.getContentLength();
+
+		int successStatusCode = request.successStatusCode();
+		InputStream is = (response.statusCode == successStatusCode) ? connection.getInputStream() : connection.getErrorStream();
+
+		if(request.streaming && response.statusCode == successStatusCode && is != null) {
+			response.bodyStream = is;
+			return response;
+		}
+
+		try {
+			response.body = Http.readInputStream(is, response.contentLength);
+		} catch (NullPointerException e) {
+			/* nothing to read */
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {}
+			}
+		}
+
+		return response;
+	}
+
+	/**
+	 * A response body stream that disconnects its connection when closed
+	 */
+	private static class DisconnectingInputStream extends FilterInputStream {
+		private DisconnectingInputStream(InputStream in, HttpURLConnection conn) {
+			super(in);
+			this.conn = conn;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				conn.disconnect();
+			}
+		}
+
+		private final HttpURLConnection conn;
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	static {
+		/* if on Android, check version */
+		Field androidVersionField = null;
+		int androidVersion = 0;
+		try {
+	        androidVersionField = Class.forName("android.os.Build$VERSION").getField("SDK_INT");
+	        androidVersion = androidVersionField.getInt(androidVersionField);
+	    } catch (Exception e) {}
+		if(androidVersionField != null && androidVersion < 8) {
+			/* HTTP connection reuse which was buggy pre-froyo */
+			System.setProperty("http.keepAlive", "false");
+		}
+	}
+
+	private final boolean keepAlive;
+	private SSLSocketFactory sslSocketFactory;
+
+	private static final String CONNECTION          = "Connection";
+	private static final String CONTENT_LENGTH      = "Content-Length";
+}
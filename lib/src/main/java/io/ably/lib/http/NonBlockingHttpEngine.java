@@ -0,0 +1,45 @@
+package io.ably.lib.http;
+
+import java.io.IOException;
+
+/**
+ * An HttpEngine that can also make requests without blocking a thread
+ * for each request in flight. {@link AsyncHttp} starts requests with
+ * executeAsync when its engine implements this interface, and otherwise
+ * executes them on its worker threads.
+ */
+public interface NonBlockingHttpEngine extends HttpEngine {
+
+	/**
+	 * Whether a request can be made with executeAsync without blocking.
+	 * If not, the caller should make it with execute(), on a thread of its own
+	 * @param request
+	 */
+	boolean isNonBlocking(Request request);
+
+	/**
+	 * Start a request, returning immediately. The listener is called
+	 * once the response has been received, possibly on an I/O thread of the
+	 * engine, so it must not block.
+	 * A request that cannot be made without blocking is executed on a small
+	 * pool of threads of the engine.
+	 * @param request
+	 * @param listener
+	 */
+	void executeAsync(Request request, ResponseListener listener);
+
+	/**
+	 * The number of requests that this engine can usefully have in flight
+	 * at once via executeAsync; further requests are held by AsyncHttp
+	 * until earlier ones complete
+	 */
+	int getMaxConcurrentRequests();
+
+	/**
+	 * Interface for the recipient of the result of a request made with executeAsync
+	 */
+	interface ResponseListener {
+		void onResponse(Response response);
+		void onError(IOException e);
+	}
+}
@@ -1,12 +1,14 @@
 package io.ably.lib.http;
 
 import io.ably.lib.http.Http.BodyHandler;
-import io.ably.lib.http.Http.ResponseHandler;
+import io.ably.lib.http.Http.ItemHandler;
+import io.ably.lib.http.Http.StreamingResponseHandler;
 import io.ably.lib.types.AblyException;
 import io.ably.lib.types.ErrorInfo;
 import io.ably.lib.types.PaginatedResult;
 import io.ably.lib.types.Param;
 
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.Collection;
@@ -20,7 +22,7 @@ import java.util.regex.Pattern;
  *
  * @param <T> the body response type.
  */
-public class PaginatedQuery<T> implements ResponseHandler<PaginatedResult<T>> {
+public class PaginatedQuery<T> implements StreamingResponseHandler<PaginatedResult<T>> {
 
 	/**
 	 * Construct a PaginatedQuery
@@ -32,11 +34,27 @@ public class PaginatedQuery<T> implements ResponseHandler<PaginatedResult<T>> {
 	 * @param bodyHandler. handler to parse response bodies for first and all relative queries
 	 */
 	public PaginatedQuery(Http http, String path, Param[] headers, Param[] params, BodyHandler<T> bodyHandler) {
+		this(http, path, headers, params, bodyHandler, null);
+	}
+
+	/**
+	 * Construct a PaginatedQuery whose results are passed to the given
+	 * ItemHandler as they are decoded, instead of being held in each page
+	 * 
+	 * @param http. the http instance
+	 * @param path. the path of the resource being queried
+	 * @param headers. headers to pass into the first and all relative queries
+	 * @param params. params to pass into the initial query
+	 * @param bodyHandler. handler to parse response bodies for first and all relative queries
+	 * @param itemHandler. handler to receive the items of the first and all relative queries
+	 */
+	public PaginatedQuery(Http http, String path, Param[] headers, Param[] params, BodyHandler<T> bodyHandler, ItemHandler<T> itemHandler) {
 		this.http = http;
 		this.path = path;
 		this.headers = headers;
 		this.params = params;
 		this.bodyHandler = bodyHandler;
+		this.itemHandler = itemHandler;
 	}
 
 	/**
@@ -120,6 +138,12 @@ public class PaginatedQuery<T> implements ResponseHandler<PaginatedResult<T>> {
 		return new ResultPage(responseContents, linkHeaders);
 	}
 
+	@Override
+	public ResultPage handleResponse(int statusCode, String contentType, Collection<String> linkHeaders, InputStream body) throws AblyException {
+		T[] responseContents = Http.handleResponseBody(bodyHandler, contentType, body, itemHandler);
+		return new ResultPage(responseContents, linkHeaders);
+	}
+
 	/****************
 	 * internal
 	 ****************/
@@ -146,4 +170,5 @@ public class PaginatedQuery<T> implements ResponseHandler<PaginatedResult<T>> {
 	private Param[] headers;
 	private Param[] params;
 	private BodyHandler<T> bodyHandler;
+	private ItemHandler<T> itemHandler;
 }
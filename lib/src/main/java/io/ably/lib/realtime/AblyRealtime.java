@@ -49,6 +49,7 @@ public class AblyRealtime extends AblyRest {
 	 */
 	public AblyRealtime(ClientOptions options) throws AblyException {
 		super(options);
+		dispatcher = new MessageDispatcher(options);
 		connection = new Connection(this);
 		channels = new Channels();
 		if(options.autoConnect) connection.connect();
@@ -61,6 +62,7 @@ public class AblyRealtime extends AblyRest {
 	 */
 	public void close() {
 		connection.close();
+		dispatcher.close();
 	}
 
 	/**
@@ -70,16 +72,6 @@ public class AblyRealtime extends AblyRest {
 	 */
 	@SuppressWarnings("serial")
 	public class Channels extends HashMap<String, Channel> {
-		public Channels() {
-			/* remove all channels when the connection is closed, to avoid stalled state */
-			connection.on(ConnectionState.closed, new ConnectionStateListener() {
-				@Override
-				public void onConnectionStateChanged(ConnectionStateListener.ConnectionStateChange state) {
-					Channels.this.clear();
-				}
-			});
-		}
-
 		/**
 		 * Get the named channel; if it does not already exist,
 		 * create it with default options.
@@ -134,7 +126,7 @@ public class AblyRealtime extends AblyRest {
 				Log.e(TAG, "Received channel message for non-existent channel");
 				return;
 			}
-			channel.onChannelMessage(msg);
+			dispatcher.dispatch(channel, msg);
 		}
 
 		public void suspendAll(ErrorInfo error) {
@@ -150,5 +142,7 @@ public class AblyRealtime extends AblyRest {
 	 * internal
 	 ********************/
 
+	final MessageDispatcher dispatcher;
+
 	private static final String TAG = AblyRealtime.class.getName();
 }
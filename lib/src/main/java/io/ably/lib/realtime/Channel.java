@@ -5,7 +5,10 @@ import io.ably.lib.http.PaginatedQuery;
 import io.ably.lib.http.Http.BodyHandler;
 import io.ably.lib.transport.ConnectionManager;
 import io.ably.lib.transport.ConnectionManager.QueuedMessage;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.transport.MessageQueue;
 import io.ably.lib.types.AblyException;
+import io.ably.lib.types.BaseMessage;
 import io.ably.lib.types.ChannelOptions;
 import io.ably.lib.types.ErrorInfo;
 import io.ably.lib.types.Message;
@@ -17,7 +20,12 @@ import io.ably.lib.types.ProtocolMessage;
 import io.ably.lib.types.ProtocolMessage.Action;
 import io.ably.lib.types.ProtocolMessage.Flag;
 import io.ably.lib.util.EventEmitter;
+import io.ably.lib.util.HashedWheelTimer;
+import io.ably.lib.util.LibraryThread;
 import io.ably.lib.util.Log;
+import io.ably.lib.util.SubscriptionList;
+import io.ably.lib.util.SubscriptionList.Subscription;
+import io.ably.lib.util.WildcardTrie;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -72,15 +80,24 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 	 * internal
 	 *
 	 */
-	private void setState(ChannelState newState, ErrorInfo reason) {
+	private void setState(final ChannelState newState, final ErrorInfo reason) {
 		Log.v(TAG, "setState(): channel = " + name + "; setting " + newState);
 		synchronized(this) {
 			this.state = newState;
 			this.reason = reason;
+			if(newState != ChannelState.attaching && attachTimeout != null) {
+				attachTimeout.cancel();
+				attachTimeout = null;
+			}
 		}
 
-		/* broadcast state change */
-		emit(newState, reason);
+		/* broadcast state change; listeners are called on the callback executor */
+		ably.connection.connectionManager.runCallback(new Runnable() {
+			@Override
+			public void run() {
+				emit(newState, reason);
+			}
+		});
 	}
 
 	/************************************
@@ -141,12 +158,80 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 			}
 
 			setState(ChannelState.attaching, null);
+			scheduleAttachTimeout();
 			connectionManager.send(attachMessage, true, null);
 		} catch(AblyException e) {
 			throw e;
 		}
 	}
 
+	/**
+	 * Abandon the attach if no response is received within TIMEOUT_ATTACH
+	 * of the connection being available. If the connection is not yet
+	 * connected when the timer expires, the attach request is still queued,
+	 * so the timer is restarted; if the connection fails the channel is
+	 * detached by setSuspended() instead.
+	 */
+	private synchronized void scheduleAttachTimeout() {
+		scheduleAttachTimer(false, Defaults.TIMEOUT_ATTACH);
+	}
+
+	/**
+	 * Attach again after TIMEOUT_CHANNEL_RETRY, once the connection is
+	 * connected, unless the channel has changed state in the meantime (RTL13b)
+	 */
+	private synchronized void scheduleAttachRetry() {
+		scheduleAttachTimer(true, Defaults.TIMEOUT_CHANNEL_RETRY);
+	}
+
+	private void scheduleAttachTimer(final boolean isRetry, long delay) {
+		if(attachTimeout != null)
+			attachTimeout.cancel();
+		final long timerId = ++attachTimerId;
+		attachTimeout = ably.connection.connectionManager.getTimer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				onAttachTimer(isRetry, timerId);
+			}
+		}, delay);
+	}
+
+	private synchronized void cancelAttachTimer() {
+		if(attachTimeout != null) {
+			attachTimeout.cancel();
+			attachTimeout = null;
+		}
+	}
+
+	private void onAttachTimer(boolean isRetry, long timerId) {
+		boolean connected = (ably.connection.connectionManager.getConnectionState().state == ConnectionState.connected);
+		synchronized(this) {
+			if(attachTimeout == null || timerId != attachTimerId)
+				return;
+			if(isRetry ? (state != ChannelState.detached || reason != REASON_ATTACH_TIMEDOUT) : (state != ChannelState.attaching))
+				return;
+			attachTimeout = null;
+			if(!connected) {
+				scheduleAttachTimer(isRetry, isRetry ? Defaults.TIMEOUT_CHANNEL_RETRY : Defaults.TIMEOUT_ATTACH);
+				return;
+			}
+		}
+		if(isRetry) {
+			Log.v(TAG, "onAttachTimer(): retrying attach; channel = " + name);
+			try {
+				attach();
+			} catch(AblyException e) {
+				Log.e(TAG, "onAttachTimer(): Unable to attach; channel = " + name, e);
+			}
+			return;
+		}
+		/* RTL4f: the channel is detached, and attaches again later; messages
+		 * queued awaiting the attach remain queued until then */
+		Log.v(TAG, "onAttachTimer(): attach timed out; channel = " + name);
+		setState(ChannelState.detached, REASON_ATTACH_TIMEDOUT);
+		scheduleAttachRetry();
+	}
+
 	/**
 	 * Detach from this channel.
 	 * This call initiates the detach request, and the response
@@ -169,6 +254,11 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 		switch(state) {
 			case initialized:
 			case detached: {
+				/* a detach while awaiting an attach retry abandons the retry,
+				 * and the messages queued awaiting the attach */
+				cancelAttachTimer();
+				if(reason == REASON_ATTACH_TIMEDOUT)
+					failQueuedMessages(REASON_NOT_ATTACHED);
 				if(listener != null) {
 					listener.onSuccess();
 				}
@@ -274,6 +364,7 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 	}
 
 	static ErrorInfo REASON_NOT_ATTACHED = new ErrorInfo("Channel not attached", 400, 90001);
+	static ErrorInfo REASON_ATTACH_TIMEDOUT = new ErrorInfo("Channel attach timed out", 408, 90007);
 
 	/************************************
 	 * subscriptions and MessageListener
@@ -294,10 +385,15 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 	 * Spec: RTL8a
 	 * </p>
 	 */
-	public synchronized void unsubscribe() {
+	public void unsubscribe() {
 		Log.v(TAG, "unsubscribe(); channel = " + this.name);
 		listeners.clear();
-		eventListeners.clear();
+		patternListeners.clear();
+		synchronized(eventListenersLock) {
+			for(SubscriptionList<MessageListener> subscribers : eventListeners.values())
+				subscribers.clear();
+			eventListeners = new HashMap<String, SubscriptionList<MessageListener>>();
+		}
 	}
 
 	/**
@@ -306,21 +402,36 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 	 * @param listener: the MessageListener
 	 * @throws AblyException
 	 */
-	public synchronized void subscribe(MessageListener listener) throws AblyException {
+	public void subscribe(MessageListener listener) throws AblyException {
+		addSubscription(listener);
+	}
+
+	/**
+	 * Subscribe for messages on this channel, as subscribe(), returning a handle
+	 * on the subscription.
+	 * @param listener: the MessageListener
+	 * @return a Subscription, which may be used to remove this listener
+	 * in constant time, without affecting other subscriptions of the same listener
+	 * @throws AblyException
+	 */
+	public Subscription addSubscription(MessageListener listener) throws AblyException {
 		Log.v(TAG, "subscribe(); channel = " + this.name);
-		listeners.add(listener);
+		Subscription subscription = listeners.add(listener);
 		attach();
+		return subscription;
 	}
 
 	/**
 	 * Unsubscribe a previously subscribed listener from this channel.
 	 * @param listener: the previously subscribed listener.
 	 */
-	public synchronized void unsubscribe(MessageListener listener) {
+	public void unsubscribe(MessageListener listener) {
 		Log.v(TAG, "unsubscribe(); channel = " + this.name);
 		listeners.remove(listener);
-		for (MessageMulticaster multicaster: eventListeners.values()) {
-			multicaster.remove(listener);
+		patternListeners.remove(listener);
+		synchronized(eventListenersLock) {
+			for(String name : eventListeners.keySet())
+				unsubscribeImpl(name, listener);
 		}
 	}
 
@@ -331,10 +442,23 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 	 * @param listener: the MessageListener
 	 * @throws AblyException
 	 */
-	public synchronized void subscribe(String name, MessageListener listener) throws AblyException {
+	public void subscribe(String name, MessageListener listener) throws AblyException {
+		addSubscription(name, listener);
+	}
+
+	/**
+	 * Subscribe for messages with a specific event name on this channel,
+	 * as subscribe(name, listener), returning a handle on the subscription.
+	 * @param name: the event name
+	 * @param listener: the MessageListener
+	 * @return a Subscription, which may be used to remove this listener
+	 * @throws AblyException
+	 */
+	public Subscription addSubscription(String name, MessageListener listener) throws AblyException {
 		Log.v(TAG, "subscribe(); channel = " + this.name + "; event = " + name);
-		subscribeImpl(name, listener);
+		Subscription subscription = subscribeImpl(name, listener);
 		attach();
+		return subscription;
 	}
 
 	/**
@@ -342,9 +466,11 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 	 * @param name: the event name
 	 * @param listener: the previously subscribed listener.
 	 */
-	public synchronized void unsubscribe(String name, MessageListener listener) {
+	public void unsubscribe(String name, MessageListener listener) {
 		Log.v(TAG, "unsubscribe(); channel = " + this.name + "; event = " + name);
-		unsubscribeImpl(name, listener);
+		synchronized(eventListenersLock) {
+			unsubscribeImpl(name, listener);
+		}
 	}
 
 	/**
@@ -354,11 +480,32 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 	 * @param listener: the MessageListener
 	 * @throws AblyException
 	 */
-	public synchronized void subscribe(String[] names, MessageListener listener) throws AblyException {
+	public void subscribe(String[] names, MessageListener listener) throws AblyException {
+		addSubscription(names, listener);
+	}
+
+	/**
+	 * Subscribe for messages with an array of event names on this channel,
+	 * as subscribe(names, listener), returning a handle on the subscription.
+	 * @param names: the event names
+	 * @param listener: the MessageListener
+	 * @return a Subscription, which may be used to remove this listener
+	 * for all of the given names
+	 * @throws AblyException
+	 */
+	public Subscription addSubscription(String[] names, MessageListener listener) throws AblyException {
 		Log.v(TAG, "subscribe(); channel = " + this.name + "; (multiple events)");
-		for(String name : names)
-			subscribeImpl(name, listener);
+		final Subscription[] subscriptions = new Subscription[names.length];
+		for(int i = 0; i < names.length; i++)
+			subscriptions[i] = subscribeImpl(names[i], listener);
 		attach();
+		return new Subscription() {
+			@Override
+			public void unsubscribe() {
+				for(Subscription subscription : subscriptions)
+					subscription.unsubscribe();
+			}
+		};
 	}
 
 	/**
@@ -366,10 +513,38 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 	 * @param names: the event names
 	 * @param listener: the previously subscribed listener.
 	 */
-	public synchronized void unsubscribe(String[] names, MessageListener listener) {
+	public void unsubscribe(String[] names, MessageListener listener) {
 		Log.v(TAG, "unsubscribe(); channel = " + this.name + "; (multiple events)");
-		for(String name : names)
-			unsubscribeImpl(name, listener);
+		synchronized(eventListenersLock) {
+			for(String name : names)
+				unsubscribeImpl(name, listener);
+		}
+	}
+
+	/**
+	 * Subscribe for messages whose event names match a pattern on this channel,
+	 * in which '*' matches any sequence of characters; eg "orders.*".
+	 * This implicitly attaches the channel if not already attached.
+	 * @param pattern: the event name pattern
+	 * @param listener: the MessageListener
+	 * @return a Subscription, which may be used to remove this listener
+	 * @throws AblyException
+	 */
+	public Subscription subscribePattern(String pattern, MessageListener listener) throws AblyException {
+		Log.v(TAG, "subscribePattern(); channel = " + this.name + "; pattern = " + pattern);
+		Subscription subscription = patternListeners.add(pattern, listener);
+		attach();
+		return subscription;
+	}
+
+	/**
+	 * Unsubscribe a previously subscribed pattern listener from this channel.
+	 * @param pattern: the event name pattern
+	 * @param listener: the previously subscribed listener.
+	 */
+	public void unsubscribePattern(String pattern, MessageListener listener) {
+		Log.v(TAG, "unsubscribePattern(); channel = " + this.name + "; pattern = " + pattern);
+		patternListeners.remove(pattern, listener);
 	}
 
 	/***
@@ -381,36 +556,53 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 		Message[] messages = message.messages;
 		for(int i = 0; i < messages.length; i++) {
 			Message msg = messages[i];
-			try {
-				msg.decode(options);
-			} catch(AblyException e) {
-				Log.e(TAG, "Unexpected exception decrypting message", e);
-			}
+			decode(msg);
 			/* populate fields derived from protocol message */
 			if(msg.connectionId == null) msg.connectionId = message.connectionId;
 			if(msg.timestamp == 0) msg.timestamp = message.timestamp;
 			if(msg.id == null) msg.id = message.id + ':' + i;
 			/* broadcast */
-			MessageMulticaster listeners = eventListeners.get(msg.name);
-			if(listeners != null)
-				listeners.onMessage(msg);
+			SubscriptionList<MessageListener> subscribers = eventListeners.get(msg.name);
+			if(subscribers != null)
+				broadcast(subscribers, msg);
+			if(msg.name != null && !patternListeners.isEmpty()) {
+				List<SubscriptionList<MessageListener>> matches = new ArrayList<SubscriptionList<MessageListener>>(2);
+				patternListeners.match(msg.name, matches);
+				for(SubscriptionList<MessageListener> matched : matches)
+					broadcast(matched, msg);
+			}
 		}
 
 		for (Message msg : message.messages) {
-			this.listeners.onMessage(msg);
+			broadcast(listeners, msg);
 		}
 	}
 
+	private void decode(BaseMessage msg) {
+		if(options != null && options.lazyDecode) {
+			msg.decodeLater(options);
+			return;
+		}
+		try {
+			msg.decode(options);
+		} catch(AblyException e) {
+			Log.e(TAG, "Unexpected exception decrypting message", e);
+		}
+	}
+
+	private static void broadcast(SubscriptionList<MessageListener> subscribers, Message message) {
+		for(MessageListener member : subscribers)
+			try {
+				member.onMessage(message);
+			} catch(Throwable t) {}
+	}
+
 	private void onPresence(ProtocolMessage message, String syncChannelSerial) {
 		Log.v(TAG, "onPresence(); channel = " + name + "; syncChannelSerial = " + syncChannelSerial);
 		PresenceMessage[] messages = message.presence;
 		for(int i = 0; i < messages.length; i++) {
 			PresenceMessage msg = messages[i];
-			try {
-				msg.decode(options);
-			} catch(AblyException e) {
-				Log.e(TAG, "Unexpected exception decrypting message", e);
-			}
+			decode(msg);
 			/* populate fields derived from protocol message */
 			if(msg.connectionId == null) msg.connectionId = message.connectionId;
 			if(msg.timestamp == 0) msg.timestamp = message.timestamp;
@@ -425,34 +617,53 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 			onPresence(message, (syncChannelSerial = message.channelSerial));
 	}
 
-	private MessageMulticaster listeners = new MessageMulticaster();
-	private HashMap<String, MessageMulticaster> eventListeners = new HashMap<String, MessageMulticaster>();
-
-	private static class MessageMulticaster extends io.ably.lib.util.Multicaster<MessageListener> implements MessageListener {
-		@Override
-		public void onMessage(Message message) {
-			for(MessageListener member : members)
-				try {
-					member.onMessage(message);
-				} catch(Throwable t) {}
+	/* listeners are read on dispatch without locking; the map of
+	 * event listeners is copied when a name is added or removed */
+	private final SubscriptionList<MessageListener> listeners = new SubscriptionList<MessageListener>();
+	private volatile HashMap<String, SubscriptionList<MessageListener>> eventListeners = new HashMap<String, SubscriptionList<MessageListener>>();
+	private final Object eventListenersLock = new Object();
+	private final WildcardTrie<MessageListener> patternListeners = new WildcardTrie<MessageListener>();
+
+	private Subscription subscribeImpl(final String name, MessageListener listener) {
+		synchronized(eventListenersLock) {
+			SubscriptionList<MessageListener> subscribers = eventListeners.get(name);
+			if(subscribers == null) {
+				HashMap<String, SubscriptionList<MessageListener>> updated = new HashMap<String, SubscriptionList<MessageListener>>(eventListeners);
+				subscribers = new SubscriptionList<MessageListener>();
+				updated.put(name, subscribers);
+				eventListeners = updated;
+			}
+			final SubscriptionList<MessageListener> list = subscribers;
+			final Subscription subscription = list.add(listener);
+			return new Subscription() {
+				@Override
+				public void unsubscribe() {
+					subscription.unsubscribe();
+					if(list.isEmpty())
+						removeIfEmpty(name, list);
+				}
+			};
 		}
 	}
 
-	private void subscribeImpl(String name, MessageListener listener) throws AblyException {
-		MessageMulticaster listeners = eventListeners.get(name);
-		if(listeners == null) {
-			listeners = new MessageMulticaster();
-			eventListeners.put(name, listeners);
+	/**
+	 * Called with eventListenersLock held
+	 */
+	private void unsubscribeImpl(String name, MessageListener listener) {
+		SubscriptionList<MessageListener> subscribers = eventListeners.get(name);
+		if(subscribers != null) {
+			subscribers.remove(listener);
+			removeIfEmpty(name, subscribers);
 		}
-		listeners.add(listener);
 	}
 
-	private void unsubscribeImpl(String name, MessageListener listener) {
-		MessageMulticaster listeners = eventListeners.get(name);
-		if(listeners != null) {
-			listeners.remove(listener);
-			if(listeners.isEmpty())
-				eventListeners.remove(name);
+	private void removeIfEmpty(String name, SubscriptionList<MessageListener> subscribers) {
+		synchronized(eventListenersLock) {
+			if(subscribers.isEmpty() && eventListeners.get(name) == subscribers) {
+				HashMap<String, SubscriptionList<MessageListener>> updated = new HashMap<String, SubscriptionList<MessageListener>>(eventListeners);
+				updated.remove(name);
+				eventListeners = updated;
+			}
 		}
 	}
 
@@ -528,20 +739,37 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 		for(Message message : messages) message.encode(options);
 		ProtocolMessage msg = new ProtocolMessage(Action.message, this.name);
 		msg.messages = messages;
-		switch(state) {
-		case initialized:
-			attach();
-		case attaching:
-			/* queue the message for later send */
-			queuedMessages.add(new QueuedMessage(msg, listener));
-			break;
-		case detaching:
-		case detached:
-		case failed:
-			throw AblyException.fromErrorInfo(new ErrorInfo("Unable to publish in detached or failed state", 400, 40000));
-		case attached:
-			ConnectionManager connectionManager = ably.connection.connectionManager;
-			connectionManager.send(msg, ably.options.queueMessages, listener);
+		publishImpl(msg, listener);
+	}
+
+	private void publishImpl(ProtocolMessage msg, CompletionListener listener) throws AblyException {
+		while(true) {
+			switch(state) {
+			case initialized:
+				attach();
+			case attaching:
+				/* queue the message for later send */
+				long removedCount = queuedMessages.getRemovedCount();
+				if(queuedMessages.put(msg, listener))
+					return;
+				/* the queue is full and the policy is to block; the queue is
+				 * drained by library threads, so they must not wait */
+				if(LibraryThread.isCurrent())
+					throw AblyException.fromErrorInfo(MessageQueue.REASON_QUEUE_FULL);
+				/* wait for space, then retry in whatever state we are now in */
+				queuedMessages.awaitRemoval(removedCount);
+				if(Thread.currentThread().isInterrupted())
+					throw AblyException.fromErrorInfo(MessageQueue.REASON_QUEUE_FULL);
+				break;
+			case detaching:
+			case detached:
+			case failed:
+				throw AblyException.fromErrorInfo(new ErrorInfo("Unable to publish in detached or failed state", 400, 40000));
+			case attached:
+				ConnectionManager connectionManager = ably.connection.connectionManager;
+				connectionManager.send(msg, ably.options.queueMessages, listener);
+				return;
+			}
 		}
 	}
 
@@ -553,7 +781,8 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 		Log.v(TAG, "sendQueuedMessages()");
 		boolean queueMessages = ably.options.queueMessages;
 		ConnectionManager connectionManager = ably.connection.connectionManager;
-		for(QueuedMessage msg : queuedMessages)
+		QueuedMessage msg;
+		while((msg = queuedMessages.poll()) != null)
 			try {
 				connectionManager.send(msg.msg, queueMessages, msg.listener);
 			} catch(AblyException e) {
@@ -561,19 +790,34 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 				if(msg.listener != null)
 					msg.listener.onError(e.errorInfo);
 			}
-		queuedMessages.clear();
 	}
 
-	private void failQueuedMessages(ErrorInfo reason) {
+	private void failQueuedMessages(final ErrorInfo reason) {
 		Log.v(TAG, "failQueuedMessages()");
-		for(QueuedMessage msg : queuedMessages)
-			if(msg.listener != null)
-				try {
-					msg.listener.onError(reason);
-				} catch(Throwable t) {
-					Log.e(TAG, "failQueuedMessages(): Unexpected exception calling listener", t);
-				}
-		queuedMessages.clear();
+		final QueuedMessage[] failed = queuedMessages.clear();
+		if(failed.length == 0)
+			return;
+		ably.connection.connectionManager.runCallback(new Runnable() {
+			@Override
+			public void run() {
+				for(QueuedMessage msg : failed)
+					if(msg.listener != null)
+						try {
+							msg.listener.onError(reason);
+						} catch(Throwable t) {
+							Log.e(TAG, "failQueuedMessages(): Unexpected exception calling listener", t);
+						}
+			}
+		});
+	}
+
+	/**
+	 * Get a snapshot of the size and counters of the queue of
+	 * messages awaiting attachment of this channel
+	 * @return
+	 */
+	public MessageQueue.Stats getQueueStats() {
+		return queuedMessages.getStats();
 	}
 
 	static Param[] replacePlaceholderParams(Channel channel, Param[] placeholderParams) throws AblyException {
@@ -611,7 +855,9 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 
 	private static final String KEY_UNTIL_ATTACH = "untilAttach";
 	private static final String KEY_FROM_SERIAL = "fromSerial";
-	private List<QueuedMessage> queuedMessages;
+	private final MessageQueue queuedMessages;
+	private HashedWheelTimer.Timeout attachTimeout;
+	private long attachTimerId;
 
 	/************************************
 	 * Channel history 
@@ -641,6 +887,21 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 		this.options = options;
 	}
 
+	/************************************
+	 * Message dispatch
+	 ************************************/
+
+	/**
+	 * Get a snapshot of the counters of inbound messages dispatched
+	 * to this channel; see ClientOptions.dispatchThreads
+	 * @return
+	 */
+	public MessageDispatcher.Stats getDispatchStats() {
+		return dispatchCounters.getStats();
+	}
+
+	final MessageDispatcher.Counters dispatchCounters = new MessageDispatcher.Counters();
+
 	/************************************
 	 * internal general
 	 * @throws AblyException 
@@ -677,7 +938,7 @@ public class Channel extends EventEmitter<ChannelState, ChannelStateListener> {
 		this.basePath = "/channels/" + HttpUtils.encodeURIComponent(name);
 		this.presence = new Presence(this);
 		state = ChannelState.initialized;
-		queuedMessages = new ArrayList<QueuedMessage>();
+		queuedMessages = new MessageQueue(ably.options);
 	}
 
 	void onChannelMessage(ProtocolMessage msg) {
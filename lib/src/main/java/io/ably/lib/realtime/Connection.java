@@ -73,10 +73,15 @@ public class Connection extends EventEmitter<ConnectionState, ConnectionStateLis
 		this.connectionManager = new ConnectionManager(ably, this);
 	}
 
-	public void onConnectionStateChange(ConnectionStateChange stateChange) {
+	public void onConnectionStateChange(final ConnectionStateChange stateChange) {
 		state = stateChange.current;
 		reason = stateChange.reason;
-		emit(state, stateChange);
+		connectionManager.runCallback(new Runnable() {
+			@Override
+			public void run() {
+				emit(stateChange.current, stateChange);
+			}
+		});
 	}
 
 	@Override
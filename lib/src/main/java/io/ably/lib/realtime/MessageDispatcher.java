@@ -0,0 +1,212 @@
+package io.ably.lib.realtime;
+
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.util.LibraryThread;
+import io.ably.lib.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches inbound channel messages to their channels and listeners.
+ * If dispatchThreads is set in the ClientOptions, each channel is assigned
+ * to one of that many single-threaded workers, so that messages for a given
+ * channel are processed in order while different channels are processed
+ * in parallel, and a slow listener does not stall the connection.
+ * Each worker's queue holds up to dispatchQueueSize messages; when it is
+ * full, the transport thread waits for space.
+ * Otherwise, messages are dispatched on the transport thread.
+ * In either case, dispatches taking longer than slowListenerThreshold are
+ * counted and reported with a warning.
+ * Internal
+ */
+public class MessageDispatcher {
+
+	/**
+	 * A snapshot of the dispatch counters of a channel
+	 */
+	public static class Stats {
+		/**
+		 * The number of messages awaiting dispatch
+		 */
+		public int queueDepth;
+
+		/**
+		 * The number of messages dispatched
+		 */
+		public long dispatched;
+
+		/**
+		 * The number of dispatches that took longer than the slow listener threshold
+		 */
+		public long slowDispatches;
+
+		/**
+		 * The longest time taken by a single dispatch, in milliseconds
+		 */
+		public long maxDispatchTime;
+	}
+
+	/**
+	 * The dispatch counters of a single channel
+	 */
+	static class Counters {
+		private final AtomicInteger queueDepth = new AtomicInteger();
+		private long dispatched;
+		private long slowDispatches;
+		private long maxDispatchTime;
+		private long lastWarningTime;
+
+		synchronized Stats getStats() {
+			Stats stats = new Stats();
+			stats.queueDepth = queueDepth.get();
+			stats.dispatched = dispatched;
+			stats.slowDispatches = slowDispatches;
+			stats.maxDispatchTime = maxDispatchTime;
+			return stats;
+		}
+	}
+
+	MessageDispatcher(ClientOptions options) {
+		this.slowListenerThreshold = options.slowListenerThreshold;
+		this.queueSize = Math.max(1, options.dispatchQueueSize);
+		workers = new ThreadPoolExecutor[Math.max(0, options.dispatchThreads)];
+	}
+
+	/**
+	 * Dispatch a message to the given channel, waiting if
+	 * the channel's worker has a full queue
+	 */
+	void dispatch(final Channel channel, final ProtocolMessage msg) {
+		if(workers.length == 0) {
+			dispatchImpl(channel, msg);
+			return;
+		}
+		channel.dispatchCounters.queueDepth.incrementAndGet();
+		try {
+			getWorker((channel.name.hashCode() & Integer.MAX_VALUE) % workers.length).execute(new Runnable() {
+				@Override
+				public void run() {
+					channel.dispatchCounters.queueDepth.decrementAndGet();
+					dispatchImpl(channel, msg);
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			channel.dispatchCounters.queueDepth.decrementAndGet();
+			Log.w(TAG, "dispatch(): message discarded; channel = " + channel.name + "; " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Get the total number of messages awaiting dispatch for all channels
+	 */
+	public synchronized int getQueueDepth() {
+		int depth = 0;
+		for(ThreadPoolExecutor worker : workers) {
+			if(worker != null)
+				depth += worker.getQueue().size();
+		}
+		return depth;
+	}
+
+	/**
+	 * Stop the workers once the messages already awaiting dispatch have
+	 * been dispatched. Workers are started again if further messages are
+	 * dispatched, for example if the connection is reopened.
+	 */
+	synchronized void close() {
+		for(int i = 0; i < workers.length; i++) {
+			if(workers[i] != null) {
+				workers[i].shutdown();
+				workers[i] = null;
+			}
+		}
+	}
+
+	/*******************
+	 * internal
+	 ******************/
+
+	private synchronized ThreadPoolExecutor getWorker(final int index) {
+		ThreadPoolExecutor worker = workers[index];
+		if(worker == null) {
+			worker = workers[index] = new ThreadPoolExecutor(1, 1, WORKER_KEEP_ALIVE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ably-dispatch-" + index);
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, awaitSpace);
+			worker.allowCoreThreadTimeOut(true);
+		}
+		return worker;
+	}
+
+	/**
+	 * Called when a worker's queue is full: wait for space, unless the
+	 * worker has been shut down. The queue is only full while the worker's
+	 * thread is running, so the task will be taken from the queue.
+	 */
+	private static final RejectedExecutionHandler awaitSpace = new RejectedExecutionHandler() {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if(executor.isShutdown())
+				throw new RejectedExecutionException("dispatcher closed");
+			try {
+				executor.getQueue().put(r);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("interrupted while awaiting dispatch");
+			}
+		}
+	};
+
+	private void dispatchImpl(Channel channel, ProtocolMessage msg) {
+		long start = System.nanoTime();
+		LibraryThread.enter();
+		try {
+			channel.onChannelMessage(msg);
+		} catch(Throwable t) {
+			Log.e(TAG, "dispatchImpl(): Unexpected exception dispatching message; channel = " + channel.name, t);
+		} finally {
+			LibraryThread.exit();
+		}
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		Counters counters = channel.dispatchCounters;
+		boolean warn = false;
+		synchronized(counters) {
+			++counters.dispatched;
+			if(elapsed > counters.maxDispatchTime)
+				counters.maxDispatchTime = elapsed;
+			if(slowListenerThreshold > 0 && elapsed >= slowListenerThreshold) {
+				++counters.slowDispatches;
+				long now = System.currentTimeMillis();
+				if(now - counters.lastWarningTime >= SLOW_WARNING_INTERVAL) {
+					counters.lastWarningTime = now;
+					warn = true;
+				}
+			}
+		}
+		if(warn)
+			Log.w(TAG, "Slow listener; channel = " + channel.name + "; dispatch of " + msg.action + " took " + elapsed + "ms; queue depth = " + counters.queueDepth.get());
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	private final ThreadPoolExecutor[] workers;
+	private final long slowListenerThreshold;
+	private final int queueSize;
+
+	private static final long WORKER_KEEP_ALIVE = 60000L;
+	private static final long SLOW_WARNING_INTERVAL = 10000L;
+	private static final String TAG = MessageDispatcher.class.getName();
+}
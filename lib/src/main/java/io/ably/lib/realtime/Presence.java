@@ -13,6 +13,7 @@ import io.ably.lib.types.PresenceSerializer;
 import io.ably.lib.types.ProtocolMessage;
 import io.ably.lib.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.EnumMap;
@@ -21,7 +22,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * A class that provides access to presence operations and state for the
@@ -40,7 +40,7 @@ public class Presence {
 	 * @return: the current present members.
 	 * @throws AblyException
 	 */
-	public synchronized PresenceMessage[] get() throws AblyException {
+	public PresenceMessage[] get() throws AblyException {
 		if (channel.state == ChannelState.failed) {
 			throw AblyException.fromErrorInfo(new ErrorInfo("channel operation failed (invalid channel state)", 90001));
 		}
@@ -57,7 +57,7 @@ public class Presence {
 	 * @return: the current present members.
 	 * @throws AblyException
 	 */
-	public synchronized PresenceMessage[] get(boolean wait) throws InterruptedException, AblyException {
+	public PresenceMessage[] get(boolean wait) throws InterruptedException, AblyException {
 		if (channel.state == ChannelState.failed) {
 			throw AblyException.fromErrorInfo(new ErrorInfo("channel operation failed (invalid channel state)", 90001));
 		}
@@ -76,7 +76,7 @@ public class Presence {
 	 * @throws InterruptedException
 	 * @throws AblyException
 	 */
-	public synchronized PresenceMessage[] get(String clientId, boolean wait) throws InterruptedException, AblyException {
+	public PresenceMessage[] get(String clientId, boolean wait) throws InterruptedException, AblyException {
 		if (channel.state == ChannelState.failed) {
 			throw AblyException.fromErrorInfo(new ErrorInfo("channel operation failed (invalid channel state)", 90001));
 		}
@@ -205,6 +205,7 @@ public class Presence {
 		/* if this is the last message in a sequence of sync updates, end the sync */
 		if(syncChannelSerial == null || syncCursor.length() <= 1)
 			presence.endSync();
+		presence.publish();
 
 		if(broadcast)
 			broadcastPresence(messages);
@@ -585,6 +586,11 @@ public class Presence {
 	 * fact that a leave event has been seen for a member. These entries are
 	 * cleared once the last set of updates of a sync sequence have been received.
 	 *
+	 * Members are held in shards by clientId. Updates are made under a lock, and
+	 * are not visible to readers until publish() is called at the end of each
+	 * batch; this replaces the snapshot of each changed shard, and publishes a
+	 * new immutable Snapshot. Readers use the current Snapshot without locking,
+	 * so they never block, nor are blocked by, the processing of updates.
 	 */
 	private class PresenceMap {
 		/**
@@ -592,11 +598,10 @@ public class Presence {
 		 * @param key
 		 * @return
 		 */
-		synchronized Collection<PresenceMessage> getClient(String clientId, boolean wait) throws InterruptedException {
-			Collection<PresenceMessage> result = new HashSet<PresenceMessage>();
-			for(Iterator<Map.Entry<String, PresenceMessage>> it = members.entrySet().iterator(); it.hasNext();) {
-				PresenceMessage entry = it.next().getValue();
-				if(entry.clientId.equals(clientId) && entry.action != PresenceMessage.Action.absent) {
+		Collection<PresenceMessage> getClient(String clientId, boolean wait) throws InterruptedException {
+			Collection<PresenceMessage> result = new ArrayList<PresenceMessage>();
+			for(PresenceMessage entry : published.shards[shardIndex(clientId)]) {
+				if(clientId.equals(entry.clientId)) {
 					result.add(entry);
 				}
 			}
@@ -611,17 +616,19 @@ public class Presence {
 		 */
 		synchronized boolean put(PresenceMessage item) {
 			String key = memberKey(item);
+			Shard shard = shards[shardIndex(item.clientId)];
 			/* we've seen this member, so do not remove it at the end of sync */
-			if(residualMembers != null)
-				residualMembers.remove(key);
+			if(shard.residualMembers != null)
+				shard.residualMembers.remove(key);
 
 			/* compare the timestamp of the new item with any existing member (or absent witness) */
-			PresenceMessage existingItem = members.get(key);
+			PresenceMessage existingItem = shard.members.get(key);
 			if(existingItem != null && item.timestamp < existingItem.timestamp) {
 				/* no item supersedes a newer item with the same key */
 				return false;
 			}
-			members.put(key, item);
+			shard.members.put(key, item);
+			shard.dirty = true;
 			return true;
 		}
 
@@ -629,7 +636,7 @@ public class Presence {
 		 * Get all members based on the current state (even if sync is in progress)
 		 * @return
 		 */
-		synchronized Collection<PresenceMessage> values() {
+		Collection<PresenceMessage> values() {
 			try { return values(false); } catch (InterruptedException e) { return null; }
 		}
 
@@ -639,19 +646,13 @@ public class Presence {
 		 * @return
 		 * @throws InterruptedException
 		 */
-		synchronized Collection<PresenceMessage> values(boolean wait) throws InterruptedException {
+		Collection<PresenceMessage> values(boolean wait) throws InterruptedException {
 			if(wait) {
-				while(syncInProgress) wait();
-			}
-			Set<PresenceMessage> result = new HashSet<PresenceMessage>();
-			result.addAll(members.values());
-			for(Iterator<PresenceMessage> it = result.iterator(); it.hasNext();) {
-				PresenceMessage entry = it.next();
-				if(entry.action == PresenceMessage.Action.absent) {
-					it.remove();
+				synchronized(syncLock) {
+					while(syncInProgress) syncLock.wait();
 				}
 			}
-			return result;
+			return Arrays.asList(published.members());
 		}
 
 		/**
@@ -661,10 +662,12 @@ public class Presence {
 		 */
 		synchronized boolean remove(PresenceMessage item) {
 			String key = memberKey(item);
-			PresenceMessage existingItem = members.remove(key);
-			if(existingItem != null && existingItem.action == PresenceMessage.Action.absent)
-				return false;
-			return true;
+			Shard shard = shards[shardIndex(item.clientId)];
+			PresenceMessage existingItem = shard.members.remove(key);
+			if(existingItem == null)
+				return true;
+			shard.dirty = true;
+			return existingItem.action != PresenceMessage.Action.absent;
 		}
 
 		/**
@@ -676,36 +679,61 @@ public class Presence {
 			Log.v(TAG, "startSync(); channel = " + channel.name + "; syncInProgress = " + syncInProgress);
 			/* we might be called multiple times while a sync is in progress */
 			if(!syncInProgress) {
-				residualMembers = new HashSet<String>(members.keySet());
+				for(Shard shard : shards)
+					shard.residualMembers = new HashSet<String>(shard.members.keySet());
 				syncInProgress = true;
 			}
 		}
 
 		/**
-		 * Finish a sync sequence.
+		 * Finish a sync sequence, publishing the result.
 		 */
 		synchronized void endSync() {
 			Log.v(TAG, "endSync(); channel = " + channel.name + "; syncInProgress = " + syncInProgress);
 			if(syncInProgress) {
-				/* we can now strip out the absent members, as we have
-				 * received all of the out-of-order sync messages */
-				for(Iterator<Map.Entry<String, PresenceMessage>> it = members.entrySet().iterator(); it.hasNext();) {
-					Map.Entry<String, PresenceMessage> entry = it.next();
-					if(entry.getValue().action == PresenceMessage.Action.absent) {
-						it.remove();
+				for(Shard shard : shards) {
+					/* we can now strip out the absent members, as we have
+					 * received all of the out-of-order sync messages */
+					for(Iterator<Map.Entry<String, PresenceMessage>> it = shard.members.entrySet().iterator(); it.hasNext();) {
+						Map.Entry<String, PresenceMessage> entry = it.next();
+						if(entry.getValue().action == PresenceMessage.Action.absent) {
+							it.remove();
+							shard.dirty = true;
+						}
 					}
+					/* any members that were present at the start of the sync,
+					 * and have not been seen in sync, can be removed */
+					for(Iterator<String> it = shard.residualMembers.iterator(); it.hasNext();) {
+						if(shard.members.remove(it.next()) != null)
+							shard.dirty = true;
+					}
+					shard.residualMembers = null;
 				}
-				/* any members that were present at the start of the sync,
-				 * and have not been seen in sync, can be removed */
-				for(Iterator<String> it = residualMembers.iterator(); it.hasNext();) {
-					members.remove(it.next());
-				}
-				residualMembers = null;
-	
-				/* finish, notifying any waiters */
+				publish();
+			}
+			/* finish, notifying any waiters */
+			synchronized(syncLock) {
 				syncInProgress = false;
+				syncLock.notifyAll();
 			}
-			notifyAll();
+		}
+
+		/**
+		 * Make the updates since the last call visible to readers
+		 */
+		synchronized void publish() {
+			PresenceMessage[][] snapshots = null;
+			for(int i = 0; i < SHARD_COUNT; i++) {
+				Shard shard = shards[i];
+				if(!shard.dirty)
+					continue;
+				if(snapshots == null)
+					snapshots = published.shards.clone();
+				snapshots[i] = shard.present();
+				shard.dirty = false;
+			}
+			if(snapshots != null)
+				published = new Snapshot(snapshots);
 		}
 
 		/**
@@ -717,11 +745,80 @@ public class Presence {
 			return message.connectionId + ':' + message.clientId;
 		}
 
-		private boolean syncInProgress;
-		private Collection<String> residualMembers;
+		private int shardIndex(String clientId) {
+			int hash = (clientId == null) ? 0 : clientId.hashCode();
+			return (hash ^ (hash >>> 16)) & (SHARD_COUNT - 1);
+		}
+
+		private final Shard[] shards = new Shard[SHARD_COUNT];
+		{
+			for(int i = 0; i < SHARD_COUNT; i++)
+				shards[i] = new Shard();
+		}
+		private volatile Snapshot published = new Snapshot(new PresenceMessage[SHARD_COUNT][]);
+		private volatile boolean syncInProgress;
+		private final Object syncLock = new Object();
+	}
+
+	/**
+	 * The members of one shard of a PresenceMap; accessed with the map locked
+	 */
+	private static class Shard {
 		private final HashMap<String, PresenceMessage> members = new HashMap<String, PresenceMessage>();
+		private Collection<String> residualMembers;
+		private boolean dirty;
+
+		/**
+		 * Copy the members that are present, excluding absent witnesses
+		 */
+		private PresenceMessage[] present() {
+			PresenceMessage[] result = new PresenceMessage[members.size()];
+			int count = 0;
+			for(PresenceMessage member : members.values())
+				if(member.action != PresenceMessage.Action.absent)
+					result[count++] = member;
+			return (count == result.length) ? result : Arrays.copyOf(result, count);
+		}
 	}
 
+	/**
+	 * An immutable view of the members of a PresenceMap
+	 */
+	private static class Snapshot {
+		private final PresenceMessage[][] shards;
+		private volatile PresenceMessage[] members;
+
+		Snapshot(PresenceMessage[][] shards) {
+			for(int i = 0; i < shards.length; i++)
+				if(shards[i] == null)
+					shards[i] = NO_MEMBERS;
+			this.shards = shards;
+		}
+
+		/**
+		 * Get all members, combining the shards on first use
+		 */
+		private PresenceMessage[] members() {
+			PresenceMessage[] result = members;
+			if(result == null) {
+				int count = 0;
+				for(PresenceMessage[] shard : shards)
+					count += shard.length;
+				result = new PresenceMessage[count];
+				count = 0;
+				for(PresenceMessage[] shard : shards) {
+					System.arraycopy(shard, 0, result, count, shard.length);
+					count += shard.length;
+				}
+				members = result;
+			}
+			return result;
+		}
+	}
+
+	private static final int SHARD_COUNT = 32;
+	private static final PresenceMessage[] NO_MEMBERS = new PresenceMessage[0];
+
 	private final PresenceMap presence = new PresenceMap();
 
 	/************************************
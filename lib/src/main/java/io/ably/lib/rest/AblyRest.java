@@ -1,6 +1,15 @@
 package io.ably.lib.rest;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.ably.lib.http.AsyncHttp;
 import io.ably.lib.http.AsyncPaginatedQuery;
@@ -8,6 +17,7 @@ import io.ably.lib.http.Http;
 import io.ably.lib.http.Http.ResponseHandler;
 import io.ably.lib.http.HttpUtils;
 import io.ably.lib.http.PaginatedQuery;
+import io.ably.lib.http.Http.RequestBody;
 import io.ably.lib.types.*;
 import io.ably.lib.util.Log;
 import io.ably.lib.util.Serialisation;
@@ -134,4 +144,184 @@ public class AblyRest {
 		(new AsyncPaginatedQuery<Stats>(asyncHttp, "/stats", HttpUtils.defaultAcceptHeaders(false), params, StatsReader.statsResponseHandler)).get(callback);
 	}
 
+	/**
+	 * Publish messages to many channels, in as few requests as possible.
+	 * Each Message.Batch gives the messages to publish to each of its channels;
+	 * a request includes up to ClientOptions.batchPublishMaxChannels channels.
+	 * @param pubSpecs
+	 * @return the result for each channel, in the order given; the error
+	 * from a request that failed is given as the result of each of its channels
+	 * @throws AblyException if a message cannot be encoded
+	 */
+	public PublishResponse[] publishBatch(Message.Batch[] pubSpecs) throws AblyException {
+		List<Message.Batch[]> requests = splitBatch(pubSpecs);
+		PublishResponse[] results = new PublishResponse[countChannels(requests)];
+		int offset = 0;
+		for(Message.Batch[] request : requests) {
+			PublishResponse[] requestResults = null;
+			ErrorInfo error = null;
+			try {
+				requestResults = http.post("/messages", HttpUtils.defaultAcceptHeaders(false), null, batchRequestBody(request), PublishResponse.batchResponseHandler);
+			} catch(AblyException e) {
+				error = e.errorInfo;
+			}
+			offset = setResults(results, offset, request, requestResults, error);
+		}
+		return results;
+	}
+
+	/**
+	 * Asynchronously publish messages to many channels, in as few requests as possible.
+	 * The requests are made concurrently.
+	 * @param pubSpecs
+	 * @param callback called with the result for each channel, in the order given
+	 */
+	public void publishBatchAsync(Message.Batch[] pubSpecs, final Callback<PublishResponse[]> callback) {
+		List<Message.Batch[]> requests;
+		try {
+			requests = splitBatch(pubSpecs);
+		} catch(AblyException e) {
+			callback.onError(e.errorInfo);
+			return;
+		}
+		final PublishResponse[] results = new PublishResponse[countChannels(requests)];
+		if(requests.isEmpty()) {
+			callback.onSuccess(results);
+			return;
+		}
+		final AtomicInteger remaining = new AtomicInteger(requests.size());
+		int offset = 0;
+		for(final Message.Batch[] request : requests) {
+			final int requestOffset = offset;
+			asyncHttp.post("/messages", HttpUtils.defaultAcceptHeaders(false), null, batchRequestBody(request), PublishResponse.batchResponseHandler, new Callback<PublishResponse[]>() {
+				@Override
+				public void onSuccess(PublishResponse[] requestResults) {
+					setResults(results, requestOffset, request, requestResults, null);
+					if(remaining.decrementAndGet() == 0)
+						callback.onSuccess(results);
+				}
+				@Override
+				public void onError(ErrorInfo reason) {
+					setResults(results, requestOffset, request, null, reason);
+					if(remaining.decrementAndGet() == 0)
+						callback.onSuccess(results);
+				}
+			});
+			offset += countChannels(request);
+		}
+	}
+
+	/**
+	 * Get the batcher for publishAsync calls on the channel with the given path
+	 * Internal
+	 */
+	PublishBatcher getPublishBatcher(String basePath) {
+		PublishBatcher batcher = publishBatchers.get(basePath);
+		if(batcher == null) {
+			PublishBatcher created = new PublishBatcher(this, basePath);
+			batcher = publishBatchers.putIfAbsent(basePath, created);
+			if(batcher == null)
+				batcher = created;
+		}
+		return batcher;
+	}
+
+	/**
+	 * Discard an idle batcher
+	 * Internal
+	 */
+	void removePublishBatcher(String basePath, PublishBatcher batcher) {
+		publishBatchers.remove(basePath, batcher);
+	}
+
+	/*******************
+	 * internal
+	 ******************/
+
+	/**
+	 * Encode the messages of a batch publish, and split it into the
+	 * batches to send in each request
+	 */
+	private List<Message.Batch[]> splitBatch(Message.Batch[] pubSpecs) throws AblyException {
+		int maxChannels = Math.max(1, options.batchPublishMaxChannels);
+		List<Message.Batch[]> requests = new ArrayList<Message.Batch[]>();
+		List<Message.Batch> request = new ArrayList<Message.Batch>();
+		int count = 0;
+		for(Message.Batch spec : pubSpecs) {
+			for(Message message : spec.messages)
+				message.encode(null);
+			int start = 0;
+			while(start < spec.channels.length) {
+				int end = Math.min(spec.channels.length, start + maxChannels - count);
+				request.add((start == 0 && end == spec.channels.length) ? spec : new Message.Batch(Arrays.copyOfRange(spec.channels, start, end), spec.messages));
+				count += end - start;
+				start = end;
+				if(count == maxChannels) {
+					requests.add(request.toArray(new Message.Batch[request.size()]));
+					request.clear();
+					count = 0;
+				}
+			}
+		}
+		if(!request.isEmpty())
+			requests.add(request.toArray(new Message.Batch[request.size()]));
+		return requests;
+	}
+
+	private RequestBody batchRequestBody(Message.Batch[] request) {
+		return options.useBinaryProtocol ? MessageSerializer.asMsgpackRequest(request) : MessageSerializer.asJSONRequest(request);
+	}
+
+	private static int countChannels(Message.Batch[] request) {
+		int count = 0;
+		for(Message.Batch spec : request)
+			count += spec.channels.length;
+		return count;
+	}
+
+	private static int countChannels(List<Message.Batch[]> requests) {
+		int count = 0;
+		for(Message.Batch[] request : requests)
+			count += countChannels(request);
+		return count;
+	}
+
+	/**
+	 * Copy the results of a request, matched to its channels by name, or the
+	 * error from the request if it failed, into the results of the batch publish.
+	 * Where a channel appears more than once in the request, its results are
+	 * taken in the order given.
+	 * @return the offset of the results of the next request
+	 */
+	private static int setResults(PublishResponse[] results, int offset, Message.Batch[] request, PublishResponse[] requestResults, ErrorInfo error) {
+		Map<String, Queue<PublishResponse>> resultsByChannel = new HashMap<String, Queue<PublishResponse>>();
+		if(requestResults != null) {
+			for(PublishResponse result : requestResults) {
+				if(result == null || result.channel == null)
+					continue;
+				Queue<PublishResponse> channelResults = resultsByChannel.get(result.channel);
+				if(channelResults == null)
+					resultsByChannel.put(result.channel, channelResults = new LinkedList<PublishResponse>());
+				channelResults.add(result);
+			}
+		}
+		int i = 0;
+		for(Message.Batch spec : request) {
+			for(String channel : spec.channels) {
+				Queue<PublishResponse> channelResults = resultsByChannel.get(channel);
+				PublishResponse result = (channelResults != null) ? channelResults.poll() : null;
+				if(result == null)
+					result = new PublishResponse(channel, (error != null) ? error : new ErrorInfo("No result for channel", 500, 50000));
+				results[offset + i++] = result;
+			}
+		}
+		return offset + i;
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	private final ConcurrentHashMap<String, PublishBatcher> publishBatchers = new ConcurrentHashMap<String, PublishBatcher>();
+
 }
@@ -5,6 +5,7 @@ import io.ably.lib.http.PaginatedQuery;
 import io.ably.lib.realtime.CompletionListener;
 import io.ably.lib.http.AsyncPaginatedQuery;
 import io.ably.lib.http.Http.BodyHandler;
+import io.ably.lib.http.Http.ItemHandler;
 import io.ably.lib.http.Http.RequestBody;
 import io.ably.lib.types.AblyException;
 import io.ably.lib.types.AsyncPaginatedResult;
@@ -70,7 +71,9 @@ public class Channel {
 	}
 
 	/**
-	 * Asynchronously publish an array of messages on this channel
+	 * Asynchronously publish an array of messages on this channel.
+	 * If ClientOptions.publishLingerInterval is set, the messages may be
+	 * sent in a single request together with those of other calls.
 	 * @param messages
 	 * @param listener
 	 */
@@ -82,6 +85,10 @@ public class Channel {
 			listener.onError(e.errorInfo);
 			return;
 		}
+		if(ably.options.publishLingerInterval > 0) {
+			ably.getPublishBatcher(basePath).publish(messages, listener);
+			return;
+		}
 		RequestBody requestBody = ably.options.useBinaryProtocol ? MessageSerializer.asMsgpackRequest(messages) : MessageSerializer.asJSONRequest(messages);
 
 		ably.asyncHttp.post(basePath + "/messages", HttpUtils.defaultAcceptHeaders(ably.options.useBinaryProtocol), null, requestBody, null, new Callback<Void>() {
@@ -106,6 +113,22 @@ public class Channel {
 		return new PaginatedQuery<Message>(ably.http, basePath + "/messages", HttpUtils.defaultAcceptHeaders(ably.options.useBinaryProtocol), params, bodyHandler).get();
 	}
 
+	/**
+	 * Obtain recent history for this channel using the REST API,
+	 * passing each Message to the given handler as it is decoded.
+	 * The pages returned, and those obtained from them, contain no items,
+	 * so that large pages can be processed without holding them in memory.
+	 * @param params: the request params. See the Ably REST API
+	 * documentation for more details.
+	 * @param itemHandler: the handler to receive the Messages of this and subsequent pages.
+	 * @return: a page of results, for navigation only.
+	 * @throws AblyException
+	 */
+	public PaginatedResult<Message> history(Param[] params, ItemHandler<Message> itemHandler) throws AblyException {
+		BodyHandler<Message> bodyHandler = MessageSerializer.getMessageResponseHandler(options);
+		return new PaginatedQuery<Message>(ably.http, basePath + "/messages", HttpUtils.defaultAcceptHeaders(ably.options.useBinaryProtocol), params, bodyHandler, itemHandler).get();
+	}
+
 	/**
 	 * Asynchronously obtain recent history for this channel using the REST API.
 	 * @param params: the request params. See the Ably REST API
@@ -156,6 +179,21 @@ public class Channel {
 			BodyHandler<PresenceMessage> bodyHandler = PresenceSerializer.getPresenceResponseHandler(options);
 			return new PaginatedQuery<PresenceMessage>(ably.http, basePath + "/presence/history", HttpUtils.defaultAcceptHeaders(ably.options.useBinaryProtocol), params, bodyHandler).get();
 		}
+
+		/**
+		 * Obtain presence history for this channel using the REST API,
+		 * passing each PresenceMessage to the given handler as it is decoded.
+		 * The pages returned contain no items.
+		 * @param params: the request params. See the Ably REST API
+		 * documentation for more details.
+		 * @param itemHandler: the handler to receive the PresenceMessages of this and subsequent pages.
+		 * @return: a page of results, for navigation only.
+		 * @throws AblyException
+		 */
+		public PaginatedResult<PresenceMessage> history(Param[] params, ItemHandler<PresenceMessage> itemHandler) throws AblyException {
+			BodyHandler<PresenceMessage> bodyHandler = PresenceSerializer.getPresenceResponseHandler(options);
+			return new PaginatedQuery<PresenceMessage>(ably.http, basePath + "/presence/history", HttpUtils.defaultAcceptHeaders(ably.options.useBinaryProtocol), params, bodyHandler, itemHandler).get();
+		}
 		/**
 		 * Asynchronously obtain recent history for this channel using the REST API.
 		 * @param params: the request params. See the Ably REST API
@@ -0,0 +1,193 @@
+package io.ably.lib.rest;
+
+import java.util.ArrayList;
+
+import io.ably.lib.http.Http.RequestBody;
+import io.ably.lib.http.HttpUtils;
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.types.Callback;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.MessageSerializer;
+import io.ably.lib.util.HashedWheelTimer;
+import io.ably.lib.util.Log;
+
+/**
+ * Aggregates the messages published with publishAsync on one channel,
+ * when ClientOptions.publishLingerInterval is set, so that messages
+ * published in quick succession are sent in a single request.
+ * A batch is sent when the linger interval expires, or as soon as it
+ * holds publishBatchSize messages or publishBatchMaxBytes of message
+ * content, whichever comes first. The messages of each call are kept
+ * together, so each call's listener receives the result of one request.
+ * Internal
+ */
+class PublishBatcher {
+
+	PublishBatcher(AblyRest ably, String basePath) {
+		ClientOptions options = ably.options;
+		this.ably = ably;
+		this.basePath = basePath;
+		this.timer = (options.timer != null) ? options.timer : HashedWheelTimer.getDefault();
+		this.lingerInterval = options.publishLingerInterval;
+		this.maxMessages = Math.max(1, options.publishBatchSize);
+		this.maxBytes = Math.max(1, options.publishBatchMaxBytes);
+	}
+
+	/**
+	 * Add the messages of a publishAsync call, which must already be encoded
+	 * @param messages
+	 * @param listener
+	 */
+	void publish(Message[] messages, CompletionListener listener) {
+		int size = 0;
+		for(Message message : messages)
+			size += messageSize(message);
+
+		Batch full = null, ready = null;
+		synchronized(this) {
+			/* send the current batch first if these messages would take it over a limit */
+			if(current != null && (current.messages.size() + messages.length > maxMessages || current.size + size > maxBytes))
+				full = take();
+			if(current == null)
+				current = new Batch();
+			current.add(messages, size, listener);
+			if(current.messages.size() >= maxMessages || current.size >= maxBytes) {
+				ready = take();
+			} else if(current.flushTimer == null) {
+				final Batch batch = current;
+				batch.flushTimer = timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						Batch expired = null;
+						synchronized(PublishBatcher.this) {
+							if(current == batch)
+								expired = take();
+						}
+						send(expired);
+					}
+				}, lingerInterval);
+			}
+		}
+		send(full);
+		send(ready);
+	}
+
+	/**
+	 * The size of a message, as counted against the maximum message size:
+	 * its name, clientId and encoded data
+	 */
+	static int messageSize(Message message) {
+		int size = utf8Length(message.name) + utf8Length(message.clientId);
+		Object data = message.data;
+		if(data instanceof byte[])
+			size += ((byte[])data).length;
+		else if(data != null)
+			size += utf8Length(data.toString());
+		return size;
+	}
+
+	/*******************
+	 * internal
+	 ******************/
+
+	/**
+	 * A batch of messages awaiting sending
+	 */
+	private static class Batch {
+		private void add(Message[] messages, int size, CompletionListener listener) {
+			for(Message message : messages)
+				this.messages.add(message);
+			this.size += size;
+			listeners.add(listener);
+		}
+
+		private final ArrayList<Message> messages = new ArrayList<Message>();
+		private final ArrayList<CompletionListener> listeners = new ArrayList<CompletionListener>();
+		private int size;
+		private HashedWheelTimer.Timeout flushTimer;
+	}
+
+	/**
+	 * Take the current batch, to be sent outside the lock.
+	 * Called with the lock held.
+	 */
+	private Batch take() {
+		Batch batch = current;
+		current = null;
+		if(batch.flushTimer != null)
+			batch.flushTimer.cancel();
+		return batch;
+	}
+
+	private void send(final Batch batch) {
+		if(batch == null)
+			return;
+		synchronized(this) {
+			/* an idle batcher is discarded; any caller still holding it can
+			 * continue to use it, but its batches are not shared */
+			if(current == null)
+				ably.removePublishBatcher(basePath, this);
+		}
+		boolean binary = ably.options.useBinaryProtocol;
+		Message[] messages = batch.messages.toArray(new Message[batch.messages.size()]);
+		RequestBody requestBody = binary ? MessageSerializer.asMsgpackRequest(messages) : MessageSerializer.asJSONRequest(messages);
+		ably.asyncHttp.post(basePath + "/messages", HttpUtils.defaultAcceptHeaders(binary), null, requestBody, null, new Callback<Void>() {
+			@Override
+			public void onSuccess(Void result) {
+				for(CompletionListener listener : batch.listeners) {
+					try {
+						listener.onSuccess();
+					} catch(Throwable t) {
+						Log.e(TAG, "Unexpected exception calling CompletionListener", t);
+					}
+				}
+			}
+			@Override
+			public void onError(ErrorInfo reason) {
+				for(CompletionListener listener : batch.listeners) {
+					try {
+						listener.onError(reason);
+					} catch(Throwable t) {
+						Log.e(TAG, "Unexpected exception calling CompletionListener", t);
+					}
+				}
+			}
+		});
+	}
+
+	private static int utf8Length(String s) {
+		if(s == null)
+			return 0;
+		int length = 0;
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				++length;
+			} else if(c < 0x800) {
+				length += 2;
+			} else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				++i;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	private final AblyRest ably;
+	private final String basePath;
+	private final HashedWheelTimer timer;
+	private final int lingerInterval;
+	private final int maxMessages;
+	private final int maxBytes;
+	private Batch current;
+
+	private static final String TAG = PublishBatcher.class.getName();
+}
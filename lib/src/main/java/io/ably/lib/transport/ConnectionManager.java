@@ -15,12 +15,22 @@ import io.ably.lib.types.ClientOptions;
 import io.ably.lib.types.ErrorInfo;
 import io.ably.lib.types.ProtocolMessage;
 import io.ably.lib.types.ProtocolMessage.Action;
+import io.ably.lib.util.HashedWheelTimer;
+import io.ably.lib.util.LibraryThread;
 import io.ably.lib.util.Log;
+import io.ably.lib.util.SerialExecutor;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class ConnectionManager implements Runnable, ConnectListener {
@@ -117,6 +127,13 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		return state.queueEvents || state.sendEvents;
 	}
 
+	/**
+	 * Get the timer used for this connection's timeouts
+	 */
+	public HashedWheelTimer getTimer() {
+		return timer;
+	}
+
 	/***********************
 	 * constructor
 	 ***********************/
@@ -125,20 +142,26 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		this.ably = ably;
 		this.options = ably.options;
 		this.connection = connection;
-		queuedMessages = new ArrayList<QueuedMessage>();
+		timer = (options.timer != null) ? options.timer : HashedWheelTimer.getDefault();
+		queuedMessages = new MessageQueue(options);
 		pendingMessages = new PendingMessageQueue();
+		callbacks = new SerialExecutor(getCallbackExecutor());
 		state = states.get(ConnectionState.initialized);
 		String transportClass = Defaults.TRANSPORT;
 		/* debug options */
 		if(options instanceof DebugOptions)
 			protocolListener = ((DebugOptions)options).protocolListener;
 
-		try {
-			factory = ((ITransport.Factory)Class.forName(transportClass).newInstance());
-		} catch(Exception e) {
-			String msg = "Unable to instance factory class";
-			Log.e(getClass().getName(), msg, e);
-			throw new RuntimeException(msg, e);
+		if(options.transportFactory != null) {
+			factory = options.transportFactory;
+		} else {
+			try {
+				factory = ((ITransport.Factory)Class.forName(transportClass).newInstance());
+			} catch(Exception e) {
+				String msg = "Unable to instance factory class";
+				Log.e(getClass().getName(), msg, e);
+				throw new RuntimeException(msg, e);
+			}
 		}
 		synchronized(this) {
 			setSuspendTime();
@@ -165,7 +188,7 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		boolean connectionAttemptAvailable = (requestedState != null && requestedState.state != ConnectionState.connecting) ||
 				state.state == ConnectionState.connecting;
 
-		if(!connectionExist && !connectionAttemptAvailable && startThread()) {
+		if(!connectionExist && !connectionAttemptAvailable && activate()) {
 			requestState(ConnectionState.connecting);
 		}
 	}
@@ -180,6 +203,8 @@ public class ConnectionManager implements Runnable, ConnectListener {
 	
 	private void setState(StateIndication newState) {
 		Log.v(TAG, "setState(): setting " + newState.state);
+		if(newState.state != ConnectionState.connecting)
+			cancelFallbackRace();
 		ConnectionStateListener.ConnectionStateChange change;
 		StateInfo newStateInfo = states.get(newState.state);
 		synchronized(this) {
@@ -187,9 +212,17 @@ public class ConnectionManager implements Runnable, ConnectListener {
 			change = new ConnectionStateListener.ConnectionStateChange(state.state, newState.state, newStateInfo.timeout, reason);
 			newStateInfo.host = newState.currentHost;
 			state = newStateInfo;
+			if(!state.sendEvents)
+				requeueOutboundMessages();
 		}
 
-		/* broadcast state change */
+		/* on close, reset the message serial and remove all channels, to avoid stalled state */
+		if(newState.state == ConnectionState.closed) {
+			pendingMessages.reset();
+			ably.channels.clear();
+		}
+
+		/* broadcast state change; listeners are called on the callback executor */
 		connection.onConnectionStateChange(change);
 
 		/* if now connected, send queued messages, etc */
@@ -211,7 +244,29 @@ public class ConnectionManager implements Runnable, ConnectListener {
 	public synchronized void requestState(StateIndication state) {
 		Log.v(TAG, "requestState(): requesting " + state.state + "; id = " + connection.key);
 		requestedState = state;
-		notify();
+		scheduleStep();
+	}
+
+	/**
+	 * Run a call to application listeners, such as a connection or channel
+	 * state change, off the state machine: callbacks run in order, one at a
+	 * time for each connection, on a pool shared by all connections, so a slow
+	 * listener neither delays the state machine nor other connections' steps.
+	 * Internal
+	 * @param callback
+	 */
+	public void runCallback(final Runnable callback) {
+		callbacks.execute(new Runnable() {
+			@Override
+			public void run() {
+				LibraryThread.enter();
+				try {
+					callback.run();
+				} finally {
+					LibraryThread.exit();
+				}
+			}
+		});
 	}
 
 	synchronized void notifyState(ITransport transport, StateIndication state) {
@@ -226,7 +281,7 @@ public class ConnectionManager implements Runnable, ConnectListener {
 	synchronized void notifyState(StateIndication state) {
 		Log.v(TAG, "notifyState(): notifying " + state.state + "; id = " + connection.key);
 		indicatedState = state;
-		notify();
+		scheduleStep();
 	}
 
 	public void ping(final CompletionListener listener) {
@@ -235,41 +290,75 @@ public class ConnectionManager implements Runnable, ConnectListener {
 				listener.onError(new ErrorInfo("Unable to ping service; not connected", 40000, 400));
 			return;
 		}
+		HeartbeatWaiter waiter = null;
 		if(listener != null) {
-			Runnable waiter = new Runnable() {
-				public void run() {
-					boolean pending;
-					synchronized(heartbeatWaiters) {
-						pending = heartbeatWaiters.contains(this);
-						if(pending)
-							try { heartbeatWaiters.wait(HEARTBEAT_TIMEOUT); } catch(InterruptedException ie) {}
-	
-						pending = heartbeatWaiters.remove(this);
-					}
-					if(pending)
-						listener.onError(new ErrorInfo("Timed out waiting for heartbeat response", 50000, 500));
-					else
-						listener.onSuccess();
-				}
-			};
+			waiter = new HeartbeatWaiter(listener);
 			synchronized(heartbeatWaiters) {
 				heartbeatWaiters.add(waiter);
-				(new Thread(waiter)).start();
+				waiter.timeout = timer.schedule(waiter, HEARTBEAT_TIMEOUT);
 			}
 		}
 		try {
 			send(new ProtocolMessage(ProtocolMessage.Action.heartbeat), false, null);
 		} catch (AblyException e) {
-			if(listener != null)
+			if(waiter != null && waiter.remove())
 				listener.onError(e.errorInfo);
 		}
 	}
 
+	/**
+	 * A ping listener awaiting a heartbeat response; run by the
+	 * timer if no response is received within HEARTBEAT_TIMEOUT
+	 */
+	private class HeartbeatWaiter implements Runnable {
+		private final CompletionListener listener;
+		private HashedWheelTimer.Timeout timeout;
+
+		HeartbeatWaiter(CompletionListener listener) {
+			this.listener = listener;
+		}
+
+		/**
+		 * Remove this waiter, cancelling its timeout
+		 * @return true if it was still waiting
+		 */
+		boolean remove() {
+			synchronized(heartbeatWaiters) {
+				if(timeout != null)
+					timeout.cancel();
+				return heartbeatWaiters.remove(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			boolean pending;
+			synchronized(heartbeatWaiters) {
+				pending = heartbeatWaiters.remove(this);
+			}
+			if(pending)
+				listener.onError(new ErrorInfo("Timed out waiting for heartbeat response", 50000, 500));
+		}
+	}
+
 	/***************************************
 	 * transport events/notifications
 	 ***************************************/
 
+	/**
+	 * Handle a message received on the given transport; messages
+	 * from any transport other than the current one are ignored
+	 */
+	void onMessage(ITransport transport, ProtocolMessage message) throws AblyException {
+		if(this.transport != null && transport != this.transport) {
+			Log.v(TAG, "onMessage(): ignoring message from inactive transport; action = " + message.action);
+			return;
+		}
+		onMessage(message);
+	}
+
 	public void onMessage(ProtocolMessage message) throws AblyException {
+		LibraryThread.enter();
 		try {
 			if(protocolListener != null)
 				protocolListener.onRawMessage(message);
@@ -314,6 +403,9 @@ public class ConnectionManager implements Runnable, ConnectListener {
 			// Prevent any non-AblyException to be thrown
 			throw AblyException.fromThrowable(e);
 		}
+		finally {
+			LibraryThread.exit();
+		}
 	}
 
 	private void onChannelMessage(ProtocolMessage message) {
@@ -370,42 +462,97 @@ public class ConnectionManager implements Runnable, ConnectListener {
 	}
 
 	private void onHeartbeat(ProtocolMessage message) {
+		HeartbeatWaiter[] waiters;
 		synchronized(heartbeatWaiters) {
+			waiters = heartbeatWaiters.toArray(new HeartbeatWaiter[heartbeatWaiters.size()]);
 			heartbeatWaiters.clear();
-			heartbeatWaiters.notifyAll();
+		}
+		for(HeartbeatWaiter waiter : waiters) {
+			waiter.timeout.cancel();
+			try {
+				waiter.listener.onSuccess();
+			} catch(Throwable t) {
+				Log.e(TAG, "onHeartbeat(): Unexpected exception calling ping listener", t);
+			}
 		}
 	}
 
 	/**************************
-	 * ConnectionManager thread
+	 * ConnectionManager state machine
 	 **************************/
 
-	private boolean startThread() {
-		boolean creating = false;
-		synchronized(this) {
-			if(mgrThread == null) {
-				mgrThread = new Thread(this);
-				state = states.get(ConnectionState.initialized);
-				creating = true;
-			}
-		}
-		if(creating) {
-			synchronized(mgrThread) {
-				mgrThread.start();
-				try { mgrThread.wait(); } catch(InterruptedException ie) {}
-			}
+	/**
+	 * Start processing state requests and indications, if not already started.
+	 * The state machine has no thread of its own: each time there are events
+	 * to process, a step is run on a small pool shared by all connections,
+	 * so idle connections occupy no thread. Steps do not block: connectivity
+	 * checks and application callbacks run on pools of their own.
+	 * @return true if started
+	 */
+	private synchronized boolean activate() {
+		if(isActive)
+			return false;
+		isActive = true;
+		state = states.get(ConnectionState.initialized);
+		return true;
+	}
+
+	private synchronized void deactivate() {
+		isActive = false;
+	}
+
+	/**
+	 * Run a step to process pending events, unless one is already running.
+	 * Called with the lock held.
+	 */
+	private void scheduleStep() {
+		if(!isActive || isStepScheduled)
+			return;
+		isStepScheduled = true;
+		try {
+			getStepExecutor().execute(this);
+		} catch(RejectedExecutionException e) {
+			isStepScheduled = false;
+			Log.e(TAG, "scheduleStep(): Unable to process connection state", e);
 		}
+	}
 
-		return creating;
+	private static synchronized ThreadPoolExecutor getStepExecutor() {
+		if(stepExecutor == null)
+			stepExecutor = newSharedPool(STEP_THREADS, "ably-connection-");
+		return stepExecutor;
 	}
 
-	private void stopThread() {
-		synchronized(this) {
-			if(mgrThread != null) {
-				mgrThread.interrupt();
-				mgrThread = null;
+	private static synchronized ThreadPoolExecutor getCallbackExecutor() {
+		if(callbackExecutor == null)
+			callbackExecutor = newSharedPool(CALLBACK_THREADS, "ably-callback-");
+		return callbackExecutor;
+	}
+
+	private static synchronized ThreadPoolExecutor getConnectivityExecutor() {
+		if(connectivityExecutor == null)
+			connectivityExecutor = newSharedPool(CONNECTIVITY_THREADS, "ably-connectivity-");
+		return connectivityExecutor;
+	}
+
+	/**
+	 * Create a pool of daemon threads shared by all connections. Each
+	 * connection has at most one task queued for or running on the step
+	 * and callback pools, so their queues are bounded by the number of
+	 * connections.
+	 */
+	private static ThreadPoolExecutor newSharedPool(int threads, final String namePrefix) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, SHARED_POOL_KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, namePrefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
 			}
-		}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
 	}
 
 	private void handleStateRequest() {
@@ -473,7 +620,7 @@ public class ConnectionManager implements Runnable, ConnectListener {
 					transport = null;
 				}
 				stateChange = null;
-				stopThread();
+				deactivate();
 				break;
 			case connected:
 				/* we were connected, so retry immediately */
@@ -487,6 +634,35 @@ public class ConnectionManager implements Runnable, ConnectListener {
 			setState(stateChange);
 	}
 
+	/**
+	 * Check connectivity on the connectivity pool, then either try a fallback
+	 * host or fail. The outcome is discarded if, in the meantime, the connection
+	 * has left the connecting state or a new connection attempt has started.
+	 */
+	private synchronized void startConnectivityCheck(final String host) {
+		final long checkId = ++connectivityCheckId;
+		Runnable check = new Runnable() {
+			@Override
+			public void run() {
+				boolean isConnected = checkConnectivity();
+				synchronized(ConnectionManager.this) {
+					if(checkId != connectivityCheckId || state.state != ConnectionState.connecting || requestedState != null)
+						return;
+					if(isConnected)
+						requestState(new StateIndication(ConnectionState.connecting, null, true, host));
+					else
+						notifyState(new StateIndication(ConnectionState.failed, new ErrorInfo("connection failed", 80000), false, host));
+				}
+			}
+		};
+		try {
+			getConnectivityExecutor().execute(check);
+		} catch(RejectedExecutionException e) {
+			Log.e(TAG, "startConnectivityCheck(): Unable to check connectivity", e);
+			notifyState(new StateIndication(ConnectionState.failed, new ErrorInfo("connection failed", 80000), false, host));
+		}
+	}
+
 	private void setSuspendTime() {
 		suspendTime = (System.currentTimeMillis() + Defaults.TIMEOUT_SUSPEND);
 	}
@@ -504,9 +680,10 @@ public class ConnectionManager implements Runnable, ConnectListener {
 
 		if(pendingConnect != null && stateChange.reason == null) {
 			if (!Hosts.isFallback(pendingConnect.host)) {
-				if (!checkConnectivity()) {
-					return new StateIndication(ConnectionState.failed, new ErrorInfo("connection failed", 80000), false, pendingConnect.host);
-				}
+				/* the check blocks, so it is made off the state machine; its
+				 * outcome is posted back as a state request or indication */
+				startConnectivityCheck(pendingConnect.host);
+				return null;
 			}
 
 			/* we will try a fallback host */
@@ -519,61 +696,115 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		return new StateIndication(expiredState, stateChange.reason);
 	}
 
-	private void tryWait(long timeout) {
-		if(requestedState == null && indicatedState == null)
-			try {
-				if(timeout == 0) wait();
-				else wait(timeout);
-			} catch (InterruptedException e) {}
+	/**
+	 * Start the timeout of the current state, if it has one and it is not
+	 * already running. On expiry, the timer sets stateTimerExpired and
+	 * schedules a step.
+	 * Called with the lock held.
+	 */
+	private void startStateTimer(long timeout) {
+		if(timeout <= 0 || stateTimeout != null)
+			return;
+		final long timerId = stateTimerId;
+		stateTimeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized(ConnectionManager.this) {
+					if(timerId == stateTimerId) {
+						stateTimerExpired = true;
+						scheduleStep();
+					}
+				}
+			}
+		}, timeout);
 	}
 
+	/**
+	 * Cancel any pending state timeout.
+	 * Called with the lock held.
+	 */
+	private void cancelStateTimer() {
+		if(stateTimeout != null) {
+			stateTimeout.cancel();
+			stateTimeout = null;
+		}
+		++stateTimerId;
+		stateTimerExpired = false;
+	}
+
+	/**
+	 * Process the pending state requests and indications, and any expiry
+	 * of the state timer, until none remain. Runs as a step on the shared
+	 * pool; a step is scheduled whenever there is an event to process.
+	 */
 	public void run() {
-		StateIndication stateChange;
-		Thread thisThread = Thread.currentThread();
-		while(!state.terminal) {
-			stateChange = null;
-			synchronized(this) {
-				/* if we're initialising, then tell the starting thread that
-				 * we're ready to receive events */
-				if(state.state == ConnectionState.initialized) {
-					synchronized(thisThread) {
-						thisThread.notify();
+		LibraryThread.enter();
+		try {
+			while(true) {
+				StateIndication stateChange;
+				synchronized(this) {
+					stateChange = isActive ? nextStateChange() : null;
+					if(stateChange == null) {
+						/* nothing more to do until the next event */
+						isStepScheduled = false;
+						if(isActive)
+							startStateTimer(state.timeout);
+						return;
 					}
 				}
-	
-				while(stateChange == null) {
-					tryWait(state.timeout);
-					/* if during the wait some action was requested, handle it */
-					if(requestedState != null) {
-						handleStateRequest();
-						continue;
-					}
-	
-					/* if during the wait we were told that a transition
-					 * needs to be enacted, handle that (outside the lock) */
-					if(indicatedState != null) {
-						stateChange = indicatedState;
-						indicatedState = null;
-						break;
-					}
-	
-					/* if our state wants us to retry on timer expiry, do that */
-					if(state.retry) {
-						requestState(ConnectionState.connecting);
-						continue;
-					}
-	
-					/* no indicated state or requested action, so the timer
-					 * expired while we were in the connecting/closing state */
-					stateChange = checkSuspend(new StateIndication(ConnectionState.disconnected, REASON_TIMEDOUT));
+				try {
+					handleStateChange(stateChange);
+				} catch(RuntimeException e) {
+					Log.e(TAG, "run(): Unexpected exception handling state change", e);
+				}
+				synchronized(this) {
+					if(state.terminal)
+						isActive = false;
 				}
 			}
-			if(stateChange != null)
-				handleStateChange(stateChange);
+		} finally {
+			LibraryThread.exit();
 		}
-		synchronized(this) {
-			if(mgrThread == thisThread)
-				mgrThread = null;
+	}
+
+	/**
+	 * Handle any state request, and return the next state change to be
+	 * enacted (outside the lock), or null if there is none yet.
+	 * Called with the lock held.
+	 */
+	private StateIndication nextStateChange() {
+		while(true) {
+			/* if some action was requested, handle it */
+			if(requestedState != null) {
+				cancelStateTimer();
+				handleStateRequest();
+				continue;
+			}
+
+			/* if we were told that a transition needs to be enacted, handle that */
+			if(indicatedState != null) {
+				cancelStateTimer();
+				StateIndication stateChange = indicatedState;
+				indicatedState = null;
+				return stateChange;
+			}
+
+			/* a step without expiry of the state timer has nothing to do */
+			if(!stateTimerExpired)
+				return null;
+			cancelStateTimer();
+
+			/* if our state wants us to retry on timer expiry, do that */
+			if(state.retry) {
+				requestState(ConnectionState.connecting);
+				continue;
+			}
+
+			/* no indicated state or requested action, so the timer
+			 * expired while we were in the connecting/closing state */
+			StateIndication stateChange = checkSuspend(new StateIndication(ConnectionState.disconnected, REASON_TIMEDOUT));
+			if(stateChange != null)
+				return stateChange;
 		}
 	}
 
@@ -607,6 +838,8 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		 * (or requested) host, unless fallback=true, in which case
 		 * it will choose a fallback host at random */
 
+		cancelFallbackRace();
+		++connectivityCheckId;
 		if(request.fallback) {
 			String hostFallback = Hosts.isRealtimeFallbackSupported(options.realtimeHost)?(Hosts.getFallback(request.currentHost)):(null);
 
@@ -614,6 +847,11 @@ public class ConnectionManager implements Runnable, ConnectListener {
 				return false;
 			}
 
+			if(options.fallbackRaceCount > 1) {
+				connectRace(request, hostFallback);
+				return true;
+			}
+
 			pendingConnect = new ConnectParams(options);
 			pendingConnect.host = hostFallback;
 			ably.http.setHost(hostFallback);
@@ -628,17 +866,161 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		notifyState(request);
 
 		/* try the connection */
-		ITransport transport;
+		getTransport(pendingConnect).connect(this);
+
+		return true;
+	}
+
+	private ITransport getTransport(ConnectParams params) {
 		try {
-			transport = factory.getTransport(pendingConnect, this);
+			return factory.getTransport(params, this);
 		} catch(Exception e) {
 			String msg = "Unable to instance transport class";
 			Log.e(getClass().getName(), msg, e);
 			throw new RuntimeException(msg, e);
 		}
-		transport.connect(this);
+	}
 
-		return true;
+	/**
+	 * Start staggered connection attempts to a number of fallback hosts,
+	 * beginning with the given host.
+	 * Called with the lock held.
+	 */
+	private void connectRace(StateIndication request, String firstHost) {
+		List<ConnectParams> attempts = new ArrayList<ConnectParams>();
+		for(String host = firstHost; host != null && attempts.size() < options.fallbackRaceCount; host = Hosts.getFallback(host)) {
+			ConnectParams params = new ConnectParams(options);
+			params.host = host;
+			attempts.add(params);
+		}
+		/* if every attempt fails, the next fallback follows the last host tried */
+		pendingConnect = attempts.get(attempts.size() - 1);
+		ably.http.setHost(firstHost);
+
+		/* enter the connecting state */
+		notifyState(request);
+
+		fallbackRace = new FallbackRace(attempts);
+		fallbackRace.startNext();
+	}
+
+	/**
+	 * Abandon any fallback race in progress, closing the
+	 * transports of attempts that have not completed
+	 */
+	private void cancelFallbackRace() {
+		ITransport[] transports;
+		synchronized(this) {
+			if(fallbackRace == null)
+				return;
+			transports = fallbackRace.cancel();
+			fallbackRace = null;
+		}
+		for(ITransport transport : transports)
+			transport.close(false);
+	}
+
+	/**
+	 * A set of connection attempts to fallback hosts started in parallel.
+	 * Each attempt is started fallbackRaceDelay after the previous one, or
+	 * immediately if the previous one fails. The first transport to become
+	 * available is used, and the others are closed. If all attempts fail,
+	 * the failure of the last is reported as for a single attempt.
+	 */
+	private class FallbackRace implements ConnectListener {
+		private final List<ConnectParams> attempts;
+		private final ITransport[] transports;
+		private HashedWheelTimer.Timeout nextTimeout;
+		private int started, failed;
+		private boolean done;
+
+		FallbackRace(List<ConnectParams> attempts) {
+			this.attempts = attempts;
+			this.transports = new ITransport[attempts.size()];
+		}
+
+		/**
+		 * Start the next attempt, if any.
+		 * Called with the lock held.
+		 */
+		void startNext() {
+			if(nextTimeout != null) {
+				nextTimeout.cancel();
+				nextTimeout = null;
+			}
+			if(done || started == attempts.size())
+				return;
+			ConnectParams params = attempts.get(started);
+			ITransport transport = getTransport(params);
+			transports[started++] = transport;
+			if(started < attempts.size()) {
+				nextTimeout = timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized(ConnectionManager.this) {
+							startNext();
+						}
+					}
+				}, options.fallbackRaceDelay);
+			}
+			Log.v(TAG, "startNext(): connecting to fallback host " + params.host);
+			transport.connect(this);
+		}
+
+		/**
+		 * Stop starting attempts.
+		 * Called with the lock held.
+		 * @return the transports of started attempts, other than the winner
+		 */
+		ITransport[] cancel() {
+			if(done)
+				return new ITransport[0];
+			done = true;
+			if(nextTimeout != null) {
+				nextTimeout.cancel();
+				nextTimeout = null;
+			}
+			return Arrays.copyOf(transports, started);
+		}
+
+		@Override
+		public void onTransportAvailable(ITransport transport, TransportParams params) {
+			ITransport[] others;
+			boolean won = false;
+			synchronized(ConnectionManager.this) {
+				if(done || fallbackRace != this) {
+					others = new ITransport[] {transport};
+				} else {
+					won = true;
+					others = cancel();
+					fallbackRace = null;
+					pendingConnect = (ConnectParams)params;
+					ably.http.setHost(params.host);
+					ConnectionManager.this.onTransportAvailable(transport, params);
+				}
+			}
+			for(ITransport other : others)
+				if(!won || other != transport)
+					other.close(false);
+		}
+
+		@Override
+		public void onTransportUnavailable(ITransport transport, TransportParams params, ErrorInfo reason) {
+			synchronized(ConnectionManager.this) {
+				if(done || fallbackRace != this)
+					return;
+				++failed;
+				if(started < attempts.size()) {
+					startNext();
+					return;
+				}
+				if(failed < started)
+					return;
+				done = true;
+				fallbackRace = null;
+				ConnectionManager.this.onTransportUnavailable(transport, params, reason);
+			}
+		}
 	}
 
 	private void closeImpl(StateIndication request) {
@@ -647,6 +1029,7 @@ public class ConnectionManager implements Runnable, ConnectListener {
 
 		/* send a close message on the transport, if any */
 		if(transport != null) {
+			flushOutboundMessages();
 			try {
 				transport.send(new ProtocolMessage(Action.close));
 			} catch (AblyException e) {
@@ -684,37 +1067,75 @@ public class ConnectionManager implements Runnable, ConnectListener {
 			this.msg = msg;
 			this.listener = listener;
 		}
+
+		/**
+		 * Merge another message into this one, if they are for
+		 * the same channel and action
+		 * @return true if merged
+		 */
+		boolean merge(ProtocolMessage other, CompletionListener otherListener) {
+			if(!ProtocolMessage.mergeTo(msg, other))
+				return false;
+			if(!isMerged) {
+				listener = new CompletionListener.Multicaster(listener);
+				isMerged = true;
+			}
+			((CompletionListener.Multicaster)listener).add(otherListener);
+			return true;
+		}
 	}
 
 	public void send(ProtocolMessage msg, boolean queueEvents, CompletionListener listener) throws AblyException {
 		StateInfo state;
-		synchronized(this) {
-			state = this.state;
-			if(state.sendEvents) {
-				sendImpl(msg, listener);
-				return;
-			}
-			if(state.queueEvents && queueEvents) {
-				int queueSize = queuedMessages.size();
-				if(queueSize > 0) {
-					QueuedMessage lastQueued = queuedMessages.get(queueSize - 1);
-					ProtocolMessage lastMessage = lastQueued.msg;
-					if(ProtocolMessage.mergeTo(lastMessage, msg)) {
-						if(!lastQueued.isMerged) {
-							lastQueued.listener = new CompletionListener.Multicaster(lastQueued.listener);
-							lastQueued.isMerged = true;
-						}
-						((CompletionListener.Multicaster)lastQueued.listener).add(listener);
+		while(true) {
+			long removedCount;
+			synchronized(this) {
+				state = this.state;
+				if(state.sendEvents) {
+					if(options.writeLingerInterval > 0 && ProtocolMessage.ackRequired(msg)) {
+						bufferOutboundMessage(msg, listener);
 						return;
 					}
+					flushOutboundMessages();
+					sendImpl(msg, listener);
+					return;
 				}
-				queuedMessages.add(new QueuedMessage(msg, listener));
-				return;
+				if(!(state.queueEvents && queueEvents))
+					break;
+				removedCount = queuedMessages.getRemovedCount();
+				if(queuedMessages.put(msg, listener))
+					return;
+				/* the queue is full and the policy is to block; the queue is
+				 * drained by library threads, so they must not wait */
+				if(LibraryThread.isCurrent())
+					throw AblyException.fromErrorInfo(MessageQueue.REASON_QUEUE_FULL);
 			}
+			/* wait outside the lock, then re-evaluate the state */
+			queuedMessages.awaitRemoval(removedCount);
+			if(Thread.currentThread().isInterrupted())
+				throw AblyException.fromErrorInfo(MessageQueue.REASON_QUEUE_FULL);
 		}
 		throw AblyException.fromErrorInfo(state.defaultErrorInfo);
 	}
 
+	/**
+	 * Get a snapshot of the size and counters of the queue of
+	 * messages awaiting connection
+	 * @return
+	 */
+	public MessageQueue.Stats getQueueStats() {
+		return queuedMessages.getStats();
+	}
+
+	/**
+	 * Merge a message into the last entry of the given queue, if possible
+	 * @return true if merged
+	 */
+	private static boolean mergeToLast(List<QueuedMessage> queue, ProtocolMessage msg, CompletionListener listener) {
+		int queueSize = queue.size();
+		return (queueSize > 0) && queue.get(queueSize - 1).merge(msg, listener);
+	}
+
 	@SuppressWarnings("unused")
 	private void sendImpl(ProtocolMessage message) throws AblyException {
 		transport.send(message);
@@ -739,10 +1160,10 @@ public class ConnectionManager implements Runnable, ConnectListener {
 
 	private void sendQueuedMessages() {
 		synchronized(this) {
-			while(queuedMessages.size() > 0) {
+			QueuedMessage queued;
+			while((queued = queuedMessages.poll()) != null) {
 				try {
-					sendImpl(queuedMessages.get(0));
-					queuedMessages.remove(0);
+					sendImpl(queued);
 				} catch (AblyException e) {
 					Log.e(TAG, "sendQueuedMessages(): Unexpected error sending queued messages", e);
 				}
@@ -750,35 +1171,219 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		}
 	}
 
-	private void failQueuedMessages(ErrorInfo reason) {
+	private void failQueuedMessages(final ErrorInfo reason) {
+		final QueuedMessage[] failed;
 		synchronized(this) {
-			for(QueuedMessage queued : queuedMessages) {
-				try {
-					if(queued.listener != null)
-						queued.listener.onError(reason);
-				} catch (Throwable t) {
-					Log.e(TAG, "failQueuedMessages(): Unexpected error calling listener", t);
+			failed = queuedMessages.clear();
+		}
+		if(failed.length > 0) {
+			runCallback(new Runnable() {
+				@Override
+				public void run() {
+					MessageQueue.fail(failed, reason);
 				}
+			});
+		}
+	}
+
+	/******************
+	 * write batching
+	 ******************/
+
+	/**
+	 * Counters for the outbound write pipeline
+	 */
+	public static class WriteStats {
+		/**
+		 * The number of times buffered messages were written to the transport
+		 */
+		public long flushes;
+
+		/**
+		 * The number of ProtocolMessages (frames) written by those flushes
+		 */
+		public long frames;
+
+		/**
+		 * The number of send requests accepted into the buffer, before merging
+		 */
+		public long messages;
+
+		public double getFramesPerFlush() {
+			return (flushes == 0) ? 0 : (double)frames / flushes;
+		}
+
+		public double getMessagesPerFrame() {
+			return (frames == 0) ? 0 : (double)messages / frames;
+		}
+	}
+
+	/**
+	 * Get a snapshot of the outbound write counters for this connection
+	 * @return
+	 */
+	public synchronized WriteStats getWriteStats() {
+		WriteStats result = new WriteStats();
+		result.flushes = writeStats.flushes;
+		result.frames = writeStats.frames;
+		result.messages = writeStats.messages;
+		return result;
+	}
+
+	/**
+	 * Add a message to the outbound buffer while connected, merging it with
+	 * the last buffered message for the same channel where possible.
+	 * The buffer is flushed when the linger interval expires, or immediately
+	 * once it holds writeBufferSize individual messages.
+	 * Called with the lock held.
+	 */
+	private void bufferOutboundMessage(ProtocolMessage msg, CompletionListener listener) throws AblyException {
+		if(!mergeToLast(outboundMessages, msg, listener))
+			outboundMessages.add(new QueuedMessage(msg, listener));
+		++writeStats.messages;
+		outboundMessageCount += MessageQueue.messageCount(msg);
+		if(outboundMessageCount >= options.writeBufferSize) {
+			flushOutboundMessages();
+			return;
+		}
+		if(!flushScheduled) {
+			flushScheduled = true;
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized(ConnectionManager.this) {
+						flushScheduled = false;
+						if(state.sendEvents)
+							flushOutboundMessages();
+					}
+				}
+			}, options.writeLingerInterval);
+		}
+	}
+
+	/**
+	 * Write any buffered messages to the transport.
+	 * Called with the lock held.
+	 */
+	private void flushOutboundMessages() {
+		int count = outboundMessages.size();
+		if(count == 0)
+			return;
+		for(QueuedMessage queued : outboundMessages) {
+			try {
+				sendImpl(queued);
+			} catch (AblyException e) {
+				Log.e(TAG, "flushOutboundMessages(): Unexpected error sending buffered messages", e);
 			}
 		}
+		outboundMessages.clear();
+		outboundMessageCount = 0;
+		++writeStats.flushes;
+		writeStats.frames += count;
 	}
 
+	/**
+	 * Return buffered messages that have not yet been written to the
+	 * head of the queue, so they are sent on reconnection or failed,
+	 * in the same way as any other queued message.
+	 * Called with the lock held.
+	 */
+	private void requeueOutboundMessages() {
+		if(outboundMessages.isEmpty())
+			return;
+		queuedMessages.addFirst(outboundMessages);
+		outboundMessages.clear();
+		outboundMessageCount = 0;
+	}
+
+	/**
+	 * Ack latency percentiles for recently acknowledged messages, in milliseconds
+	 */
+	public static class AckLatencyStats {
+		/**
+		 * The number of samples the percentiles are computed from
+		 */
+		public int count;
+		public double p50;
+		public double p90;
+		public double p99;
+		public double max;
+	}
+
+	/**
+	 * Get ack latency percentiles for the most recent messages on this connection
+	 * @return
+	 */
+	public AckLatencyStats getAckLatencyStats() {
+		return pendingMessages.getLatencyStats();
+	}
+
+	/**
+	 * The messages awaiting ack or nack, held in a ring buffer in msgSerial
+	 * order so that the message with a given serial is found by its offset
+	 * from startSerial. Each entry records the time it was sent, so that ack
+	 * latencies can be sampled.
+	 */
 	private class PendingMessageQueue {
 		private long startSerial = 0L;
-		private ArrayList<QueuedMessage> queue = new ArrayList<QueuedMessage>();
+		private QueuedMessage[] queue = new QueuedMessage[INITIAL_PENDING_CAPACITY];
+		private long[] sendTimes = new long[INITIAL_PENDING_CAPACITY];
+		private int head;
+		private int size;
+
+		/* the most recent ack latencies, in nanoseconds */
+		private final long[] latencies = new long[LATENCY_SAMPLE_COUNT];
+		private int latencyCount;
+		private int latencyIndex;
+
+		/**
+		 * Put startSerial to 0; called every time the connection is closed
+		 */
+		public synchronized void reset() {
+			startSerial = 0L;
+		}
 
-		public PendingMessageQueue() {
-			/* put startSerial to 0 every time the connection is closed */
-			connection.on(ConnectionState.closed, new ConnectionStateListener() {
-				@Override
-				public void onConnectionStateChanged(ConnectionStateListener.ConnectionStateChange state) {
-					startSerial = 0L;
+		public synchronized void push(QueuedMessage msg) {
+			if(size == queue.length) {
+				QueuedMessage[] grownQueue = new QueuedMessage[size * 2];
+				long[] grownTimes = new long[size * 2];
+				for(int i = 0; i < size; i++) {
+					int idx = (head + i) % queue.length;
+					grownQueue[i] = queue[idx];
+					grownTimes[i] = sendTimes[idx];
 				}
-			});
+				queue = grownQueue;
+				sendTimes = grownTimes;
+				head = 0;
+			}
+			int tail = (head + size) % queue.length;
+			queue[tail] = msg;
+			sendTimes[tail] = System.nanoTime();
+			++size;
 		}
 
-		public synchronized void push(QueuedMessage msg) {
-			queue.add(msg);
+		/**
+		 * Remove up to count messages from the head of the queue
+		 * @param recordLatency: if true, sample the latency of the removed messages
+		 */
+		private QueuedMessage[] removeFirst(int count, boolean recordLatency) {
+			count = Math.max(0, Math.min(count, size));
+			QueuedMessage[] result = new QueuedMessage[count];
+			long now = recordLatency ? System.nanoTime() : 0L;
+			for(int i = 0; i < count; i++) {
+				result[i] = queue[head];
+				queue[head] = null;
+				if(recordLatency) {
+					latencies[latencyIndex] = now - sendTimes[head];
+					latencyIndex = (latencyIndex + 1) % latencies.length;
+					if(latencyCount < latencies.length) ++latencyCount;
+				}
+				head = (head + 1) % queue.length;
+			}
+			size -= count;
+			if(size == 0) head = 0;
+			startSerial += count;
+			return result;
 		}
 
 		public void ack(long msgSerial, int count, ErrorInfo reason) {
@@ -794,17 +1399,11 @@ public class ConnectionManager implements Runnable, ConnectListener {
 				if(msgSerial > startSerial) {
 					/* this counts as a nack of the messages earlier than serial,
 					 * as well as an ack */
-					int nCount = (int)(msgSerial - startSerial);
-					List<QueuedMessage> nackList = queue.subList(0, nCount);
-					nackMessages = nackList.toArray(new QueuedMessage[nCount]);
-					nackList.clear();
+					nackMessages = removeFirst((int)(msgSerial - startSerial), false);
 					startSerial = msgSerial;
 				}
 				if(msgSerial == startSerial) {
-					List<QueuedMessage> ackList = queue.subList(0, count);
-					ackMessages = ackList.toArray(new QueuedMessage[count]);
-					ackList.clear();
-					startSerial += count;
+					ackMessages = removeFirst(count, true);
 				}
 			}
 			if(nackMessages != null) {
@@ -831,7 +1430,7 @@ public class ConnectionManager implements Runnable, ConnectListener {
 			}
 		}
 
-		public synchronized void nack(long serial, int count, ErrorInfo reason) {
+		public void nack(long serial, int count, ErrorInfo reason) {
 			QueuedMessage[] nackMessages = null;
 			synchronized(this) {
 				if(serial != startSerial) {
@@ -841,10 +1440,7 @@ public class ConnectionManager implements Runnable, ConnectListener {
 					count -= (int)(startSerial - serial);
 					serial = startSerial;
 				}
-				List<QueuedMessage> nackList = queue.subList(0, count);
-				nackMessages = nackList.toArray(new QueuedMessage[count]);
-				nackList.clear();
-				startSerial += count;
+				nackMessages = removeFirst(count, false);
 			}
 			if(nackMessages != null) {
 				if(reason == null)
@@ -859,6 +1455,28 @@ public class ConnectionManager implements Runnable, ConnectListener {
 				}
 			}
 		}
+
+		public AckLatencyStats getLatencyStats() {
+			long[] samples;
+			synchronized(this) {
+				samples = Arrays.copyOf(latencies, latencyCount);
+			}
+			AckLatencyStats stats = new AckLatencyStats();
+			stats.count = samples.length;
+			if(samples.length > 0) {
+				Arrays.sort(samples);
+				stats.p50 = percentile(samples, 0.5);
+				stats.p90 = percentile(samples, 0.9);
+				stats.p99 = percentile(samples, 0.99);
+				stats.max = samples[samples.length - 1] / 1e6;
+			}
+			return stats;
+		}
+
+		private double percentile(long[] sorted, double fraction) {
+			int idx = (int)Math.ceil(fraction * sorted.length) - 1;
+			return sorted[Math.max(0, idx)] / 1e6;
+		}
 	}
 
 	/*******************
@@ -881,24 +1499,46 @@ public class ConnectionManager implements Runnable, ConnectListener {
 	 * private members
 	 ******************/
 
-	private Thread mgrThread;
+	private boolean isActive;
+	private boolean isStepScheduled;
 	final AblyRealtime ably;
 	private final ClientOptions options;
 	private final Connection connection;
 	private final ITransport.Factory factory;
-	private final List<QueuedMessage> queuedMessages;
+	private final MessageQueue queuedMessages;
 	private final PendingMessageQueue pendingMessages;
-	private final HashSet<Object> heartbeatWaiters = new HashSet<Object>();
+	private final List<QueuedMessage> outboundMessages = new ArrayList<QueuedMessage>();
+	private final WriteStats writeStats = new WriteStats();
+	private int outboundMessageCount;
+	private boolean flushScheduled;
+	private final HashedWheelTimer timer;
+	private final HashSet<HeartbeatWaiter> heartbeatWaiters = new HashSet<HeartbeatWaiter>();
 
 	private StateInfo state;
 	private StateIndication indicatedState, requestedState;
 	private ConnectParams pendingConnect;
+	private FallbackRace fallbackRace;
 	private ITransport transport;
 	private long suspendTime;
+	private HashedWheelTimer.Timeout stateTimeout;
+	private long stateTimerId;
+	private boolean stateTimerExpired;
+	private long connectivityCheckId;
+	private final SerialExecutor callbacks;
 	private long msgSerial;
 
 	/* for debug/test only */
 	private RawProtocolListener protocolListener;
 
+	private static ThreadPoolExecutor stepExecutor;
+	private static ThreadPoolExecutor callbackExecutor;
+	private static ThreadPoolExecutor connectivityExecutor;
+
 	private static final long HEARTBEAT_TIMEOUT = 5000L;
+	static final int STEP_THREADS = 8;
+	static final int CALLBACK_THREADS = 4;
+	private static final int CONNECTIVITY_THREADS = 4;
+	private static final long SHARED_POOL_KEEP_ALIVE_TIME = 60000L;
+	private static final int INITIAL_PENDING_CAPACITY = 64;
+	private static final int LATENCY_SAMPLE_COUNT = 1024;
 }
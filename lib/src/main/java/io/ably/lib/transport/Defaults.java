@@ -16,6 +16,9 @@ public class Defaults {
 	public static final int TIMEOUT_CONNECT         = 15000;
 	public static final int TIMEOUT_DISCONNECT      = 30000;
 	public static final int TIMEOUT_SUSPEND         = 120000;
+	public static final int TIMEOUT_ATTACH          = 15000;
+	/* RTL13b */
+	public static final int TIMEOUT_CHANNEL_RETRY   = 15000;
 	/* TO313 */
 	public static final int TIMEOUT_HTTP_OPEN = 4000;
 	/* TO314 */
@@ -25,6 +28,15 @@ public class Defaults {
 	public static final String[] TRANSPORTS         = new String[]{"web_socket"};
 	public static final String TRANSPORT = "io.ably.lib.transport.WebSocketTransport$Factory";
 	public static final int HTTP_MAX_RETRY_COUNT    = 3;
+	public static final int WRITE_BUFFER_SIZE       = 100;
+	public static final int FALLBACK_RACE_DELAY     = 250;
+	public static final int SLOW_LISTENER_THRESHOLD = 100;
+	public static final int DISPATCH_QUEUE_SIZE     = 1000;
+	public static final int ASYNC_HTTP_THREADPOOL_SIZE = 8;
+	public static final int ASYNC_HTTP_QUEUE_SIZE   = 1000;
+	public static final int PUBLISH_BATCH_SIZE      = 100;
+	public static final int MAX_MESSAGE_SIZE        = 65536;
+	public static final int BATCH_PUBLISH_MAX_CHANNELS = 100;
 
 	static {
 		Collections.shuffle(HOST_FALLBACKS);
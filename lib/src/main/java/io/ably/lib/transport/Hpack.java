@@ -0,0 +1,479 @@
+package io.ably.lib.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * HPACK header compression (RFC 7541) for HTTP/2 connections.
+ * Encoders and decoders hold the dynamic table of one direction of one
+ * connection, so each must only be used by the thread serving that connection.
+ * Internal
+ */
+class Hpack {
+
+	/**
+	 * Interface for the recipient of the fields of a decoded header block
+	 */
+	interface HeaderListener {
+		void onHeader(String name, String value) throws IOException;
+	}
+
+	/**
+	 * Encodes header fields into header blocks.
+	 * Fields other than the path and body length are added to the dynamic
+	 * table, so that fields repeated on every request, such as the
+	 * authority and Authorization, are sent as a single index after the first.
+	 */
+	static class Encoder {
+
+		/**
+		 * Set the size of the dynamic table, as limited by the peer's
+		 * SETTINGS_HEADER_TABLE_SIZE. The change is signalled at the
+		 * start of the next header block.
+		 * @param size
+		 */
+		void setMaxTableSize(int size) {
+			size = Math.min(size, DEFAULT_TABLE_SIZE);
+			if(size != table.maxSize) {
+				table.setMaxSize(size);
+				pendingSizeUpdate = true;
+			}
+		}
+
+		/**
+		 * Begin a header block; this must precede the first field of each block
+		 * @param out
+		 */
+		void begin(ByteArrayOutputStream out) {
+			if(pendingSizeUpdate) {
+				writeInt(out, 0x20, 5, table.maxSize);
+				pendingSizeUpdate = false;
+			}
+		}
+
+		/**
+		 * Encode a field
+		 * @param name a lower-case field name
+		 * @param value
+		 * @param out
+		 */
+		void encode(String name, String value, ByteArrayOutputStream out) {
+			int index = table.find(name, value);
+			if(index > 0) {
+				writeInt(out, 0x80, 7, index);
+				return;
+			}
+			boolean indexed = !(name.equals(":path") || name.equals("content-length"));
+			if(indexed)
+				writeInt(out, 0x40, 6, -index);
+			else
+				writeInt(out, 0x00, 4, -index);
+			if(index == 0)
+				writeString(out, name);
+			writeString(out, value);
+			if(indexed)
+				table.add(name, value);
+		}
+
+		private final Table table = new Table(DEFAULT_TABLE_SIZE);
+		private boolean pendingSizeUpdate;
+	}
+
+	/**
+	 * Decodes header blocks
+	 */
+	static class Decoder {
+
+		/**
+		 * Decode a complete header block
+		 * @param block
+		 * @param offset
+		 * @param length
+		 * @param listener
+		 * @throws IOException if the block is malformed; this is
+		 * a connection error, as the dynamic table is then unusable
+		 */
+		void decode(byte[] block, int offset, int length, HeaderListener listener) throws IOException {
+			buf = block;
+			pos = offset;
+			end = offset + length;
+			while(pos < end) {
+				int b = buf[pos] & 0xff;
+				if((b & 0x80) != 0) {
+					int index = readInt(7);
+					listener.onHeader(table.name(index), table.value(index));
+				} else if((b & 0x40) != 0) {
+					String name = readName(6);
+					String value = readString();
+					table.add(name, value);
+					listener.onHeader(name, value);
+				} else if((b & 0x20) != 0) {
+					int size = readInt(5);
+					if(size > DEFAULT_TABLE_SIZE)
+						throw new IOException("Invalid header table size update: " + size);
+					table.setMaxSize(size);
+				} else {
+					/* literal, without indexing or never indexed */
+					String name = readName(4);
+					listener.onHeader(name, readString());
+				}
+			}
+			buf = null;
+		}
+
+		private String readName(int prefixBits) throws IOException {
+			int index = readInt(prefixBits);
+			return (index == 0) ? readString() : table.name(index);
+		}
+
+		private int readInt(int prefixBits) throws IOException {
+			int max = (1 << prefixBits) - 1;
+			int value = buf[pos++] & max;
+			if(value < max)
+				return value;
+			for(int shift = 0; shift < 28; shift += 7) {
+				if(pos >= end)
+					throw new IOException("Truncated header block");
+				int b = buf[pos++] & 0xff;
+				value += (b & 0x7f) << shift;
+				if((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Header integer overflow");
+		}
+
+		private String readString() throws IOException {
+			if(pos >= end)
+				throw new IOException("Truncated header block");
+			boolean huffman = (buf[pos] & 0x80) != 0;
+			int length = readInt(7);
+			if(length > end - pos)
+				throw new IOException("Truncated header block");
+			String result = huffman ? decodeHuffman(buf, pos, length) : new String(buf, pos, length, CHARSET);
+			pos += length;
+			return result;
+		}
+
+		private final Table table = new Table(DEFAULT_TABLE_SIZE);
+		private byte[] buf;
+		private int pos;
+		private int end;
+	}
+
+	/*******************
+	 * internal
+	 ******************/
+
+	/**
+	 * The static table followed by a dynamic table; indices are 1-based,
+	 * with the newest dynamic entry immediately after the static entries
+	 */
+	private static class Table {
+		private Table(int maxSize) { this.maxSize = maxSize; }
+
+		private String name(int index) throws IOException {
+			return entry(index)[0];
+		}
+
+		private String value(int index) throws IOException {
+			return entry(index)[1];
+		}
+
+		private String[] entry(int index) throws IOException {
+			if(index > 0 && index <= STATIC_TABLE.length)
+				return STATIC_TABLE[index - 1];
+			int dynamicIndex = index - STATIC_TABLE.length - 1;
+			if(dynamicIndex < 0 || dynamicIndex >= entries.size())
+				throw new IOException("Invalid header index: " + index);
+			return entries.get(entries.size() - 1 - dynamicIndex);
+		}
+
+		/**
+		 * Find a field
+		 * @return the index of a matching entry; or, if only the name
+		 * matches an entry, the negated index of that entry; or 0
+		 */
+		private int find(String name, String value) {
+			int nameIndex = 0;
+			for(int i = 0; i < STATIC_TABLE.length; i++) {
+				String[] entry = STATIC_TABLE[i];
+				if(entry[0].equals(name)) {
+					if(entry[1].equals(value))
+						return i + 1;
+					if(nameIndex == 0)
+						nameIndex = -(i + 1);
+				}
+			}
+			for(int i = entries.size() - 1; i >= 0; i--) {
+				String[] entry = entries.get(i);
+				if(entry[0].equals(name)) {
+					int index = STATIC_TABLE.length + entries.size() - i;
+					if(entry[1].equals(value))
+						return index;
+					if(nameIndex == 0)
+						nameIndex = -index;
+				}
+			}
+			return nameIndex;
+		}
+
+		private void add(String name, String value) {
+			int entrySize = entrySize(name, value);
+			evict(maxSize - entrySize);
+			/* an entry larger than the table empties it, and is not added */
+			if(entrySize <= maxSize) {
+				entries.add(new String[] { name, value });
+				size += entrySize;
+			}
+		}
+
+		private void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+			evict(maxSize);
+		}
+
+		private void evict(int targetSize) {
+			while(size > targetSize && !entries.isEmpty()) {
+				String[] entry = entries.remove(0);
+				size -= entrySize(entry[0], entry[1]);
+			}
+		}
+
+		private static int entrySize(String name, String value) {
+			return name.length() + value.length() + ENTRY_OVERHEAD;
+		}
+
+		private final ArrayList<String[]> entries = new ArrayList<String[]>();
+		private int maxSize;
+		private int size;
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+		int max = (1 << prefixBits) - 1;
+		if(value < max) {
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | max);
+		value -= max;
+		while(value >= 0x80) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Write a string literal, Huffman-coded if that is shorter
+	 */
+	private static void writeString(ByteArrayOutputStream out, String s) {
+		byte[] bytes = s.getBytes(CHARSET);
+		long huffmanBits = 0;
+		for(byte b : bytes)
+			huffmanBits += HUFFMAN_LENGTHS[b & 0xff];
+		int huffmanLength = (int)((huffmanBits + 7) / 8);
+		if(huffmanLength >= bytes.length) {
+			writeInt(out, 0x00, 7, bytes.length);
+			out.write(bytes, 0, bytes.length);
+			return;
+		}
+		writeInt(out, 0x80, 7, huffmanLength);
+		long bits = 0;
+		int count = 0;
+		for(byte b : bytes) {
+			int symbol = b & 0xff;
+			bits = (bits << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+			count += HUFFMAN_LENGTHS[symbol];
+			while(count >= 8) {
+				count -= 8;
+				out.write((int)(bits >>> count));
+			}
+			bits &= (1L << count) - 1;
+		}
+		if(count > 0) {
+			/* pad with the most significant bits of the EOS code, all ones */
+			out.write((int)((bits << (8 - count)) | (0xff >>> count)));
+		}
+	}
+
+	private static String decodeHuffman(byte[] src, int offset, int length) throws IOException {
+		StringBuilder result = new StringBuilder(length * 8 / 5);
+		int node = 0, pendingBits = 0;
+		boolean pendingOnes = true;
+		for(int i = offset; i < offset + length; i++) {
+			int b = src[i] & 0xff;
+			for(int bit = 7; bit >= 0; bit--) {
+				int direction = (b >>> bit) & 1;
+				int next = HUFFMAN_TREE[node * 2 + direction];
+				if(next == 0)
+					throw new IOException("Invalid Huffman code");
+				if(next < 0) {
+					result.append((char)(-next - 1));
+					node = 0;
+					pendingBits = 0;
+					pendingOnes = true;
+				} else {
+					node = next;
+					++pendingBits;
+					pendingOnes &= (direction == 1);
+				}
+			}
+		}
+		if(pendingBits > 7 || !pendingOnes)
+			throw new IOException("Invalid Huffman padding");
+		return result.toString();
+	}
+
+	/**
+	 * Build the Huffman decoding tree: the children of node n are at 2n
+	 * and 2n + 1; a positive entry is the index of an interior node, a
+	 * negative entry is -(symbol + 1), and zero is not a valid code
+	 */
+	private static int[] buildHuffmanTree() {
+		int[] tree = new int[HUFFMAN_TREE_SIZE * 2];
+		int nodeCount = 1;
+		for(int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+			int code = HUFFMAN_CODES[symbol], length = HUFFMAN_LENGTHS[symbol];
+			int node = 0;
+			for(int bit = length - 1; bit > 0; bit--) {
+				int slot = node * 2 + ((code >>> bit) & 1);
+				if(tree[slot] == 0)
+					tree[slot] = nodeCount++;
+				node = tree[slot];
+			}
+			tree[node * 2 + (code & 1)] = -(symbol + 1);
+		}
+		return tree;
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	static final int DEFAULT_TABLE_SIZE = 4096;
+	private static final int ENTRY_OVERHEAD = 32;
+	private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	private static final String[][] STATIC_TABLE = {
+		{ ":authority", "" },
+		{ ":method", "GET" },
+		{ ":method", "POST" },
+		{ ":path", "/" },
+		{ ":path", "/index.html" },
+		{ ":scheme", "http" },
+		{ ":scheme", "https" },
+		{ ":status", "200" },
+		{ ":status", "204" },
+		{ ":status", "206" },
+		{ ":status", "304" },
+		{ ":status", "400" },
+		{ ":status", "404" },
+		{ ":status", "500" },
+		{ "accept-charset", "" },
+		{ "accept-encoding", "gzip, deflate" },
+		{ "accept-language", "" },
+		{ "accept-ranges", "" },
+		{ "accept", "" },
+		{ "access-control-allow-origin", "" },
+		{ "age", "" },
+		{ "allow", "" },
+		{ "authorization", "" },
+		{ "cache-control", "" },
+		{ "content-disposition", "" },
+		{ "content-encoding", "" },
+		{ "content-language", "" },
+		{ "content-length", "" },
+		{ "content-location", "" },
+		{ "content-range", "" },
+		{ "content-type", "" },
+		{ "cookie", "" },
+		{ "date", "" },
+		{ "etag", "" },
+		{ "expect", "" },
+		{ "expires", "" },
+		{ "from", "" },
+		{ "host", "" },
+		{ "if-match", "" },
+		{ "if-modified-since", "" },
+		{ "if-none-match", "" },
+		{ "if-range", "" },
+		{ "if-unmodified-since", "" },
+		{ "last-modified", "" },
+		{ "link", "" },
+		{ "location", "" },
+		{ "max-forwards", "" },
+		{ "proxy-authenticate", "" },
+		{ "proxy-authorization", "" },
+		{ "range", "" },
+		{ "referer", "" },
+		{ "refresh", "" },
+		{ "retry-after", "" },
+		{ "server", "" },
+		{ "set-cookie", "" },
+		{ "strict-transport-security", "" },
+		{ "transfer-encoding", "" },
+		{ "user-agent", "" },
+		{ "vary", "" },
+		{ "via", "" },
+		{ "www-authenticate", "" }
+	};
+
+	private static final int[] HUFFMAN_CODES = {
+		0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+		0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+		0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+		0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+		0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+		0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+		0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+		0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+		0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+		0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+		0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+		0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+		0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+		0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+		0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+		0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+		0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+		0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+		0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+		0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+		0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+		0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+		0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+		0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+		0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+		0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+		0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+		0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+		0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+		0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+		0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+		0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+	};
+
+	private static final byte[] HUFFMAN_LENGTHS = {
+		13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+		28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+		6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+		5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+		13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+		7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+		15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+		6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+		20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+		24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+		22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+		21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+		26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+		19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+		20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+		26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+	};
+
+	private static final int HUFFMAN_TREE_SIZE = 256;
+	private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+}
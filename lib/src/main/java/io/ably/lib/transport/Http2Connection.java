@@ -0,0 +1,1149 @@
+package io.ably.lib.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLParameters;
+
+import org.java_websocket.SSLSocketChannel2;
+import org.java_websocket.WrappedByteChannel;
+
+import io.ably.lib.http.HttpEngine.Request;
+import io.ably.lib.http.HttpEngine.Response;
+import io.ably.lib.transport.Http2Engine.Exchange;
+import io.ably.lib.util.HashedWheelTimer;
+import io.ably.lib.util.Log;
+
+/**
+ * A single HTTP/2 connection of an {@link Http2Engine}, carrying the
+ * exchanges assigned to it as concurrent streams.
+ * Exchanges may be sent from any thread; all socket I/O, framing and
+ * stream state are confined to the thread of the connection's event loop.
+ * Streams are only started once the server's SETTINGS have been received,
+ * so that a host that does not speak HTTP/2 is detected before any request
+ * is sent, and the request can be made with HTTP/1.1 instead.
+ * Internal
+ */
+class Http2Connection implements NioEventLoopGroup.Handler {
+
+	Http2Connection(Http2Engine engine, Http2Engine.Pool pool) {
+		this.engine = engine;
+		this.pool = pool;
+		this.loop = engine.getGroup().next();
+		this.timer = engine.getTimer();
+		this.isTls = HTTPS.equals(pool.scheme);
+		this.authority = (pool.port == (isTls ? 443 : 80)) ? pool.host : pool.host + ':' + pool.port;
+	}
+
+	/**
+	 * Start connecting. Called once, before any exchange is sent.
+	 * @param connectTimeout the time allowed until the server's settings
+	 * are received, in milliseconds
+	 */
+	void connect(int connectTimeout) {
+		try {
+			InetSocketAddress address = new InetSocketAddress(pool.host, pool.port);
+			if(address.isUnresolved())
+				throw new UnknownHostException(pool.host);
+			SocketChannel channel = SocketChannel.open();
+			socketChannel = channel;
+			channel.configureBlocking(false);
+			/* frames are batched in the output buffer, so Nagle's algorithm would only add latency */
+			channel.socket().setTcpNoDelay(true);
+			channel.connect(address);
+			loop.register(channel, SelectionKey.OP_CONNECT, this);
+		} catch(IOException|UnresolvedAddressException e) {
+			final IOException reason = (e instanceof IOException) ? (IOException)e : new UnknownHostException(pool.host);
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					shutdown(reason);
+				}
+			});
+			return;
+		}
+		if(connectTimeout > 0) {
+			connectTimer = timer.schedule(new LoopTask() {
+				@Override
+				void runOnLoop() {
+					if(!isReady)
+						shutdown(new SocketTimeoutException("Connect timed out"));
+				}
+			}, connectTimeout);
+		}
+	}
+
+	/**
+	 * Send an exchange, from any thread. It is started as soon as a stream
+	 * is available; if the connection is closed or retired first, it is
+	 * handed back to the engine.
+	 * @param exchange
+	 */
+	void send(Exchange exchange) {
+		incoming.add(exchange);
+		if(drainScheduled.compareAndSet(false, true))
+			loop.execute(drainTask);
+	}
+
+	/**
+	 * Close the connection, from any thread, failing any exchanges in progress
+	 * @param reason
+	 */
+	void close(final IOException reason) {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				shutdown(reason);
+			}
+		});
+	}
+
+	/**
+	 * The number of exchanges this connection will accept at once
+	 */
+	int getMaxStreams() {
+		return maxStreams;
+	}
+
+	/* the number of exchanges assigned and not yet done; guarded by the engine */
+	int assigned;
+
+	final Http2Engine.Pool pool;
+
+	/**
+	 * The number of concurrent streams used on a connection, unless the server allows fewer
+	 */
+	static final int DEFAULT_MAX_STREAMS = 100;
+
+	/******************
+	 * Handler methods
+	 ******************/
+
+	@Override
+	public void onSelected(SelectionKey key) {
+		if(isClosed || !key.isValid()) {
+			closeChannel();
+			return;
+		}
+		try {
+			if(key.isConnectable()) {
+				onConnectable(key);
+				return;
+			}
+			if(key.isReadable())
+				onReadable();
+			if(!isClosed && key.isValid() && key.isWritable())
+				flush();
+		} catch(IOException ioe) {
+			shutdown(ioe);
+		} catch(RuntimeException e) {
+			Log.e(TAG, "Unexpected exception processing connection", e);
+			shutdown(new IOException(e.getMessage()));
+		}
+	}
+
+	@Override
+	public void onShutdown() {
+		shutdown(new IOException("Event loop shut down"));
+	}
+
+	/*******************
+	 * connection setup
+	 ******************/
+
+	private void onConnectable(SelectionKey key) throws IOException {
+		socketChannel.finishConnect();
+		isConnected = true;
+		this.key = key;
+		key.interestOps(SelectionKey.OP_READ);
+		if(isTls) {
+			SSLEngine sslEngine = engine.getSSLContext().createSSLEngine(pool.host, pool.port);
+			sslEngine.setUseClientMode(true);
+			SSLParameters params = sslEngine.getSSLParameters();
+			params.setEndpointIdentificationAlgorithm("HTTPS");
+			Http2Engine.requestAlpn(params);
+			sslEngine.setSSLParameters(params);
+			this.sslEngine = sslEngine;
+			channel = new SSLSocketChannel2(socketChannel, sslEngine, engine.getGroup().getTaskExecutor(), key);
+		} else {
+			channel = socketChannel;
+		}
+
+		/* connection preface, our settings, and a larger connection window */
+		reserve(PREFACE.length);
+		out.put(PREFACE);
+		writeFrameHeader(18, TYPE_SETTINGS, 0, 0);
+		out.putShort((short)SETTINGS_ENABLE_PUSH).putInt(0);
+		out.putShort((short)SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_WINDOW);
+		out.putShort((short)SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST_SIZE);
+		writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+		flush();
+	}
+
+	/**
+	 * Check, on receiving the first frame, that the server speaks HTTP/2
+	 */
+	private void checkProtocol(int type) throws IOException {
+		if(isTls) {
+			String protocol = Http2Engine.getNegotiatedProtocol(sslEngine);
+			if(!ALPN_H2.equals(protocol))
+				throw new ProtocolNotSupportedException("Server did not negotiate h2 (ALPN: " + protocol + ')');
+		}
+		if(type != TYPE_SETTINGS)
+			throw new ProtocolNotSupportedException("Server preface was not a SETTINGS frame");
+	}
+
+	/*******************
+	 * reading frames
+	 ******************/
+
+	private void onReadable() throws IOException {
+		while(!isClosed) {
+			int count = channel.read(readBuffer);
+			if(count < 0)
+				throw new EOFException("Connection closed by server");
+			boolean more = (channel instanceof WrappedByteChannel) && ((WrappedByteChannel)channel).isNeedRead();
+			if(readBuffer.position() > 0)
+				processFrames();
+			if(count == 0 && !more)
+				break;
+		}
+		flush();
+	}
+
+	private void processFrames() throws IOException {
+		readBuffer.flip();
+		try {
+			while(!isClosed && readBuffer.remaining() >= FRAME_HEADER_LENGTH) {
+				int position = readBuffer.position();
+				int length = ((readBuffer.get(position) & 0xff) << 16) | ((readBuffer.get(position + 1) & 0xff) << 8) | (readBuffer.get(position + 2) & 0xff);
+				int type = readBuffer.get(position + 3) & 0xff;
+				if(!isReady)
+					checkProtocol(type);
+				if(length > MAX_FRAME_SIZE)
+					throw connectionError(ERROR_FRAME_SIZE, "Frame of " + length + " bytes exceeds maximum frame size");
+				if(readBuffer.remaining() < FRAME_HEADER_LENGTH + length)
+					break;
+				int flags = readBuffer.get(position + 4) & 0xff;
+				int streamId = readBuffer.getInt(position + 5) & STREAM_ID_MASK;
+				readBuffer.position(position + FRAME_HEADER_LENGTH);
+				ByteBuffer payload = readBuffer.slice();
+				payload.limit(length);
+				readBuffer.position(position + FRAME_HEADER_LENGTH + length);
+				onFrame(type, flags, streamId, payload);
+			}
+		} finally {
+			readBuffer.compact();
+		}
+	}
+
+	private void onFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+		if(continuationStreamId != 0 && type != TYPE_CONTINUATION)
+			throw connectionError(ERROR_PROTOCOL, "Expected CONTINUATION frame");
+		switch(type) {
+		case TYPE_DATA:
+			onData(flags, streamId, payload);
+			break;
+		case TYPE_HEADERS:
+			onHeaders(flags, streamId, payload);
+			break;
+		case TYPE_RST_STREAM:
+			onResetStream(streamId, payload);
+			break;
+		case TYPE_SETTINGS:
+			onSettings(flags, payload);
+			break;
+		case TYPE_PUSH_PROMISE:
+			throw connectionError(ERROR_PROTOCOL, "Unexpected PUSH_PROMISE");
+		case TYPE_PING:
+			onPing(flags, payload);
+			break;
+		case TYPE_GOAWAY:
+			onGoAway(payload);
+			break;
+		case TYPE_WINDOW_UPDATE:
+			onWindowUpdate(streamId, payload);
+			break;
+		case TYPE_CONTINUATION:
+			onContinuation(flags, streamId, payload);
+			break;
+		default:
+			/* PRIORITY, and frames of unknown type, are ignored */
+		}
+	}
+
+	private void onData(int flags, int streamId, ByteBuffer payload) throws IOException {
+		int frameLength = payload.remaining();
+		receivedUnacknowledged += frameLength;
+		if(receivedUnacknowledged >= CONNECTION_WINDOW / 2) {
+			writeWindowUpdate(0, receivedUnacknowledged);
+			receivedUnacknowledged = 0;
+		}
+		Exchange exchange = streams.get(streamId);
+		if(exchange == null)
+			return;
+		int dataLength = unpad(flags, payload);
+		if(!exchange.headersReceived) {
+			resetStream(exchange, ERROR_PROTOCOL, new IOException("DATA received before response headers"));
+			return;
+		}
+		if(dataLength > 0) {
+			if(((exchange.body != null) ? exchange.body.size() : 0) + dataLength > MAX_RESPONSE_BODY_SIZE) {
+				resetStream(exchange, ERROR_CANCEL, new IOException("Response body exceeds " + MAX_RESPONSE_BODY_SIZE + " bytes"));
+				return;
+			}
+			if(exchange.body == null)
+				exchange.body = new ByteArrayOutputStream(Math.max(dataLength, 256));
+			exchange.body.write(payload.array(), payload.arrayOffset() + payload.position(), dataLength);
+		}
+		exchange.lastActivity = System.currentTimeMillis();
+		if((flags & FLAG_END_STREAM) != 0) {
+			complete(exchange);
+			return;
+		}
+		exchange.receivedUnacknowledged += frameLength;
+		if(exchange.receivedUnacknowledged >= STREAM_WINDOW / 2) {
+			writeWindowUpdate(streamId, exchange.receivedUnacknowledged);
+			exchange.receivedUnacknowledged = 0;
+		}
+	}
+
+	private void onHeaders(int flags, int streamId, ByteBuffer payload) throws IOException {
+		int length = unpad(flags, payload);
+		if((flags & FLAG_PRIORITY) != 0) {
+			if(length < 5)
+				throw connectionError(ERROR_PROTOCOL, "Invalid HEADERS frame");
+			payload.position(payload.position() + 5);
+			length -= 5;
+		}
+		headerBlock.reset();
+		headerBlockFrames = 0;
+		appendHeaderBlock(payload, length);
+		headerStreamId = streamId;
+		headerFlags = flags;
+		if((flags & FLAG_END_HEADERS) != 0)
+			onHeaderBlock();
+		else
+			continuationStreamId = streamId;
+	}
+
+	private void onContinuation(int flags, int streamId, ByteBuffer payload) throws IOException {
+		if(streamId != continuationStreamId)
+			throw connectionError(ERROR_PROTOCOL, "Unexpected CONTINUATION frame");
+		appendHeaderBlock(payload, payload.remaining());
+		if((flags & FLAG_END_HEADERS) != 0) {
+			continuationStreamId = 0;
+			onHeaderBlock();
+		}
+	}
+
+	/**
+	 * Add a fragment to the header block being received. The block, and the
+	 * number of frames carrying it, are limited so that a peer cannot make
+	 * us buffer without bound with a flood of CONTINUATION frames.
+	 */
+	private void appendHeaderBlock(ByteBuffer payload, int length) throws IOException {
+		if(headerBlock.size() + length > MAX_HEADER_LIST_SIZE || ++headerBlockFrames > MAX_HEADER_BLOCK_FRAMES)
+			throw connectionError(ERROR_ENHANCE_YOUR_CALM, "Header block exceeds " + MAX_HEADER_LIST_SIZE + " bytes");
+		headerBlock.write(payload.array(), payload.arrayOffset() + payload.position(), length);
+	}
+
+	/**
+	 * Process a complete header block. The block is decoded even if its
+	 * stream is gone, as the decoder's table must be kept in step with the server's.
+	 */
+	private void onHeaderBlock() throws IOException {
+		headerCollector.reset();
+		try {
+			decoder.decode(headerBlock.toByteArray(), 0, headerBlock.size(), headerCollector);
+		} catch(IOException e) {
+			throw connectionError(ERROR_COMPRESSION, "Invalid header block: " + e.getMessage());
+		}
+		if(headerCollector.size > MAX_HEADER_LIST_SIZE)
+			throw connectionError(ERROR_ENHANCE_YOUR_CALM, "Header list exceeds " + MAX_HEADER_LIST_SIZE + " bytes");
+		Exchange exchange = streams.get(headerStreamId);
+		if(exchange == null)
+			return;
+		exchange.lastActivity = System.currentTimeMillis();
+		boolean endStream = (headerFlags & FLAG_END_STREAM) != 0;
+		if(exchange.headersReceived) {
+			/* trailers, which are ignored */
+			if(endStream)
+				complete(exchange);
+			else
+				resetStream(exchange, ERROR_PROTOCOL, new IOException("Trailers received without END_STREAM"));
+			return;
+		}
+		int statusCode;
+		try {
+			statusCode = Integer.parseInt(headerCollector.status);
+		} catch(NumberFormatException e) {
+			resetStream(exchange, ERROR_PROTOCOL, new IOException("Invalid response status: " + headerCollector.status));
+			return;
+		}
+		if(statusCode >= 100 && statusCode < 200) {
+			/* informational response; the final response follows */
+			return;
+		}
+		Response response = new Response();
+		response.statusCode = statusCode;
+		response.headers = headerCollector.headers;
+		exchange.response = response;
+		exchange.headersReceived = true;
+		String contentLength = response.getHeaderField(CONTENT_LENGTH);
+		if(contentLength != null) {
+			try {
+				if(Long.parseLong(contentLength.trim()) > MAX_RESPONSE_BODY_SIZE) {
+					resetStream(exchange, ERROR_CANCEL, new IOException("Response body of " + contentLength + " bytes exceeds " + MAX_RESPONSE_BODY_SIZE + " bytes"));
+					return;
+				}
+			} catch(NumberFormatException e) {}
+		}
+		if(endStream)
+			complete(exchange);
+	}
+
+	private void onResetStream(int streamId, ByteBuffer payload) throws IOException {
+		if(payload.remaining() != 4)
+			throw connectionError(ERROR_FRAME_SIZE, "Invalid RST_STREAM frame");
+		int errorCode = payload.getInt();
+		Exchange exchange = streams.remove(streamId);
+		if(exchange == null)
+			return;
+		endStream(exchange);
+		if(errorCode == ERROR_REFUSED_STREAM) {
+			/* the server did not process the request, so it may be sent again */
+			onStreamClosed(resetState(exchange));
+			return;
+		}
+		exchange.fail(new IOException("Stream reset by server; error code " + errorCode));
+		onStreamClosed(null);
+	}
+
+	private void onSettings(int flags, ByteBuffer payload) throws IOException {
+		if((flags & FLAG_ACK) != 0)
+			return;
+		if(payload.remaining() % 6 != 0)
+			throw connectionError(ERROR_FRAME_SIZE, "Invalid SETTINGS frame");
+		while(payload.hasRemaining()) {
+			int id = payload.getShort() & 0xffff;
+			int value = payload.getInt();
+			switch(id) {
+			case SETTINGS_HEADER_TABLE_SIZE:
+				encoder.setMaxTableSize((value < 0) ? Integer.MAX_VALUE : value);
+				break;
+			case SETTINGS_MAX_CONCURRENT_STREAMS:
+				peerMaxStreams = (value < 0) ? Integer.MAX_VALUE : value;
+				break;
+			case SETTINGS_INITIAL_WINDOW_SIZE:
+				if(value < 0)
+					throw connectionError(ERROR_FLOW_CONTROL, "Invalid initial window size");
+				int delta = value - peerInitialWindow;
+				peerInitialWindow = value;
+				for(Exchange exchange : streams.values())
+					exchange.sendWindow += delta;
+				break;
+			case SETTINGS_MAX_FRAME_SIZE:
+				if(value < MAX_FRAME_SIZE || value > MAX_FRAME_SIZE_LIMIT)
+					throw connectionError(ERROR_PROTOCOL, "Invalid max frame size");
+				peerMaxFrameSize = value;
+				break;
+			default:
+				/* other settings do not affect a client */
+			}
+		}
+		writeFrameHeader(0, TYPE_SETTINGS, FLAG_ACK, 0);
+
+		int previousMaxStreams = maxStreams;
+		maxStreams = Math.min(peerMaxStreams, DEFAULT_MAX_STREAMS);
+		if(!isReady) {
+			isReady = true;
+			if(connectTimer != null)
+				connectTimer.cancel();
+		}
+		if(maxStreams > previousMaxStreams)
+			engine.onStreamsAvailable(this);
+		resumeBlocked();
+		startStreams();
+	}
+
+	private void onPing(int flags, ByteBuffer payload) throws IOException {
+		if(payload.remaining() != 8)
+			throw connectionError(ERROR_FRAME_SIZE, "Invalid PING frame");
+		if((flags & FLAG_ACK) != 0)
+			return;
+		writeFrameHeader(8, TYPE_PING, FLAG_ACK, 0);
+		out.put(payload);
+	}
+
+	private void onGoAway(ByteBuffer payload) throws IOException {
+		if(payload.remaining() < 8)
+			throw connectionError(ERROR_FRAME_SIZE, "Invalid GOAWAY frame");
+		int lastStreamId = payload.getInt() & STREAM_ID_MASK;
+		int errorCode = payload.getInt();
+		Log.v(TAG, "GOAWAY received from " + authority + "; error code " + errorCode);
+
+		/* streams after the last one processed by the server may be sent again */
+		ArrayList<Exchange> unprocessed = new ArrayList<Exchange>();
+		for(Iterator<Exchange> it = streams.values().iterator(); it.hasNext();) {
+			Exchange exchange = it.next();
+			if(exchange.streamId > lastStreamId) {
+				it.remove();
+				endStream(exchange);
+				unprocessed.add(resetState(exchange));
+			}
+		}
+		retire(unprocessed);
+	}
+
+	private void onWindowUpdate(int streamId, ByteBuffer payload) throws IOException {
+		if(payload.remaining() != 4)
+			throw connectionError(ERROR_FRAME_SIZE, "Invalid WINDOW_UPDATE frame");
+		int increment = payload.getInt() & STREAM_ID_MASK;
+		if(streamId == 0) {
+			if(increment == 0)
+				throw connectionError(ERROR_PROTOCOL, "Invalid window increment");
+			connectionSendWindow += increment;
+		} else {
+			Exchange exchange = streams.get(streamId);
+			if(exchange == null)
+				return;
+			if(increment == 0) {
+				resetStream(exchange, ERROR_PROTOCOL, new IOException("Invalid window increment"));
+				return;
+			}
+			exchange.sendWindow += increment;
+		}
+		resumeBlocked();
+	}
+
+	/**
+	 * Strip any padding from a DATA or HEADERS payload
+	 * @return the length of the remaining content
+	 */
+	private int unpad(int flags, ByteBuffer payload) throws IOException {
+		int padding = 0;
+		if((flags & FLAG_PADDED) != 0) {
+			if(!payload.hasRemaining())
+				throw connectionError(ERROR_PROTOCOL, "Invalid padded frame");
+			padding = payload.get() & 0xff;
+		}
+		int length = payload.remaining() - padding;
+		if(length < 0)
+			throw connectionError(ERROR_PROTOCOL, "Invalid padding");
+		return length;
+	}
+
+	/**
+	 * Collects the fields of a header block. Fields beyond MAX_HEADER_LIST_SIZE,
+	 * counted as in SETTINGS_MAX_HEADER_LIST_SIZE, are still decoded, to keep
+	 * the decoder's table in step, but are not kept.
+	 */
+	private static class HeaderCollector implements Hpack.HeaderListener {
+		@Override
+		public void onHeader(String name, String value) {
+			size += name.length() + value.length() + 32;
+			if(size > MAX_HEADER_LIST_SIZE)
+				return;
+			if(name.startsWith(":")) {
+				if(name.equals(":status"))
+					status = value;
+				return;
+			}
+			List<String> values = headers.get(name);
+			if(values == null)
+				headers.put(name, (values = new ArrayList<String>(1)));
+			values.add(value);
+		}
+
+		private void reset() {
+			status = null;
+			headers = new HashMap<String, List<String>>();
+			size = 0;
+		}
+
+		private String status;
+		private long size;
+		private HashMap<String, List<String>> headers;
+	}
+
+	/*******************
+	 * streams
+	 ******************/
+
+	/**
+	 * Accepts the exchanges sent to this connection, on the loop thread
+	 */
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drainScheduled.set(false);
+			Exchange exchange;
+			while((exchange = incoming.poll()) != null)
+				pending.add(exchange);
+			if(isClosed || isDraining) {
+				handBack(takePending());
+				return;
+			}
+			startStreams();
+			flush();
+		}
+	};
+
+	private void startStreams() {
+		while(isReady && !isDraining && !isClosed && !pending.isEmpty() && streams.size() < peerMaxStreams) {
+			Exchange exchange = pending.poll();
+			if(exchange.isCompleted()) {
+				/* abandoned by its caller before it was sent */
+				engine.onExchangeDone(this, null);
+				continue;
+			}
+			if(nextStreamId < 0) {
+				/* stream ids are exhausted */
+				pending.addFirst(exchange);
+				writeGoAway(ERROR_NO_ERROR);
+				retire(new ArrayList<Exchange>());
+				return;
+			}
+			startStream(exchange);
+		}
+		if(streams.isEmpty() && pending.isEmpty())
+			scheduleIdleTimeout();
+	}
+
+	private void startStream(final Exchange exchange) {
+		if(idleTimer != null) {
+			idleTimer.cancel();
+			idleTimer = null;
+		}
+		int streamId = nextStreamId;
+		nextStreamId += 2;
+		exchange.streamId = streamId;
+		exchange.sendWindow = peerInitialWindow;
+		exchange.lastActivity = System.currentTimeMillis();
+		streams.put(streamId, exchange);
+
+		Request request = exchange.request;
+		boolean hasBody = request.body != null && request.body.length > 0;
+		writeHeaders(streamId, request, hasBody);
+		if(hasBody)
+			sendData(exchange);
+		if(request.readTimeout > 0)
+			scheduleReadTimeout(exchange, request.readTimeout);
+	}
+
+	private void writeHeaders(int streamId, Request request, boolean hasBody) {
+		ByteArrayOutputStream block = encodeBuffer;
+		block.reset();
+		encoder.begin(block);
+		encoder.encode(":method", request.method, block);
+		encoder.encode(":scheme", pool.scheme, block);
+		encoder.encode(":authority", authority, block);
+		String path = request.url.getFile();
+		encoder.encode(":path", path.isEmpty() ? "/" : path, block);
+		for(Map.Entry<String, String> header : request.headers.entrySet()) {
+			String name = header.getKey().toLowerCase(Locale.ENGLISH);
+			if(header.getValue() != null && !EXCLUDED_HEADERS.contains(name))
+				encoder.encode(name, header.getValue(), block);
+		}
+		if(hasBody)
+			encoder.encode("content-length", String.valueOf(request.body.length), block);
+
+		/* the block is split into HEADERS and CONTINUATION frames if necessary */
+		byte[] bytes = block.toByteArray();
+		int offset = 0;
+		do {
+			int length = Math.min(bytes.length - offset, peerMaxFrameSize);
+			boolean isFirst = (offset == 0);
+			int flags = (offset + length == bytes.length) ? FLAG_END_HEADERS : 0;
+			if(isFirst && !hasBody)
+				flags |= FLAG_END_STREAM;
+			writeFrameHeader(length, isFirst ? TYPE_HEADERS : TYPE_CONTINUATION, flags, streamId);
+			out.put(bytes, offset, length);
+			offset += length;
+		} while(offset < bytes.length);
+	}
+
+	/**
+	 * Send as much of an exchange's request body as flow control allows,
+	 * holding the rest until the server opens the window
+	 */
+	private void sendData(Exchange exchange) {
+		if(!writeData(exchange))
+			blocked.add(exchange);
+	}
+
+	/**
+	 * @return true if the whole body has been sent
+	 */
+	private boolean writeData(Exchange exchange) {
+		byte[] body = exchange.request.body;
+		while(exchange.bodyOffset < body.length) {
+			int length = Math.min(Math.min(body.length - exchange.bodyOffset, peerMaxFrameSize), Math.min(exchange.sendWindow, connectionSendWindow));
+			if(length <= 0)
+				return false;
+			boolean isLast = (exchange.bodyOffset + length == body.length);
+			writeFrameHeader(length, TYPE_DATA, isLast ? FLAG_END_STREAM : 0, exchange.streamId);
+			out.put(body, exchange.bodyOffset, length);
+			exchange.bodyOffset += length;
+			exchange.sendWindow -= length;
+			connectionSendWindow -= length;
+		}
+		return true;
+	}
+
+	/**
+	 * Continue sending the bodies blocked by flow control, in the order they were started
+	 */
+	private void resumeBlocked() {
+		for(Iterator<Exchange> it = blocked.iterator(); it.hasNext() && connectionSendWindow > 0;) {
+			if(writeData(it.next()))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Complete an exchange whose response has been received in full
+	 */
+	private void complete(Exchange exchange) {
+		streams.remove(exchange.streamId);
+		if(exchange.bodyOffset < bodyLength(exchange)) {
+			/* the server responded without reading the whole request body */
+			writeResetStream(exchange.streamId, ERROR_NO_ERROR);
+		}
+		endStream(exchange);
+		Response response = exchange.response;
+		if(response.statusCode != HTTP_NO_CONTENT) {
+			byte[] body = (exchange.body != null) ? exchange.body.toByteArray() : new byte[0];
+			response.body = body;
+			response.contentType = response.getHeaderField(CONTENT_TYPE);
+			response.contentLength = body.length;
+		}
+		exchange.succeed(response);
+		onStreamClosed(null);
+	}
+
+	/**
+	 * Abandon a stream, failing its exchange
+	 */
+	private void resetStream(Exchange exchange, int errorCode, IOException reason) {
+		streams.remove(exchange.streamId);
+		writeResetStream(exchange.streamId, errorCode);
+		endStream(exchange);
+		exchange.fail(reason);
+		onStreamClosed(null);
+	}
+
+	/**
+	 * Release the resources of a stream that has been removed
+	 */
+	private void endStream(Exchange exchange) {
+		blocked.remove(exchange);
+		if(exchange.timeout != null) {
+			exchange.timeout.cancel();
+			exchange.timeout = null;
+		}
+	}
+
+	/**
+	 * Called once for each exchange that leaves a stream of this connection
+	 * @param retry an exchange to be sent again; or null
+	 */
+	private void onStreamClosed(Exchange retry) {
+		engine.onExchangeDone(this, retry);
+		if(isDraining && streams.isEmpty()) {
+			flush();
+			shutdown(null);
+			return;
+		}
+		startStreams();
+	}
+
+	/**
+	 * Clear the stream state of an exchange that is to be sent again
+	 */
+	private static Exchange resetState(Exchange exchange) {
+		exchange.streamId = 0;
+		exchange.bodyOffset = 0;
+		exchange.receivedUnacknowledged = 0;
+		exchange.headersReceived = false;
+		exchange.response = null;
+		exchange.body = null;
+		return exchange;
+	}
+
+	private static int bodyLength(Exchange exchange) {
+		byte[] body = exchange.request.body;
+		return (body == null) ? 0 : body.length;
+	}
+
+	private void scheduleReadTimeout(final Exchange exchange, long delay) {
+		exchange.timeout = timer.schedule(new LoopTask() {
+			@Override
+			void runOnLoop() {
+				if(streams.get(exchange.streamId) != exchange)
+					return;
+				/* the timeout applies to the time since data was last received for the stream */
+				long readTimeout = exchange.request.readTimeout;
+				long idle = System.currentTimeMillis() - exchange.lastActivity;
+				if(idle < readTimeout) {
+					scheduleReadTimeout(exchange, readTimeout - idle);
+					return;
+				}
+				resetStream(exchange, ERROR_CANCEL, new SocketTimeoutException("Read timed out"));
+				flush();
+			}
+		}, delay);
+	}
+
+	private void scheduleIdleTimeout() {
+		if(idleTimer != null)
+			idleTimer.cancel();
+		idleTimer = timer.schedule(new LoopTask() {
+			@Override
+			void runOnLoop() {
+				if(isClosed || !streams.isEmpty() || !pending.isEmpty() || !incoming.isEmpty())
+					return;
+				if(engine.retireIfIdle(Http2Connection.this)) {
+					writeGoAway(ERROR_NO_ERROR);
+					flush();
+					shutdown(null);
+				}
+			}
+		}, engine.getIdleTimeout());
+	}
+
+	/*******************
+	 * closing
+	 ******************/
+
+	/**
+	 * Accept no further exchanges, handing back those not yet started;
+	 * the connection closes once its remaining streams complete
+	 */
+	private void retire(List<Exchange> unsent) {
+		isDraining = true;
+		unsent.addAll(takePending());
+		handBack(unsent);
+		if(streams.isEmpty()) {
+			flush();
+			shutdown(null);
+		}
+	}
+
+	/**
+	 * Close the connection, if not already closed, failing any streams in progress
+	 * @param reason the failure, or null if closing normally
+	 */
+	private void shutdown(IOException reason) {
+		if(isClosed)
+			return;
+		isClosed = true;
+		if(connectTimer != null)
+			connectTimer.cancel();
+		if(idleTimer != null)
+			idleTimer.cancel();
+		closeChannel();
+
+		if(reason != null) {
+			if(!isConnected || (!isReady && reason instanceof SocketTimeoutException)) {
+				/* the host could not be reached */
+				connectFailure = reason;
+			} else if(!isReady) {
+				/* connected, but the server did not respond as an HTTP/2 server */
+				Log.v(TAG, "HTTP/2 connection to " + authority + " failed: " + reason);
+				isUnsupported = true;
+			}
+		}
+		IOException streamError = (reason != null) ? reason : new IOException("Connection closed");
+		ArrayList<Exchange> failed = new ArrayList<Exchange>(streams.values());
+		streams.clear();
+		blocked.clear();
+		for(Exchange exchange : failed) {
+			endStream(exchange);
+			exchange.fail(streamError);
+		}
+		handBack(takePending());
+	}
+
+	/**
+	 * Return exchanges that were never started to the engine, to be sent another way
+	 */
+	private void handBack(List<Exchange> unsent) {
+		if(connectFailure != null)
+			engine.onConnectionFailed(this, unsent, connectFailure);
+		else
+			engine.onConnectionRetired(this, unsent, isUnsupported);
+	}
+
+	private List<Exchange> takePending() {
+		Exchange exchange;
+		while((exchange = incoming.poll()) != null)
+			pending.add(exchange);
+		ArrayList<Exchange> result = new ArrayList<Exchange>(pending);
+		pending.clear();
+		return result;
+	}
+
+	private void closeChannel() {
+		if(key != null)
+			key.cancel();
+		if(socketChannel != null) {
+			try {
+				socketChannel.close();
+			} catch(IOException ioe) {}
+		}
+	}
+
+	/**
+	 * Send GOAWAY for a connection error; the returned exception is then
+	 * thrown, so that the connection is closed
+	 */
+	private IOException connectionError(int errorCode, String message) {
+		writeGoAway(errorCode);
+		flush();
+		return new IOException(message);
+	}
+
+	/**
+	 * The server does not speak HTTP/2
+	 */
+	private static class ProtocolNotSupportedException extends IOException {
+		private ProtocolNotSupportedException(String message) { super(message); }
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * A timer task that runs on the connection's loop thread
+	 */
+	private abstract class LoopTask implements Runnable {
+		@Override
+		public void run() {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if(!isClosed)
+						runOnLoop();
+				}
+			});
+		}
+
+		abstract void runOnLoop();
+	}
+
+	/*******************
+	 * writing frames
+	 ******************/
+
+	private void writeFrameHeader(int length, int type, int flags, int streamId) {
+		reserve(FRAME_HEADER_LENGTH + length);
+		out.put((byte)(length >>> 16)).put((byte)(length >>> 8)).put((byte)length);
+		out.put((byte)type).put((byte)flags).putInt(streamId);
+	}
+
+	private void writeWindowUpdate(int streamId, int increment) {
+		writeFrameHeader(4, TYPE_WINDOW_UPDATE, 0, streamId);
+		out.putInt(increment);
+	}
+
+	private void writeResetStream(int streamId, int errorCode) {
+		writeFrameHeader(4, TYPE_RST_STREAM, 0, streamId);
+		out.putInt(errorCode);
+	}
+
+	private void writeGoAway(int errorCode) {
+		/* the server never opens streams, so the last stream processed is 0 */
+		writeFrameHeader(8, TYPE_GOAWAY, 0, 0);
+		out.putInt(0).putInt(errorCode);
+	}
+
+	/**
+	 * Ensure the output buffer has room for the given number of bytes
+	 */
+	private void reserve(int length) {
+		if(out.remaining() >= length)
+			return;
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + length));
+		out.flip();
+		larger.put(out);
+		out = larger;
+	}
+
+	/**
+	 * Write as much buffered output as the socket accepts, and select
+	 * for writing while any remains
+	 */
+	private void flush() {
+		if(channel == null || isClosed)
+			return;
+		try {
+			boolean isDone = writeOut();
+			int ops = isDone ? SelectionKey.OP_READ : (SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			if(key.isValid() && key.interestOps() != ops)
+				key.interestOps(ops);
+		} catch(IOException ioe) {
+			shutdown(ioe);
+		}
+	}
+
+	private boolean writeOut() throws IOException {
+		WrappedByteChannel wrapped = (channel instanceof WrappedByteChannel) ? (WrappedByteChannel)channel : null;
+		if(wrapped != null && wrapped.isNeedWrite()) {
+			wrapped.writeMore();
+			if(wrapped.isNeedWrite())
+				return false;
+		}
+		out.flip();
+		try {
+			while(out.hasRemaining()) {
+				int position = out.position();
+				channel.write(out);
+				if(out.position() == position || (wrapped != null && wrapped.isNeedWrite()))
+					break;
+			}
+		} finally {
+			out.compact();
+		}
+		if(wrapped != null && wrapped.isNeedWrite())
+			return false;
+		if(out.position() == 0)
+			return true;
+		/* while the TLS handshake awaits the server, output is held until a read completes it */
+		return sslEngine != null && sslEngine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP;
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	private final Http2Engine engine;
+	private final NioEventLoopGroup.EventLoop loop;
+	private final HashedWheelTimer timer;
+	private final boolean isTls;
+	private final String authority;
+
+	/* exchanges sent from any thread, not yet taken by the loop */
+	private final ConcurrentLinkedQueue<Exchange> incoming = new ConcurrentLinkedQueue<Exchange>();
+	private final AtomicBoolean drainScheduled = new AtomicBoolean();
+	private volatile int maxStreams = DEFAULT_MAX_STREAMS;
+
+	/* confined to the loop thread */
+	private SocketChannel socketChannel;
+	private SelectionKey key;
+	private ByteChannel channel;
+	private SSLEngine sslEngine;
+	private boolean isConnected;
+	private boolean isReady;
+	private boolean isDraining;
+	private boolean isClosed;
+	private boolean isUnsupported;
+	private IOException connectFailure;
+	private HashedWheelTimer.Timeout connectTimer;
+	private HashedWheelTimer.Timeout idleTimer;
+
+	private final ArrayDeque<Exchange> pending = new ArrayDeque<Exchange>();
+	private final LinkedHashMap<Integer, Exchange> streams = new LinkedHashMap<Integer, Exchange>();
+	private final LinkedHashSet<Exchange> blocked = new LinkedHashSet<Exchange>();
+	private int nextStreamId = 1;
+
+	private final Hpack.Encoder encoder = new Hpack.Encoder();
+	private final Hpack.Decoder decoder = new Hpack.Decoder();
+	private final HeaderCollector headerCollector = new HeaderCollector();
+	private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream(1024);
+	private final ByteArrayOutputStream encodeBuffer = new ByteArrayOutputStream(1024);
+	private int headerStreamId;
+	private int headerFlags;
+	private int continuationStreamId;
+	private int headerBlockFrames;
+
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private ByteBuffer out = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+	private int peerMaxStreams = Integer.MAX_VALUE;
+	private int peerInitialWindow = DEFAULT_WINDOW;
+	private int peerMaxFrameSize = MAX_FRAME_SIZE;
+	private int connectionSendWindow = DEFAULT_WINDOW;
+	private int receivedUnacknowledged;
+
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charset.forName("US-ASCII"));
+	/* headers specific to HTTP/1.1 connections, and content-length, which is added from the body */
+	private static final HashSet<String> EXCLUDED_HEADERS = new HashSet<String>(Arrays.asList(
+			"connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "host", "te", "content-length"));
+
+	private static final int FRAME_HEADER_LENGTH = 9;
+	private static final int MAX_FRAME_SIZE = 16384;
+	private static final int MAX_FRAME_SIZE_LIMIT = 16777215;
+	private static final int STREAM_ID_MASK = 0x7fffffff;
+	private static final int DEFAULT_WINDOW = 65535;
+	private static final int STREAM_WINDOW = 1 << 20;
+	private static final int MAX_HEADER_LIST_SIZE = 65536;
+	private static final int MAX_HEADER_BLOCK_FRAMES = 64;
+	private static final int MAX_RESPONSE_BODY_SIZE = 128 << 20;
+	private static final int CONNECTION_WINDOW = 1 << 24;
+	private static final int READ_BUFFER_SIZE = 65536;
+	private static final int WRITE_BUFFER_SIZE = 16384;
+
+	private static final int TYPE_DATA = 0x0;
+	private static final int TYPE_HEADERS = 0x1;
+	private static final int TYPE_RST_STREAM = 0x3;
+	private static final int TYPE_SETTINGS = 0x4;
+	private static final int TYPE_PUSH_PROMISE = 0x5;
+	private static final int TYPE_PING = 0x6;
+	private static final int TYPE_GOAWAY = 0x7;
+	private static final int TYPE_WINDOW_UPDATE = 0x8;
+	private static final int TYPE_CONTINUATION = 0x9;
+
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	private static final int ERROR_NO_ERROR = 0x0;
+	private static final int ERROR_PROTOCOL = 0x1;
+	private static final int ERROR_FLOW_CONTROL = 0x3;
+	private static final int ERROR_FRAME_SIZE = 0x6;
+	private static final int ERROR_REFUSED_STREAM = 0x7;
+	private static final int ERROR_CANCEL = 0x8;
+	private static final int ERROR_COMPRESSION = 0x9;
+	private static final int ERROR_ENHANCE_YOUR_CALM = 0xb;
+
+	private static final int HTTP_NO_CONTENT = 204;
+	private static final String CONTENT_TYPE = "content-type";
+	private static final String CONTENT_LENGTH = "content-length";
+	private static final String HTTPS = "https";
+	private static final String ALPN_H2 = "h2";
+	private static final String TAG = Http2Connection.class.getName();
+}
@@ -0,0 +1,602 @@
+package io.ably.lib.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.net.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import io.ably.lib.http.HttpEngine;
+import io.ably.lib.http.HttpURLConnectionEngine;
+import io.ably.lib.http.NonBlockingHttpEngine;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.util.HashedWheelTimer;
+import io.ably.lib.util.Log;
+
+/**
+ * An HttpEngine that multiplexes requests over HTTP/2 connections, whose
+ * socket I/O is driven by a shared {@link NioEventLoopGroup}.
+ * Each connection carries as many concurrent requests as the server allows,
+ * and a further connection to a host is only opened when those already
+ * open are full, up to {@link #MAX_CONNECTIONS_PER_HOST}.
+ * Requests made with executeAsync do not occupy a thread while in flight.
+ * <p>
+ * Over TLS, HTTP/2 is negotiated with ALPN, which requires Java 9 or
+ * later, or Java 8 from update 252. Plain connections use HTTP/2 with prior
+ * knowledge. Requests via a proxy, or to a host found not to support HTTP/2,
+ * are made with an {@link HttpURLConnectionEngine} instead; isNonBlocking()
+ * reports these, so that AsyncHttp makes them on its own worker threads.
+ */
+public class Http2Engine implements NonBlockingHttpEngine {
+
+	/******************
+	 * public factory API
+	 ******************/
+
+	public static class Factory implements HttpEngine.Factory {
+		/**
+		 * Construct a factory whose engines use the default event loop group
+		 */
+		public Factory() { this(null); }
+
+		/**
+		 * Construct a factory whose engines use the given event loop group
+		 * @param group
+		 */
+		public Factory(NioEventLoopGroup group) { this.group = group; }
+
+		@Override
+		public HttpEngine getEngine(ClientOptions options) throws AblyException {
+			return new Http2Engine(options, (group != null) ? group : NioEventLoopGroup.getDefault());
+		}
+
+		private final NioEventLoopGroup group;
+	}
+
+	/******************
+	 * HttpEngine methods
+	 ******************/
+
+	@Override
+	public Response execute(Request request) throws IOException {
+		if(!isMultiplexed(request))
+			return fallback.execute(request);
+		BlockingListener listener = new BlockingListener();
+		Exchange exchange = new Exchange(request, listener);
+		submit(exchange);
+		try {
+			return listener.await();
+		} catch(InterruptedIOException e) {
+			exchange.fail(e);
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean isNonBlocking(Request request) {
+		return isMultiplexed(request);
+	}
+
+	@Override
+	public void executeAsync(final Request request, final ResponseListener listener) {
+		if(isMultiplexed(request)) {
+			submit(new Exchange(request, listener));
+			return;
+		}
+		try {
+			fallbackExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					Response response;
+					try {
+						response = fallback.execute(request);
+					} catch(IOException e) {
+						listener.onError(e);
+						return;
+					}
+					listener.onResponse(response);
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			listener.onError(new IOException("HTTP engine closed"));
+		}
+	}
+
+	@Override
+	public int getMaxConcurrentRequests() {
+		return MAX_CONNECTIONS_PER_HOST * Http2Connection.DEFAULT_MAX_STREAMS;
+	}
+
+	@Override
+	public void close() {
+		ArrayList<Http2Connection> connections = new ArrayList<Http2Connection>();
+		ArrayList<Exchange> waiting = new ArrayList<Exchange>();
+		synchronized(this) {
+			isClosed = true;
+			for(Pool pool : pools.values()) {
+				connections.addAll(pool.connections);
+				waiting.addAll(pool.waiting);
+			}
+			pools.clear();
+		}
+		IOException reason = new IOException("HTTP engine closed");
+		for(Exchange exchange : waiting)
+			exchange.fail(reason);
+		for(Http2Connection connection : connections)
+			connection.close(reason);
+		fallbackExecutor.shutdown();
+		fallback.close();
+	}
+
+	/*************************
+	 *     Internal API
+	 *************************/
+
+	Http2Engine(ClientOptions options, NioEventLoopGroup group) throws AblyException {
+		this.group = group;
+		this.fallback = new HttpURLConnectionEngine(options);
+		this.timer = (options.timer != null) ? options.timer : HashedWheelTimer.getDefault();
+		this.sslContext = options.tls ? WebSocketTransport.getSSLContext(options) : null;
+		this.fallbackExecutor = new ThreadPoolExecutor(MAX_FALLBACK_THREADS, MAX_FALLBACK_THREADS, FALLBACK_KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ably-http2-fallback");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.fallbackExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * A request in flight, from submission until its listener is called
+	 */
+	static class Exchange {
+		Exchange(Request request, ResponseListener listener) {
+			this.request = request;
+			this.listener = listener;
+		}
+
+		void succeed(Response response) {
+			if(completed.compareAndSet(false, true))
+				listener.onResponse(response);
+		}
+
+		void fail(IOException e) {
+			if(completed.compareAndSet(false, true))
+				listener.onError(e);
+		}
+
+		boolean isCompleted() {
+			return completed.get();
+		}
+
+		final Request request;
+		private final ResponseListener listener;
+		private final AtomicBoolean completed = new AtomicBoolean();
+
+		/* the connection to which a waiting exchange has been assigned, until it is sent; guarded by the engine */
+		private Http2Connection connection;
+		private boolean isNewConnection;
+
+		/* stream state, confined to the connection's loop thread */
+		int streamId;
+		int sendWindow;
+		int bodyOffset;
+		int receivedUnacknowledged;
+		long lastActivity;
+		boolean headersReceived;
+		Response response;
+		ByteArrayOutputStream body;
+		HashedWheelTimer.Timeout timeout;
+	}
+
+	/**
+	 * The connections to a single host
+	 */
+	static class Pool {
+		private Pool(String scheme, String host, int port) {
+			this.scheme = scheme;
+			this.host = host;
+			this.port = port;
+		}
+
+		final String scheme;
+		final String host;
+		final int port;
+		private final ArrayList<Http2Connection> connections = new ArrayList<Http2Connection>();
+		private final ArrayDeque<Exchange> waiting = new ArrayDeque<Exchange>();
+		private boolean isUnsupported;
+	}
+
+	/**
+	 * Called by a connection when an exchange assigned to it has finished
+	 * with its stream, so that the stream can be given to a waiting exchange
+	 * @param connection
+	 * @param retry an exchange to be sent again, as it was refused by the server; or null
+	 */
+	void onExchangeDone(Http2Connection connection, Exchange retry) {
+		ArrayList<Exchange> assigned;
+		synchronized(this) {
+			--connection.assigned;
+			assigned = assignWaiting(connection.pool);
+		}
+		start(assigned);
+		if(retry != null)
+			submit(retry);
+	}
+
+	/**
+	 * Called by a connection when the server's settings allow more
+	 * concurrent streams than were assumed
+	 */
+	void onStreamsAvailable(Http2Connection connection) {
+		ArrayList<Exchange> assigned;
+		synchronized(this) {
+			assigned = assignWaiting(connection.pool);
+		}
+		start(assigned);
+	}
+
+	/**
+	 * Called by a connection when it will accept no more exchanges, on
+	 * being closed or on receipt of GOAWAY. Exchanges that were never
+	 * sent are assigned to another connection, or made with HttpURLConnection
+	 * if the host does not support HTTP/2.
+	 * @param connection
+	 * @param unsent
+	 * @param unsupported true if the host was found not to support HTTP/2
+	 */
+	void onConnectionRetired(Http2Connection connection, List<Exchange> unsent, boolean unsupported) {
+		ArrayList<Exchange> assigned;
+		ArrayList<Exchange> unassigned = new ArrayList<Exchange>();
+		Pool pool = connection.pool;
+		synchronized(this) {
+			connection.assigned -= unsent.size();
+			pool.connections.remove(connection);
+			if(unsupported && !pool.isUnsupported) {
+				Log.w(TAG, "Host " + pool.host + ':' + pool.port + " does not support HTTP/2; using HTTP/1.1");
+				pool.isUnsupported = true;
+			}
+			if(pool.isUnsupported) {
+				unassigned.addAll(pool.waiting);
+				pool.waiting.clear();
+			}
+			assigned = assignWaiting(pool);
+		}
+		start(assigned);
+		for(Exchange exchange : unsent)
+			submit(exchange);
+		for(Exchange exchange : unassigned)
+			submit(exchange);
+	}
+
+	/**
+	 * Called by a connection when it could not be established, so that the
+	 * exchanges waiting for the host fail, instead of each trying again
+	 * @param connection
+	 * @param unsent
+	 * @param reason
+	 */
+	void onConnectionFailed(Http2Connection connection, List<Exchange> unsent, IOException reason) {
+		ArrayList<Exchange> failed = new ArrayList<Exchange>(unsent);
+		Pool pool = connection.pool;
+		synchronized(this) {
+			connection.assigned -= unsent.size();
+			pool.connections.remove(connection);
+			if(pool.connections.isEmpty()) {
+				failed.addAll(pool.waiting);
+				pool.waiting.clear();
+			}
+		}
+		for(Exchange exchange : failed)
+			exchange.fail(reason);
+	}
+
+	/**
+	 * Called by an idle connection to ask whether it may close. If so, it is
+	 * removed from its pool, so that no further exchanges are assigned to it.
+	 */
+	synchronized boolean retireIfIdle(Http2Connection connection) {
+		if(connection.assigned > 0)
+			return false;
+		connection.pool.connections.remove(connection);
+		return true;
+	}
+
+	HashedWheelTimer getTimer() {
+		return timer;
+	}
+
+	NioEventLoopGroup getGroup() {
+		return group;
+	}
+
+	SSLContext getSSLContext() {
+		return sslContext;
+	}
+
+	long getIdleTimeout() {
+		return IDLE_TIMEOUT;
+	}
+
+	/**
+	 * Request h2 via ALPN on the given parameters
+	 * @return false if ALPN is not supported by this Java runtime
+	 */
+	static boolean requestAlpn(SSLParameters params) {
+		if(setApplicationProtocols == null)
+			return false;
+		try {
+			setApplicationProtocols.invoke(params, new Object[] { new String[] { ALPN_H2 } });
+			return true;
+		} catch(Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Get the protocol negotiated with ALPN, or null if none
+	 */
+	static String getNegotiatedProtocol(SSLEngine sslEngine) {
+		if(getApplicationProtocol == null)
+			return null;
+		try {
+			return (String)getApplicationProtocol.invoke(sslEngine);
+		} catch(Exception e) {
+			return null;
+		}
+	}
+
+	/*************************
+	 *     Scheduling
+	 *************************/
+
+	/**
+	 * Whether a request can be made with HTTP/2
+	 */
+	private boolean isMultiplexed(Request request) {
+		if(request.proxy != null && request.proxy != Proxy.NO_PROXY)
+			return false;
+		String scheme = request.url.getProtocol();
+		if(HTTPS.equals(scheme)) {
+			if(setApplicationProtocols == null)
+				return false;
+		} else if(!HTTP.equals(scheme)) {
+			return false;
+		}
+		synchronized(this) {
+			Pool pool = pools.get(poolKey(request));
+			return pool == null || !pool.isUnsupported;
+		}
+	}
+
+	/**
+	 * Assign an exchange to a connection with a free stream, opening a
+	 * connection if all are full, or else hold it until a stream is free
+	 */
+	private void submit(Exchange exchange) {
+		if(exchange.isCompleted())
+			return;
+		Request request = exchange.request;
+		Http2Connection connection = null;
+		boolean isNew = false, isUnsupported = false, isEngineClosed = false;
+		synchronized(this) {
+			String key = poolKey(request);
+			Pool pool = pools.get(key);
+			if(pool == null && !isClosed)
+				pools.put(key, (pool = new Pool(request.url.getProtocol(), request.url.getHost(), port(request))));
+			if(isClosed) {
+				isEngineClosed = true;
+			} else if(pool.isUnsupported) {
+				isUnsupported = true;
+			} else {
+				connection = available(pool);
+				if(connection == null && pool.connections.size() < MAX_CONNECTIONS_PER_HOST) {
+					connection = new Http2Connection(this, pool);
+					pool.connections.add(connection);
+					isNew = true;
+				}
+				if(connection == null)
+					pool.waiting.add(exchange);
+				else
+					++connection.assigned;
+			}
+		}
+		if(isEngineClosed) {
+			exchange.fail(new IOException("HTTP engine closed"));
+			return;
+		}
+		if(isUnsupported) {
+			executeAsync(request, new DelegatingListener(exchange));
+			return;
+		}
+		if(connection != null) {
+			if(isNew)
+				connection.connect(request.connectTimeout);
+			connection.send(exchange);
+		}
+	}
+
+	/**
+	 * Find the connection with the fewest exchanges, among those with a free stream.
+	 * Called with the lock held
+	 */
+	private static Http2Connection available(Pool pool) {
+		Http2Connection result = null;
+		for(Http2Connection connection : pool.connections) {
+			if(connection.assigned < connection.getMaxStreams() && (result == null || connection.assigned < result.assigned))
+				result = connection;
+		}
+		return result;
+	}
+
+	/**
+	 * Assign waiting exchanges to connections with free streams.
+	 * Called with the lock held; the exchanges must then be started
+	 * with start(), without the lock
+	 */
+	private ArrayList<Exchange> assignWaiting(Pool pool) {
+		ArrayList<Exchange> assigned = null;
+		while(!pool.waiting.isEmpty()) {
+			Http2Connection connection = available(pool);
+			if(connection == null)
+				break;
+			Exchange exchange = pool.waiting.poll();
+			exchange.connection = connection;
+			++connection.assigned;
+			if(assigned == null)
+				assigned = new ArrayList<Exchange>();
+			assigned.add(exchange);
+		}
+		if(assigned == null && !pool.waiting.isEmpty() && pool.connections.size() < MAX_CONNECTIONS_PER_HOST) {
+			/* all connections are full or have gone; open another for the first waiting exchange */
+			Exchange exchange = pool.waiting.poll();
+			Http2Connection connection = new Http2Connection(this, pool);
+			pool.connections.add(connection);
+			exchange.connection = connection;
+			exchange.isNewConnection = true;
+			++connection.assigned;
+			assigned = new ArrayList<Exchange>();
+			assigned.add(exchange);
+		}
+		return assigned;
+	}
+
+	private static void start(List<Exchange> assigned) {
+		if(assigned == null)
+			return;
+		for(Exchange exchange : assigned) {
+			Http2Connection connection = exchange.connection;
+			exchange.connection = null;
+			if(exchange.isNewConnection)
+				connection.connect(exchange.request.connectTimeout);
+			connection.send(exchange);
+		}
+	}
+
+	private static String poolKey(Request request) {
+		return request.url.getProtocol() + "://" + request.url.getHost() + ':' + port(request);
+	}
+
+	private static int port(Request request) {
+		int port = request.url.getPort();
+		return (port != -1) ? port : request.url.getDefaultPort();
+	}
+
+	/**
+	 * Passes on the result of an exchange made with HttpURLConnection
+	 */
+	private static class DelegatingListener implements ResponseListener {
+		private DelegatingListener(Exchange exchange) { this.exchange = exchange; }
+
+		@Override
+		public void onResponse(Response response) {
+			exchange.succeed(response);
+		}
+
+		@Override
+		public void onError(IOException e) {
+			exchange.fail(e);
+		}
+
+		private final Exchange exchange;
+	}
+
+	/**
+	 * Awaits the result of a request made by execute()
+	 */
+	private static class BlockingListener implements ResponseListener {
+		@Override
+		public synchronized void onResponse(Response response) {
+			this.response = response;
+			this.isDone = true;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void onError(IOException e) {
+			this.error = e;
+			this.isDone = true;
+			notifyAll();
+		}
+
+		private synchronized Response await() throws IOException {
+			try {
+				while(!isDone)
+					wait();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted awaiting HTTP response");
+			}
+			if(error != null)
+				throw error;
+			return response;
+		}
+
+		private Response response;
+		private IOException error;
+		private boolean isDone;
+	}
+
+	/*************************
+	 *     Private state
+	 *************************/
+
+	private final NioEventLoopGroup group;
+	private final HttpURLConnectionEngine fallback;
+	/* executes HTTP/1.1 requests made with executeAsync, mostly those in
+	 * progress when their host was found not to support HTTP/2 */
+	private final ThreadPoolExecutor fallbackExecutor;
+	private final HashedWheelTimer timer;
+	private final SSLContext sslContext;
+
+	/* guarded by this */
+	private final HashMap<String, Pool> pools = new HashMap<String, Pool>();
+	private boolean isClosed;
+
+	/* the ALPN methods of Java 9, also present in Java 8 from update 252 */
+	private static final Method setApplicationProtocols;
+	private static final Method getApplicationProtocol;
+
+	static {
+		Method setter = null, getter = null;
+		try {
+			setter = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+			getter = SSLEngine.class.getMethod("getApplicationProtocol");
+		} catch(NoSuchMethodException e) {
+			Log.w(Http2Engine.class.getName(), "ALPN is not supported; HTTPS requests will use HTTP/1.1");
+			setter = null;
+		}
+		setApplicationProtocols = setter;
+		getApplicationProtocol = getter;
+	}
+
+	/**
+	 * The maximum number of connections to each host
+	 */
+	public static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+	private static final long IDLE_TIMEOUT = 60000L;
+	private static final int MAX_FALLBACK_THREADS = 4;
+	private static final long FALLBACK_KEEP_ALIVE_TIME = 2000L;
+	private static final String HTTP = "http";
+	private static final String HTTPS = "https";
+	private static final String ALPN_H2 = "h2";
+	private static final String TAG = Http2Engine.class.getName();
+}
@@ -0,0 +1,328 @@
+package io.ably.lib.transport;
+
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.transport.ConnectionManager.QueuedMessage;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.BaseMessage;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.PresenceMessage;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.QueueOverflowPolicy;
+import io.ably.lib.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A FIFO queue of messages awaiting a connection or channel attachment.
+ * The queue is a growable ring buffer, optionally limited in the number of
+ * individual messages and their approximate size in bytes; when a limit is
+ * reached the configured QueueOverflowPolicy is applied.
+ * All methods are threadsafe.
+ * Internal
+ */
+public class MessageQueue {
+
+	/**
+	 * A snapshot of the queue's size and counters
+	 */
+	public static class Stats {
+		/**
+		 * The number of queued ProtocolMessages
+		 */
+		public int depth;
+
+		/**
+		 * The number of individual messages and presence messages queued
+		 */
+		public int messages;
+
+		/**
+		 * The approximate size of the queued message payloads in bytes
+		 */
+		public long bytes;
+
+		/**
+		 * The greatest number of individual messages queued at any time
+		 */
+		public int maxMessages;
+
+		/**
+		 * The number of messages discarded by the overflow policy
+		 */
+		public long dropped;
+
+		/**
+		 * The number of publish calls rejected by the failFast policy
+		 */
+		public long rejected;
+	}
+
+	public MessageQueue(ClientOptions options) {
+		this(options.queueMaxMessages, options.queueMaxBytes, options.queueOverflowPolicy);
+	}
+
+	/**
+	 * @param maxMessages: the maximum number of individual messages; 0 for no limit
+	 * @param maxBytes: the maximum approximate payload size; 0 for no limit
+	 * @param policy: the action to take when a limit is reached
+	 */
+	public MessageQueue(int maxMessages, long maxBytes, QueueOverflowPolicy policy) {
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.policy = (policy != null) ? policy : QueueOverflowPolicy.failFast;
+	}
+
+	/**
+	 * Add a message to the queue, merging it with the last queued message where
+	 * possible, and applying the overflow policy if the queue is full.
+	 * A message is always accepted into an empty queue, so that a single
+	 * message larger than the limits cannot block indefinitely.
+	 * @return true if the message was queued or discarded; false if the policy is
+	 * block and the queue is full, in which case the caller should release any
+	 * locks it holds, call awaitRemoval(), and then retry.
+	 * @throws AblyException if the policy is failFast and the queue is full
+	 */
+	public boolean put(ProtocolMessage msg, CompletionListener listener) throws AblyException {
+		int count = messageCount(msg);
+		long size = estimateSize(msg);
+		QueuedMessage[] evicted = null;
+		synchronized(this) {
+			if(this.count > 0) {
+				QueuedMessage last = items[(head + this.count - 1) % items.length];
+				if(fits(count, size) && last.merge(msg, listener)) {
+					added(count, size);
+					return true;
+				}
+			}
+			if(this.count > 0 && !fits(count, size)) {
+				switch(policy) {
+				case block:
+					return false;
+				case failFast:
+					++rejected;
+					throw AblyException.fromErrorInfo(REASON_QUEUE_FULL);
+				case dropNewest:
+					dropped += count;
+					evicted = new QueuedMessage[] {new QueuedMessage(msg, listener)};
+					break;
+				case dropOldest:
+					List<QueuedMessage> oldest = new ArrayList<QueuedMessage>();
+					while(this.count > 0 && !fits(count, size)) {
+						QueuedMessage queued = pollImpl();
+						dropped += messageCount(queued.msg);
+						oldest.add(queued);
+					}
+					evicted = oldest.toArray(new QueuedMessage[oldest.size()]);
+					break;
+				}
+			}
+			if(policy != QueueOverflowPolicy.dropNewest || evicted == null) {
+				addLastImpl(new QueuedMessage(msg, listener));
+				added(count, size);
+			}
+		}
+		if(evicted != null) {
+			Log.v(TAG, "put(): queue full; discarded " + evicted.length + " message(s)");
+			fail(evicted, REASON_QUEUE_FULL);
+		}
+		return true;
+	}
+
+	/**
+	 * Get the number of messages removed from the queue so far;
+	 * see awaitRemoval()
+	 * @return
+	 */
+	public synchronized long getRemovedCount() {
+		return removedCount;
+	}
+
+	/**
+	 * Wait until a message has been removed from the queue since
+	 * the given value of getRemovedCount(), or the calling thread is
+	 * interrupted, in which case its interrupt flag is left set
+	 * @param removedCount
+	 */
+	public synchronized void awaitRemoval(long removedCount) {
+		while(this.removedCount == removedCount)
+			try { wait(); } catch(InterruptedException ie) { Thread.currentThread().interrupt(); return; }
+	}
+
+	/**
+	 * Remove and return the message at the head of the queue
+	 * @return the message, or null if the queue is empty
+	 */
+	public synchronized QueuedMessage poll() {
+		if(count == 0)
+			return null;
+		QueuedMessage result = pollImpl();
+		notifyAll();
+		return result;
+	}
+
+	/**
+	 * Return messages to the head of the queue, preserving their order.
+	 * These messages have already been accepted, so limits are not applied.
+	 * @param messages
+	 */
+	public synchronized void addFirst(List<QueuedMessage> messages) {
+		for(int i = messages.size() - 1; i >= 0; i--) {
+			QueuedMessage queued = messages.get(i);
+			ensureCapacity();
+			head = (head + items.length - 1) % items.length;
+			items[head] = queued;
+			++count;
+			added(messageCount(queued.msg), estimateSize(queued.msg));
+		}
+	}
+
+	/**
+	 * Remove all messages
+	 * @return the removed messages, in order
+	 */
+	public synchronized QueuedMessage[] clear() {
+		QueuedMessage[] result = new QueuedMessage[count];
+		for(int i = 0; i < result.length; i++)
+			result[i] = pollImpl();
+		notifyAll();
+		return result;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	public synchronized Stats getStats() {
+		Stats stats = new Stats();
+		stats.depth = count;
+		stats.messages = messages;
+		stats.bytes = bytes;
+		stats.maxMessages = highWaterMark;
+		stats.dropped = dropped;
+		stats.rejected = rejected;
+		return stats;
+	}
+
+	/**
+	 * Notify the listeners of the given messages of failure
+	 * @param failed
+	 * @param reason
+	 */
+	static void fail(QueuedMessage[] failed, ErrorInfo reason) {
+		for(QueuedMessage queued : failed) {
+			if(queued.listener != null)
+				try {
+					queued.listener.onError(reason);
+				} catch(Throwable t) {
+					Log.e(TAG, "fail(): Unexpected exception calling listener", t);
+				}
+		}
+	}
+
+	/*******************
+	 * internal
+	 ******************/
+
+	private boolean fits(int count, long size) {
+		return (maxMessages <= 0 || messages + count <= maxMessages)
+				&& (maxBytes <= 0 || bytes + size <= maxBytes);
+	}
+
+	private void added(int count, long size) {
+		messages += count;
+		bytes += size;
+		if(messages > highWaterMark)
+			highWaterMark = messages;
+	}
+
+	private void addLastImpl(QueuedMessage queued) {
+		ensureCapacity();
+		items[(head + count) % items.length] = queued;
+		++count;
+	}
+
+	private QueuedMessage pollImpl() {
+		QueuedMessage result = items[head];
+		items[head] = null;
+		head = (head + 1) % items.length;
+		if(--count == 0) {
+			head = 0;
+			messages = 0;
+			bytes = 0;
+		} else {
+			messages = Math.max(0, messages - messageCount(result.msg));
+			bytes = Math.max(0, bytes - estimateSize(result.msg));
+		}
+		++removedCount;
+		return result;
+	}
+
+	private void ensureCapacity() {
+		if(count < items.length)
+			return;
+		QueuedMessage[] grown = new QueuedMessage[items.length * 2];
+		for(int i = 0; i < count; i++)
+			grown[i] = items[(head + i) % items.length];
+		items = grown;
+		head = 0;
+	}
+
+	static int messageCount(ProtocolMessage msg) {
+		if(msg.messages != null) return msg.messages.length;
+		if(msg.presence != null) return msg.presence.length;
+		return 1;
+	}
+
+	/**
+	 * Estimate the size of the payload of a message. The data of
+	 * a message that has been encoded is either a String or byte[].
+	 */
+	static long estimateSize(ProtocolMessage msg) {
+		long size = 0;
+		if(msg.messages != null)
+			for(Message message : msg.messages)
+				size += estimateSize(message) + length(message.name);
+		if(msg.presence != null)
+			for(PresenceMessage message : msg.presence)
+				size += estimateSize(message);
+		return size;
+	}
+
+	private static long estimateSize(BaseMessage message) {
+		long size = length(message.id) + length(message.clientId) + length(message.encoding);
+		Object data = message.data;
+		if(data instanceof byte[])
+			size += ((byte[])data).length;
+		else if(data != null)
+			size += data.toString().length();
+		return size;
+	}
+
+	private static int length(String str) {
+		return (str == null) ? 0 : str.length();
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	private final int maxMessages;
+	private final long maxBytes;
+	private final QueueOverflowPolicy policy;
+	private QueuedMessage[] items = new QueuedMessage[INITIAL_CAPACITY];
+	private int head;
+	private int count;
+	private int messages;
+	private long bytes;
+	private int highWaterMark;
+	private long removedCount;
+	private long dropped;
+	private long rejected;
+
+	public static final ErrorInfo REASON_QUEUE_FULL = new ErrorInfo("Unable to queue message; queue limit reached", 429, 42910);
+	private static final int INITIAL_CAPACITY = 16;
+	private static final String TAG = MessageQueue.class.getName();
+}
@@ -0,0 +1,279 @@
+package io.ably.lib.transport;
+
+import io.ably.lib.types.AblyException;
+import io.ably.lib.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed group of selector threads that perform the socket I/O for any
+ * number of {@link NioWebSocketTransport} connections.
+ * Each transport is assigned to a single loop for its lifetime, so all
+ * reads, writes and frame decoding for a connection happen on one thread
+ * and the number of I/O threads does not grow with the number of connections.
+ * Internal
+ */
+public class NioEventLoopGroup {
+
+	/**
+	 * Get the process-wide default group, creating it if necessary.
+	 * The default group has one loop per available processor, up to
+	 * {@link #DEFAULT_MAX_THREADS}, and its threads are daemon threads.
+	 * @return
+	 * @throws AblyException
+	 */
+	public static synchronized NioEventLoopGroup getDefault() throws AblyException {
+		if(defaultGroup == null || defaultGroup.isShutdown) {
+			int threadCount = Math.min(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_THREADS);
+			defaultGroup = new NioEventLoopGroup(threadCount);
+		}
+		return defaultGroup;
+	}
+
+	/**
+	 * Construct a group with the given number of selector threads
+	 * @param threadCount
+	 * @throws AblyException
+	 */
+	public NioEventLoopGroup(int threadCount) throws AblyException {
+		if(threadCount < 1) threadCount = 1;
+		loops = new EventLoop[threadCount];
+		final int groupId = groupCount.incrementAndGet();
+		try {
+			for(int i = 0; i < threadCount; i++)
+				loops[i] = new EventLoop("ably-nio-" + groupId + '-' + i);
+		} catch(IOException ioe) {
+			shutdown();
+			throw AblyException.fromThrowable(ioe);
+		}
+		for(EventLoop loop : loops)
+			loop.thread.start();
+
+		/* TLS handshakes may produce delegated tasks that should not run on a
+		 * selector thread; they are queued for a small pool, and only when the
+		 * queue is full is a task run by the loop that submitted it */
+		taskExecutor = new ThreadPoolExecutor(TASK_THREADS, TASK_THREADS, TASK_KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(TASK_QUEUE_SIZE), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ably-nio-" + groupId + "-task");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}, new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+				if(executor.isShutdown())
+					throw new RejectedExecutionException("Event loop group shut down");
+				r.run();
+			}
+		});
+		taskExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Stop all loops in this group. Any channels still registered
+	 * are closed.
+	 */
+	public void shutdown() {
+		isShutdown = true;
+		for(EventLoop loop : loops)
+			if(loop != null)
+				loop.shutdown();
+		if(taskExecutor != null)
+			taskExecutor.shutdown();
+	}
+
+	/**
+	 * The number of loops (and therefore I/O threads) in this group
+	 * @return
+	 */
+	public int size() {
+		return loops.length;
+	}
+
+	/*************************
+	 *     Internal API
+	 *************************/
+
+	/**
+	 * Choose the loop for a new connection
+	 */
+	EventLoop next() {
+		return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	ExecutorService getTaskExecutor() {
+		return taskExecutor;
+	}
+
+	/**
+	 * The interface implemented by the attachment of every registered channel
+	 */
+	interface Handler {
+		/**
+		 * Called on the loop thread when the channel's key is selected
+		 * @param key
+		 */
+		void onSelected(SelectionKey key);
+
+		/**
+		 * Called on the loop thread if the loop is shut down with the channel still registered
+		 */
+		void onShutdown();
+	}
+
+	/**
+	 * A single selector thread
+	 */
+	static class EventLoop implements Runnable {
+		EventLoop(String name) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+		}
+
+		/**
+		 * Run the given task on this loop's thread
+		 * @param task
+		 */
+		void execute(Runnable task) {
+			if(Thread.currentThread() == thread) {
+				task.run();
+				return;
+			}
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Register a channel with this loop. The registration happens
+		 * asynchronously on the loop thread; any failure is reported via
+		 * the handler being selected with an invalid key.
+		 * @param channel
+		 * @param ops
+		 * @param handler
+		 */
+		void register(final SelectableChannel channel, final int ops, final Handler handler) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						channel.register(selector, ops, handler);
+					} catch(IOException ioe) {
+						Log.e(TAG, "Unable to register channel", ioe);
+						handler.onShutdown();
+					}
+				}
+			});
+		}
+
+		/**
+		 * Get the key of a channel registered with this loop, or null
+		 * @param channel
+		 */
+		SelectionKey keyFor(SelectableChannel channel) {
+			return channel.keyFor(selector);
+		}
+
+		/**
+		 * Update the interest set of a key, from any thread
+		 * @param key
+		 * @param ops
+		 */
+		void setInterest(final SelectionKey key, final int ops) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					if(key.isValid())
+						key.interestOps(ops);
+				}
+			});
+		}
+
+		void shutdown() {
+			isShutdown = true;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while(!isShutdown) {
+				try {
+					selector.select();
+					runTasks();
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Handler handler = (Handler)key.attachment();
+						try {
+							handler.onSelected(key);
+						} catch(Throwable t) {
+							Log.e(TAG, "Unexpected exception processing selected key", t);
+						}
+					}
+				} catch(Throwable t) {
+					Log.e(TAG, "Unexpected exception in event loop", t);
+				}
+			}
+			runTasks();
+			for(SelectionKey key : selector.keys()) {
+				try {
+					((Handler)key.attachment()).onShutdown();
+				} catch(Throwable t) {
+					Log.e(TAG, "Unexpected exception closing channel", t);
+				}
+			}
+			try {
+				selector.close();
+			} catch(IOException ioe) {}
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch(Throwable t) {
+					Log.e(TAG, "Unexpected exception running event loop task", t);
+				}
+			}
+		}
+
+		private final Selector selector;
+		private final Thread thread;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private volatile boolean isShutdown;
+	}
+
+	/*************************
+	 *     Private state
+	 *************************/
+
+	private static NioEventLoopGroup defaultGroup;
+	private static final AtomicInteger groupCount = new AtomicInteger();
+
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private ThreadPoolExecutor taskExecutor;
+	private volatile boolean isShutdown;
+
+	public static final int DEFAULT_MAX_THREADS = 4;
+	static final int TASK_THREADS = 4;
+	static final int TASK_QUEUE_SIZE = 64;
+	private static final long TASK_KEEP_ALIVE_TIME = 2000L;
+	private static final String TAG = NioEventLoopGroup.class.getName();
+}
@@ -0,0 +1,446 @@
+package io.ably.lib.transport;
+
+import io.ably.lib.http.HttpUtils;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.transport.ConnectionManager.StateIndication;
+import io.ably.lib.transport.NioEventLoopGroup.EventLoop;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Param;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolMessage.Action;
+import io.ably.lib.types.ProtocolSerializer;
+import io.ably.lib.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.java_websocket.SSLSocketChannel2;
+import org.java_websocket.SocketChannelIOHelper;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WrappedByteChannel;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.HandshakeImpl1Client;
+import org.java_websocket.handshake.Handshakedata;
+
+/**
+ * A WebSocket transport whose socket I/O is driven by a shared
+ * {@link NioEventLoopGroup} instead of dedicated threads per connection.
+ * Inbound messages are decoded and passed to the ConnectionManager on the
+ * loop thread, so listeners that block will delay other connections
+ * assigned to the same loop.
+ */
+public class NioWebSocketTransport implements ITransport {
+
+	private static final String TAG = NioWebSocketTransport.class.getName();
+
+	/******************
+	 * public factory API
+	 ******************/
+
+	public static class Factory implements ITransport.Factory {
+		/**
+		 * Construct a factory whose transports use the default event loop group
+		 */
+		public Factory() { this(null); }
+
+		/**
+		 * Construct a factory whose transports use the given event loop group
+		 * @param group
+		 */
+		public Factory(NioEventLoopGroup group) { this.group = group; }
+
+		@Override
+		public NioWebSocketTransport getTransport(TransportParams params, ConnectionManager connectionManager) {
+			return new NioWebSocketTransport(params, connectionManager, group);
+		}
+
+		private final NioEventLoopGroup group;
+	}
+
+	/******************
+	 * private constructor
+	 ******************/
+
+	private NioWebSocketTransport(TransportParams params, ConnectionManager connectionManager, NioEventLoopGroup group) {
+		this.params = params;
+		this.connectionManager = connectionManager;
+		this.group = group;
+		this.channelBinaryMode = params.options.useBinaryProtocol;
+	}
+
+	/******************
+	 * ITransport methods
+	 ******************/
+
+	@Override
+	public void connect(ConnectListener connectListener) {
+		this.connectListener = connectListener;
+		try {
+			boolean isTls = params.options.tls;
+			String wsScheme = isTls ? "wss://" : "ws://";
+			wsUri = wsScheme + params.host + ':' + String.valueOf(params.port) + "/";
+			Param[] authParams = connectionManager.ably.auth.getAuthParams();
+			Param[] connectParams = params.getConnectParams(authParams);
+			if(connectParams.length > 0)
+				wsUri = HttpUtils.encodeParams(wsUri, connectParams);
+
+			NioEventLoopGroup group = (this.group != null) ? this.group : NioEventLoopGroup.getDefault();
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			synchronized(this) {
+				loop = group.next();
+				taskGroup = group;
+				socketChannel = channel;
+				wsConnection = ioConnection = new WebSocketImpl(wsListener, WebSocketTransport.getDraft(params.options));
+			}
+			if(!channel.connect(new InetSocketAddress(params.host, params.port))) {
+				loop.register(channel, SelectionKey.OP_CONNECT, handler);
+				return;
+			}
+			/* connected immediately, as may happen for a local address;
+			 * start the handshake without waiting for OP_CONNECT */
+			loop.register(channel, 0, handler);
+			loop.execute(onImmediateConnect);
+		} catch(AblyException e) {
+			Log.e(TAG, "Unexpected exception attempting connection; wsUri = " + wsUri, e);
+			closeChannel();
+			connectListener.onTransportUnavailable(this, params, e.errorInfo);
+		} catch(Throwable t) {
+			Log.e(TAG, "Unexpected exception attempting connection; wsUri = " + wsUri, t);
+			closeChannel();
+			connectListener.onTransportUnavailable(this, params, AblyException.fromThrowable(t).errorInfo);
+		}
+	}
+
+	@Override
+	public void close(boolean sendClose) {
+		WebSocketImpl conn;
+		synchronized(this) {
+			conn = wsConnection;
+			wsConnection = null;
+		}
+		if(conn != null) {
+			if(sendClose && conn.isOpen()) {
+				try {
+					sendImpl(conn, new ProtocolMessage(Action.close));
+				} catch (AblyException e) {
+					Log.e(TAG, "Unexpected exception sending close", e);
+				}
+			}
+			conn.close(CloseFrame.NORMAL);
+		}
+	}
+
+	@Override
+	public void abort(ErrorInfo reason) {
+		WebSocketImpl conn;
+		synchronized(this) {
+			conn = wsConnection;
+			wsConnection = null;
+		}
+		if(conn != null)
+			conn.close(CloseFrame.NORMAL);
+		connectionManager.notifyState(this, new StateIndication(ConnectionState.failed, reason));
+	}
+
+	@Override
+	public void send(ProtocolMessage msg) throws AblyException {
+		WebSocketImpl conn;
+		synchronized(this) {
+			conn = wsConnection;
+		}
+		if(conn == null)
+			throw AblyException.fromErrorInfo(new ErrorInfo("Unable to send; transport is not connected", 400, 80000));
+		sendImpl(conn, msg);
+	}
+
+	private void sendImpl(WebSocketImpl conn, ProtocolMessage msg) throws AblyException {
+		try {
+			if(channelBinaryMode)
+				conn.send(ProtocolSerializer.writeMsgpackToBuffer(msg));
+			else
+				conn.send(new String(ProtocolSerializer.writeJSON(msg)));
+		} catch (Exception e) {
+			throw AblyException.fromThrowable(e);
+		}
+	}
+
+	@Override
+	public String getHost() {
+		return params.host;
+	}
+
+	/**************************
+	 * event loop handling
+	 **************************/
+
+	private final NioEventLoopGroup.Handler handler = new NioEventLoopGroup.Handler() {
+		@Override
+		public void onSelected(SelectionKey key) {
+			WebSocketImpl conn = ioConnection;
+			if(conn == null || !key.isValid()) {
+				/* the connection has already been closed */
+				closeChannel();
+				return;
+			}
+			try {
+				if(key.isConnectable()) {
+					onConnectable(key, conn);
+					return;
+				}
+				if(key.isReadable())
+					onReadable(conn);
+				if(key.isValid() && key.isWritable()) {
+					if(SocketChannelIOHelper.batch(conn, conn.channel) && key.isValid())
+						key.interestOps(SelectionKey.OP_READ);
+				}
+			} catch(IOException ioe) {
+				if(conn.isConnecting())
+					notifyUnavailable(ioe);
+				conn.eot();
+			} catch(RuntimeException e) {
+				Log.e(TAG, "Unexpected exception processing connection", e);
+				conn.closeConnection(CloseFrame.ABNORMAL_CLOSE, e.getMessage());
+			}
+		}
+
+		@Override
+		public void onShutdown() {
+			WebSocketImpl conn = ioConnection;
+			if(conn != null)
+				conn.closeConnection(CloseFrame.GOING_AWAY, "Event loop shut down");
+			closeChannel();
+		}
+	};
+
+	/**
+	 * Run on the loop thread, after the registration of a channel
+	 * whose connect completed immediately
+	 */
+	private final Runnable onImmediateConnect = new Runnable() {
+		@Override
+		public void run() {
+			WebSocketImpl conn = ioConnection;
+			SocketChannel channel = socketChannel;
+			SelectionKey key = (channel != null) ? loop.keyFor(channel) : null;
+			if(conn == null || key == null || !key.isValid()) {
+				/* the connection has already been closed, or could not be registered */
+				closeChannel();
+				return;
+			}
+			try {
+				key.interestOps(SelectionKey.OP_READ);
+				onConnected(key, conn);
+			} catch(IOException ioe) {
+				notifyUnavailable(ioe);
+				conn.eot();
+			}
+		}
+	};
+
+	private void onConnectable(SelectionKey key, WebSocketImpl conn) throws IOException {
+		socketChannel.finishConnect();
+		key.interestOps(SelectionKey.OP_READ);
+		onConnected(key, conn);
+	}
+
+	/**
+	 * Set up the connection once the socket is connected, and send the handshake
+	 */
+	private void onConnected(SelectionKey key, WebSocketImpl conn) throws IOException {
+		ByteChannel channel = socketChannel;
+		if(params.options.tls) {
+			SSLContext sslContext;
+			try {
+				sslContext = WebSocketTransport.getSSLContext(params.options);
+			} catch(AblyException e) {
+				throw new IOException(e);
+			}
+			SSLEngine sslEngine = sslContext.createSSLEngine(params.host, params.port);
+			sslEngine.setUseClientMode(true);
+			channel = new SSLSocketChannel2(socketChannel, sslEngine, taskGroup.getTaskExecutor(), key);
+		}
+		conn.channel = channel;
+		conn.key = key;
+		sendHandshake(conn);
+	}
+
+	private void sendHandshake(WebSocketImpl conn) throws IOException {
+		URI uri = URI.create(wsUri);
+		String path = uri.getRawPath();
+		if(path == null || path.length() == 0)
+			path = "/";
+		String query = uri.getRawQuery();
+		if(query != null)
+			path += '?' + query;
+		HandshakeImpl1Client handshake = new HandshakeImpl1Client();
+		handshake.setResourceDescriptor(path);
+		handshake.put("Host", params.host + (params.port != WebSocket.DEFAULT_PORT ? ":" + params.port : ""));
+		try {
+			conn.startHandshake(handshake);
+		} catch(Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void onReadable(WebSocketImpl conn) throws IOException {
+		ByteBuffer buf = readBuffer();
+		if(SocketChannelIOHelper.read(buf, conn, conn.channel))
+			conn.decode(buf);
+		if(conn.channel instanceof WrappedByteChannel) {
+			WrappedByteChannel wrapped = (WrappedByteChannel)conn.channel;
+			if(wrapped.isNeedRead()) {
+				while(SocketChannelIOHelper.readMore(buf, conn, wrapped))
+					conn.decode(buf);
+				conn.decode(buf);
+			}
+		}
+	}
+
+	/**
+	 * The read buffer; a single buffer is used per loop thread
+	 * since decoding always completes before the next read
+	 */
+	private static ByteBuffer readBuffer() {
+		ByteBuffer buf = readBuffers.get();
+		if(buf == null) {
+			buf = ByteBuffer.allocate(WebSocketImpl.RCVBUF);
+			readBuffers.set(buf);
+		}
+		return buf;
+	}
+
+	private void closeChannel() {
+		SocketChannel channel;
+		synchronized(this) {
+			channel = socketChannel;
+			socketChannel = null;
+		}
+		if(channel != null) {
+			try {
+				channel.close();
+			} catch(IOException ioe) {}
+		}
+	}
+
+	private void notifyUnavailable(Exception e) {
+		ConnectListener listener = connectListener;
+		connectListener = null;
+		if(listener != null)
+			listener.onTransportUnavailable(this, params, new ErrorInfo(e.getMessage(), 503, 80000));
+	}
+
+	/**************************
+	 * WebSocketListener methods
+	 **************************/
+
+	private final WebSocketAdapter wsListener = new WebSocketAdapter() {
+		@Override
+		public void onWebsocketOpen(WebSocket conn, Handshakedata handshake) {
+			ConnectListener listener = connectListener;
+			connectListener = null;
+			if(listener != null)
+				listener.onTransportAvailable(NioWebSocketTransport.this, params);
+		}
+
+		@Override
+		public void onWebsocketMessage(WebSocket conn, ByteBuffer blob) {
+			try {
+				connectionManager.onMessage(NioWebSocketTransport.this, ProtocolSerializer.readMsgpack(blob));
+			} catch (AblyException e) {
+				String msg = "Unexpected exception processing received binary message";
+				Log.e(TAG, msg, e);
+			}
+		}
+
+		@Override
+		public void onWebsocketMessage(WebSocket conn, String string) {
+			try {
+				connectionManager.onMessage(NioWebSocketTransport.this, ProtocolSerializer.fromJSON(string));
+			} catch (AblyException e) {
+				String msg = "Unexpected exception processing received text message";
+				Log.e(TAG, msg, e);
+			}
+		}
+
+		@Override
+		public void onWebsocketClose(WebSocket conn, int wsCode, String wsReason, boolean remote) {
+			synchronized(NioWebSocketTransport.this) {
+				if(wsConnection == conn)
+					wsConnection = null;
+			}
+			ioConnection = null;
+			closeChannel();
+			connectionManager.notifyState(NioWebSocketTransport.this, WebSocketTransport.getCloseIndication(wsCode));
+		}
+
+		@Override
+		public void onWebsocketClosing(WebSocket conn, int code, String reason, boolean remote) {}
+
+		@Override
+		public void onWebsocketCloseInitiated(WebSocket conn, int code, String reason) {}
+
+		@Override
+		public void onWebsocketError(WebSocket conn, Exception e) {
+			Log.e(TAG, "Unexpected exception in WebSocket connection", e);
+			notifyUnavailable(e);
+		}
+
+		@Override
+		public void onWriteDemand(WebSocket conn) {
+			SelectionKey key = ((WebSocketImpl)conn).key;
+			if(key != null)
+				loop.setInterest(key, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+
+		@Override
+		public InetSocketAddress getLocalSocketAddress(WebSocket conn) {
+			SocketChannel channel = socketChannel;
+			return (channel != null) ? (InetSocketAddress)channel.socket().getLocalSocketAddress() : null;
+		}
+
+		@Override
+		public InetSocketAddress getRemoteSocketAddress(WebSocket conn) {
+			SocketChannel channel = socketChannel;
+			return (channel != null) ? (InetSocketAddress)channel.socket().getRemoteSocketAddress() : null;
+		}
+	};
+
+	public String toString() {
+		return NioWebSocketTransport.class.getName() + " [" + wsUri + "]";
+	}
+
+	/******************
+	 * private members
+	 ******************/
+
+	private final TransportParams params;
+	private final ConnectionManager connectionManager;
+	private final NioEventLoopGroup group;
+	private final boolean channelBinaryMode;
+	private String wsUri;
+	private volatile ConnectListener connectListener;
+
+	private volatile EventLoop loop;
+	private NioEventLoopGroup taskGroup;
+	private volatile SocketChannel socketChannel;
+
+	/* the connection available for sending; cleared when closed by the client */
+	private WebSocketImpl wsConnection;
+
+	/* the connection being serviced by the event loop; cleared once the socket has closed */
+	private volatile WebSocketImpl ioConnection;
+
+	private static final ThreadLocal<ByteBuffer> readBuffers = new ThreadLocal<ByteBuffer>();
+}
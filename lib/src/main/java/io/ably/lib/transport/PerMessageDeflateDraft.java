@@ -0,0 +1,512 @@
+package io.ably.lib.transport;
+
+import io.ably.lib.types.DeflateOptions;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_17;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.exceptions.InvalidFrameException;
+import org.java_websocket.exceptions.InvalidHandshakeException;
+import org.java_websocket.exceptions.LimitExedeedException;
+import org.java_websocket.exceptions.NotSendableException;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.CloseFrameBuilder;
+import org.java_websocket.framing.FrameBuilder;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.Framedata.Opcode;
+import org.java_websocket.framing.FramedataImpl1;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ClientHandshakeBuilder;
+import org.java_websocket.handshake.HandshakeBuilder;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.handshake.ServerHandshakeBuilder;
+
+/**
+ * An RFC 6455 draft that negotiates the permessage-deflate extension (RFC 7692).
+ * If the peer does not accept the extension, frames are sent and received
+ * exactly as with Draft_17.
+ * The draft may act as either client or server; the server role is
+ * used by local test endpoints.
+ * An instance holds the compression state of a single connection, so each
+ * connection must use its own copy (see {@link #copyInstance()}); the native
+ * zlib state is released when the connection closes (see {@link #reset()}).
+ * Internal
+ */
+public class PerMessageDeflateDraft extends Draft_17 {
+
+	public PerMessageDeflateDraft(DeflateOptions options) {
+		this.options = (options != null) ? options : new DeflateOptions();
+	}
+
+	/**
+	 * Whether or not the extension was negotiated with the peer
+	 * @return
+	 */
+	public boolean isDeflateEnabled() {
+		return deflateEnabled;
+	}
+
+	/*************************
+	 * handshake
+	 *************************/
+
+	@Override
+	public ClientHandshakeBuilder postProcessHandshakeRequestAsClient(ClientHandshakeBuilder request) {
+		super.postProcessHandshakeRequestAsClient(request);
+		StringBuilder offer = new StringBuilder(EXTENSION_NAME);
+		if(options.clientNoContextTakeover)
+			offer.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+		if(options.serverNoContextTakeover)
+			offer.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+		if(options.serverMaxWindowBits >= MIN_WINDOW_BITS && options.serverMaxWindowBits < MAX_WINDOW_BITS)
+			offer.append("; ").append(SERVER_MAX_WINDOW_BITS).append('=').append(options.serverMaxWindowBits);
+		request.put(EXTENSIONS_HEADER, offer.toString());
+		return request;
+	}
+
+	@Override
+	public HandshakeState acceptHandshakeAsClient(ClientHandshake request, ServerHandshake response) throws InvalidHandshakeException {
+		HandshakeState result = super.acceptHandshakeAsClient(request, response);
+		if(result != HandshakeState.MATCHED)
+			return result;
+
+		String extensions = response.getFieldValue(EXTENSIONS_HEADER);
+		if(extensions == null || extensions.trim().isEmpty())
+			return result;
+
+		for(String extension : extensions.split(",")) {
+			Map<String, String> params = parseExtension(extension);
+			if(!EXTENSION_NAME.equals(params.remove(EXTENSION_KEY)))
+				/* the server accepted an extension we did not offer */
+				return HandshakeState.NOT_MATCHED;
+			if(deflateEnabled || !acceptResponse(params))
+				return HandshakeState.NOT_MATCHED;
+			initCompression();
+		}
+		return result;
+	}
+
+	@Override
+	public HandshakeBuilder postProcessHandshakeResponseAsServer(ClientHandshake request, ServerHandshakeBuilder response) throws InvalidHandshakeException {
+		super.postProcessHandshakeResponseAsServer(request, response);
+		String extensions = request.getFieldValue(EXTENSIONS_HEADER);
+		if(extensions == null || extensions.trim().isEmpty())
+			return response;
+
+		/* accept the first permessage-deflate offer whose parameters we support */
+		for(String extension : extensions.split(",")) {
+			Map<String, String> params = parseExtension(extension);
+			if(!EXTENSION_NAME.equals(params.remove(EXTENSION_KEY)))
+				continue;
+			String accepted = acceptOffer(params);
+			if(accepted != null) {
+				response.put(EXTENSIONS_HEADER, accepted);
+				initCompression();
+				break;
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * Apply the parameters of a server's response to our offer
+	 * @return false if the response is not acceptable
+	 */
+	private boolean acceptResponse(Map<String, String> params) {
+		for(Map.Entry<String, String> param : params.entrySet()) {
+			String name = param.getKey();
+			if(name.equals(SERVER_NO_CONTEXT_TAKEOVER)) {
+				peerNoContextTakeover = true;
+			} else if(name.equals(CLIENT_NO_CONTEXT_TAKEOVER)) {
+				ownNoContextTakeover = true;
+			} else if(name.equals(SERVER_MAX_WINDOW_BITS)) {
+				if(parseWindowBits(param.getValue()) == -1)
+					return false;
+			} else if(name.equals(CLIENT_MAX_WINDOW_BITS)) {
+				/* java.util.zip always compresses with a 15-bit window; if asked
+				 * for a smaller window, we send our messages uncompressed */
+				int bits = parseWindowBits(param.getValue());
+				if(bits == -1)
+					return false;
+				if(bits < MAX_WINDOW_BITS)
+					compressOutbound = false;
+			} else {
+				return false;
+			}
+		}
+		ownNoContextTakeover |= options.clientNoContextTakeover;
+		return true;
+	}
+
+	/**
+	 * Apply the parameters of a client's offer
+	 * @return the response header value, or null if the offer is declined
+	 */
+	private String acceptOffer(Map<String, String> params) {
+		StringBuilder response = new StringBuilder(EXTENSION_NAME);
+		for(Map.Entry<String, String> param : params.entrySet()) {
+			String name = param.getKey();
+			if(name.equals(CLIENT_NO_CONTEXT_TAKEOVER)) {
+				peerNoContextTakeover = true;
+				response.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+			} else if(name.equals(SERVER_NO_CONTEXT_TAKEOVER)) {
+				ownNoContextTakeover = true;
+				response.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+			} else if(name.equals(SERVER_MAX_WINDOW_BITS)) {
+				int bits = parseWindowBits(param.getValue());
+				if(bits == -1)
+					return null;
+				if(bits < MAX_WINDOW_BITS)
+					compressOutbound = false;
+				response.append("; ").append(SERVER_MAX_WINDOW_BITS).append('=').append(bits);
+			} else if(name.equals(CLIENT_MAX_WINDOW_BITS)) {
+				/* the value is optional, and we can inflate with any window size */
+				if(param.getValue() != null && parseWindowBits(param.getValue()) == -1)
+					return null;
+			} else {
+				return null;
+			}
+		}
+		return response.toString();
+	}
+
+	private void initCompression() {
+		releaseCompression();
+		synchronized(this) {
+			deflater = new Deflater(options.level, true);
+		}
+		synchronized(inflaterLock) {
+			inflater = new Inflater(true);
+		}
+		deflateEnabled = true;
+	}
+
+	/**
+	 * Free the native zlib state of the deflater and inflater,
+	 * without waiting for them to be finalized
+	 */
+	private void releaseCompression() {
+		deflateEnabled = false;
+		synchronized(this) {
+			if(deflater != null) {
+				deflater.end();
+				deflater = null;
+			}
+		}
+		synchronized(inflaterLock) {
+			if(inflater != null) {
+				inflater.end();
+				inflater = null;
+			}
+		}
+	}
+
+	/*************************
+	 * outbound frames
+	 *************************/
+
+	@Override
+	public ByteBuffer createBinaryFrame(Framedata framedata) {
+		Opcode opcode = framedata.getOpcode();
+		boolean compress = deflateEnabled && compressOutbound
+				&& (opcode == Opcode.TEXT || opcode == Opcode.BINARY)
+				&& framedata.isFin()
+				&& framedata.getPayloadData().remaining() >= options.threshold;
+		if(!compress)
+			return super.createBinaryFrame(framedata);
+
+		FramedataImpl1 compressed = new FramedataImpl1(opcode);
+		compressed.setFin(true);
+		compressed.setTransferemasked(framedata.getTransfereMasked());
+		try {
+			compressed.setPayload(deflate(framedata.getPayloadData()));
+		} catch(InvalidDataException e) {
+			throw new NotSendableException(e);
+		}
+		ByteBuffer frame = super.createBinaryFrame(compressed);
+		frame.put(0, (byte)(frame.get(0) | RSV1));
+		return frame;
+	}
+
+	/**
+	 * Compress a complete message payload. Messages are sent in the order
+	 * they are compressed, so this is synchronized with respect to other senders.
+	 */
+	private synchronized ByteBuffer deflate(ByteBuffer payload) throws InvalidDataException {
+		if(deflater == null)
+			throw new InvalidDataException(CloseFrame.ABNORMAL_CLOSE, "connection closed");
+		payload = payload.duplicate();
+		int length = payload.remaining();
+		if(payload.hasArray()) {
+			deflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), length);
+		} else {
+			byte[] input = new byte[length];
+			payload.get(input);
+			deflater.setInput(input);
+		}
+		byte[] output = new byte[length / 2 + 64];
+		int size = 0;
+		while(true) {
+			size += deflater.deflate(output, size, output.length - size, Deflater.SYNC_FLUSH);
+			if(size < output.length)
+				break;
+			output = Arrays.copyOf(output, output.length * 2);
+		}
+		/* RFC 7692 section 7.2.1: remove the trailing empty block */
+		if(size >= TAIL.length) size -= TAIL.length;
+		if(ownNoContextTakeover)
+			deflater.reset();
+		return ByteBuffer.wrap(output, 0, size);
+	}
+
+	/*************************
+	 * inbound frames
+	 *************************/
+
+	@Override
+	public List<Framedata> translateFrame(ByteBuffer buffer) throws InvalidDataException {
+		if(!deflateEnabled)
+			return super.translateFrame(buffer);
+
+		/* the base class rejects frames with RSV1 set, so
+		 * once the extension is enabled we parse frames here */
+		if(incompleteFrame != null) {
+			ByteBuffer combined = ByteBuffer.allocate(incompleteFrame.remaining() + buffer.remaining());
+			combined.put(incompleteFrame).put(buffer).flip();
+			buffer = combined;
+			incompleteFrame = null;
+		}
+		List<Framedata> frames = new LinkedList<Framedata>();
+		while(buffer.hasRemaining()) {
+			Framedata frame = readFrame(buffer);
+			if(frame == null) {
+				incompleteFrame = ByteBuffer.allocate(buffer.remaining());
+				incompleteFrame.put(buffer).flip();
+				break;
+			}
+			frames.add(frame);
+		}
+		return frames;
+	}
+
+	/**
+	 * Read a single frame from the buffer
+	 * @return the frame, or null (with the buffer position unchanged) if the buffer
+	 * does not contain a complete frame
+	 */
+	private Framedata readFrame(ByteBuffer buffer) throws InvalidDataException {
+		int start = buffer.position();
+		int available = buffer.remaining();
+		if(available < 2)
+			return null;
+
+		byte b1 = buffer.get(start);
+		byte b2 = buffer.get(start + 1);
+		boolean fin = (b1 & 0x80) != 0;
+		boolean rsv1 = (b1 & RSV1) != 0;
+		if((b1 & 0x30) != 0)
+			throw new InvalidFrameException("bad rsv " + ((b1 & 0x70) >> 4));
+		Opcode opcode = toOpcode(b1 & 0x0f);
+		boolean isControl = (opcode == Opcode.CLOSING || opcode == Opcode.PING || opcode == Opcode.PONG);
+		boolean masked = (b2 & 0x80) != 0;
+
+		long length = b2 & 0x7f;
+		int headerSize = 2;
+		if(length == 126) {
+			headerSize += 2;
+			if(available < headerSize)
+				return null;
+			length = buffer.getShort(start + 2) & 0xffff;
+		} else if(length == 127) {
+			headerSize += 8;
+			if(available < headerSize)
+				return null;
+			length = buffer.getLong(start + 2);
+			if(length < 0 || length > Integer.MAX_VALUE)
+				throw new LimitExedeedException("Payloadsize is to big...");
+		}
+		if(isControl && (!fin || rsv1 || length > 125))
+			throw new InvalidFrameException("invalid control frame");
+		if(opcode == Opcode.CONTINUOUS && rsv1)
+			throw new InvalidFrameException("rsv1 set on continuation frame");
+
+		int maskOffset = start + headerSize;
+		if(masked)
+			headerSize += 4;
+		if(available < headerSize + length)
+			return null;
+
+		byte[] payload = new byte[checkAlloc((int)length)];
+		buffer.position(start + headerSize);
+		buffer.get(payload);
+		if(masked)
+			for(int i = 0; i < payload.length; i++)
+				payload[i] ^= buffer.get(maskOffset + (i & 3));
+
+		ByteBuffer data = ByteBuffer.wrap(payload);
+		if(!isControl) {
+			if(opcode != Opcode.CONTINUOUS) {
+				inflating = rsv1;
+				inflatedSize = 0;
+			}
+			if(inflating)
+				data = inflate(payload, fin);
+			if(fin)
+				inflating = false;
+		}
+
+		FrameBuilder frame;
+		if(opcode == Opcode.CLOSING) {
+			frame = new CloseFrameBuilder();
+		} else {
+			frame = new FramedataImpl1();
+			frame.setFin(fin);
+			frame.setOptcode(opcode);
+		}
+		frame.setPayload(data);
+		return frame;
+	}
+
+	private ByteBuffer inflate(byte[] payload, boolean fin) throws InvalidDataException {
+		if(fin) {
+			byte[] input = Arrays.copyOf(payload, payload.length + TAIL.length);
+			System.arraycopy(TAIL, 0, input, payload.length, TAIL.length);
+			payload = input;
+		}
+		int maxSize = options.maxInflatedSize;
+		int initialSize = (int)Math.min((long)payload.length * 4, (long)maxSize);
+		ByteArrayOutputStream output = new ByteArrayOutputStream(initialSize);
+		byte[] chunk = new byte[Math.max(Math.min(initialSize, MAX_CHUNK_SIZE), 1024)];
+		synchronized(inflaterLock) {
+			if(inflater == null)
+				throw new InvalidDataException(CloseFrame.ABNORMAL_CLOSE, "connection closed");
+			inflater.setInput(payload);
+			try {
+				int count;
+				while((count = inflater.inflate(chunk)) > 0) {
+					/* stop a small compressed message from expanding without bound */
+					inflatedSize += count;
+					if(inflatedSize > maxSize)
+						throw new InvalidDataException(CloseFrame.TOOBIG, "Inflated message exceeds " + maxSize + " bytes");
+					output.write(chunk, 0, count);
+				}
+			} catch(DataFormatException e) {
+				throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR, e);
+			}
+			if(fin && peerNoContextTakeover)
+				inflater.reset();
+		}
+		return ByteBuffer.wrap(output.toByteArray());
+	}
+
+	/**
+	 * Called when the connection closes; this releases the
+	 * compression state, as the draft is not used again
+	 */
+	@Override
+	public void reset() {
+		super.reset();
+		incompleteFrame = null;
+		inflating = false;
+		releaseCompression();
+	}
+
+	@Override
+	public Draft copyInstance() {
+		return new PerMessageDeflateDraft(options);
+	}
+
+	/*************************
+	 * internal
+	 *************************/
+
+	/**
+	 * Parse a single extension from an extensions header.
+	 * The extension name is returned with the key EXTENSION_KEY,
+	 * followed by each parameter in order; parameters without
+	 * a value have a null value.
+	 */
+	private static Map<String, String> parseExtension(String extension) {
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		String[] parts = extension.split(";");
+		result.put(EXTENSION_KEY, parts[0].trim().toLowerCase());
+		for(int i = 1; i < parts.length; i++) {
+			String part = parts[i].trim();
+			if(part.isEmpty())
+				continue;
+			int idx = part.indexOf('=');
+			if(idx == -1) {
+				result.put(part.toLowerCase(), null);
+			} else {
+				String value = part.substring(idx + 1).trim();
+				if(value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+					value = value.substring(1, value.length() - 1);
+				result.put(part.substring(0, idx).trim().toLowerCase(), value);
+			}
+		}
+		return result;
+	}
+
+	private static int parseWindowBits(String value) {
+		if(value == null)
+			return -1;
+		try {
+			int bits = Integer.parseInt(value);
+			return (bits >= MIN_WINDOW_BITS && bits <= MAX_WINDOW_BITS) ? bits : -1;
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static Opcode toOpcode(int opcode) throws InvalidFrameException {
+		switch(opcode) {
+		case 0: return Opcode.CONTINUOUS;
+		case 1: return Opcode.TEXT;
+		case 2: return Opcode.BINARY;
+		case 8: return Opcode.CLOSING;
+		case 9: return Opcode.PING;
+		case 10: return Opcode.PONG;
+		default: throw new InvalidFrameException("unknown opcode " + opcode);
+		}
+	}
+
+	/*************************
+	 * private members
+	 *************************/
+
+	private final DeflateOptions options;
+	private volatile boolean deflateEnabled;
+	private boolean compressOutbound = true;
+	private boolean ownNoContextTakeover;
+	private boolean peerNoContextTakeover;
+	private Deflater deflater;
+	private Inflater inflater;
+	private final Object inflaterLock = new Object();
+	private ByteBuffer incompleteFrame;
+	private boolean inflating;
+	private long inflatedSize;
+
+	private static final String EXTENSIONS_HEADER = "Sec-WebSocket-Extensions";
+	private static final String EXTENSION_NAME = "permessage-deflate";
+	private static final String EXTENSION_KEY = "";
+	private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+	private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+	private static final int MIN_WINDOW_BITS = 8;
+	private static final int MAX_WINDOW_BITS = 15;
+	private static final byte RSV1 = 0x40;
+	private static final int MAX_CHUNK_SIZE = 65536;
+	private static final byte[] TAIL = new byte[] {0, 0, (byte)0xff, (byte)0xff};
+}
@@ -4,6 +4,7 @@ import io.ably.lib.http.HttpUtils;
 import io.ably.lib.realtime.ConnectionState;
 import io.ably.lib.transport.ConnectionManager.StateIndication;
 import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
 import io.ably.lib.types.ErrorInfo;
 import io.ably.lib.types.Param;
 import io.ably.lib.types.ProtocolMessage;
@@ -13,11 +14,14 @@ import io.ably.lib.util.Log;
 
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_17;
 import org.java_websocket.handshake.ServerHandshake;
 
 public class WebSocketTransport implements ITransport {
@@ -61,11 +65,9 @@ public class WebSocketTransport implements ITransport {
 			if(connectParams.length > 0)
 				wsUri = HttpUtils.encodeParams(wsUri, connectParams);
 			synchronized(this) {
-				wsConnection = new WsClient(URI.create(wsUri));
+				wsConnection = new WsClient(URI.create(wsUri), getDraft(params.options));
 				if(isTls) {
-					SSLContext sslContext = SSLContext.getInstance("TLS");
-					sslContext.init( null, null, null );
-					SSLSocketFactory factory = sslContext.getSocketFactory();// (SSLSocketFactory) SSLSocketFactory.getDefault();
+					SSLSocketFactory factory = getSSLContext(params.options).getSocketFactory();
 					wsConnection.setSocket( factory.createSocket() );
 				}
 			}
@@ -111,7 +113,7 @@ public class WebSocketTransport implements ITransport {
 	public void send(ProtocolMessage msg) throws AblyException {
 		try {
 			if(channelBinaryMode)
-				wsConnection.send(ProtocolSerializer.writeMsgpack(msg));
+				wsConnection.getConnection().send(ProtocolSerializer.writeMsgpackToBuffer(msg));
 			else
 				wsConnection.send(ProtocolSerializer.writeJSON(msg));
 		} catch (Exception e) {
@@ -130,8 +132,8 @@ public class WebSocketTransport implements ITransport {
 
 	class WsClient extends WebSocketClient {
 
-		public WsClient(URI serverUri) {
-			super(serverUri);
+		public WsClient(URI serverUri, Draft draft) {
+			super(serverUri, draft);
 		}
 
 		@Override
@@ -145,7 +147,7 @@ public class WebSocketTransport implements ITransport {
 		@Override
 		public void onMessage(ByteBuffer blob) {
 			try {
-				connectionManager.onMessage(ProtocolSerializer.readMsgpack(blob.array()));
+				connectionManager.onMessage(WebSocketTransport.this, ProtocolSerializer.readMsgpack(blob));
 			} catch (AblyException e) {
 				String msg = "Unexpected exception processing received binary message";
 				Log.e(TAG, msg, e);
@@ -155,7 +157,7 @@ public class WebSocketTransport implements ITransport {
 		@Override
 		public void onMessage(String string) {
 			try {
-				connectionManager.onMessage(ProtocolSerializer.fromJSON(string));
+				connectionManager.onMessage(WebSocketTransport.this, ProtocolSerializer.fromJSON(string));
 			} catch (AblyException e) {
 				String msg = "Unexpected exception processing received binary message";
 				Log.e(TAG, msg, e);
@@ -164,50 +166,10 @@ public class WebSocketTransport implements ITransport {
 
 		@Override
 		public void onClose(int wsCode, String wsReason, boolean remote) {
-			ConnectionState newState;
-			ErrorInfo reason;
-			switch(wsCode) {
-			case NEVER_CONNECTED:
-				newState = ConnectionState.disconnected;
-				reason = ConnectionManager.REASON_NEVER_CONNECTED;
-				break;
-			case CLOSE_NORMAL:
-			case BUGGYCLOSE:
-			case GOING_AWAY:
-			case ABNORMAL_CLOSE:
-				/* we don't know the specific reason that the connection closed in these cases,
-				 * but we have to assume it's a problem with connectivity rather than some other
-				 * application problem */
-				newState = ConnectionState.disconnected;
-				reason = ConnectionManager.REASON_DISCONNECTED;
-				break;
-			case REFUSE:
-			case POLICY_VALIDATION:
-				newState = ConnectionState.failed;
-				reason = ConnectionManager.REASON_REFUSED;
-				break;
-			case TOOBIG:
-				newState = ConnectionState.failed;
-				reason = ConnectionManager.REASON_TOO_BIG;
-				break;
-			case NO_UTF8:
-			case CLOSE_PROTOCOL_ERROR:
-			case UNEXPECTED_CONDITION:
-			case EXTENSION:
-			case TLS_ERROR:
-			default:
-				/* we don't know the specific reason that the connection closed in these cases,
-				 * but we have to assume it's an application problem, and the problem will
-				 * recur if we try again. The failed state means that we won't automatically
-				 * try again. */
-				newState = ConnectionState.failed;
-				reason = ConnectionManager.REASON_FAILED;
-				break;
-			}
 			synchronized(WebSocketTransport.this) {
 				wsConnection = null;
 			}
-			connectionManager.notifyState(WebSocketTransport.this, new StateIndication(newState, reason));
+			connectionManager.notifyState(WebSocketTransport.this, getCloseIndication(wsCode));
 		}
 
 		@Override
@@ -221,6 +183,91 @@ public class WebSocketTransport implements ITransport {
 		}
 	}
 
+	/**
+	 * Get the draft for a new connection, which negotiates
+	 * permessage-deflate if compression is enabled in the options
+	 * @param options
+	 * @return
+	 */
+	static Draft getDraft(ClientOptions options) {
+		return options.compressTransport ? new PerMessageDeflateDraft(options.deflateOptions) : new Draft_17();
+	}
+
+	/**
+	 * Get the TLS context for a new connection. Unless the options specify
+	 * a context, a single context is shared by all connections in the process,
+	 * so that its session cache allows reconnections to each host to resume
+	 * an earlier TLS session instead of performing a full handshake.
+	 * @param options
+	 * @return
+	 * @throws AblyException
+	 */
+	static SSLContext getSSLContext(ClientOptions options) throws AblyException {
+		if(options.sslContext != null)
+			return options.sslContext;
+		synchronized(WebSocketTransport.class) {
+			if(defaultSSLContext == null) {
+				try {
+					SSLContext sslContext = SSLContext.getInstance("TLS");
+					sslContext.init(null, null, null);
+					defaultSSLContext = sslContext;
+				} catch(GeneralSecurityException e) {
+					throw AblyException.fromThrowable(e);
+				}
+			}
+			return defaultSSLContext;
+		}
+	}
+
+	/**
+	 * Determine the connection state indicated by the given WebSocket close code
+	 * @param wsCode
+	 * @return
+	 */
+	static StateIndication getCloseIndication(int wsCode) {
+		ConnectionState newState;
+		ErrorInfo reason;
+		switch(wsCode) {
+		case NEVER_CONNECTED:
+			newState = ConnectionState.disconnected;
+			reason = ConnectionManager.REASON_NEVER_CONNECTED;
+			break;
+		case CLOSE_NORMAL:
+		case BUGGYCLOSE:
+		case GOING_AWAY:
+		case ABNORMAL_CLOSE:
+			/* we don't know the specific reason that the connection closed in these cases,
+			 * but we have to assume it's a problem with connectivity rather than some other
+			 * application problem */
+			newState = ConnectionState.disconnected;
+			reason = ConnectionManager.REASON_DISCONNECTED;
+			break;
+		case REFUSE:
+		case POLICY_VALIDATION:
+			newState = ConnectionState.failed;
+			reason = ConnectionManager.REASON_REFUSED;
+			break;
+		case TOOBIG:
+			newState = ConnectionState.failed;
+			reason = ConnectionManager.REASON_TOO_BIG;
+			break;
+		case NO_UTF8:
+		case CLOSE_PROTOCOL_ERROR:
+		case UNEXPECTED_CONDITION:
+		case EXTENSION:
+		case TLS_ERROR:
+		default:
+			/* we don't know the specific reason that the connection closed in these cases,
+			 * but we have to assume it's an application problem, and the problem will
+			 * recur if we try again. The failed state means that we won't automatically
+			 * try again. */
+			newState = ConnectionState.failed;
+			reason = ConnectionManager.REASON_FAILED;
+			break;
+		}
+		return new StateIndication(newState, reason);
+	}
+
 	public String toString() {
 		return WebSocketTransport.class.getName() + " [" + wsUri + "]";
 	}
@@ -237,6 +284,8 @@ public class WebSocketTransport implements ITransport {
 
 	private WsClient wsConnection;
 
+	private static SSLContext defaultSSLContext;
+
 	private static final int NEVER_CONNECTED      =   -1;
 	private static final int BUGGYCLOSE           =   -2;
 	private static final int CLOSE_NORMAL         = 1000;
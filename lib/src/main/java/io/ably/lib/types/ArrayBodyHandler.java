@@ -0,0 +1,83 @@
+package io.ably.lib.types;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+import io.ably.lib.http.Http.ItemHandler;
+import io.ably.lib.http.Http.StreamingBodyHandler;
+
+/**
+ * A BodyHandler for response bodies that are JSON arrays, decoding each
+ * item as it is read, so that neither the body text nor an intermediate
+ * parse tree is held in memory. Handlers for item types that can also be
+ * read from msgpack extend {@link MsgpackArrayBodyHandler}.
+ * Internal
+ */
+abstract class ArrayBodyHandler<T> implements StreamingBodyHandler<T> {
+
+	@Override
+	public T[] handleResponseBody(String contentType, byte[] body) throws AblyException {
+		return handleResponseBody(contentType, new ByteArrayInputStream(body), null);
+	}
+
+	@Override
+	public T[] handleResponseBody(String contentType, InputStream body, ItemHandler<T> itemHandler) throws AblyException {
+		if("application/json".equals(contentType)) {
+			try {
+				return readJSONArray(new JsonReader(new InputStreamReader(body, "UTF-8")), itemHandler);
+			} catch(UnsupportedEncodingException e) {
+				throw AblyException.fromThrowable(e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read one item from a JSON array
+	 */
+	protected abstract T readJSON(JsonReader reader) throws IOException;
+
+	/**
+	 * Process an item once read, eg to decode its payload
+	 */
+	protected void decode(T item) throws AblyException {}
+
+	protected abstract T[] newArray(int length);
+
+	/*******************
+	 * internal
+	 ******************/
+
+	private T[] readJSONArray(JsonReader reader, ItemHandler<T> itemHandler) throws AblyException {
+		List<T> items = (itemHandler == null) ? new ArrayList<T>() : null;
+		try {
+			reader.beginArray();
+			while(reader.hasNext())
+				onItem(readJSON(reader), items, itemHandler);
+			reader.endArray();
+		} catch(IOException | JsonParseException e) {
+			throw AblyException.fromThrowable(e);
+		}
+		return toArray(items);
+	}
+
+	T[] toArray(List<T> items) {
+		return (items == null) ? newArray(0) : items.toArray(newArray(items.size()));
+	}
+
+	void onItem(T item, List<T> items, ItemHandler<T> itemHandler) throws AblyException {
+		decode(item);
+		if(itemHandler != null)
+			itemHandler.onItem(item);
+		else
+			items.add(item);
+	}
+}
@@ -2,19 +2,19 @@ package io.ably.lib.types;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Type;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.msgpack.core.MessageFormat;
 import org.msgpack.core.MessagePacker;
 import org.msgpack.core.MessageUnpacker;
 
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
-import com.google.gson.JsonSerializationContext;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import io.ably.lib.types.EncodingChain.Transform;
 import io.ably.lib.util.Base64Coder;
 import io.ably.lib.util.Crypto.ChannelCipher;
 import io.ably.lib.util.Log;
@@ -48,9 +48,36 @@ public class BaseMessage implements Cloneable {
 
 	/**
 	 * The message payload.
+	 * If the message was received on a channel with lazyDecode set in its
+	 * ChannelOptions, this holds the payload as received until getData()
+	 * has been called.
 	 */
 	public Object data;
 
+	/**
+	 * Get the message payload, decoding it first if its decoding was deferred
+	 * @return the decoded payload
+	 * @throws AblyException if the payload cannot be decoded
+	 */
+	public synchronized Object getData() throws AblyException {
+		if(decodePending)
+			decode(pendingDecodeOptions);
+		return data;
+	}
+
+	/**
+	 * Defer decoding of the payload until getData() is first called
+	 * @param opts the options with which to decode
+	 */
+	public void decodeLater(ChannelOptions opts) {
+		if(encoding == null)
+			return;
+		synchronized(this) {
+			decodePending = true;
+			pendingDecodeOptions = opts;
+		}
+	}
+
 	/**
 	 * Generate a String summary of this BaseMessage
 	 * @return string
@@ -69,51 +96,52 @@ public class BaseMessage implements Cloneable {
 	}
 
 	public void decode(ChannelOptions opts) throws AblyException {
+		synchronized(this) {
+			decodePending = false;
+			pendingDecodeOptions = null;
+		}
 		if(encoding != null) {
-			String[] xforms = encoding.split("\\/");
-			int i = 0, j = xforms.length;
+			EncodingChain chain = EncodingChain.forEncoding(encoding);
+			int i = chain.transforms.length;
 			try {
-				while((i = j) > 0) {
-					Matcher match = xformPattern.matcher(xforms[--j]);
-					if(!match.matches()) break;
-					String xform = match.group(1).intern();
-					if(xform == "base64") {
+				for(; i > 0; --i) {
+					Transform xform = chain.transforms[i - 1];
+					if(xform == Transform.base64) {
 						data = Base64Coder.decode((String)data);
-						continue;
-					}
-					if(xform == "utf-8") {
+					} else if(xform == Transform.utf8) {
 						try { data = new String((byte[])data, "UTF-8"); } catch(UnsupportedEncodingException e) {}
-						continue;
-					}
-					if(xform == "json") {
+					} else if(xform == Transform.json) {
 						try {
 							String jsonText = ((String)data).trim();
 							data = Serialisation.gsonParser.parse(jsonText);
 						}
 						catch(JsonParseException e) { throw AblyException.fromThrowable(e); }
-						continue;
-					}
-					if(xform == "cipher" && opts != null && opts.encrypted) {
-						data = opts.getCipher().decrypt((byte[])data);
-						continue;
+					} else if(xform == Transform.cipher && opts != null && opts.encrypted) {
+						/* a deferred decode may run on any thread */
+						ChannelCipher cipher = opts.getCipher();
+						synchronized(cipher) {
+							data = cipher.decrypt((byte[])data);
+						}
+					} else {
+						break;
 					}
-					break;
 				}
 			} finally {
-				encoding = (i <= 0) ? null : join(xforms, '/', 0, i);
+				encoding = chain.prefix(i);
 			}
 		}
 	}
 
 	public void encode(ChannelOptions opts) throws AblyException {
+		EncodingChain chain = EncodingChain.forEncoding(encoding);
 		if(data instanceof JsonElement) {
 			data = Serialisation.gson.toJson((JsonElement)data);
-			encoding = ((encoding == null) ? "" : encoding + "/") + "json";
+			chain = chain.append("json");
 		}
 		if(data instanceof String) {
 			if (opts != null && opts.encrypted) {
 				try { data = ((String)data).getBytes("UTF-8"); } catch(UnsupportedEncodingException e) {}
-				encoding = ((encoding == null) ? "" : encoding + "/") + "utf-8";
+				chain = chain.append("utf-8");
 			}
 		} else if(!(data instanceof byte[])) {
 			if (opts != null && opts.encrypted) {
@@ -125,42 +153,94 @@ public class BaseMessage implements Cloneable {
 		if (opts != null && opts.encrypted) {
 			ChannelCipher cipher = opts.getCipher();
 			data = cipher.encrypt((byte[]) data);
-			encoding = ((encoding == null) ? "" : encoding + "/") + "cipher+" + cipher.getAlgorithm();
+			chain = chain.append("cipher+" + cipher.getAlgorithm());
 		}
+		encoding = chain.encoding;
 	}
 
-	/* trivial utilities for processing encoding string */
-	private static Pattern xformPattern = Pattern.compile("([\\-\\w]+)(\\+([\\-\\w]+))?");
-	private String join(String[] elements, char separator, int start, int end) {
-		StringBuilder result = new StringBuilder(elements[start++]);
-		for(int i = start; i < end; i++)
-			result.append(separator).append(elements[i]);
-		return result.toString();
-	}
+	/**
+	 * Gson TypeAdapter, reading and writing message fields directly
+	 * to and from the JSON stream, without an intermediate JsonObject
+	 */
+	public static abstract class Serializer<T extends BaseMessage> extends TypeAdapter<T> {
+		@Override
+		public void write(JsonWriter out, T message) throws IOException {
+			if(message == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			writeFields(out, message);
+			out.endObject();
+		}
+
+		@Override
+		public T read(JsonReader in) throws IOException {
+			if(in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			T message = newMessage();
+			in.beginObject();
+			while(in.hasNext()) {
+				String fieldName = in.nextName();
+				if(in.peek() == JsonToken.NULL) {
+					in.nextNull();
+					continue;
+				}
+				if(!readField(in, fieldName, message))
+					in.skipValue();
+			}
+			in.endObject();
+			return message;
+		}
 
-	/* Gson Serializer */
-	public static class Serializer {
-		public JsonElement serialize(BaseMessage message, Type typeOfMessage, JsonSerializationContext ctx) {
-			JsonObject json = new JsonObject();
+		protected abstract T newMessage();
+
+		protected void writeFields(JsonWriter out, T message) throws IOException {
 			Object data = message.data;
 			String encoding = message.encoding;
 			if(data != null) {
+				out.name("data");
 				if(data instanceof byte[]) {
-					byte[] dataBytes = (byte[])data;
-					json.addProperty("data", new String(Base64Coder.encode(dataBytes)));
+					out.value(new String(Base64Coder.encode((byte[])data)));
 					encoding = (encoding == null) ? "base64" : encoding + "/base64";
 				} else {
-					json.addProperty("data", data.toString());
+					out.value(data.toString());
 				}
-				if(encoding != null) json.addProperty("encoding", encoding);
+				if(encoding != null) out.name("encoding").value(encoding);
+			}
+			if(message.clientId != null) out.name("clientId").value(message.clientId);
+			if(message.connectionId != null) out.name("connectionId").value(message.connectionId);
+		}
+
+		protected boolean readField(JsonReader in, String fieldName, T message) throws IOException {
+			boolean result = true;
+			if(fieldName.equals("timestamp")) {
+				message.timestamp = in.nextLong();
+			} else if(fieldName.equals("id")) {
+				message.id = in.nextString();
+			} else if(fieldName.equals("clientId")) {
+				message.clientId = in.nextString();
+			} else if(fieldName.equals("connectionId")) {
+				message.connectionId = in.nextString();
+			} else if(fieldName.equals("encoding")) {
+				message.encoding = in.nextString();
+			} else if(fieldName.equals("data")) {
+				if(in.peek() == JsonToken.STRING)
+					message.data = in.nextString();
+				else
+					message.data = Serialisation.gsonParser.parse(in);
+			} else {
+				result = false;
 			}
-			if(message.clientId != null) json.addProperty("clientId", message.clientId);
-			if(message.connectionId != null) json.addProperty("connectionId", message.connectionId);
-			return json;
-		}		
+			return result;
+		}
 	}
 
 	/* Msgpack processing */
+	static final String[] baseFieldNames = new String[] {"timestamp", "id", "clientId", "connectionId", "encoding", "data"};
+
 	boolean readField(MessageUnpacker unpacker, String fieldName, MessageFormat fieldType) throws IOException {
 		boolean result = true;
 		if(fieldName == "timestamp") {
@@ -226,5 +306,9 @@ public class BaseMessage implements Cloneable {
 		}
 	}
 
+	/* deferred decode state */
+	boolean decodePending;
+	ChannelOptions pendingDecodeOptions;
+
 	private static final String TAG = BaseMessage.class.getName();
 }
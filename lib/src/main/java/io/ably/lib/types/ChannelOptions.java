@@ -7,6 +7,12 @@ public class ChannelOptions {
 	public boolean encrypted;
 	public Object cipherParams;
 
+	/**
+	 * If true, received message and presence payloads are not decoded
+	 * when received, but when first accessed through getData()
+	 */
+	public boolean lazyDecode;
+
 	public ChannelCipher getCipher() throws AblyException {
 		if(!encrypted) return null;
 		if(cipher != null) return cipher;
@@ -1,12 +1,18 @@
 package io.ably.lib.types;
 
+import io.ably.lib.http.AsyncHttp;
+import io.ably.lib.http.HttpEngine;
 import io.ably.lib.rest.Auth.AuthOptions;
 import io.ably.lib.transport.Defaults;
+import io.ably.lib.transport.ITransport;
+import io.ably.lib.util.HashedWheelTimer;
 import io.ably.lib.util.Log;
 import io.ably.lib.util.Log.LogHandler;
 
 import java.util.Map;
 
+import javax.net.ssl.SSLContext;
+
 /**
  * Options: Ably library options for REST and Realtime APIs
  */
@@ -99,6 +105,24 @@ public class ClientOptions extends AuthOptions {
 	 */
 	public boolean queueMessages = true;
 
+	/**
+	 * The maximum number of individual messages and presence updates that are queued
+	 * while connecting or disconnected, or while a channel is attaching.
+	 * Zero means no limit.
+	 */
+	public int queueMaxMessages = 0;
+
+	/**
+	 * The maximum approximate size, in bytes, of the payloads of queued messages.
+	 * Zero means no limit.
+	 */
+	public long queueMaxBytes = 0;
+
+	/**
+	 * The action to take when a message is published and the queue is at one of its limits.
+	 */
+	public QueueOverflowPolicy queueOverflowPolicy = QueueOverflowPolicy.failFast;
+
 	/**
 	 * If false, suppresses messages originating from this connection being echoed back
 	 * on the same connection.
@@ -112,6 +136,90 @@ public class ClientOptions extends AuthOptions {
 	 */
 	public String recover;
 
+	/**
+	 * The factory used to instance realtime transports. If null, the default
+	 * WebSocket transport, with its own I/O threads per connection, is used.
+	 * Set this to an instance of {@link io.ably.lib.transport.NioWebSocketTransport.Factory}
+	 * to share a small group of selector threads between all connections in the process.
+	 */
+	public ITransport.Factory transportFactory;
+
+	/**
+	 * The TLS context used for realtime connections and REST requests. If null,
+	 * a single default context is shared by all clients in the process, so that
+	 * reconnections can resume earlier TLS sessions.
+	 */
+	public SSLContext sslContext;
+
+	/**
+	 * If true, realtime connections request the permessage-deflate WebSocket extension
+	 * so that frames are compressed in both directions. If the server does not accept
+	 * the extension, the connection proceeds uncompressed.
+	 */
+	public boolean compressTransport = false;
+
+	/**
+	 * Compression settings used when compressTransport is true; if null, defaults are used.
+	 */
+	public DeflateOptions deflateOptions;
+
+	/**
+	 * If greater than zero, messages and presence updates sent while connected are
+	 * held for up to this many milliseconds so that several can be written together,
+	 * and consecutive sends on the same channel are merged into a single ProtocolMessage.
+	 * If zero (the default), every send is written to the transport immediately.
+	 */
+	public int writeLingerInterval = 0;
+
+	/**
+	 * When writeLingerInterval is set, the maximum number of individual messages that
+	 * are held before the buffer is written without waiting for the linger interval.
+	 */
+	public int writeBufferSize = Defaults.WRITE_BUFFER_SIZE;
+
+	/**
+	 * If greater than 1, when a realtime connection falls back from the primary host,
+	 * up to this many fallback hosts are tried in parallel, each attempt starting
+	 * fallbackRaceDelay milliseconds after the previous one, or as soon as it fails.
+	 * The first connection to open is used and the others are closed.
+	 * If 0 (the default), fallback hosts are tried one at a time.
+	 */
+	public int fallbackRaceCount = 0;
+
+	/**
+	 * The delay, in milliseconds, between the start of successive fallback
+	 * connection attempts when fallbackRaceCount is set.
+	 */
+	public int fallbackRaceDelay = Defaults.FALLBACK_RACE_DELAY;
+
+	/**
+	 * If greater than zero, inbound channel messages are dispatched to listeners
+	 * on this many worker threads instead of the transport thread. Each channel
+	 * is assigned to a single worker, so messages for a channel are delivered
+	 * in order, and a slow listener delays only the channels sharing its worker.
+	 */
+	public int dispatchThreads = 0;
+
+	/**
+	 * The maximum number of inbound messages awaiting dispatch on each worker,
+	 * if dispatchThreads is set. When a worker's queue is full, the transport
+	 * thread waits for space, so a slow listener slows the reading of messages
+	 * from the connection instead of their accumulating in memory.
+	 */
+	public int dispatchQueueSize = Defaults.DISPATCH_QUEUE_SIZE;
+
+	/**
+	 * The time, in milliseconds, beyond which dispatch of a channel message
+	 * is counted as slow and a warning is logged; 0 to disable.
+	 */
+	public long slowListenerThreshold = Defaults.SLOW_LISTENER_THRESHOLD;
+
+	/**
+	 * The timer used for heartbeat, connection state and channel attach timeouts,
+	 * and to flush buffered writes. If null, a timer shared by all clients is used.
+	 */
+	public HashedWheelTimer timer;
+
 	/**
 	 * Proxy settings
 	 */
@@ -132,4 +240,75 @@ public class ClientOptions extends AuthOptions {
 	 * the primary host is unreachable or indicates that it is unserviceable
 	 */
 	public int httpMaxRetryCount = Defaults.HTTP_MAX_RETRY_COUNT;
+
+	/**
+	 * If true, the connection used for a REST request is kept open once the
+	 * request completes, so that later requests to the same host, including
+	 * fallback hosts, reuse it instead of opening a new connection and TLS
+	 * session. Idle connections are retained by the JDK's keep-alive cache,
+	 * subject to its process-wide settings. If false (the default), each
+	 * connection is closed after its request.
+	 */
+	public boolean httpKeepAlive = false;
+
+	/**
+	 * The factory used to create the engine that makes REST requests. If null,
+	 * HttpURLConnection is used, with a connection per request in flight.
+	 * Set this to an instance of {@link io.ably.lib.transport.Http2Engine.Factory}
+	 * to multiplex requests over a few HTTP/2 connections, driven by a shared
+	 * {@link io.ably.lib.transport.NioEventLoopGroup}.
+	 */
+	public HttpEngine.Factory httpEngineFactory;
+
+	/**
+	 * The maximum number of async REST requests, such as publishAsync()
+	 * and historyAsync(), that are executed concurrently.
+	 * With a non-blocking httpEngineFactory, requests in flight do not occupy
+	 * a thread, so this is instead the number of threads that handle responses,
+	 * and the engine limits the number of requests in flight.
+	 */
+	public int asyncHttpThreadpoolSize = Defaults.ASYNC_HTTP_THREADPOOL_SIZE;
+
+	/**
+	 * The maximum number of async REST requests awaiting execution;
+	 * 0 for no limit. Requests made while the queue is full are handled
+	 * according to asyncHttpRejectionPolicy.
+	 */
+	public int asyncHttpQueueSize = Defaults.ASYNC_HTTP_QUEUE_SIZE;
+
+	/**
+	 * What happens to an async REST request made while the queue is full:
+	 * by default it fails, with its callback called with an error.
+	 * Note that with the block policy, a request made from the callback
+	 * of another request can block that worker until space is available.
+	 */
+	public AsyncHttp.RejectionPolicy asyncHttpRejectionPolicy = AsyncHttp.RejectionPolicy.reject;
+
+	/**
+	 * If greater than zero, messages published with publishAsync() on a REST channel
+	 * are held for up to this many milliseconds so that the messages of several calls
+	 * can be sent in a single request; each call's listener is still called with the
+	 * result of the request that included its messages.
+	 * If zero (the default), every call is sent as its own request.
+	 */
+	public int publishLingerInterval = 0;
+
+	/**
+	 * When publishLingerInterval is set, the maximum number of messages that are
+	 * held before they are sent without waiting for the linger interval.
+	 */
+	public int publishBatchSize = Defaults.PUBLISH_BATCH_SIZE;
+
+	/**
+	 * When publishLingerInterval is set, the maximum combined size, in bytes, of
+	 * the name, clientId and data of the messages sent in a single request.
+	 * This should not exceed the maximum message size of the app.
+	 */
+	public int publishBatchMaxBytes = Defaults.MAX_MESSAGE_SIZE;
+
+	/**
+	 * The maximum number of channels published to in a single request by
+	 * AblyRest.publishBatch(); a batch for more channels is sent in several requests.
+	 */
+	public int batchPublishMaxChannels = Defaults.BATCH_PUBLISH_MAX_CHANNELS;
 }
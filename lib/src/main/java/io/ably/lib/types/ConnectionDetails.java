@@ -16,7 +16,7 @@ public class ConnectionDetails {
 	ConnectionDetails readMsgpack(MessageUnpacker unpacker) throws IOException {
 		int fieldCount = unpacker.unpackMapHeader();
 		for(int i = 0; i < fieldCount; i++) {
-			String fieldName = unpacker.unpackString().intern();
+			String fieldName = fieldNames.read(unpacker);
 			MessageFormat fieldFormat = unpacker.getNextFormat();
 			if(fieldFormat.equals(MessageFormat.NIL)) { unpacker.unpackNil(); continue; }
 
@@ -40,6 +40,8 @@ public class ConnectionDetails {
 		return this;
 	}
 
+	private static final MsgpackFieldNames fieldNames = new MsgpackFieldNames(null, "clientId", "connectionKey", "serverId", "maxMessageSize", "maxInboundRate", "maxFrameSize");
+
 	static ConnectionDetails fromMsgpack(MessageUnpacker unpacker) throws IOException {
 		return (new ConnectionDetails()).readMsgpack(unpacker);
 	}
@@ -0,0 +1,44 @@
+package io.ably.lib.types;
+
+import java.util.zip.Deflater;
+
+/**
+ * Settings for permessage-deflate compression of realtime
+ * WebSocket connections; see ClientOptions.compressTransport.
+ */
+public class DeflateOptions {
+	/**
+	 * The zlib compression level for outbound messages, 0-9
+	 */
+	public int level = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * If true, the client resets its compression context after every
+	 * message. This uses less memory on the server, at the cost of
+	 * a lower compression ratio.
+	 */
+	public boolean clientNoContextTakeover;
+
+	/**
+	 * If true, the server is asked to reset its compression context
+	 * after every message.
+	 */
+	public boolean serverNoContextTakeover;
+
+	/**
+	 * The LZ77 window size, as a base-2 logarithm in the range 8-15,
+	 * that the server is asked to use for messages it sends.
+	 */
+	public int serverMaxWindowBits = 15;
+
+	/**
+	 * Outbound messages smaller than this many bytes are sent uncompressed
+	 */
+	public int threshold = 64;
+
+	/**
+	 * The maximum size, in bytes, of an inbound message once decompressed;
+	 * the connection is closed with 1009 (message too big) if exceeded.
+	 */
+	public int maxInflatedSize = 16 * 1024 * 1024;
+}
@@ -0,0 +1,114 @@
+package io.ably.lib.types;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed message encoding string, such as "utf-8/cipher+aes-128-cbc/base64".
+ * Parsed chains are cached by encoding string, so that the messages of a
+ * stream, which typically share one or two encodings, are not each parsed.
+ * Internal
+ */
+class EncodingChain {
+
+	/**
+	 * The transforms that may appear in an encoding
+	 */
+	enum Transform {
+		base64,
+		utf8,
+		json,
+		cipher,
+		unknown
+	}
+
+	/**
+	 * Get the chain for the given encoding string
+	 * @param encoding the encoding, or null
+	 */
+	static EncodingChain forEncoding(String encoding) {
+		if(encoding == null)
+			return EMPTY;
+		EncodingChain chain = cache.get(encoding);
+		if(chain == null) {
+			if(cache.size() >= MAX_CACHED)
+				cache.clear();
+			chain = new EncodingChain(encoding);
+			cache.put(encoding, chain);
+		}
+		return chain;
+	}
+
+	/**
+	 * The encoding string
+	 */
+	final String encoding;
+
+	/**
+	 * The transforms in the chain, in the order in which they were applied
+	 */
+	final Transform[] transforms;
+
+	/**
+	 * Get the encoding string that remains when the transforms
+	 * at the given index and beyond have been reversed
+	 * @param index
+	 * @return the encoding, or null if there are no remaining transforms
+	 */
+	String prefix(int index) {
+		return prefixes[index];
+	}
+
+	/**
+	 * Get the chain with the given transform applied after this one
+	 * @param xform the transform, as it appears in the encoding string
+	 */
+	EncodingChain append(String xform) {
+		EncodingChain chain = successors.get(xform);
+		if(chain == null) {
+			chain = forEncoding((encoding == null) ? xform : encoding + '/' + xform);
+			successors.put(xform, chain);
+		}
+		return chain;
+	}
+
+	/*******************
+	 * internal
+	 ******************/
+
+	private EncodingChain(String encoding) {
+		this.encoding = encoding;
+		String[] xforms = (encoding == null) ? new String[0] : encoding.split("\\/");
+		transforms = new Transform[xforms.length];
+		prefixes = new String[xforms.length + 1];
+		for(int i = 0; i < xforms.length; i++) {
+			transforms[i] = parse(xforms[i]);
+			prefixes[i + 1] = (i == 0) ? xforms[0] : prefixes[i] + '/' + xforms[i];
+		}
+	}
+
+	private static Transform parse(String xform) {
+		Matcher match = xformPattern.matcher(xform);
+		if(!match.matches())
+			return Transform.unknown;
+		String name = match.group(1);
+		if(name.equals("base64")) return Transform.base64;
+		if(name.equals("utf-8")) return Transform.utf8;
+		if(name.equals("json")) return Transform.json;
+		if(name.equals("cipher")) return Transform.cipher;
+		return Transform.unknown;
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	private final String[] prefixes;
+	private final ConcurrentHashMap<String, EncodingChain> successors = new ConcurrentHashMap<String, EncodingChain>();
+
+	private static final int MAX_CACHED = 64;
+	private static final Pattern xformPattern = Pattern.compile("([\\-\\w]+)(\\+([\\-\\w]+))?");
+	private static final ConcurrentHashMap<String, EncodingChain> cache = new ConcurrentHashMap<String, EncodingChain>();
+	private static final EncodingChain EMPTY = new EncodingChain(null);
+}
@@ -69,7 +69,7 @@ public class ErrorInfo {
 	ErrorInfo readMsgpack(MessageUnpacker unpacker) throws IOException {
 		int fieldCount = unpacker.unpackMapHeader();
 		for(int i = 0; i < fieldCount; i++) {
-			String fieldName = unpacker.unpackString().intern();
+			String fieldName = fieldNames.read(unpacker);
 			MessageFormat fieldFormat = unpacker.getNextFormat();
 			if(fieldFormat.equals(MessageFormat.NIL)) { unpacker.unpackNil(); continue; }
 
@@ -87,6 +87,8 @@ public class ErrorInfo {
 		return this;
 	}
 
+	private static final MsgpackFieldNames fieldNames = new MsgpackFieldNames(null, "message", "code", "statusCode");
+
 	static ErrorInfo fromMsgpack(MessageUnpacker unpacker) throws IOException {
 		return (new ErrorInfo()).readMsgpack(unpacker);
 	}
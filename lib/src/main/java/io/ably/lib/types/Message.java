@@ -1,16 +1,13 @@
 package io.ably.lib.types;
 
 import java.io.IOException;
-import java.lang.reflect.Type;
 
 import org.msgpack.core.MessageFormat;
 import org.msgpack.core.MessagePacker;
 import org.msgpack.core.MessageUnpacker;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * A class representing an individual message to be sent or received
@@ -75,7 +72,7 @@ public class Message extends BaseMessage {
 	Message readMsgpack(MessageUnpacker unpacker) throws IOException {
 		int fieldCount = unpacker.unpackMapHeader();
 		for(int i = 0; i < fieldCount; i++) {
-			String fieldName = unpacker.unpackString().intern();
+			String fieldName = fieldNames.read(unpacker);
 			MessageFormat fieldFormat = unpacker.getNextFormat();
 			if(fieldFormat.equals(MessageFormat.NIL)) { unpacker.unpackNil(); continue; }
 
@@ -90,16 +87,50 @@ public class Message extends BaseMessage {
 		return this;
 	}
 
+	private static final MsgpackFieldNames fieldNames = new MsgpackFieldNames(BaseMessage.baseFieldNames, "name");
+
 	static Message fromMsgpack(MessageUnpacker unpacker) throws IOException {
 		return (new Message()).readMsgpack(unpacker);
 	}
 
-	public static class Serializer extends BaseMessage.Serializer implements JsonSerializer<Message> {
+	/**
+	 * A set of messages to be published to each of a set of channels,
+	 * with AblyRest.publishBatch()
+	 */
+	public static class Batch {
+		public String[] channels;
+		public Message[] messages;
+
+		public Batch(String channel, Message[] messages) {
+			this(new String[] { channel }, messages);
+		}
+
+		public Batch(String[] channels, Message[] messages) {
+			this.channels = channels;
+			this.messages = messages;
+		}
+	}
+
+	public static class Serializer extends BaseMessage.Serializer<Message> {
 		@Override
-		public JsonElement serialize(Message message, Type typeOfMessage, JsonSerializationContext ctx) {
-			JsonObject json = (JsonObject)super.serialize(message, typeOfMessage, ctx);
-			if(message.name != null) json.addProperty("name", message.name);
-			return json;
-		}		
+		protected Message newMessage() {
+			return new Message();
+		}
+
+		@Override
+		protected void writeFields(JsonWriter out, Message message) throws IOException {
+			super.writeFields(out, message);
+			if(message.name != null) out.name("name").value(message.name);
+		}
+
+		@Override
+		protected boolean readField(JsonReader in, String fieldName, Message message) throws IOException {
+			if(super.readField(in, fieldName, message)) return true;
+			if(fieldName.equals("name")) {
+				message.name = in.nextString();
+				return true;
+			}
+			return false;
+		}
 	}
 }
@@ -1,12 +1,13 @@
 package io.ably.lib.types;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
-import org.msgpack.core.MessagePack;
 import org.msgpack.core.MessagePacker;
 import org.msgpack.core.MessageUnpacker;
 
+import com.google.gson.stream.JsonReader;
+
 import io.ably.lib.http.Http;
 import io.ably.lib.http.Http.BodyHandler;
 import io.ably.lib.http.Http.JSONRequestBody;
@@ -34,7 +35,16 @@ public class MessageSerializer {
 
 	public static Message[] readMsgpack(byte[] packed) throws AblyException {
 		try {
-			MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(packed);
+			MessageUnpacker unpacker = ProtocolSerializer.newUnpacker(packed);
+			return readMsgpackArray(unpacker);
+		} catch(IOException ioe) {
+			throw AblyException.fromThrowable(ioe);
+		}
+	}
+
+	public static Message[] readMsgpack(ByteBuffer packed) throws AblyException {
+		try {
+			MessageUnpacker unpacker = ProtocolSerializer.newUnpacker(packed);
 			return readMsgpackArray(unpacker);
 		} catch(IOException ioe) {
 			throw AblyException.fromThrowable(ioe);
@@ -53,13 +63,29 @@ public class MessageSerializer {
 		return new Http.ByteArrayRequestBody(writeMsgpackArray(messages), "application/x-msgpack");
 	}
 
+	public static RequestBody asMsgpackRequest(Message.Batch[] pubSpecs) {
+		MsgpackEncoder encoder = MsgpackEncoder.get();
+		try {
+			MessagePacker packer = encoder.begin();
+			packer.packArrayHeader(pubSpecs.length);
+			for(Message.Batch spec : pubSpecs) {
+				packer.packMapHeader(2);
+				packer.packString("channels");
+				packer.packArrayHeader(spec.channels.length);
+				for(String channel : spec.channels)
+					packer.packString(channel);
+				packer.packString("messages");
+				writeMsgpackArray(spec.messages, packer);
+			}
+			return new Http.ByteArrayRequestBody(encoder.endToArray(), "application/x-msgpack");
+		} catch(IOException e) { return null; }
+	}
+
 	static byte[] writeMsgpackArray(Message[] messages) {
+		MsgpackEncoder encoder = MsgpackEncoder.get();
 		try {
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
-			MessagePacker packer = MessagePack.newDefaultPacker(out);
-			writeMsgpackArray(messages, packer);
-			packer.flush();
-			return out.toByteArray();
+			writeMsgpackArray(messages, encoder.begin());
+			return encoder.endToArray();
 		} catch(IOException e) { return null; }
 	}
 
@@ -72,14 +98,6 @@ public class MessageSerializer {
 		} catch(IOException e) {}
 	}
 
-	/****************************************
-	 *              JSON decode
-	 ****************************************/
-	
-	private static Message[] readJSON(byte[] packed) throws IOException {
-		return Serialisation.gson.fromJson(new String(packed), Message[].class);
-	}
-
 	/****************************************
 	 *            JSON encode
 	 ****************************************/
@@ -92,6 +110,10 @@ public class MessageSerializer {
 		return new JSONRequestBody(Serialisation.gson.toJson(messages));
 	}
 
+	public static RequestBody asJSONRequest(Message.Batch[] pubSpecs) {
+		return new JSONRequestBody(Serialisation.gson.toJson(pubSpecs));
+	}
+
 	/****************************************
 	 *              BodyHandler
 	 ****************************************/
@@ -100,25 +122,28 @@ public class MessageSerializer {
 		return opts == null ? messageResponseHandler : new MessageBodyHandler(opts);
 	}
 
-	private static class MessageBodyHandler implements BodyHandler<Message> {
+	private static class MessageBodyHandler extends MsgpackArrayBodyHandler<Message> {
 
 		public MessageBodyHandler(ChannelOptions opts) { this.opts = opts; }
 
 		@Override
-		public Message[] handleResponseBody(String contentType, byte[] body) throws AblyException {
-			try {
-				Message[] messages = null;
-				if("application/json".equals(contentType))
-					messages = readJSON(body);
-				else if("application/x-msgpack".equals(contentType))
-					messages = readMsgpack(body);
-				if(messages != null)
-					for(Message message : messages)
-						message.decode(opts);
-				return messages;
-			} catch(IOException e) {
-				throw AblyException.fromThrowable(e);
-			}
+		protected Message readJSON(JsonReader reader) {
+			return Serialisation.gson.fromJson(reader, Message.class);
+		}
+
+		@Override
+		protected Message readMsgpack(MessageUnpacker unpacker) throws IOException {
+			return Message.fromMsgpack(unpacker);
+		}
+
+		@Override
+		protected void decode(Message message) throws AblyException {
+			message.decode(opts);
+		}
+
+		@Override
+		protected Message[] newArray(int length) {
+			return new Message[length];
 		}
 
 		private ChannelOptions opts;
@@ -0,0 +1,56 @@
+package io.ably.lib.types;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+import io.ably.lib.http.Http.ItemHandler;
+
+/**
+ * An ArrayBodyHandler for item types that can also be read from
+ * msgpack, for response bodies that are JSON or msgpack arrays.
+ * Internal
+ */
+abstract class MsgpackArrayBodyHandler<T> extends ArrayBodyHandler<T> {
+
+	@Override
+	public T[] handleResponseBody(String contentType, byte[] body) throws AblyException {
+		if(MSGPACK.equals(contentType))
+			return readMsgpackArray(ProtocolSerializer.newUnpacker(body), null);
+		return super.handleResponseBody(contentType, body);
+	}
+
+	@Override
+	public T[] handleResponseBody(String contentType, InputStream body, ItemHandler<T> itemHandler) throws AblyException {
+		if(MSGPACK.equals(contentType))
+			return readMsgpackArray(MessagePack.newDefaultUnpacker(body), itemHandler);
+		return super.handleResponseBody(contentType, body, itemHandler);
+	}
+
+	/**
+	 * Read one item from a msgpack array
+	 */
+	protected abstract T readMsgpack(MessageUnpacker unpacker) throws IOException;
+
+	/*******************
+	 * internal
+	 ******************/
+
+	private T[] readMsgpackArray(MessageUnpacker unpacker, ItemHandler<T> itemHandler) throws AblyException {
+		List<T> items = (itemHandler == null) ? new ArrayList<T>() : null;
+		try {
+			int count = unpacker.unpackArrayHeader();
+			for(int i = 0; i < count; i++)
+				onItem(readMsgpack(unpacker), items, itemHandler);
+		} catch(IOException e) {
+			throw AblyException.fromThrowable(e);
+		}
+		return toArray(items);
+	}
+
+	private static final String MSGPACK = "application/x-msgpack";
+}
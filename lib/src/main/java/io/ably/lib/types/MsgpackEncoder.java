@@ -0,0 +1,136 @@
+package io.ably.lib.types;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.buffer.MessageBuffer;
+import org.msgpack.core.buffer.MessageBufferOutput;
+
+/**
+ * A msgpack encoder whose packer and output array are reused from one
+ * message to the next. Each thread has its own encoder; the packer writes
+ * directly into the array, and the result is returned as a view on it,
+ * so encoding a message does not copy the output or allocate a new array
+ * unless the message is larger than any recent one.
+ * The array is sized from recent message sizes, and is replaced by a
+ * smaller one when it is much larger than those messages.
+ * Internal
+ */
+class MsgpackEncoder implements MessageBufferOutput {
+
+	/**
+	 * Get the encoder for the current thread
+	 */
+	static MsgpackEncoder get() {
+		return encoders.get();
+	}
+
+	/**
+	 * Start encoding a message
+	 * @return the packer to write the message to
+	 */
+	MessagePacker begin() {
+		if(active || packer == null) {
+			/* a previous encode did not complete, so the packer state is unknown */
+			packer = MessagePack.newDefaultPacker(this);
+		}
+		if(array.length > MAX_RETAINED_SIZE && array.length > averageSize * 4)
+			array = new byte[Math.max(INITIAL_SIZE, averageSize * 2)];
+		count = 0;
+		active = true;
+		return packer;
+	}
+
+	/**
+	 * Complete encoding a message
+	 * @return a view on the encoded message; this is only valid
+	 * until the encoder is next used on this thread
+	 * @throws IOException
+	 */
+	ByteBuffer end() throws IOException {
+		packer.flush();
+		active = false;
+		averageSize += (count - averageSize) / 8;
+		if(view == null || view.array() != array)
+			view = ByteBuffer.wrap(array);
+		view.limit(count);
+		view.position(0);
+		return view;
+	}
+
+	/**
+	 * Complete encoding a message
+	 * @return a copy of the encoded message
+	 * @throws IOException
+	 */
+	byte[] endToArray() throws IOException {
+		ByteBuffer encoded = end();
+		return Arrays.copyOf(encoded.array(), encoded.limit());
+	}
+
+	/*******************
+	 * MessageBufferOutput
+	 ******************/
+
+	@Override
+	public MessageBuffer next(int minimumSize) {
+		ensureCapacity(minimumSize);
+		return MessageBuffer.wrap(array, count, array.length - count);
+	}
+
+	@Override
+	public void writeBuffer(int length) {
+		count += length;
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(buffer, offset, array, count, length);
+		count += length;
+	}
+
+	@Override
+	public void add(byte[] buffer, int offset, int length) {
+		write(buffer, offset, length);
+	}
+
+	@Override
+	public void flush() {}
+
+	@Override
+	public void close() {}
+
+	/*******************
+	 * internal
+	 ******************/
+
+	private void ensureCapacity(int size) {
+		if(array.length - count < size)
+			array = Arrays.copyOf(array, Math.max(array.length * 2, count + size));
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	private byte[] array = new byte[INITIAL_SIZE];
+	private int count;
+	private int averageSize;
+	private boolean active;
+	private MessagePacker packer;
+	private ByteBuffer view;
+
+	private static final int INITIAL_SIZE = 1024;
+	private static final int MAX_RETAINED_SIZE = 65536;
+
+	private static final ThreadLocal<MsgpackEncoder> encoders = new ThreadLocal<MsgpackEncoder>() {
+		@Override
+		protected MsgpackEncoder initialValue() {
+			return new MsgpackEncoder();
+		}
+	};
+}
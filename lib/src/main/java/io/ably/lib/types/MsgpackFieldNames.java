@@ -0,0 +1,145 @@
+package io.ably.lib.types;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.core.buffer.ArrayBufferInput;
+import org.msgpack.core.buffer.MessageBuffer;
+
+/**
+ * The set of field names of a type read from msgpack.
+ * Map keys are matched against the names on their raw UTF-8 bytes, and the
+ * name is returned as the constant given to the constructor, so the result
+ * may be compared by identity with a string literal. When unpacking from an
+ * array with an ArrayUnpacker, keys are compared in place, so a known field
+ * is identified without allocating anything for its key.
+ * Internal
+ */
+class MsgpackFieldNames {
+
+	/**
+	 * An unpacker reading from an array, whose content is
+	 * accessible for matching keys in place
+	 */
+	static class ArrayUnpacker extends MessageUnpacker {
+		ArrayUnpacker(byte[] array, int offset, int length) {
+			super(new ArrayBufferInput(array, offset, length), new MessagePack.UnpackerConfig());
+			this.array = array;
+			this.offset = offset;
+			this.end = offset + length;
+		}
+
+		private final byte[] array;
+		private final int offset;
+		private final int end;
+	}
+
+	/**
+	 * @param inherited field names of a supertype, or null
+	 * @param names the field names
+	 */
+	MsgpackFieldNames(String[] inherited, String... names) {
+		this.names = (inherited == null) ? names : concat(inherited, names);
+		int maxLength = 0;
+		byte[][] encoded = new byte[this.names.length][];
+		for(int i = 0; i < this.names.length; i++) {
+			encoded[i] = this.names[i].getBytes(UTF8);
+			maxLength = Math.max(maxLength, encoded[i].length);
+		}
+		byLength = new int[maxLength + 1][];
+		for(int i = 0; i < encoded.length; i++) {
+			int length = encoded[i].length;
+			int[] indices = (byLength[length] == null) ? new int[0] : byLength[length];
+			indices = Arrays.copyOf(indices, indices.length + 1);
+			indices[indices.length - 1] = i;
+			byLength[length] = indices;
+		}
+		this.encoded = encoded;
+	}
+
+	/**
+	 * Read a map key
+	 * @param unpacker
+	 * @return the matching field name constant, or a new String
+	 * containing the key if it does not match a known field
+	 * @throws IOException
+	 */
+	String read(MessageUnpacker unpacker) throws IOException {
+		if(unpacker instanceof ArrayUnpacker) {
+			String name = readInPlace((ArrayUnpacker)unpacker);
+			if(name != null)
+				return name;
+		}
+		int length = unpacker.unpackRawStringHeader();
+		if(length >= byLength.length || byLength[length] == null)
+			return new String(unpacker.readPayload(length), UTF8);
+
+		MessageBuffer key = unpacker.readPayloadAsReference(length);
+		for(int index : byLength[length]) {
+			byte[] candidate = encoded[index];
+			int j = 0;
+			while(j < length && candidate[j] == key.getByte(j))
+				++j;
+			if(j == length)
+				return names[index];
+		}
+		return new String(key.toByteArray(), UTF8);
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	/**
+	 * Match the next key in the unpacker's array without consuming it,
+	 * and skip it if it is a known field
+	 * @return the field name, or null if the key is not a known field
+	 */
+	private String readInPlace(ArrayUnpacker unpacker) throws IOException {
+		byte[] array = unpacker.array;
+		int position = unpacker.offset + (int)unpacker.getTotalReadBytes();
+		if(position >= unpacker.end)
+			return null;
+		int start, length;
+		int header = array[position] & 0xff;
+		if((header & 0xe0) == 0xa0) {
+			/* fixstr */
+			length = header & 0x1f;
+			start = position + 1;
+		} else if(header == 0xd9 && position + 1 < unpacker.end) {
+			/* str 8 */
+			length = array[position + 1] & 0xff;
+			start = position + 2;
+		} else {
+			return null;
+		}
+		if(length >= byLength.length || byLength[length] == null || start + length > unpacker.end)
+			return null;
+		for(int index : byLength[length]) {
+			byte[] candidate = encoded[index];
+			int j = 0;
+			while(j < length && candidate[j] == array[start + j])
+				++j;
+			if(j == length) {
+				unpacker.skipValue();
+				return names[index];
+			}
+		}
+		return null;
+	}
+
+	private static String[] concat(String[] first, String[] second) {
+		String[] result = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+
+	private final String[] names;
+	private final byte[][] encoded;
+	private final int[][] byLength;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+}
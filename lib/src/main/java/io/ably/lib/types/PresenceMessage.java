@@ -10,11 +10,10 @@ import org.msgpack.core.MessageUnpacker;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * A class representing an individual presence update to be sent or received
@@ -86,6 +85,10 @@ public class PresenceMessage extends BaseMessage implements Cloneable {
 		result.encoding = encoding;
 		result.data = data;
 		result.action = action;
+		synchronized(this) {
+			result.decodePending = decodePending;
+			result.pendingDecodeOptions = pendingDecodeOptions;
+		}
 		return result;
 	}
 
@@ -101,7 +104,7 @@ public class PresenceMessage extends BaseMessage implements Cloneable {
 	PresenceMessage readMsgpack(MessageUnpacker unpacker) throws IOException {
 		int fieldCount = unpacker.unpackMapHeader();
 		for(int i = 0; i < fieldCount; i++) {
-			String fieldName = unpacker.unpackString().intern();
+			String fieldName = fieldNames.read(unpacker);
 			MessageFormat fieldFormat = unpacker.getNextFormat();
 			if(fieldFormat.equals(MessageFormat.NIL)) { unpacker.unpackNil(); continue; }
 
@@ -116,6 +119,8 @@ public class PresenceMessage extends BaseMessage implements Cloneable {
 		return this;
 	}
 
+	private static final MsgpackFieldNames fieldNames = new MsgpackFieldNames(BaseMessage.baseFieldNames, "action");
+
 	static PresenceMessage fromMsgpack(MessageUnpacker unpacker) throws IOException {
 		return (new PresenceMessage()).readMsgpack(unpacker);
 	}
@@ -128,12 +133,26 @@ public class PresenceMessage extends BaseMessage implements Cloneable {
 		}
 	}
 
-	public static class Serializer extends BaseMessage.Serializer implements JsonSerializer<PresenceMessage> {
+	public static class Serializer extends BaseMessage.Serializer<PresenceMessage> {
+		@Override
+		protected PresenceMessage newMessage() {
+			return new PresenceMessage();
+		}
+
 		@Override
-		public JsonElement serialize(PresenceMessage message, Type typeOfMessage, JsonSerializationContext ctx) {
-			JsonObject json = (JsonObject)super.serialize(message, typeOfMessage, ctx);
-			if(message.action != null) json.addProperty("action", message.action.getValue());
-			return json;
-		}		
+		protected void writeFields(JsonWriter out, PresenceMessage message) throws IOException {
+			super.writeFields(out, message);
+			if(message.action != null) out.name("action").value(message.action.getValue());
+		}
+
+		@Override
+		protected boolean readField(JsonReader in, String fieldName, PresenceMessage message) throws IOException {
+			if(super.readField(in, fieldName, message)) return true;
+			if(fieldName.equals("action")) {
+				message.action = Action.findByValue(in.nextInt());
+				return true;
+			}
+			return false;
+		}
 	}
 }
@@ -1,12 +1,13 @@
 package io.ably.lib.types;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
-import org.msgpack.core.MessagePack;
 import org.msgpack.core.MessagePacker;
 import org.msgpack.core.MessageUnpacker;
 
+import com.google.gson.stream.JsonReader;
+
 import io.ably.lib.http.Http.BodyHandler;
 import io.ably.lib.http.Http.JSONRequestBody;
 import io.ably.lib.http.Http.RequestBody;
@@ -33,7 +34,16 @@ public class PresenceSerializer {
 
 	public static PresenceMessage[] readMsgpack(byte[] packed) throws AblyException {
 		try {
-			MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(packed);
+			MessageUnpacker unpacker = ProtocolSerializer.newUnpacker(packed);
+			return readMsgpackArray(unpacker);
+		} catch(IOException ioe) {
+			throw AblyException.fromThrowable(ioe);
+		}
+	}
+
+	public static PresenceMessage[] readMsgpack(ByteBuffer packed) throws AblyException {
+		try {
+			MessageUnpacker unpacker = ProtocolSerializer.newUnpacker(packed);
 			return readMsgpackArray(unpacker);
 		} catch(IOException ioe) {
 			throw AblyException.fromThrowable(ioe);
@@ -45,12 +55,10 @@ public class PresenceSerializer {
 	 ****************************************/
 
 	static byte[] writeMsgpackArray(PresenceMessage[] messages) {
+		MsgpackEncoder encoder = MsgpackEncoder.get();
 		try {
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
-			MessagePacker packer = MessagePack.newDefaultPacker(out);
-			writeMsgpackArray(messages, packer);
-			packer.flush();
-			return out.toByteArray();
+			writeMsgpackArray(messages, encoder.begin());
+			return encoder.endToArray();
 		} catch(IOException e) { return null; }
 	}
 
@@ -63,14 +71,6 @@ public class PresenceSerializer {
 		} catch(IOException e) {}
 	}
 
-	/****************************************
-	 *              JSON decode
-	 ****************************************/
-	
-	private static PresenceMessage[] readJSON(byte[] packed) throws IOException {
-		return Serialisation.gson.fromJson(new String(packed), PresenceMessage[].class);
-	}
-
 	/****************************************
 	 *            JSON encode
 	 ****************************************/
@@ -91,25 +91,28 @@ public class PresenceSerializer {
 		return opts == null ? presenceResponseHandler : new PresenceBodyHandler(opts);
 	}
 
-	private static class PresenceBodyHandler implements BodyHandler<PresenceMessage> {
+	private static class PresenceBodyHandler extends MsgpackArrayBodyHandler<PresenceMessage> {
 
 		public PresenceBodyHandler(ChannelOptions opts) { this.opts = opts; }
 
 		@Override
-		public PresenceMessage[] handleResponseBody(String contentType, byte[] body) throws AblyException {
-			try {
-				PresenceMessage[] messages = null;
-				if("application/json".equals(contentType))
-					messages = readJSON(body);
-				else if("application/x-msgpack".equals(contentType))
-					messages = readMsgpack(body);
-				if(messages != null)
-					for(PresenceMessage message : messages)
-						message.decode(opts);
-				return messages;
-			} catch(IOException e) {
-				throw AblyException.fromThrowable(e);
-			}
+		protected PresenceMessage readJSON(JsonReader reader) {
+			return Serialisation.gson.fromJson(reader, PresenceMessage.class);
+		}
+
+		@Override
+		protected PresenceMessage readMsgpack(MessageUnpacker unpacker) throws IOException {
+			return PresenceMessage.fromMsgpack(unpacker);
+		}
+
+		@Override
+		protected void decode(PresenceMessage message) throws AblyException {
+			message.decode(opts);
+		}
+
+		@Override
+		protected PresenceMessage[] newArray(int length) {
+			return new PresenceMessage[length];
 		}
 
 		private ChannelOptions opts;
@@ -74,8 +74,8 @@ public class ProtocolMessage {
 						PresenceMessage[] srcMessages = src.presence;
 						PresenceMessage[] destMessages = dest.presence;
 						PresenceMessage[] mergedMessages = dest.presence = new PresenceMessage[destMessages.length + srcMessages.length];
-						System.arraycopy(mergedMessages, 0, destMessages, 0, destMessages.length);
-						System.arraycopy(mergedMessages, destMessages.length, srcMessages, 0, srcMessages.length);
+						System.arraycopy(destMessages, 0, mergedMessages, 0, destMessages.length);
+						System.arraycopy(srcMessages, 0, mergedMessages, destMessages.length, srcMessages.length);
 						result = true;
 					}
 					break;
@@ -147,7 +147,7 @@ public class ProtocolMessage {
 	ProtocolMessage readMsgpack(MessageUnpacker unpacker) throws IOException {
 		int fieldCount = unpacker.unpackMapHeader();
 		for(int i = 0; i < fieldCount; i++) {
-			String fieldName = unpacker.unpackString().intern();
+			String fieldName = fieldNames.read(unpacker);
 			MessageFormat fieldFormat = unpacker.getNextFormat();
 			if(fieldFormat.equals(MessageFormat.NIL)) { unpacker.unpackNil(); continue; }
 
@@ -189,6 +189,10 @@ public class ProtocolMessage {
 		return this;
 	}
 
+	private static final MsgpackFieldNames fieldNames = new MsgpackFieldNames(null,
+			"action", "flags", "count", "error", "id", "channel", "channelSerial", "connectionId", "connectionKey",
+			"connectionSerial", "msgSerial", "timestamp", "messages", "presence", "connectionDetails");
+
 	static ProtocolMessage fromMsgpack(MessageUnpacker unpacker) throws IOException {
 		return (new ProtocolMessage()).readMsgpack(unpacker);
 	}
@@ -1,10 +1,10 @@
 package io.ably.lib.types;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 
 import org.msgpack.core.MessagePack;
-import org.msgpack.core.MessagePacker;
 import org.msgpack.core.MessageUnpacker;
 
 import io.ably.lib.util.Serialisation;
@@ -17,25 +17,103 @@ public class ProtocolSerializer {
 	
 	public static ProtocolMessage readMsgpack(byte[] packed) throws AblyException {
 		try {
-			MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(packed);
+			MessageUnpacker unpacker = newUnpacker(packed);
 			return ProtocolMessage.fromMsgpack(unpacker);
 		} catch (IOException ioe) {
 			throw AblyException.fromThrowable(ioe);
 		}
 	}
 
+	/**
+	 * Decode a ProtocolMessage from the bytes between the position and limit
+	 * of the given buffer. The buffer's own position is left unchanged, and
+	 * its content is not copied to an intermediate array.
+	 * @param packed
+	 * @return
+	 * @throws AblyException
+	 */
+	public static ProtocolMessage readMsgpack(ByteBuffer packed) throws AblyException {
+		try {
+			MessageUnpacker unpacker = newUnpacker(packed);
+			return ProtocolMessage.fromMsgpack(unpacker);
+		} catch (IOException ioe) {
+			throw AblyException.fromThrowable(ioe);
+		}
+	}
+
+	/**
+	 * Obtain an unpacker reading the given array
+	 */
+	static MessageUnpacker newUnpacker(byte[] packed) {
+		return new MsgpackFieldNames.ArrayUnpacker(packed, 0, packed.length);
+	}
+
+	/**
+	 * Obtain an unpacker reading the remaining bytes of the given buffer.
+	 * Heap buffers are unpacked in place from the backing array; direct and
+	 * read-only buffers are read incrementally via a channel view.
+	 */
+	static MessageUnpacker newUnpacker(ByteBuffer packed) {
+		if(packed.hasArray())
+			return new MsgpackFieldNames.ArrayUnpacker(packed.array(), packed.arrayOffset() + packed.position(), packed.remaining());
+
+		return MessagePack.newDefaultUnpacker(new ByteBufferChannel(packed.duplicate()));
+	}
+
+	/**
+	 * A ReadableByteChannel view of the remaining content of a ByteBuffer
+	 */
+	private static class ByteBufferChannel implements ReadableByteChannel {
+		ByteBufferChannel(ByteBuffer buffer) { this.buffer = buffer; }
+
+		@Override
+		public int read(ByteBuffer dst) {
+			int remaining = buffer.remaining();
+			if(remaining == 0)
+				return -1;
+			int count = Math.min(remaining, dst.remaining());
+			ByteBuffer src = buffer.duplicate();
+			src.limit(src.position() + count);
+			dst.put(src);
+			buffer.position(buffer.position() + count);
+			return count;
+		}
+
+		@Override
+		public boolean isOpen() { return open; }
+
+		@Override
+		public void close() { open = false; }
+
+		private final ByteBuffer buffer;
+		private boolean open = true;
+	}
+
 	/****************************************
 	 *            Msgpack encode
 	 ****************************************/
 	
 	public static byte[] writeMsgpack(ProtocolMessage message) {
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		MessagePacker packer = MessagePack.newDefaultPacker(out);
+		MsgpackEncoder encoder = MsgpackEncoder.get();
 		try {
-			message.writeMsgpack(packer);
-	
-			packer.flush();
-			return out.toByteArray();
+			message.writeMsgpack(encoder.begin());
+			return encoder.endToArray();
+		} catch(IOException e) { return null; }
+	}
+
+	/**
+	 * Encode a ProtocolMessage into a buffer that is reused by this thread.
+	 * The returned buffer is only valid until the next msgpack encode on
+	 * the same thread, so it must be consumed (eg written or copied to a
+	 * frame) before then.
+	 * @param message
+	 * @return a view on the encoded message
+	 */
+	public static ByteBuffer writeMsgpackToBuffer(ProtocolMessage message) {
+		MsgpackEncoder encoder = MsgpackEncoder.get();
+		try {
+			message.writeMsgpack(encoder.begin());
+			return encoder.end();
 		} catch(IOException e) { return null; }
 	}
 
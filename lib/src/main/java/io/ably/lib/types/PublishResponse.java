@@ -0,0 +1,75 @@
+package io.ably.lib.types;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+
+import com.google.gson.JsonParseException;
+
+import io.ably.lib.http.Http.ResponseHandler;
+import io.ably.lib.util.Serialisation;
+
+/**
+ * The result of publishing to one channel with AblyRest.publishBatch()
+ */
+public class PublishResponse {
+
+	/**
+	 * The name of the channel
+	 */
+	public String channel;
+
+	/**
+	 * The id of the first message published, if successful
+	 */
+	public String messageId;
+
+	/**
+	 * The reason publishing to the channel failed; null if successful
+	 */
+	public ErrorInfo error;
+
+	public PublishResponse() {}
+
+	public PublishResponse(String channel, ErrorInfo error) {
+		this.channel = channel;
+		this.error = error;
+	}
+
+	public String toString() {
+		StringBuilder result = new StringBuilder("[PublishResponse channel=").append(channel);
+		if(messageId != null)
+			result.append(" messageId=").append(messageId);
+		if(error != null)
+			result.append(" error=").append(error);
+		result.append(']');
+		return result.toString();
+	}
+
+	/**
+	 * Reads the response to a batch publish request: an array of results when
+	 * every publish succeeded, or an error response that includes the results
+	 * when some failed. Internal
+	 */
+	public static ResponseHandler<PublishResponse[]> batchResponseHandler = new ResponseHandler<PublishResponse[]>() {
+		@Override
+		public PublishResponse[] handleResponse(int statusCode, String contentType, Collection<String> linkHeaders, byte[] body) throws AblyException {
+			if(body == null)
+				return null;
+			try {
+				String jsonText = new String(body, "UTF-8");
+				if(statusCode >= 200 && statusCode < 300)
+					return Serialisation.gson.fromJson(jsonText, PublishResponse[].class);
+				BatchErrorResponse errorResponse = Serialisation.gson.fromJson(jsonText, BatchErrorResponse.class);
+				if(errorResponse.batchResponse == null)
+					throw AblyException.fromErrorInfo(errorResponse.error);
+				return errorResponse.batchResponse;
+			} catch(UnsupportedEncodingException | JsonParseException e) {
+				throw AblyException.fromThrowable(e);
+			}
+		}
+	};
+
+	private static class BatchErrorResponse extends ErrorResponse {
+		private PublishResponse[] batchResponse;
+	}
+}
@@ -0,0 +1,31 @@
+package io.ably.lib.types;
+
+/**
+ * The action taken when a message is published while the realtime
+ * message queue is at its limit; see ClientOptions.queueMaxMessages
+ * and ClientOptions.queueMaxBytes.
+ */
+public enum QueueOverflowPolicy {
+	/**
+	 * The publishing thread waits until space is available, or the
+	 * queued messages are failed. A publish from a thread of the library,
+	 * such as from within a listener, cannot wait, so it throws as for failFast
+	 */
+	block,
+
+	/**
+	 * The oldest queued messages are discarded, and their listeners
+	 * notified of failure, to make space for the new message
+	 */
+	dropOldest,
+
+	/**
+	 * The new message is discarded and its listener notified of failure
+	 */
+	dropNewest,
+
+	/**
+	 * The publish call throws an exception
+	 */
+	failFast
+}
@@ -2,6 +2,8 @@ package io.ably.lib.types;
 
 import java.io.UnsupportedEncodingException;
 
+import com.google.gson.stream.JsonReader;
+
 import io.ably.lib.http.Http.BodyHandler;
 import io.ably.lib.util.Serialisation;
 
@@ -23,12 +25,15 @@ public class StatsReader  {
 		return Serialisation.gson.fromJson(packed, Stats[].class);
 	}
 
-	public static BodyHandler<Stats> statsResponseHandler = new BodyHandler<Stats>() {
+	public static BodyHandler<Stats> statsResponseHandler = new ArrayBodyHandler<Stats>() {
+		@Override
+		protected Stats readJSON(JsonReader reader) {
+			return Serialisation.gson.fromJson(reader, Stats.class);
+		}
+
 		@Override
-		public Stats[] handleResponseBody(String contentType, byte[] body) throws AblyException {
-			if("application/json".equals(contentType))
-				return readJSON(body);
-			return null;
+		protected Stats[] newArray(int length) {
+			return new Stats[length];
 		}
 	};
 }
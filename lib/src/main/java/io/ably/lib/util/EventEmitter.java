@@ -1,18 +1,20 @@
 package io.ably.lib.util;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * An interface exposing the ability to register listeners for a class of events
  * @author paddy
  *
+ * Listeners are held in immutable arrays, with the event-specific listeners
+ * in an immutable map keyed by event; these are replaced on each registration change,
+ * so emit() does not lock. A listener registered or removed while an event
+ * is being emitted on another thread may or may not receive that event.
+ *
  * @param <Event> an Enum containing the event names that listeners may be registered for
  * @param <Listener> the interface type of the listener
  */
@@ -22,8 +24,10 @@ public abstract class EventEmitter<Event, Listener> {
 	 * Remove all registered listeners irrespective of type
 	 */
 	public synchronized void off() {
-		listeners.clear();
+		for(Filter filter : filters.values())
+			filter.removed.set(true);
 		filters.clear();
+		state = emptyState();
 	}
 
 	/**
@@ -31,8 +35,11 @@ public abstract class EventEmitter<Event, Listener> {
 	 * @param listener
 	 */
 	public synchronized void on(Listener listener) {
-		if(!listeners.contains(listener))
-			listeners.add(listener);
+		State current = state;
+		for(Object existing : current.listeners)
+			if(existing == listener)
+				return;
+		state = new State(append(current.listeners, listener), current.anyFilters, current.eventFilters);
 	}
 
 	/**
@@ -40,7 +47,7 @@ public abstract class EventEmitter<Event, Listener> {
 	 * @param listener
 	 */
 	public synchronized void once(Listener listener) {
-		filters.put(listener, new Filter(null, listener, true));
+		putFilter(new Filter(null, listener, true));
 	}
 
 	/**
@@ -48,8 +55,17 @@ public abstract class EventEmitter<Event, Listener> {
 	 * @param listener
 	 */
 	public synchronized void off(Listener listener) {
-		listeners.remove(listener);
-		filters.remove(listener);
+		State current = state;
+		Object[] listeners = current.listeners;
+		for(int i = 0; i < listeners.length; i++) {
+			if(listeners[i] == listener) {
+				state = new State(remove(listeners, i), current.anyFilters, current.eventFilters);
+				break;
+			}
+		}
+		Filter filter = filters.remove(listener);
+		if(filter != null)
+			removeFilter(filter);
 	}
 
 	/**
@@ -57,7 +73,7 @@ public abstract class EventEmitter<Event, Listener> {
 	 * @param listener
 	 */
 	public synchronized void on(Event event, Listener listener) {
-		filters.put(listener, new Filter(event, listener, false));
+		putFilter(new Filter(event, listener, false));
 	}
 
 	/**
@@ -65,7 +81,7 @@ public abstract class EventEmitter<Event, Listener> {
 	 * @param listener
 	 */
 	public synchronized void once(Event event, Listener listener) {
-		filters.put(listener, new Filter(event, listener, true));
+		putFilter(new Filter(event, listener, true));
 	}
 
 	/**
@@ -75,41 +91,174 @@ public abstract class EventEmitter<Event, Listener> {
 	 */
 	public synchronized void off(Event event, Listener listener) {
 		Filter filter = filters.get(listener);
-		if(filter != null && filter.event == event)
+		if(filter != null && filter.event == event) {
 			filters.remove(listener);
+			removeFilter(filter);
+		}
 	}
 
 	/**
-	 * Emit the given event (broadcasting to registered listeners)
+	 * Emit the given event (broadcasting to registered listeners).
+	 * An exception thrown by a listener is logged, and does not
+	 * prevent the event reaching the remaining listeners.
 	 * @param event the Event
 	 * @param args the arguments to pass to listeners
 	 */
-	public synchronized void emit(Event event, Object... args) {
-		for (int i = listeners.size() - 1; i >= 0; i--) {
-			apply(listeners.get(i), event, args);
+	@SuppressWarnings("unchecked")
+	public void emit(Event event, Object... args) {
+		State current = state;
+		Object[] listeners = current.listeners;
+		for (int i = listeners.length - 1; i >= 0; i--) {
+			applySafely((Listener)listeners[i], event, args);
 		}
 
-		for(Iterator<Map.Entry<Listener, Filter>> it = filters.entrySet().iterator(); it.hasNext(); )
-			if(it.next().getValue().apply(event, args))
-				it.remove();
+		Object[] eventFilters = current.eventFilters.get(event);
+		if(eventFilters != null)
+			applyFilters(eventFilters, event, args);
+		applyFilters(current.anyFilters, event, args);
 	}
 
 	protected abstract void apply(Listener listener, Event event, Object... args);
 
+	/*******************
+	 * internal
+	 ******************/
+
 	protected class Filter {
 		Filter(Event event, Listener listener, boolean once) { this.event = event; this.listener = listener; this.once = once; }
-		private Event event;
-		private Listener listener;
-		private boolean once;
-		protected boolean apply(Event event, Object... args) {
-			if(this.event == event || this.event == null) {
-				EventEmitter.this.apply(listener, event, args);
-				return once;
+		private final Event event;
+		private final Listener listener;
+		private final boolean once;
+		private final AtomicBoolean removed = new AtomicBoolean();
+		protected void apply(Event event, Object... args) {
+			if(this.event == event || this.event == null)
+				applySafely(listener, event, args);
+		}
+	}
+
+	/**
+	 * An immutable snapshot of the registered listeners
+	 */
+	private static class State {
+		State(Object[] listeners, Object[] anyFilters, Map<Object, Object[]> eventFilters) {
+			this.listeners = listeners;
+			this.anyFilters = anyFilters;
+			this.eventFilters = eventFilters;
+		}
+		final Object[] listeners;
+		final Object[] anyFilters;
+		final Map<Object, Object[]> eventFilters;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void applyFilters(Object[] filters, Event event, Object... args) {
+		for(Object item : filters) {
+			Filter filter = (Filter)item;
+			if(filter.once) {
+				/* only one emitting thread may fire a once listener */
+				if(!filter.removed.compareAndSet(false, true))
+					continue;
+				removeOnceFilter(filter);
+			} else if(filter.removed.get()) {
+				continue;
 			}
-			return false;
+			filter.apply(event, args);
+		}
+	}
+
+	private void applySafely(Listener listener, Event event, Object... args) {
+		try {
+			apply(listener, event, args);
+		} catch(Throwable t) {
+			Log.e(TAG, "emit(): Unexpected exception calling listener; event = " + event, t);
 		}
 	}
 
-	Map<Listener, Filter> filters = new HashMap<Listener, Filter>();
-	List<Listener> listeners = new ArrayList<Listener>();
+	/**
+	 * Register a filter, replacing any existing filter for its listener.
+	 * Called with the lock held.
+	 */
+	private void putFilter(Filter filter) {
+		Filter existing = filters.put(filter.listener, filter);
+		if(existing != null)
+			removeFilter(existing);
+		State current = state;
+		if(filter.event == null) {
+			state = new State(current.listeners, append(current.anyFilters, filter), current.eventFilters);
+		} else {
+			Map<Object, Object[]> eventFilters = new HashMap<Object, Object[]>(current.eventFilters);
+			Object[] existingFilters = eventFilters.get(filter.event);
+			eventFilters.put(filter.event, append((existingFilters == null) ? EMPTY : existingFilters, filter));
+			state = new State(current.listeners, current.anyFilters, eventFilters);
+		}
+	}
+
+	/**
+	 * Remove a filter from the arrays in which it appears.
+	 * Called with the lock held.
+	 */
+	private void removeFilter(Filter filter) {
+		filter.removed.set(true);
+		State current = state;
+		if(filter.event == null) {
+			int index = indexOf(current.anyFilters, filter);
+			if(index >= 0)
+				state = new State(current.listeners, remove(current.anyFilters, index), current.eventFilters);
+		} else {
+			Object[] existingFilters = current.eventFilters.get(filter.event);
+			if(existingFilters == null)
+				return;
+			int index = indexOf(existingFilters, filter);
+			if(index >= 0) {
+				Map<Object, Object[]> eventFilters = new HashMap<Object, Object[]>(current.eventFilters);
+				if(existingFilters.length == 1)
+					eventFilters.remove(filter.event);
+				else
+					eventFilters.put(filter.event, remove(existingFilters, index));
+				state = new State(current.listeners, current.anyFilters, eventFilters);
+			}
+		}
+	}
+
+	private synchronized void removeOnceFilter(Filter filter) {
+		if(filters.get(filter.listener) == filter)
+			filters.remove(filter.listener);
+		removeFilter(filter);
+	}
+
+	private State emptyState() {
+		return new State(EMPTY, EMPTY, Collections.<Object, Object[]>emptyMap());
+	}
+
+	private static int indexOf(Object[] items, Object item) {
+		for(int i = 0; i < items.length; i++)
+			if(items[i] == item)
+				return i;
+		return -1;
+	}
+
+	private static Object[] append(Object[] items, Object item) {
+		Object[] result = Arrays.copyOf(items, items.length + 1);
+		result[items.length] = item;
+		return result;
+	}
+
+	private static Object[] remove(Object[] items, int index) {
+		Object[] result = new Object[items.length - 1];
+		System.arraycopy(items, 0, result, 0, index);
+		System.arraycopy(items, index + 1, result, index, items.length - index - 1);
+		return result;
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	/* registrations are made under the lock; the
+	 * current snapshot is read by emit() without it */
+	private final Map<Listener, Filter> filters = new HashMap<Listener, Filter>();
+	private volatile State state = emptyState();
+
+	private static final Object[] EMPTY = new Object[0];
+	private static final String TAG = EventEmitter.class.getName();
 }
@@ -0,0 +1,258 @@
+package io.ably.lib.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A timer for large numbers of short-lived timeouts, such as heartbeat,
+ * connection state and channel attach timeouts.
+ * Timeouts are held in a circular array of buckets (the wheel) advanced by a
+ * single thread once per tick, so scheduling and cancellation are O(1) and
+ * there is no thread per pending timeout. Expiry is accurate to one tick.
+ * Expired tasks run on a small pool of daemon threads, so a task that blocks
+ * does not delay the wheel; tasks that expire together are queued for the
+ * pool rather than each starting a thread. The wheel thread only ticks while there are
+ * pending timeouts.
+ * A single instance, obtained by getDefault(), is shared by all clients
+ * unless ClientOptions.timer is set.
+ */
+public class HashedWheelTimer {
+
+	/**
+	 * A handle on a scheduled task
+	 */
+	public static class Timeout {
+		/**
+		 * Cancel the task, if it has not already run
+		 * @return true if the task was cancelled before it expired
+		 */
+		public boolean cancel() {
+			return state.compareAndSet(STATE_PENDING, STATE_CANCELLED);
+		}
+
+		public boolean isCancelled() {
+			return state.get() == STATE_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == STATE_EXPIRED;
+		}
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+		private long remainingRounds;
+		private Timeout next;
+	}
+
+	/**
+	 * Get the timer shared by all clients that do not specify their own
+	 */
+	public static synchronized HashedWheelTimer getDefault() {
+		if(defaultTimer == null)
+			defaultTimer = new HashedWheelTimer("ably-timer", DEFAULT_TICK_DURATION, DEFAULT_TICKS_PER_WHEEL);
+		return defaultTimer;
+	}
+
+	/**
+	 * @param name: the name of the wheel thread
+	 * @param tickDuration: the tick interval, in milliseconds
+	 * @param ticksPerWheel: the number of buckets; rounded up to a power of 2
+	 */
+	public HashedWheelTimer(String name, long tickDuration, int ticksPerWheel) {
+		if(tickDuration <= 0)
+			throw new IllegalArgumentException("tickDuration must be positive");
+		int wheelSize = 1;
+		while(wheelSize < ticksPerWheel)
+			wheelSize <<= 1;
+		this.name = name;
+		this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		this.wheel = new Timeout[wheelSize];
+		this.mask = wheelSize - 1;
+		this.executor = new ThreadPoolExecutor(TASK_THREADS, TASK_THREADS, TASK_KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, HashedWheelTimer.this.name + "-task-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Schedule a task to run once after the given delay
+	 * @param task
+	 * @param delay: the delay in milliseconds
+	 * @return a Timeout that may be used to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		if(task == null)
+			throw new NullPointerException("task");
+		Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)));
+		synchronized(this) {
+			if(shutdown)
+				throw new IllegalStateException("Timer has been shut down");
+			additions.add(timeout);
+			++pendingCount;
+			if(worker == null) {
+				worker = new Thread(new Worker(), name);
+				worker.setDaemon(true);
+				worker.start();
+			}
+			notify();
+		}
+		return timeout;
+	}
+
+	/**
+	 * Get the number of scheduled tasks that have not yet expired,
+	 * including any that are cancelled but not yet removed from the wheel
+	 */
+	public synchronized int getPendingCount() {
+		return pendingCount;
+	}
+
+	/**
+	 * Stop the timer; pending tasks are discarded without being run
+	 */
+	public void shutdown() {
+		synchronized(this) {
+			shutdown = true;
+			notify();
+		}
+		executor.shutdown();
+	}
+
+	/*******************
+	 * internal
+	 ******************/
+
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			long tick = 0;
+			long startTime = System.nanoTime();
+			while(true) {
+				synchronized(HashedWheelTimer.this) {
+					if(shutdown)
+						return;
+					if(pendingCount == 0) {
+						/* nothing to do, so sleep until a task is scheduled and
+						 * restart the wheel from the current time */
+						try { HashedWheelTimer.this.wait(); } catch(InterruptedException ie) {}
+						tick = 0;
+						startTime = System.nanoTime();
+						continue;
+					}
+					long sleepTime = startTime + (tick + 1) * tickDuration - System.nanoTime();
+					if(sleepTime > 0) {
+						try { TimeUnit.NANOSECONDS.timedWait(HashedWheelTimer.this, sleepTime); } catch(InterruptedException ie) {}
+						if(System.nanoTime() < startTime + (tick + 1) * tickDuration)
+							continue;
+					}
+				}
+				transferAdditions(startTime, tick);
+				int expired = expireBucket((int)(tick & mask), startTime + (tick + 1) * tickDuration);
+				if(expired > 0) {
+					synchronized(HashedWheelTimer.this) {
+						pendingCount -= expired;
+					}
+				}
+				++tick;
+			}
+		}
+	}
+
+	/**
+	 * Move newly scheduled timeouts into their buckets.
+	 * Called only on the wheel thread.
+	 */
+	private void transferAdditions(long startTime, long tick) {
+		Timeout timeout;
+		while((timeout = additions.poll()) != null) {
+			long calculated = Math.max(0, (timeout.deadline - startTime) / tickDuration);
+			long target = Math.max(calculated, tick);
+			timeout.remainingRounds = (target - tick) / wheel.length;
+			int index = (int)(target & mask);
+			timeout.next = wheel[index];
+			wheel[index] = timeout;
+		}
+	}
+
+	/**
+	 * Run or discard the due and cancelled timeouts in a bucket.
+	 * Called only on the wheel thread.
+	 * @return the number of timeouts removed from the bucket
+	 */
+	private int expireBucket(int index, long tickDeadline) {
+		int removed = 0;
+		Timeout prev = null, timeout = wheel[index];
+		while(timeout != null) {
+			Timeout next = timeout.next;
+			boolean remove = false;
+			if(timeout.isCancelled()) {
+				remove = true;
+			} else if(timeout.remainingRounds <= 0 && timeout.deadline <= tickDeadline) {
+				remove = true;
+				if(timeout.state.compareAndSet(STATE_PENDING, STATE_EXPIRED))
+					run(timeout.task);
+			} else if(timeout.remainingRounds > 0) {
+				--timeout.remainingRounds;
+			}
+			if(remove) {
+				++removed;
+				timeout.next = null;
+				if(prev == null) wheel[index] = next;
+				else prev.next = next;
+			} else {
+				prev = timeout;
+			}
+			timeout = next;
+		}
+		return removed;
+	}
+
+	private void run(Runnable task) {
+		try {
+			executor.execute(task);
+		} catch(Throwable t) {
+			Log.e(TAG, "run(): Unable to run expired task", t);
+		}
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	private final String name;
+	private final long tickDuration;
+	private final Timeout[] wheel;
+	private final int mask;
+	private final ThreadPoolExecutor executor;
+	private final ConcurrentLinkedQueue<Timeout> additions = new ConcurrentLinkedQueue<Timeout>();
+	private Thread worker;
+	private int pendingCount;
+	private boolean shutdown;
+
+	private static HashedWheelTimer defaultTimer;
+
+	private static final int STATE_PENDING = 0;
+	private static final int STATE_CANCELLED = 1;
+	private static final int STATE_EXPIRED = 2;
+	private static final long DEFAULT_TICK_DURATION = 10L;
+	private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+	private static final int TASK_THREADS = 4;
+	private static final long TASK_KEEP_ALIVE_TIME = 60000L;
+	private static final String TAG = HashedWheelTimer.class.getName();
+}
@@ -0,0 +1,45 @@
+package io.ably.lib.util;
+
+/**
+ * Marks the current thread as running on behalf of the library, such as a
+ * connection state step, a listener callback, or the processing of an inbound
+ * message. Such threads are the ones that drain the library's queues, so
+ * code that would otherwise wait for queue space must not wait on them.
+ * Calls to enter() and exit() must be paired, and may be nested.
+ * Internal
+ */
+public class LibraryThread {
+
+	/**
+	 * Mark the current thread as running library code
+	 */
+	public static void enter() {
+		depth.set(depth.get() + 1);
+	}
+
+	/**
+	 * End the innermost call to enter() on the current thread
+	 */
+	public static void exit() {
+		depth.set(depth.get() - 1);
+	}
+
+	/**
+	 * Whether the current thread is running library code
+	 * @return
+	 */
+	public static boolean isCurrent() {
+		return depth.get() > 0;
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	private static final ThreadLocal<Integer> depth = new ThreadLocal<Integer>() {
+		@Override
+		protected Integer initialValue() {
+			return 0;
+		}
+	};
+}
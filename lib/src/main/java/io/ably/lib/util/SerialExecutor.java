@@ -0,0 +1,84 @@
+package io.ably.lib.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An Executor that runs its tasks one at a time, in the order submitted,
+ * on threads of a given executor that may be shared with others.
+ * At most one task of each SerialExecutor is queued for or running on the
+ * shared executor at any time, so a slow task delays only the tasks
+ * submitted after it to the same SerialExecutor.
+ * An exception thrown by a task is logged, and does not prevent
+ * subsequent tasks from running.
+ * Internal
+ */
+public class SerialExecutor implements Executor {
+
+	public SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public synchronized void execute(Runnable task) {
+		tasks.add(task);
+		if(!isScheduled)
+			scheduleNext();
+	}
+
+	/*******************
+	 * internal
+	 ******************/
+
+	/**
+	 * Run the queued tasks on a thread of the shared executor.
+	 * Called with the lock held.
+	 */
+	private void scheduleNext() {
+		if(tasks.isEmpty()) {
+			isScheduled = false;
+			return;
+		}
+		isScheduled = true;
+		try {
+			executor.execute(drain);
+		} catch(RejectedExecutionException e) {
+			isScheduled = false;
+			Log.e(TAG, "scheduleNext(): Unable to run " + tasks.size() + " task(s)", e);
+			tasks.clear();
+		}
+	}
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			Runnable task;
+			synchronized(SerialExecutor.this) {
+				task = tasks.poll();
+			}
+			try {
+				if(task != null)
+					task.run();
+			} catch(Throwable t) {
+				Log.e(TAG, "run(): Unexpected exception running task", t);
+			} finally {
+				/* yield the thread to other users of the shared
+				 * executor between tasks */
+				synchronized(SerialExecutor.this) {
+					scheduleNext();
+				}
+			}
+		}
+	};
+
+	/*******************
+	 * private members
+	 ******************/
+
+	private final Executor executor;
+	private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+	private boolean isScheduled;
+
+	private static final String TAG = SerialExecutor.class.getName();
+}
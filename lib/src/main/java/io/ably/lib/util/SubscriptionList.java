@@ -0,0 +1,195 @@
+package io.ably.lib.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A list of listeners that may be iterated without locking while
+ * listeners are concurrently added and removed.
+ * Iteration reads an immutable snapshot that is replaced atomically on
+ * each change. Adding a listener is amortised O(1), as a snapshot shares
+ * its array with its successors and only appends to it; removal through
+ * the Subscription returned by add() is O(1), marking the entry inactive
+ * so that it is skipped, and the array is compacted once more than half
+ * of its entries are inactive.
+ */
+public class SubscriptionList<T> implements Iterable<T> {
+
+	/**
+	 * A handle on a subscribed listener
+	 */
+	public interface Subscription {
+		/**
+		 * Remove the listener; this has no effect if already removed
+		 */
+		void unsubscribe();
+	}
+
+	/**
+	 * Add a listener
+	 * @param listener
+	 * @return a Subscription that removes this listener
+	 */
+	public synchronized Subscription add(T listener) {
+		Entry<T> entry = new Entry<T>(this, listener);
+		Snapshot<T> current = snapshot;
+		Entry<T>[] items = current.items;
+		int size = current.size;
+		if(size == items.length) {
+			items = copyActive(current, Math.max(INITIAL_CAPACITY, liveCount * 2 + 1));
+			size = liveCount;
+		}
+		items[size] = entry;
+		++liveCount;
+		snapshot = new Snapshot<T>(items, size + 1);
+		return entry;
+	}
+
+	/**
+	 * Remove every subscription of the given listener
+	 * @param listener
+	 * @return true if any subscription was removed
+	 */
+	public synchronized boolean remove(T listener) {
+		boolean removed = false;
+		Snapshot<T> current = snapshot;
+		for(int i = 0; i < current.size; i++) {
+			Entry<T> entry = current.items[i];
+			if(entry.active && entry.listener == listener) {
+				entry.active = false;
+				--liveCount;
+				removed = true;
+			}
+		}
+		if(removed)
+			compactIfSparse();
+		return removed;
+	}
+
+	/**
+	 * Remove all listeners
+	 */
+	public synchronized void clear() {
+		Snapshot<T> current = snapshot;
+		for(int i = 0; i < current.size; i++)
+			current.items[i].active = false;
+		liveCount = 0;
+		snapshot = Snapshot.empty();
+	}
+
+	public synchronized boolean isEmpty() {
+		return liveCount == 0;
+	}
+
+	public synchronized int size() {
+		return liveCount;
+	}
+
+	/**
+	 * Iterate over the listeners present when this method is called,
+	 * skipping any removed during iteration. This does not lock.
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		final Snapshot<T> current = snapshot;
+		return new Iterator<T>() {
+			@Override
+			public boolean hasNext() {
+				while(index < current.size && !current.items[index].active)
+					++index;
+				return index < current.size;
+			}
+
+			@Override
+			public T next() {
+				if(!hasNext())
+					throw new NoSuchElementException();
+				return current.items[index++].listener;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			private int index;
+		};
+	}
+
+	/*******************
+	 * internal
+	 ******************/
+
+	private static class Entry<T> implements Subscription {
+		private final SubscriptionList<T> list;
+		private final T listener;
+		private volatile boolean active = true;
+
+		Entry(SubscriptionList<T> list, T listener) {
+			this.list = list;
+			this.listener = listener;
+		}
+
+		@SuppressWarnings("unchecked")
+		static <T> Entry<T>[] newArray(int capacity) {
+			return (Entry<T>[])new Entry<?>[capacity];
+		}
+
+		@Override
+		public void unsubscribe() {
+			if(active)
+				list.removeEntry(this);
+		}
+	}
+
+	private static class Snapshot<T> {
+		private final Entry<T>[] items;
+		private final int size;
+
+		Snapshot(Entry<T>[] items, int size) {
+			this.items = items;
+			this.size = size;
+		}
+
+		@SuppressWarnings("unchecked")
+		static <T> Snapshot<T> empty() {
+			return (Snapshot<T>)EMPTY;
+		}
+
+		private static final Snapshot<Object> EMPTY = new Snapshot<Object>(Entry.<Object>newArray(0), 0);
+	}
+
+	private synchronized void removeEntry(Entry<T> entry) {
+		if(!entry.active)
+			return;
+		entry.active = false;
+		--liveCount;
+		compactIfSparse();
+	}
+
+	private void compactIfSparse() {
+		Snapshot<T> current = snapshot;
+		if(current.size - liveCount > liveCount) {
+			Entry<T>[] items = copyActive(current, Math.max(INITIAL_CAPACITY, liveCount * 2));
+			snapshot = new Snapshot<T>(items, liveCount);
+		}
+	}
+
+	private static <T> Entry<T>[] copyActive(Snapshot<T> current, int capacity) {
+		Entry<T>[] items = Entry.newArray(capacity);
+		int count = 0;
+		for(int i = 0; i < current.size; i++)
+			if(current.items[i].active)
+				items[count++] = current.items[i];
+		return items;
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	private volatile Snapshot<T> snapshot = Snapshot.empty();
+	private int liveCount;
+
+	private static final int INITIAL_CAPACITY = 4;
+}
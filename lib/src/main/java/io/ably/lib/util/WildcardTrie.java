@@ -0,0 +1,224 @@
+package io.ably.lib.util;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.ably.lib.util.SubscriptionList.Subscription;
+
+/**
+ * An index of listeners subscribed to name patterns, in which '*'
+ * matches any sequence of characters, including none; eg "orders.*"
+ * or "price:EUR*".
+ * Patterns are held in a trie, one character per node, so the cost of
+ * matching a name depends on the length of the name and the wildcards
+ * along the paths it follows, not on the number of patterns or listeners.
+ * Matching does not lock; patterns are added and removed under a lock.
+ */
+public class WildcardTrie<T> {
+
+	/**
+	 * Add a listener for a pattern
+	 * @param pattern
+	 * @param listener
+	 * @return a Subscription that removes this listener
+	 */
+	public synchronized Subscription add(String pattern, T listener) {
+		final String normalised = normalise(pattern);
+		Node<T> node = root;
+		for(int i = 0; i < normalised.length(); i++)
+			node = node.child(normalised.charAt(i));
+		if(node.terminal == null)
+			node.terminal = new SubscriptionList<T>();
+		final SubscriptionList<T> list = node.terminal;
+		final Subscription subscription = list.add(listener);
+		return new Subscription() {
+			@Override
+			public void unsubscribe() {
+				subscription.unsubscribe();
+				if(list.isEmpty())
+					prune(normalised);
+			}
+		};
+	}
+
+	/**
+	 * Remove every subscription of a listener for a pattern
+	 * @param pattern
+	 * @param listener
+	 */
+	public synchronized void remove(String pattern, T listener) {
+		String normalised = normalise(pattern);
+		Node<T> node = find(normalised);
+		if(node != null && node.terminal != null && node.terminal.remove(listener))
+			prune(normalised);
+	}
+
+	/**
+	 * Remove every subscription of a listener, for any pattern
+	 * @param listener
+	 */
+	public synchronized void remove(T listener) {
+		removeAll(root, listener);
+	}
+
+	/**
+	 * Remove all listeners
+	 */
+	public synchronized void clear() {
+		clearAll(root);
+		root = new Node<T>();
+	}
+
+	public boolean isEmpty() {
+		return root.isEmpty();
+	}
+
+	/**
+	 * Find the listeners whose patterns match a name. This does not lock.
+	 * @param name
+	 * @param result the collection to which the list of listeners for each
+	 * matching pattern is added, once per pattern
+	 */
+	public void match(String name, Collection<SubscriptionList<T>> result) {
+		match(root, name, 0, result);
+	}
+
+	/*******************
+	 * internal
+	 ******************/
+
+	private static class Node<T> {
+		private final Map<Character, Node<T>> children = new ConcurrentHashMap<Character, Node<T>>();
+		private volatile Node<T> star;
+		private volatile SubscriptionList<T> terminal;
+
+		private Node<T> child(char c) {
+			if(c == WILDCARD) {
+				if(star == null)
+					star = new Node<T>();
+				return star;
+			}
+			Node<T> child = children.get(c);
+			if(child == null)
+				children.put(c, (child = new Node<T>()));
+			return child;
+		}
+
+		private boolean isEmpty() {
+			return terminal == null && star == null && children.isEmpty();
+		}
+	}
+
+	private static <T> void match(Node<T> node, String name, int index, Collection<SubscriptionList<T>> result) {
+		int length = name.length();
+		Node<T> star = node.star;
+		if(star != null) {
+			/* the wildcard matches the remainder of the name, and
+			 * each suffix of it is tried against what follows */
+			addMatch(star.terminal, result);
+			if(!star.children.isEmpty()) {
+				for(int i = index; i < length; i++) {
+					Node<T> child = star.children.get(name.charAt(i));
+					if(child != null)
+						match(child, name, i + 1, result);
+				}
+			}
+		}
+		if(index == length) {
+			addMatch(node.terminal, result);
+			return;
+		}
+		Node<T> child = node.children.get(name.charAt(index));
+		if(child != null)
+			match(child, name, index + 1, result);
+	}
+
+	private static <T> void addMatch(SubscriptionList<T> terminal, Collection<SubscriptionList<T>> result) {
+		if(terminal == null)
+			return;
+		/* a pattern with several wildcards may match a name in more than one way */
+		for(SubscriptionList<T> existing : result)
+			if(existing == terminal)
+				return;
+		result.add(terminal);
+	}
+
+	private Node<T> find(String normalised) {
+		Node<T> node = root;
+		for(int i = 0; node != null && i < normalised.length(); i++) {
+			char c = normalised.charAt(i);
+			node = (c == WILDCARD) ? node.star : node.children.get(c);
+		}
+		return node;
+	}
+
+	/**
+	 * Remove the list for a pattern if it is empty, and any nodes
+	 * left with no patterns beneath them
+	 */
+	private synchronized void prune(String normalised) {
+		prune(root, normalised, 0);
+	}
+
+	private static <T> boolean prune(Node<T> node, String normalised, int index) {
+		if(index == normalised.length()) {
+			if(node.terminal != null && node.terminal.isEmpty())
+				node.terminal = null;
+			return node.isEmpty();
+		}
+		char c = normalised.charAt(index);
+		Node<T> child = (c == WILDCARD) ? node.star : node.children.get(c);
+		if(child != null && prune(child, normalised, index + 1)) {
+			if(c == WILDCARD)
+				node.star = null;
+			else
+				node.children.remove(c);
+		}
+		return node.isEmpty();
+	}
+
+	private static <T> boolean removeAll(Node<T> node, T listener) {
+		if(node.terminal != null && node.terminal.remove(listener) && node.terminal.isEmpty())
+			node.terminal = null;
+		if(node.star != null && removeAll(node.star, listener))
+			node.star = null;
+		for(Iterator<Node<T>> it = node.children.values().iterator(); it.hasNext();)
+			if(removeAll(it.next(), listener))
+				it.remove();
+		return node.isEmpty();
+	}
+
+	private static <T> void clearAll(Node<T> node) {
+		if(node.terminal != null)
+			node.terminal.clear();
+		if(node.star != null)
+			clearAll(node.star);
+		for(Node<T> child : node.children.values())
+			clearAll(child);
+	}
+
+	/**
+	 * Collapse consecutive wildcards, which match the same names as one
+	 */
+	private static String normalise(String pattern) {
+		if(pattern.indexOf("**") < 0)
+			return pattern;
+		StringBuilder result = new StringBuilder(pattern.length());
+		for(int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if(c != WILDCARD || i == 0 || pattern.charAt(i - 1) != WILDCARD)
+				result.append(c);
+		}
+		return result.toString();
+	}
+
+	/*******************
+	 * private members
+	 ******************/
+
+	private volatile Node<T> root = new Node<T>();
+
+	private static final char WILDCARD = '*';
+}
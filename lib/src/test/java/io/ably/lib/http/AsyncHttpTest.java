@@ -0,0 +1,177 @@
+package io.ably.lib.http;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+import io.ably.lib.rest.AblyRest;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.Callback;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+
+/**
+ * Tests of async REST request scheduling, using a local server that
+ * records the requests it receives
+ */
+public class AsyncHttpTest {
+
+	private static final int PORT = 27340;
+	private static final long SLOW_RESPONSE_TIME = 300L;
+	private static final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+	private static NanoHTTPD server;
+
+	@BeforeClass
+	public static void setUp() throws IOException {
+		server = new NanoHTTPD(PORT) {
+			@Override
+			public Response serve(IHTTPSession session) {
+				received.add(session.getUri());
+				if(session.getUri().startsWith("/slow")) {
+					try { Thread.sleep(SLOW_RESPONSE_TIME); } catch(InterruptedException e) {}
+				}
+				return newFixedLengthResponse(Response.Status.OK, "application/json", "[]");
+			}
+		};
+		server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		server.stop();
+	}
+
+	private static AblyRest client(int threads, int queueSize, AsyncHttp.RejectionPolicy policy) throws AblyException {
+		ClientOptions opts = new ClientOptions("standin.key:secret");
+		opts.restHost = "localhost";
+		opts.tls = false;
+		opts.port = PORT;
+		opts.asyncHttpThreadpoolSize = threads;
+		opts.asyncHttpQueueSize = queueSize;
+		opts.asyncHttpRejectionPolicy = policy;
+		return new AblyRest(opts);
+	}
+
+	private static class Completion implements Callback<Void> {
+		private final CountDownLatch latch;
+		private final List<ErrorInfo> errors = Collections.synchronizedList(new ArrayList<ErrorInfo>());
+
+		Completion(int count) { latch = new CountDownLatch(count); }
+
+		@Override
+		public void onSuccess(Void result) { latch.countDown(); }
+
+		@Override
+		public void onError(ErrorInfo reason) { errors.add(reason); latch.countDown(); }
+
+		void await() throws InterruptedException { assertTrue(latch.await(5, TimeUnit.SECONDS)); }
+	}
+
+	private static void awaitInFlight(AsyncHttp asyncHttp, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(asyncHttp.getStats().inFlight < count && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+	}
+
+	/**
+	 * Wait for requests to be counted, which happens once their callbacks return
+	 */
+	private static AsyncHttp.Stats awaitIdle(AsyncHttp asyncHttp) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		AsyncHttp.Stats stats;
+		while(((stats = asyncHttp.getStats()).inFlight > 0 || stats.queueDepth > 0) && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		return stats;
+	}
+
+	/**
+	 * Verify that requests are executed concurrently, up to the pool size
+	 */
+	@Test
+	public void async_http_parallel() throws Exception {
+		AblyRest ably = client(4, 0, AsyncHttp.RejectionPolicy.reject);
+		Completion completion = new Completion(4);
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < 4; i++)
+			ably.asyncHttp.get("/slow/" + i, null, null, null, completion);
+		completion.await();
+		assertThat(System.currentTimeMillis() - start, is(lessThan(3 * SLOW_RESPONSE_TIME)));
+		assertThat(completion.errors.size(), is(0));
+		AsyncHttp.Stats stats = awaitIdle(ably.asyncHttp);
+		assertThat(stats.executed, is(4L));
+		assertThat(stats.queueDepth, is(0));
+		assertThat(stats.inFlight, is(0));
+		ably.asyncHttp.dispose();
+	}
+
+	/**
+	 * Verify that a request made with the queue full is rejected,
+	 * or executed on the calling thread, according to the policy
+	 */
+	@Test
+	public void async_http_queue_full() throws Exception {
+		AblyRest ably = client(1, 1, AsyncHttp.RejectionPolicy.reject);
+		Completion completion = new Completion(3);
+		ably.asyncHttp.get("/slow/reject_0", null, null, null, completion);
+		awaitInFlight(ably.asyncHttp, 1);
+		ably.asyncHttp.get("/slow/reject_1", null, null, null, completion);
+		ably.asyncHttp.get("/slow/reject_2", null, null, null, completion);
+		assertThat(completion.errors.size(), is(1));
+		assertThat(completion.errors.get(0).statusCode, is(503));
+		completion.await();
+		assertThat(awaitIdle(ably.asyncHttp).rejected, is(1L));
+		ably.asyncHttp.dispose();
+
+		ably = client(1, 1, AsyncHttp.RejectionPolicy.callerRuns);
+		completion = new Completion(3);
+		ably.asyncHttp.get("/slow/caller_0", null, null, null, completion);
+		awaitInFlight(ably.asyncHttp, 1);
+		ably.asyncHttp.get("/slow/caller_1", null, null, null, completion);
+		long start = System.currentTimeMillis();
+		ably.asyncHttp.get("/slow/caller_2", null, null, null, completion);
+		assertThat(System.currentTimeMillis() - start >= SLOW_RESPONSE_TIME, is(true));
+		completion.await();
+		assertThat(completion.errors.size(), is(0));
+		assertThat(awaitIdle(ably.asyncHttp).executed, is(3L));
+		ably.asyncHttp.dispose();
+	}
+
+	/**
+	 * Verify that queued requests are taken from each channel in turn
+	 */
+	@Test
+	public void async_http_fair_channels() throws Exception {
+		AblyRest ably = client(1, 0, AsyncHttp.RejectionPolicy.reject);
+		Completion completion = new Completion(5);
+		ably.asyncHttp.get("/slow/fair", null, null, null, completion);
+		awaitInFlight(ably.asyncHttp, 1);
+		ably.asyncHttp.get("/channels/a/messages", null, null, null, completion);
+		ably.asyncHttp.get("/channels/a/presence", null, null, null, completion);
+		ably.asyncHttp.get("/channels/a/history", null, null, null, completion);
+		ably.asyncHttp.get("/channels/b/messages", null, null, null, completion);
+		completion.await();
+		List<String> order = new ArrayList<String>();
+		synchronized(received) {
+			for(String uri : received)
+				if(uri.startsWith("/channels/"))
+					order.add(uri);
+		}
+		assertThat(order, contains("/channels/a/messages", "/channels/b/messages", "/channels/a/presence", "/channels/a/history"));
+		assertTrue(ably.asyncHttp.getStats().maxQueueWaitTime >= SLOW_RESPONSE_TIME - 50);
+		ably.asyncHttp.dispose();
+	}
+}
@@ -0,0 +1,84 @@
+package io.ably.lib.http;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+import io.ably.lib.rest.AblyRest;
+import io.ably.lib.rest.Channel;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+
+/**
+ * Tests of connection reuse for REST requests, using a local server
+ * that counts the connections it accepts
+ */
+public class HttpKeepAliveTest {
+
+	private static final int PORT = 27341;
+	private static final AtomicInteger connections = new AtomicInteger();
+	private static NanoHTTPD server;
+
+	@BeforeClass
+	public static void setUp() throws IOException {
+		server = new NanoHTTPD(PORT) {
+			@Override
+			protected ClientHandler createClientHandler(Socket socket, InputStream inputStream) {
+				connections.incrementAndGet();
+				return super.createClientHandler(socket, inputStream);
+			}
+
+			@Override
+			public Response serve(IHTTPSession session) {
+				/* consume the request body, so the connection can be reused */
+				try { session.parseBody(new HashMap<String, String>()); } catch(Exception e) {}
+				return newFixedLengthResponse(Response.Status.CREATED, "application/json", "");
+			}
+		};
+		server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		server.stop();
+	}
+
+	private static Channel channel(boolean keepAlive) throws AblyException {
+		ClientOptions opts = new ClientOptions("standin.key:secret");
+		opts.restHost = "localhost";
+		opts.tls = false;
+		opts.port = PORT;
+		opts.useBinaryProtocol = false;
+		opts.httpKeepAlive = keepAlive;
+		return new AblyRest(opts).channels.get("keepalive");
+	}
+
+	/**
+	 * Verify that each request opens a new connection when keep-alive
+	 * is disabled, and that requests share one connection otherwise
+	 */
+	@Test
+	public void http_keepalive_reuse() throws AblyException {
+		Channel closing = channel(false);
+		int start = connections.get();
+		for(int i = 0; i < 5; i++)
+			closing.publish("event", "data");
+		assertThat(connections.get() - start, is(5));
+
+		Channel pooled = channel(true);
+		start = connections.get();
+		for(int i = 0; i < 5; i++)
+			pooled.publish("event", "data");
+		assertThat(connections.get() - start, is(1));
+	}
+}
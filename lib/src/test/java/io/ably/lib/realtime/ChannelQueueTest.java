@@ -0,0 +1,92 @@
+package io.ably.lib.realtime;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.java_websocket.WebSocket;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.ably.lib.test.common.Helpers;
+import io.ably.lib.test.util.WebSocketStandIn;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolMessage.Action;
+import io.ably.lib.types.QueueOverflowPolicy;
+
+/**
+ * Tests of the queue of messages published while a channel is attaching,
+ * using a local stand-in for the realtime endpoint that never attaches
+ */
+public class ChannelQueueTest {
+
+	private static WebSocketStandIn server;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		server = new WebSocketStandIn(WebSocketStandIn.freePort()) {
+			@Override
+			protected void onProtocolMessage(WebSocket conn, ProtocolMessage msg) {
+				if(msg.action != Action.attach)
+					super.onProtocolMessage(conn, msg);
+			}
+		};
+		server.start();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		server.stop();
+	}
+
+	/**
+	 * Verify that a publish from within a channel state listener, to a full
+	 * attaching channel whose overflow policy is block, fails with 42910
+	 * rather than blocking the thread that delivers the channel's events
+	 */
+	@Test
+	public void channel_queue_block_from_listener() throws AblyException, InterruptedException {
+		ClientOptions opts = server.createOptions();
+		opts.queueMaxMessages = 1;
+		opts.queueOverflowPolicy = QueueOverflowPolicy.block;
+		AblyRealtime ably = new AblyRealtime(opts);
+		new Helpers.ConnectionManagerWaiter(ably.connection.connectionManager).waitFor(ConnectionState.connected);
+
+		final Channel channel = ably.channels.get("channel_queue_block_from_listener");
+		final CountDownLatch published = new CountDownLatch(1);
+		final ErrorInfo[] firstError = new ErrorInfo[1];
+		final ErrorInfo[] secondError = new ErrorInfo[1];
+		channel.on(ChannelState.attaching, new ChannelStateListener() {
+			@Override
+			public void onChannelStateChanged(ChannelState state, ErrorInfo reason) {
+				try {
+					channel.publish("first", "data");
+				} catch(AblyException e) {
+					firstError[0] = e.errorInfo;
+				}
+				try {
+					channel.publish("second", "data");
+				} catch(AblyException e) {
+					secondError[0] = e.errorInfo;
+				}
+				published.countDown();
+			}
+		});
+		channel.attach();
+
+		assertThat(published.await(10, TimeUnit.SECONDS), is(true));
+		assertThat(firstError[0], is(nullValue()));
+		assertThat(secondError[0].code, is(42910));
+		assertThat(channel.getQueueStats().messages, is(1));
+
+		ably.close();
+		new Helpers.ConnectionManagerWaiter(ably.connection.connectionManager).waitFor(ConnectionState.closed);
+	}
+}
@@ -0,0 +1,199 @@
+package io.ably.lib.realtime;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.ably.lib.test.common.Helpers;
+import io.ably.lib.test.util.WebSocketStandIn;
+import io.ably.lib.transport.ConnectionManager;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolMessage.Action;
+
+/**
+ * Tests of dispatch of inbound channel messages on worker threads,
+ * using a local stand-in for the realtime endpoint
+ */
+public class MessageDispatcherTest {
+
+	private static WebSocketStandIn server;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		server = WebSocketStandIn.startLocal();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		server.stop();
+	}
+
+	private static ProtocolMessage message(String channel, String data) {
+		ProtocolMessage msg = new ProtocolMessage(Action.message, channel);
+		msg.id = channel + ':' + data;
+		msg.connectionId = "standin";
+		msg.messages = new Message[] {new Message("event", data)};
+		return msg;
+	}
+
+	/**
+	 * Verify that a slow listener on one channel neither stalls the transport
+	 * thread nor delays another channel, that messages for each channel are
+	 * delivered in order, and that slow dispatches are counted
+	 */
+	@Test
+	public void dispatch_parallel_channels_ordered() throws Exception {
+		ClientOptions opts = server.createOptions();
+		opts.dispatchThreads = 2;
+		opts.slowListenerThreshold = 50;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ConnectionManager connectionManager = ably.connection.connectionManager;
+			new Helpers.ConnectionManagerWaiter(connectionManager).waitFor(ConnectionState.connected);
+
+			/* choose two channels assigned to different workers */
+			String slowName = "dispatch_slow";
+			String fastName = "dispatch_fast_0";
+			for(int i = 1; (slowName.hashCode() & Integer.MAX_VALUE) % 2 == (fastName.hashCode() & Integer.MAX_VALUE) % 2; i++)
+				fastName = "dispatch_fast_" + i;
+			Channel slow = ably.channels.get(slowName);
+			Channel fast = ably.channels.get(fastName);
+			assertThat(slowName, is(not(fastName)));
+
+			final int count = 3;
+			final List<String> slowReceived = Collections.synchronizedList(new ArrayList<String>());
+			final CountDownLatch slowDone = new CountDownLatch(count);
+			final CountDownLatch fastDone = new CountDownLatch(count);
+			slow.subscribe(new Channel.MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					try { Thread.sleep(100); } catch(InterruptedException e) {}
+					slowReceived.add((String)message.data);
+					slowDone.countDown();
+				}
+			});
+			fast.subscribe(new Channel.MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					fastDone.countDown();
+				}
+			});
+			new Helpers.ChannelWaiter(slow).waitFor(ChannelState.attached);
+			new Helpers.ChannelWaiter(fast).waitFor(ChannelState.attached);
+
+			long start = System.currentTimeMillis();
+			for(int i = 0; i < count; i++) {
+				connectionManager.onMessage(message(slowName, String.valueOf(i)));
+				connectionManager.onMessage(message(fastName, String.valueOf(i)));
+			}
+			assertThat(System.currentTimeMillis() - start, is(lessThan(100L)));
+
+			/* the fast channel completes while the slow one is still busy */
+			assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+			assertThat(slowDone.getCount(), is(not(0L)));
+			assertTrue(slowDone.await(5, TimeUnit.SECONDS));
+			for(int i = 0; i < count; i++)
+				assertThat(slowReceived.get(i), is(String.valueOf(i)));
+
+			/* counters are updated once the listener returns */
+			MessageDispatcher.Stats stats = slow.getDispatchStats();
+			for(long deadline = System.currentTimeMillis() + 1000; stats.slowDispatches < count && System.currentTimeMillis() < deadline; stats = slow.getDispatchStats())
+				Thread.sleep(10);
+			assertThat(stats.queueDepth, is(0));
+			assertThat(stats.slowDispatches, is(greaterThanOrEqualTo((long)count)));
+			assertThat(stats.maxDispatchTime, is(greaterThanOrEqualTo(100L)));
+			assertThat(fast.getDispatchStats().slowDispatches, is(0L));
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that when a worker's queue is full the transport thread waits
+	 * for space, that no messages are lost, and that the workers are
+	 * stopped when the client is closed
+	 */
+	@Test
+	public void dispatch_queue_bounded() throws Exception {
+		ClientOptions opts = server.createOptions();
+		opts.dispatchThreads = 1;
+		opts.dispatchQueueSize = 2;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			final ConnectionManager connectionManager = ably.connection.connectionManager;
+			new Helpers.ConnectionManagerWaiter(connectionManager).waitFor(ConnectionState.connected);
+
+			final String name = "dispatch_bounded";
+			Channel channel = ably.channels.get(name);
+			final int count = 10;
+			final CountDownLatch release = new CountDownLatch(1);
+			final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+			final CountDownLatch done = new CountDownLatch(count);
+			channel.subscribe(new Channel.MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					try { release.await(); } catch(InterruptedException e) {}
+					received.add((String)message.data);
+					done.countDown();
+				}
+			});
+			new Helpers.ChannelWaiter(channel).waitFor(ChannelState.attached);
+
+			final AtomicInteger sent = new AtomicInteger();
+			Thread sender = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int i = 0; i < count; i++) {
+							connectionManager.onMessage(message(name, String.valueOf(i)));
+							sent.incrementAndGet();
+						}
+					} catch(AblyException e) {}
+				}
+			};
+			sender.start();
+			Thread.sleep(200);
+			/* one message in the listener, two queued, and the sender waiting to queue the next */
+			assertThat(sent.get(), is(3));
+			assertThat(channel.getDispatchStats().queueDepth, is(lessThanOrEqualTo(3)));
+
+			release.countDown();
+			sender.join(5000);
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			for(int i = 0; i < count; i++)
+				assertThat(received.get(i), is(String.valueOf(i)));
+		} finally {
+			ably.close();
+		}
+		for(long deadline = System.currentTimeMillis() + 1000; dispatchThreadCount() > 0 && System.currentTimeMillis() < deadline;)
+			Thread.sleep(10);
+		assertThat(dispatchThreadCount(), is(0));
+	}
+
+	private static int dispatchThreadCount() {
+		int count = 0;
+		for(Thread thread : Thread.getAllStackTraces().keySet()) {
+			if(thread.getName().startsWith("ably-dispatch-"))
+				++count;
+		}
+		return count;
+	}
+}
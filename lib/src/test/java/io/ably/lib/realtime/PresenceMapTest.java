@@ -0,0 +1,107 @@
+package io.ably.lib.realtime;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.ably.lib.test.common.Helpers;
+import io.ably.lib.test.util.WebSocketStandIn;
+import io.ably.lib.transport.ConnectionManager;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.PresenceMessage;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolMessage.Action;
+
+/**
+ * Tests of the presence member map, using a local stand-in for
+ * the realtime endpoint to deliver sync and presence messages
+ */
+public class PresenceMapTest {
+
+	private static final int BATCH = 1000;
+	private static WebSocketStandIn server;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		server = WebSocketStandIn.startLocal();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		server.stop();
+	}
+
+	private static ProtocolMessage presence(Action action, String channel, String channelSerial, PresenceMessage.Action memberAction, int first, int count) {
+		ProtocolMessage msg = new ProtocolMessage(action, channel);
+		msg.id = channel + ':' + first;
+		msg.connectionId = "standin";
+		msg.channelSerial = channelSerial;
+		msg.timestamp = System.currentTimeMillis();
+		msg.presence = new PresenceMessage[count];
+		for(int i = 0; i < count; i++)
+			msg.presence[i] = new PresenceMessage(memberAction, "client_" + (first + i));
+		return msg;
+	}
+
+	/**
+	 * Verify that readers see the members as of the end of a batch of
+	 * updates, never part of a batch, and that get(true) waits for the
+	 * sync to complete and sees members not re-entered in sync removed
+	 */
+	@Test
+	public void presence_map_snapshot_reads() throws Exception {
+		ClientOptions opts = server.createOptions();
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ConnectionManager connectionManager = ably.connection.connectionManager;
+			new Helpers.ConnectionManagerWaiter(connectionManager).waitFor(ConnectionState.connected);
+			String name = "presence_map";
+			final Channel channel = ably.channels.get(name);
+			channel.attach();
+			new Helpers.ChannelWaiter(channel).waitFor(ChannelState.attached);
+
+			/* a member that is not seen in the sync below */
+			connectionManager.onMessage(presence(Action.presence, name, null, PresenceMessage.Action.enter, -1, 1));
+			assertThat(channel.presence.get().length, is(1));
+
+			final AtomicBoolean done = new AtomicBoolean();
+			final AtomicInteger torn = new AtomicInteger();
+			Thread reader = new Thread() {
+				@Override
+				public void run() {
+					try {
+						while(!done.get())
+							if(channel.presence.get().length % BATCH > 1)
+								torn.incrementAndGet();
+					} catch(Exception e) {
+						torn.incrementAndGet();
+					}
+				}
+			};
+			reader.start();
+
+			int batches = 20;
+			for(int i = 0; i < batches; i++) {
+				String channelSerial = "sync:" + (i < batches - 1 ? "cursor" + i : "");
+				connectionManager.onMessage(presence(Action.sync, name, channelSerial, PresenceMessage.Action.present, i * BATCH, BATCH));
+			}
+			assertThat(channel.presence.get(true).length, is(batches * BATCH));
+			done.set(true);
+			reader.join();
+			assertThat(torn.get(), is(0));
+
+			connectionManager.onMessage(presence(Action.presence, name, null, PresenceMessage.Action.leave, 0, 1));
+			assertThat(channel.presence.get().length, is(batches * BATCH - 1));
+			assertThat(channel.presence.get("client_1", false).length, is(1));
+			assertThat(channel.presence.get("client_0", false).length, is(0));
+		} finally {
+			ably.close();
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package io.ably.lib.rest;
+
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.Callback;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.PublishResponse;
+
+/**
+ * Tests of batch publishes to many channels, using a local stand-in
+ * for the batch publish endpoint
+ */
+public class BatchPublishTest {
+
+	private static final int PORT = 27345;
+	private static final int UNUSED_PORT = 27346;
+	private static BatchPublishTestServer server;
+
+	@BeforeClass
+	public static void setUp() throws IOException {
+		server = new BatchPublishTestServer(PORT, 0);
+		server.start();
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		server.stop();
+	}
+
+	private static AblyRest client(int port, boolean binary, int maxChannels) throws AblyException {
+		ClientOptions opts = new ClientOptions("standin.key:secret");
+		opts.restHost = "localhost";
+		opts.tls = false;
+		opts.port = port;
+		opts.useBinaryProtocol = binary;
+		opts.batchPublishMaxChannels = maxChannels;
+		return new AblyRest(opts);
+	}
+
+	private static String[] channels(String prefix, int count) {
+		String[] channels = new String[count];
+		for(int i = 0; i < count; i++)
+			channels[i] = prefix + i;
+		return channels;
+	}
+
+	private static void checkFanout(String prefix, boolean binary) throws AblyException {
+		AblyRest ably = client(PORT, binary, 100);
+		String[] channels = channels(prefix, 250);
+		int requests = server.getRequestCount();
+		PublishResponse[] results = ably.publishBatch(new Message.Batch[] {
+			new Message.Batch(channels, new Message[] { new Message("notification", "fanout") })
+		});
+		assertThat(server.getRequestCount() - requests, is(3));
+		assertThat(results.length, is(channels.length));
+		for(int i = 0; i < channels.length; i++) {
+			assertThat(results[i].channel, is(channels[i]));
+			assertThat(results[i].error, is(nullValue()));
+			assertThat(results[i].messageId, is(notNullValue()));
+			assertThat(server.getPublishCount(channels[i]), is(1));
+			assertThat(server.getLastMessages(channels[i])[0].name, is("notification"));
+			assertThat((String)server.getLastMessages(channels[i])[0].data, is("fanout"));
+		}
+	}
+
+	/**
+	 * Verify that a publish to many channels is sent in requests of
+	 * up to the maximum number of channels, in JSON and msgpack
+	 */
+	@Test
+	public void batch_publish_fanout() throws AblyException {
+		checkFanout("json-", false);
+		checkFanout("binary-", true);
+	}
+
+	/**
+	 * Verify that several batches are split across requests, with the
+	 * messages of each batch sent to its own channels
+	 */
+	@Test
+	public void batch_publish_split() throws AblyException {
+		AblyRest ably = client(PORT, true, 3);
+		int requests = server.getRequestCount();
+		PublishResponse[] results = ably.publishBatch(new Message.Batch[] {
+			new Message.Batch(channels("split-a", 5), new Message[] { new Message("a", "data a") }),
+			new Message.Batch(channels("split-b", 2), new Message[] { new Message("b0", "data b0"), new Message("b1", "data b1") }),
+			new Message.Batch("split-c", new Message[] { new Message("c", "data c") })
+		});
+		assertThat(server.getRequestCount() - requests, is(3));
+		assertThat(results.length, is(8));
+		assertThat(results[4].channel, is("split-a4"));
+		assertThat(results[5].channel, is("split-b0"));
+		assertThat(results[7].channel, is("split-c"));
+		for(PublishResponse result : results)
+			assertThat(result.error, is(nullValue()));
+		assertThat(server.getLastMessages("split-a4")[0].name, is("a"));
+		assertThat(server.getLastMessages("split-b1").length, is(2));
+		assertThat(server.getLastMessages("split-b1")[1].name, is("b1"));
+		assertThat(server.getLastMessages("split-c")[0].name, is("c"));
+	}
+
+	/**
+	 * Verify that the results of a request that failed for some channels
+	 * give the error for those channels only, and that a request that
+	 * failed entirely gives its error for each of its channels
+	 */
+	@Test
+	public void batch_publish_errors() throws AblyException {
+		AblyRest ably = client(PORT, false, 100);
+		PublishResponse[] results = ably.publishBatch(new Message.Batch[] {
+			new Message.Batch(new String[] { "partial-0", "failing-0", "partial-1" }, new Message[] { new Message("event", "data") })
+		});
+		assertThat(results.length, is(3));
+		assertThat(results[0].error, is(nullValue()));
+		assertThat(results[1].channel, is("failing-0"));
+		assertThat(results[1].error.code, is(40160));
+		assertThat(results[2].error, is(nullValue()));
+		assertThat(results[2].messageId, is(notNullValue()));
+
+		AblyRest unreachable = client(UNUSED_PORT, false, 2);
+		results = unreachable.publishBatch(new Message.Batch[] {
+			new Message.Batch(channels("unreachable-", 3), new Message[] { new Message("event", "data") })
+		});
+		assertThat(results.length, is(3));
+		for(int i = 0; i < results.length; i++) {
+			assertThat(results[i].channel, is("unreachable-" + i));
+			assertThat(results[i].error, is(notNullValue()));
+		}
+	}
+
+	/**
+	 * Verify that results given in a different order from the request are
+	 * matched to their channels by name, and that the results for a channel
+	 * given more than once are taken in order
+	 */
+	@Test
+	public void batch_publish_result_order() throws AblyException {
+		AblyRest ably = client(PORT, false, 100);
+		PublishResponse[] results = ably.publishBatch(new Message.Batch[] {
+			new Message.Batch(new String[] { "order-c", "order-a", "failing-order" }, new Message[] { new Message("first", "data") }),
+			new Message.Batch(new String[] { "order-b", "order-a" }, new Message[] { new Message("second", "data") })
+		});
+		assertThat(results.length, is(5));
+		String[] channels = new String[] { "order-c", "order-a", "failing-order", "order-b", "order-a" };
+		for(int i = 0; i < channels.length; i++)
+			assertThat(results[i].channel, is(channels[i]));
+		assertThat(results[2].error.code, is(40160));
+		assertThat(results[0].messageId, is(endsWith(":0")));
+		assertThat(results[1].messageId, is(endsWith(":1")));
+		assertThat(results[3].messageId, is(endsWith(":3")));
+		assertThat(results[4].messageId, is(endsWith(":4")));
+	}
+
+	/**
+	 * Verify that an async batch publish calls back once, with the
+	 * results of all its requests in order
+	 */
+	@Test
+	public void batch_publish_async() throws Exception {
+		AblyRest ably = client(PORT, true, 50);
+		final String[] channels = channels("async-", 420);
+		channels[210] = "failing-async";
+		final CountDownLatch latch = new CountDownLatch(1);
+		final PublishResponse[][] results = new PublishResponse[1][];
+		int requests = server.getRequestCount();
+		ably.publishBatchAsync(new Message.Batch[] {
+			new Message.Batch(channels, new Message[] { new Message("event", "async") })
+		}, new Callback<PublishResponse[]>() {
+			@Override
+			public void onSuccess(PublishResponse[] result) {
+				results[0] = result;
+				latch.countDown();
+			}
+			@Override
+			public void onError(ErrorInfo reason) {
+				latch.countDown();
+			}
+		});
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		assertThat(server.getRequestCount() - requests, is(9));
+		assertThat(results[0].length, is(channels.length));
+		for(int i = 0; i < channels.length; i++) {
+			assertThat(results[0][i].channel, is(channels[i]));
+			assertThat(results[0][i].error == null, is(i != 210));
+		}
+		ably.asyncHttp.dispose();
+	}
+}
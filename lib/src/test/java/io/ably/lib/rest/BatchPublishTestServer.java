@@ -0,0 +1,213 @@
+package io.ably.lib.rest;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import fi.iki.elonen.NanoHTTPD;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.MessageSerializer;
+import io.ably.lib.types.PublishResponse;
+import io.ably.lib.util.Serialisation;
+
+/**
+ * A local stand-in for the REST publish endpoints in tests and benchmarks.
+ * It accepts batch publishes to /messages, in JSON or msgpack, and responds
+ * with the result for each channel, as well as publishes to a single channel.
+ * Publishes to channels whose names start with "failing" are refused.
+ * The results of a batch publish are given in order of channel name, not
+ * in the order of the request.
+ * Each request is answered after a fixed delay.
+ */
+public class BatchPublishTestServer extends NanoHTTPD {
+
+	public BatchPublishTestServer(int port, long delay) {
+		super(port);
+		this.delay = delay;
+	}
+
+	public void start() throws IOException {
+		start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+	}
+
+	/**
+	 * The number of requests received
+	 */
+	public int getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * The greatest number of channels in any one batch publish request
+	 */
+	public int getMaxChannelsPerRequest() {
+		return maxChannelsPerRequest.get();
+	}
+
+	/**
+	 * The number of publishes received for a channel, including refused publishes
+	 */
+	public int getPublishCount(String channel) {
+		AtomicInteger count = publishes.get(channel);
+		return (count != null) ? count.get() : 0;
+	}
+
+	/**
+	 * The messages of the last publish received for a channel
+	 */
+	public Message[] getLastMessages(String channel) {
+		return lastMessages.get(channel);
+	}
+
+	@Override
+	protected ClientHandler createClientHandler(Socket socket, InputStream inputStream) {
+		/* responses have a body, which NanoHTTPD writes separately from the headers */
+		try {
+			socket.setTcpNoDelay(true);
+		} catch(SocketException e) {}
+		return super.createClientHandler(socket, inputStream);
+	}
+
+	@Override
+	public Response serve(IHTTPSession session) {
+		int requestId = requests.incrementAndGet();
+		Response response;
+		try {
+			String length = session.getHeaders().get("content-length");
+			byte[] body = new byte[(length != null) ? Integer.parseInt(length) : 0];
+			new DataInputStream(session.getInputStream()).readFully(body);
+			boolean binary = String.valueOf(session.getHeaders().get("content-type")).contains("msgpack");
+			String uri = session.getUri();
+			if(uri.equals("/messages")) {
+				response = batchPublish(requestId, binary ? readMsgpackBatch(body) : readJSONBatch(body));
+			} else if(uri.startsWith("/channels/") && uri.endsWith("/messages")) {
+				String channel = URLDecoder.decode(uri.substring("/channels/".length(), uri.length() - "/messages".length()), "UTF-8");
+				Message[] messages = binary ? MessageSerializer.readMsgpack(body) : Serialisation.gson.fromJson(new String(body, "UTF-8"), Message[].class);
+				ErrorInfo error = publish(channel, messages);
+				response = (error == null)
+						? newFixedLengthResponse(Response.Status.CREATED, JSON, "")
+						: newFixedLengthResponse(Response.Status.UNAUTHORIZED, JSON, "{\"error\":" + Serialisation.gson.toJson(error) + "}");
+			} else {
+				response = newFixedLengthResponse(Response.Status.NOT_FOUND, JSON, "{\"error\":{\"message\":\"Not found\",\"statusCode\":404,\"code\":40400}}");
+			}
+		} catch(Exception e) {
+			response = newFixedLengthResponse(Response.Status.BAD_REQUEST, JSON, "{\"error\":{\"message\":\"Invalid request body\",\"statusCode\":400,\"code\":40000}}");
+		}
+		if(delay > 0) {
+			try { Thread.sleep(delay); } catch(InterruptedException e) {}
+		}
+		return response;
+	}
+
+	private Response batchPublish(int requestId, List<Message.Batch> pubSpecs) {
+		List<PublishResponse> results = new ArrayList<PublishResponse>();
+		boolean failed = false;
+		int channels = 0;
+		for(Message.Batch spec : pubSpecs) {
+			for(String channel : spec.channels) {
+				PublishResponse result = new PublishResponse(channel, publish(channel, spec.messages));
+				if(result.error == null)
+					result.messageId = requestId + ":" + results.size();
+				failed |= (result.error != null);
+				results.add(result);
+				++channels;
+			}
+		}
+		for(int max; channels > (max = maxChannelsPerRequest.get()) && !maxChannelsPerRequest.compareAndSet(max, channels););
+		Collections.sort(results, new Comparator<PublishResponse>() {
+			@Override
+			public int compare(PublishResponse a, PublishResponse b) {
+				return a.channel.compareTo(b.channel);
+			}
+		});
+
+		String batchResponse = Serialisation.gson.toJson(results);
+		if(!failed)
+			return newFixedLengthResponse(Response.Status.CREATED, JSON, batchResponse);
+		return newFixedLengthResponse(Response.Status.BAD_REQUEST, JSON,
+				"{\"error\":{\"message\":\"Batched response includes errors\",\"statusCode\":400,\"code\":40020},\"batchResponse\":" + batchResponse + "}");
+	}
+
+	private ErrorInfo publish(String channel, Message[] messages) {
+		AtomicInteger count = publishes.get(channel);
+		if(count == null) {
+			AtomicInteger created = new AtomicInteger();
+			count = publishes.putIfAbsent(channel, created);
+			if(count == null)
+				count = created;
+		}
+		count.incrementAndGet();
+		lastMessages.put(channel, messages);
+		if(channel.startsWith("failing"))
+			return new ErrorInfo("Publish to channel denied", 401, 40160);
+		return null;
+	}
+
+	private static List<Message.Batch> readJSONBatch(byte[] body) throws IOException {
+		List<Message.Batch> pubSpecs = new ArrayList<Message.Batch>();
+		for(JsonElement element : new JsonParser().parse(new String(body, "UTF-8")).getAsJsonArray()) {
+			JsonObject spec = element.getAsJsonObject();
+			JsonArray channels = spec.getAsJsonArray("channels");
+			String[] names = new String[channels.size()];
+			for(int i = 0; i < names.length; i++)
+				names[i] = channels.get(i).getAsString();
+			pubSpecs.add(new Message.Batch(names, Serialisation.gson.fromJson(spec.get("messages"), Message[].class)));
+		}
+		return pubSpecs;
+	}
+
+	private static List<Message.Batch> readMsgpackBatch(byte[] body) throws Exception {
+		List<Message.Batch> pubSpecs = new ArrayList<Message.Batch>();
+		MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(body);
+		int count = unpacker.unpackArrayHeader();
+		for(int i = 0; i < count; i++) {
+			String[] channels = null;
+			Message[] messages = null;
+			int fieldCount = unpacker.unpackMapHeader();
+			for(int j = 0; j < fieldCount; j++) {
+				String fieldName = unpacker.unpackString();
+				if(fieldName.equals("channels")) {
+					channels = new String[unpacker.unpackArrayHeader()];
+					for(int k = 0; k < channels.length; k++)
+						channels[k] = unpacker.unpackString();
+				} else if(fieldName.equals("messages")) {
+					/* repack the array of messages to decode it with the library */
+					MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+					packer.packValue(unpacker.unpackValue());
+					messages = MessageSerializer.readMsgpack(packer.toByteArray());
+				} else {
+					unpacker.skipValue();
+				}
+			}
+			pubSpecs.add(new Message.Batch(channels, messages));
+		}
+		return pubSpecs;
+	}
+
+	private final long delay;
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger maxChannelsPerRequest = new AtomicInteger();
+	private final ConcurrentHashMap<String, AtomicInteger> publishes = new ConcurrentHashMap<String, AtomicInteger>();
+	private final ConcurrentHashMap<String, Message[]> lastMessages = new ConcurrentHashMap<String, Message[]>();
+
+	private static final String JSON = "application/json";
+}
@@ -0,0 +1,203 @@
+package io.ably.lib.rest;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.MessageSerializer;
+
+/**
+ * Tests of the batching of publishAsync calls, using a local server
+ * that records the messages in each request
+ */
+public class PublishBatcherTest {
+
+	private static final int PORT = 27344;
+	private static final List<Message[]> requests = Collections.synchronizedList(new ArrayList<Message[]>());
+	private static NanoHTTPD server;
+
+	@BeforeClass
+	public static void setUp() throws IOException {
+		server = new NanoHTTPD(PORT) {
+			@Override
+			public Response serve(IHTTPSession session) {
+				try {
+					byte[] body = new byte[Integer.parseInt(session.getHeaders().get("content-length"))];
+					new DataInputStream(session.getInputStream()).readFully(body);
+					requests.add(MessageSerializer.readMsgpack(body));
+				} catch(Exception e) {
+					return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, "text/plain", e.toString());
+				}
+				if(session.getUri().contains("failing"))
+					return newFixedLengthResponse(Response.Status.BAD_REQUEST, "application/json",
+							"{\"error\":{\"message\":\"publish failed\",\"statusCode\":400,\"code\":40099}}");
+				return newFixedLengthResponse(Response.Status.CREATED, "application/json", "");
+			}
+		};
+		server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		server.stop();
+	}
+
+	private static AblyRest client(int lingerInterval, int batchSize, int batchMaxBytes) throws AblyException {
+		ClientOptions opts = new ClientOptions("standin.key:secret");
+		opts.restHost = "localhost";
+		opts.tls = false;
+		opts.port = PORT;
+		opts.publishLingerInterval = lingerInterval;
+		opts.publishBatchSize = batchSize;
+		opts.publishBatchMaxBytes = batchMaxBytes;
+		return new AblyRest(opts);
+	}
+
+	private static class Completion implements CompletionListener {
+		private final CountDownLatch latch;
+		private final List<ErrorInfo> errors = Collections.synchronizedList(new ArrayList<ErrorInfo>());
+
+		Completion(int count) { latch = new CountDownLatch(count); }
+
+		@Override
+		public void onSuccess() { latch.countDown(); }
+
+		@Override
+		public void onError(ErrorInfo reason) { errors.add(reason); latch.countDown(); }
+
+		void await() throws InterruptedException { assertTrue(latch.await(10, TimeUnit.SECONDS)); }
+	}
+
+	private static String data(int length) {
+		char[] data = new char[length];
+		Arrays.fill(data, 'x');
+		return new String(data);
+	}
+
+	/**
+	 * Verify that publishAsync calls made within the linger interval
+	 * are sent in one request, and that every listener is called
+	 */
+	@Test
+	public void publish_batch_linger() throws Exception {
+		requests.clear();
+		AblyRest ably = client(200, 100, 65536);
+		Channel channel = ably.channels.get("linger");
+		int count = 20;
+		Completion completion = new Completion(count);
+		for(int i = 0; i < count; i++)
+			channel.publishAsync(new Message[] { new Message("event", "data " + i) }, completion);
+		completion.await();
+		assertThat(completion.errors.size(), is(0));
+		assertThat(requests.size(), is(1));
+		assertThat(requests.get(0).length, is(count));
+		assertThat((String)requests.get(0)[count - 1].data, is("data " + (count - 1)));
+		ably.asyncHttp.dispose();
+	}
+
+	/**
+	 * Verify that a batch is sent without waiting for the linger interval
+	 * once it reaches the batch size, and that the messages of a call are
+	 * kept in one request
+	 */
+	@Test
+	public void publish_batch_size() throws Exception {
+		requests.clear();
+		AblyRest ably = client(60000, 10, 65536);
+		Channel channel = ably.channels.get("size");
+		Completion completion = new Completion(7);
+		for(int i = 0; i < 6; i++)
+			channel.publishAsync(new Message[] { new Message("event", "single " + i) }, completion);
+		channel.publishAsync(new Message[] { new Message("event", "pair 0"), new Message("event", "pair 1"), new Message("event", "pair 2"), new Message("event", "pair 3") }, completion);
+		completion.await();
+		assertThat(completion.errors.size(), is(0));
+		assertThat(requests.size(), is(1));
+		assertThat(requests.get(0).length, is(10));
+
+		requests.clear();
+		completion = new Completion(2);
+		channel.publishAsync(new Message[] { new Message("event", data(10)) }, completion);
+		Message[] large = new Message[10];
+		for(int i = 0; i < large.length; i++)
+			large[i] = new Message("event", "large " + i);
+		channel.publishAsync(large, completion);
+		completion.await();
+		assertThat(completion.errors.size(), is(0));
+		/* the pending message is sent first, as the call would take the batch over the limit */
+		assertThat(requests.size(), is(2));
+		assertThat(requests.get(0).length + requests.get(1).length, is(11));
+		ably.asyncHttp.dispose();
+	}
+
+	/**
+	 * Verify that batches do not exceed the byte limit, and that a message
+	 * that alone exceeds it is sent in its own request
+	 */
+	@Test
+	public void publish_batch_max_bytes() throws Exception {
+		requests.clear();
+		int maxBytes = 1000;
+		AblyRest ably = client(100, 100, maxBytes);
+		Channel channel = ably.channels.get("bytes");
+		Completion completion = new Completion(11);
+		for(int i = 0; i < 10; i++)
+			channel.publishAsync(new Message[] { new Message("event", data(295)) }, completion);
+		channel.publishAsync(new Message[] { new Message("event", data(2 * maxBytes)) }, completion);
+		completion.await();
+		assertThat(completion.errors.size(), is(0));
+		int messages = 0;
+		for(Message[] request : requests) {
+			int size = 0;
+			for(Message message : request)
+				size += PublishBatcher.messageSize(message);
+			if(request.length > 1)
+				assertThat(size, is(lessThanOrEqualTo(maxBytes)));
+			messages += request.length;
+		}
+		assertThat(messages, is(11));
+		/* 3 messages fit in each batch, and the oversized message is sent alone */
+		assertThat(requests.size(), is(5));
+		assertThat(PublishBatcher.messageSize(new Message("event", data(295))), is(300));
+		ably.asyncHttp.dispose();
+	}
+
+	/**
+	 * Verify that the error from a failed request is passed to the
+	 * listener of every call in the batch
+	 */
+	@Test
+	public void publish_batch_error() throws Exception {
+		requests.clear();
+		AblyRest ably = client(100, 100, 65536);
+		Channel channel = ably.channels.get("failing");
+		Completion completion = new Completion(3);
+		for(int i = 0; i < 3; i++)
+			channel.publishAsync(new Message[] { new Message("event", "data " + i) }, completion);
+		completion.await();
+		assertThat(requests.size(), is(1));
+		assertThat(completion.errors.size(), is(3));
+		for(ErrorInfo error : completion.errors)
+			assertThat(error.code, is(40099));
+		ably.asyncHttp.dispose();
+	}
+}
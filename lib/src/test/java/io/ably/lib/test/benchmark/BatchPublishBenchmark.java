@@ -0,0 +1,125 @@
+package io.ably.lib.test.benchmark;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.rest.AblyRest;
+import io.ably.lib.rest.BatchPublishTestServer;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.Callback;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.PublishResponse;
+
+/**
+ * Measures the time to publish a message to many channels through a local
+ * stand-in for the REST endpoints that responds after a simulated network
+ * latency, comparing an async publish to each channel with batch publishes,
+ * reporting the channels published to per second and the requests made.
+ * This is not run as part of the test suite; run it with
+ * java io.ably.lib.test.benchmark.BatchPublishBenchmark [channels] [rounds] [latency ms]
+ */
+public class BatchPublishBenchmark {
+
+	private static final int PORT = 27354;
+
+	public static void main(String[] args) throws Exception {
+		int channelCount = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+		long latency = (args.length > 2) ? Long.parseLong(args[2]) : 20L;
+		String[] channels = new String[channelCount];
+		for(int i = 0; i < channelCount; i++)
+			channels[i] = "benchmark-" + i;
+
+		BatchPublishTestServer server = new BatchPublishTestServer(PORT, latency);
+		server.start();
+		System.out.println(String.format(Locale.ROOT, "%-32s %14s %14s",
+				"mode", "channels/s", "requests"));
+		run("publishAsync each, 8 threads", newOptions(8), channels, rounds, server, Mode.EACH);
+		run("publishAsync each, 64 threads", newOptions(64), channels, rounds, server, Mode.EACH);
+		run("publishBatch", newOptions(8), channels, rounds, server, Mode.BATCH);
+		run("publishBatchAsync, 8 threads", newOptions(8), channels, rounds, server, Mode.BATCH_ASYNC);
+		server.stop();
+		System.exit(0);
+	}
+
+	private enum Mode { EACH, BATCH, BATCH_ASYNC }
+
+	private static ClientOptions newOptions(int threads) throws AblyException {
+		ClientOptions opts = new ClientOptions("standin.key:secret");
+		opts.restHost = "localhost";
+		opts.tls = false;
+		opts.port = PORT;
+		opts.asyncHttpThreadpoolSize = threads;
+		opts.asyncHttpQueueSize = 0;
+		return opts;
+	}
+
+	private static void run(String name, ClientOptions opts, String[] channels, int rounds, BatchPublishTestServer server, Mode mode) throws Exception {
+		AblyRest ably = new AblyRest(opts);
+		fanout(ably, channels, mode);
+
+		int requests = server.getRequestCount();
+		long start = System.nanoTime();
+		for(int i = 0; i < rounds; i++)
+			fanout(ably, channels, mode);
+		long elapsed = System.nanoTime() - start;
+		requests = server.getRequestCount() - requests;
+
+		System.out.println(String.format(Locale.ROOT, "%-32s %14.0f %14d",
+				name, (double)channels.length * rounds * 1e9 / elapsed, requests));
+		ably.asyncHttp.dispose();
+	}
+
+	/**
+	 * Publish a notification to every channel, and wait for every publish to complete
+	 */
+	private static void fanout(AblyRest ably, String[] channels, Mode mode) throws Exception {
+		final AtomicInteger failed = new AtomicInteger();
+		switch(mode) {
+		case EACH:
+			final CountDownLatch completed = new CountDownLatch(channels.length);
+			CompletionListener listener = new CompletionListener() {
+				@Override
+				public void onSuccess() { completed.countDown(); }
+
+				@Override
+				public void onError(ErrorInfo reason) { failed.incrementAndGet(); completed.countDown(); }
+			};
+			for(String channel : channels)
+				ably.channels.get(channel).publishAsync(new Message[] { notification() }, listener);
+			completed.await();
+			break;
+		case BATCH:
+			count(ably.publishBatch(new Message.Batch[] { new Message.Batch(channels, new Message[] { notification() }) }), failed);
+			break;
+		case BATCH_ASYNC:
+			final CountDownLatch done = new CountDownLatch(1);
+			ably.publishBatchAsync(new Message.Batch[] { new Message.Batch(channels, new Message[] { notification() }) }, new Callback<PublishResponse[]>() {
+				@Override
+				public void onSuccess(PublishResponse[] results) { count(results, failed); done.countDown(); }
+
+				@Override
+				public void onError(ErrorInfo reason) { failed.incrementAndGet(); done.countDown(); }
+			});
+			done.await();
+			break;
+		}
+		if(failed.get() != 0)
+			System.out.println(failed.get() + " publishes failed");
+	}
+
+	private static void count(PublishResponse[] results, AtomicInteger failed) {
+		for(PublishResponse result : results) {
+			if(result.error != null)
+				failed.incrementAndGet();
+		}
+	}
+
+	private static Message notification() {
+		return new Message("notification", "{\"title\":\"Update available\",\"version\":\"1.2.0\"}");
+	}
+}
@@ -0,0 +1,113 @@
+package io.ably.lib.test.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers;
+import io.ably.lib.test.util.WebSocketStandIn;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.DeflateOptions;
+import io.ably.lib.types.ErrorInfo;
+
+/**
+ * Compares realtime publishing with and without permessage-deflate against
+ * a local WebSocket stand-in, reporting the bytes on the wire and the
+ * process CPU time per message.
+ * This is not run as part of the test suite; run it with
+ * java io.ably.lib.test.benchmark.DeflateBenchmark [messageCount]
+ */
+public class DeflateBenchmark {
+
+	private static final int WARMUP_COUNT = 500;
+
+	public static void main(String[] args) throws Exception {
+		int count = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+		WebSocketStandIn server = WebSocketStandIn.startLocal(new DeflateOptions());
+		try {
+			System.out.println(String.format(Locale.ROOT, "%-28s %10s %14s %14s %12s",
+					"configuration", "messages", "up bytes/msg", "down bytes/msg", "cpu us/msg"));
+			for(boolean useBinaryProtocol : new boolean[] {false, true}) {
+				String protocol = useBinaryProtocol ? "msgpack" : "json";
+				run(server, protocol + " uncompressed", useBinaryProtocol, null, count);
+				run(server, protocol + " deflate level 1", useBinaryProtocol, deflateOptions(1, false), count);
+				run(server, protocol + " deflate default", useBinaryProtocol, deflateOptions(Deflater.DEFAULT_COMPRESSION, false), count);
+				run(server, protocol + " deflate no takeover", useBinaryProtocol, deflateOptions(Deflater.DEFAULT_COMPRESSION, true), count);
+			}
+		} finally {
+			server.stop();
+		}
+		System.exit(0);
+	}
+
+	private static DeflateOptions deflateOptions(int level, boolean noContextTakeover) {
+		DeflateOptions options = new DeflateOptions();
+		options.level = level;
+		options.clientNoContextTakeover = noContextTakeover;
+		options.serverNoContextTakeover = noContextTakeover;
+		return options;
+	}
+
+	private static void run(WebSocketStandIn server, String name, boolean useBinaryProtocol, DeflateOptions deflateOptions, int count) throws AblyException {
+		ClientOptions opts = server.createOptions();
+		opts.useBinaryProtocol = useBinaryProtocol;
+		opts.compressTransport = (deflateOptions != null);
+		opts.deflateOptions = deflateOptions;
+
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			new Helpers.ConnectionManagerWaiter(ably.connection.connectionManager).waitFor(ConnectionState.connected);
+			Channel channel = ably.channels.get("deflate_benchmark");
+			channel.attach();
+			new Helpers.ChannelWaiter(channel).waitFor(ChannelState.attached);
+
+			publish(channel, WARMUP_COUNT);
+			long upBytes = server.wireBytesReceived.get();
+			long downBytes = server.wireBytesSent.get();
+			long cpuTime = getProcessCpuTime();
+			publish(channel, count);
+			cpuTime = getProcessCpuTime() - cpuTime;
+			upBytes = server.wireBytesReceived.get() - upBytes;
+			downBytes = server.wireBytesSent.get() - downBytes;
+
+			System.out.println(String.format(Locale.ROOT, "%-28s %10d %14.1f %14.1f %12s",
+					name, count, (double)upBytes / count, (double)downBytes / count,
+					(cpuTime < 0) ? "n/a" : String.format(Locale.ROOT, "%.1f", cpuTime / 1000.0 / count)));
+		} finally {
+			ably.close();
+			new Helpers.ConnectionManagerWaiter(ably.connection.connectionManager).waitFor(ConnectionState.closed);
+		}
+	}
+
+	/**
+	 * Publish messages resembling a typical telemetry feed, waiting for all acks
+	 */
+	private static void publish(Channel channel, int count) throws AblyException {
+		Helpers.CompletionSet publishes = new Helpers.CompletionSet();
+		for(int i = 0; i < count; i++) {
+			String data = String.format(Locale.ROOT,
+					"{\"deviceId\":\"device-%d\",\"type\":\"telemetry\",\"temperature\":%.2f,\"humidity\":%.2f,\"status\":\"ok\",\"firmware\":\"2.4.1\",\"sequence\":%d}",
+					i % 16, 20 + (i % 50) / 10.0, 40 + (i % 30) / 10.0, i);
+			channel.publish("telemetry", data, publishes.add());
+		}
+		ErrorInfo[] errors = publishes.waitFor();
+		if(errors.length > 0)
+			throw AblyException.fromErrorInfo(errors[0]);
+	}
+
+	/**
+	 * Get the CPU time used by the whole process, in nanoseconds, or -1 if unavailable
+	 */
+	private static long getProcessCpuTime() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+		return -1;
+	}
+}
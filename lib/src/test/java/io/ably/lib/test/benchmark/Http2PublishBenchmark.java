@@ -0,0 +1,131 @@
+package io.ably.lib.test.benchmark;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.iki.elonen.NanoHTTPD;
+import io.ably.lib.http.HttpEngine;
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.rest.AblyRest;
+import io.ably.lib.rest.Channel;
+import io.ably.lib.transport.Http2Engine;
+import io.ably.lib.transport.Http2TestServer;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+
+/**
+ * Measures the throughput of async REST publishes to local stand-ins
+ * for the REST endpoint that respond after a simulated network latency,
+ * comparing the HttpURLConnection engine, over HTTP/1.1 with keep-alive,
+ * with and without batching of publishAsync calls, with the HTTP/2 engine,
+ * reporting the publishes per second and the connections opened.
+ * This is not run as part of the test suite; run it with
+ * java io.ably.lib.test.benchmark.Http2PublishBenchmark [seconds] [latency ms]
+ */
+public class Http2PublishBenchmark {
+
+	private static final int PORT = 27352;
+	private static final int WARMUP_SECONDS = 2;
+	private static final int MAX_OUTSTANDING = 2000;
+	private static final AtomicInteger connections = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+		final long latency = (args.length > 1) ? Long.parseLong(args[1]) : 20L;
+		System.out.println(String.format(Locale.ROOT, "%-30s %14s %14s",
+				"engine", "publishes/s", "connections"));
+
+		NanoHTTPD server = new NanoHTTPD(PORT) {
+			@Override
+			protected ClientHandler createClientHandler(Socket socket, InputStream inputStream) {
+				connections.incrementAndGet();
+				return super.createClientHandler(socket, inputStream);
+			}
+
+			@Override
+			public Response serve(IHTTPSession session) {
+				try { session.parseBody(new HashMap<String, String>()); } catch(Exception e) {}
+				try { Thread.sleep(latency); } catch(InterruptedException e) {}
+				return newFixedLengthResponse(Response.Status.CREATED, "application/json", "");
+			}
+		};
+		server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+		run("http/1.1, 8 threads", newOptions(PORT, null, 8), seconds, null);
+		run("http/1.1, 64 threads", newOptions(PORT, null, 64), seconds, null);
+		ClientOptions batched = newOptions(PORT, null, 8);
+		batched.publishLingerInterval = 5;
+		run("http/1.1, 8 threads, batched", batched, seconds, null);
+		server.stop();
+
+		Http2TestServer http2Server = new Http2TestServer(PORT + 1, latency);
+		http2Server.start();
+		run("http/2, 8 threads", newOptions(PORT + 1, new Http2Engine.Factory(), 8), seconds, http2Server);
+		http2Server.stop();
+		System.exit(0);
+	}
+
+	private static ClientOptions newOptions(int port, HttpEngine.Factory engineFactory, int threads) throws AblyException {
+		ClientOptions opts = new ClientOptions("standin.key:secret");
+		opts.restHost = "localhost";
+		opts.tls = false;
+		opts.port = port;
+		opts.httpEngineFactory = engineFactory;
+		opts.asyncHttpThreadpoolSize = threads;
+		opts.asyncHttpQueueSize = MAX_OUTSTANDING;
+		return opts;
+	}
+
+	private static void run(String name, ClientOptions opts, int seconds, Http2TestServer http2Server) throws Exception {
+		Channel channel = new AblyRest(opts).channels.get("benchmark");
+		publishFor(channel, WARMUP_SECONDS);
+
+		int opened = (http2Server != null) ? http2Server.getConnectionCount() : connections.get();
+		long start = System.nanoTime();
+		long publishes = publishFor(channel, seconds);
+		long elapsed = System.nanoTime() - start;
+		opened = ((http2Server != null) ? http2Server.getConnectionCount() : connections.get()) - opened;
+
+		System.out.println(String.format(Locale.ROOT, "%-30s %14.0f %14d",
+				name, publishes * 1e9 / elapsed, opened));
+	}
+
+	/**
+	 * Publish continuously, with up to MAX_OUTSTANDING publishes awaiting
+	 * their result, and wait for the last to complete
+	 * @return the number of successful publishes
+	 */
+	private static long publishFor(Channel channel, int seconds) throws InterruptedException {
+		final Semaphore outstanding = new Semaphore(MAX_OUTSTANDING);
+		final AtomicLong succeeded = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		CompletionListener listener = new CompletionListener() {
+			@Override
+			public void onSuccess() {
+				succeeded.incrementAndGet();
+				outstanding.release();
+			}
+
+			@Override
+			public void onError(ErrorInfo reason) {
+				failed.incrementAndGet();
+				outstanding.release();
+			}
+		};
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		do {
+			outstanding.acquire();
+			channel.publishAsync(new Message[] { new Message("event", "{\"deviceId\":\"device-0\",\"temperature\":21.5}") }, listener);
+		} while(System.nanoTime() < deadline);
+		outstanding.acquire(MAX_OUTSTANDING);
+		if(failed.get() > 0)
+			System.out.println(failed.get() + " publishes failed");
+		return succeeded.get();
+	}
+}
@@ -0,0 +1,117 @@
+package io.ably.lib.test.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.MessageSerializer;
+import io.ably.lib.types.PresenceMessage;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolMessage.Action;
+import io.ably.lib.types.ProtocolSerializer;
+
+/**
+ * Measures JSON encoding and decoding of messages, as used when
+ * useBinaryProtocol is false, reporting the operations per second and
+ * the bytes allocated per operation.
+ * This is not run as part of the test suite; run it with
+ * java io.ably.lib.test.benchmark.JsonCodecBenchmark [seconds]
+ */
+public class JsonCodecBenchmark {
+
+	private static final int WARMUP_SECONDS = 3;
+	private static final int BATCH = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+		System.out.println(String.format(Locale.ROOT, "%-28s %10s %14s %14s",
+				"operation", "bytes", "ops/s", "alloc bytes"));
+
+		final ProtocolMessage messages = messages(10);
+		final ProtocolMessage presence = presence(10);
+		final String messagesJson = new String(ProtocolSerializer.writeJSON(messages), "UTF-8");
+		final String presenceJson = new String(ProtocolSerializer.writeJSON(presence), "UTF-8");
+
+		run("realtime encode message x10", messagesJson.length(), seconds, new Op() {
+			public int run() throws AblyException { return ProtocolSerializer.writeJSON(messages).length; }
+		});
+		run("realtime decode message x10", messagesJson.length(), seconds, new Op() {
+			public int run() throws AblyException { return ProtocolSerializer.fromJSON(messagesJson).messages.length; }
+		});
+		run("realtime encode presence x10", presenceJson.length(), seconds, new Op() {
+			public int run() throws AblyException { return ProtocolSerializer.writeJSON(presence).length; }
+		});
+		run("realtime decode presence x10", presenceJson.length(), seconds, new Op() {
+			public int run() throws AblyException { return ProtocolSerializer.fromJSON(presenceJson).presence.length; }
+		});
+		run("rest publish message x10", messagesJson.length(), seconds, new Op() {
+			public int run() throws AblyException { return MessageSerializer.asJSONRequest(messages.messages).getEncoded().length; }
+		});
+		System.exit(0);
+	}
+
+	private interface Op {
+		int run() throws AblyException;
+	}
+
+	private static ProtocolMessage messages(int count) {
+		ProtocolMessage msg = new ProtocolMessage(Action.message, "benchmark:channel");
+		msg.messages = new Message[count];
+		for(int i = 0; i < count; i++) {
+			Message message = new Message("telemetry", (i % 2 == 0) ? "{\"deviceId\":\"device-" + i + "\",\"temperature\":21.5}" : new byte[64]);
+			message.clientId = "client-" + i;
+			message.connectionId = "a1b2c3d4e5";
+			msg.messages[i] = message;
+		}
+		return msg;
+	}
+
+	private static ProtocolMessage presence(int count) {
+		ProtocolMessage msg = new ProtocolMessage(Action.presence, "benchmark:channel");
+		msg.presence = new PresenceMessage[count];
+		for(int i = 0; i < count; i++)
+			msg.presence[i] = new PresenceMessage(PresenceMessage.Action.enter, "client-" + i, "status");
+		return msg;
+	}
+
+	private static void run(String name, int size, int seconds, Op op) throws AblyException {
+		runFor(op, WARMUP_SECONDS);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long allocated = getAllocatedBytes(threads);
+		long start = System.nanoTime();
+		long ops = runFor(op, seconds);
+		long elapsed = System.nanoTime() - start;
+		allocated = (allocated < 0) ? -1 : getAllocatedBytes(threads) - allocated;
+
+		System.out.println(String.format(Locale.ROOT, "%-28s %10d %14.0f %14s",
+				name, size, ops * 1e9 / elapsed,
+				(allocated < 0) ? "n/a" : String.format(Locale.ROOT, "%.0f", (double)allocated / ops)));
+	}
+
+	private static long runFor(Op op, int seconds) throws AblyException {
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		long ops = 0;
+		int check = 0;
+		do {
+			for(int i = 0; i < BATCH; i++)
+				check += op.run();
+			ops += BATCH;
+		} while(System.nanoTime() < deadline);
+		/* consume the result so that the operation cannot be optimised away */
+		if(check == 42)
+			System.out.println();
+		return ops;
+	}
+
+	/**
+	 * Get the bytes allocated by the current thread, or -1 if unavailable
+	 */
+	private static long getAllocatedBytes(ThreadMXBean threads) {
+		if(threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+}
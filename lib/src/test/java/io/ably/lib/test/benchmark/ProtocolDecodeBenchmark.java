@@ -0,0 +1,112 @@
+package io.ably.lib.test.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.PresenceMessage;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolMessage.Action;
+import io.ably.lib.types.ProtocolSerializer;
+
+/**
+ * Measures msgpack decoding of inbound protocol messages, reporting the
+ * number of protocol messages decoded per second and the bytes allocated
+ * per protocol message.
+ * This is not run as part of the test suite; run it with
+ * java io.ably.lib.test.benchmark.ProtocolDecodeBenchmark [seconds]
+ */
+public class ProtocolDecodeBenchmark {
+
+	private static final int WARMUP_SECONDS = 3;
+	private static final int BATCH = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+		System.out.println(String.format(Locale.ROOT, "%-24s %10s %14s %14s",
+				"payload", "bytes", "decodes/s", "alloc bytes"));
+		run("message x1", messages(1), seconds);
+		run("message x10", messages(10), seconds);
+		run("presence x10", presence(10), seconds);
+		run("attached", attached(), seconds);
+		System.exit(0);
+	}
+
+	private static ProtocolMessage messages(int count) {
+		ProtocolMessage msg = new ProtocolMessage(Action.message, "benchmark:channel");
+		msg.id = "a1b2c3d4e5:0";
+		msg.connectionId = "a1b2c3d4e5";
+		msg.connectionSerial = Long.valueOf(1234);
+		msg.timestamp = System.currentTimeMillis();
+		msg.messages = new Message[count];
+		for(int i = 0; i < count; i++) {
+			Message message = new Message("telemetry", "{\"deviceId\":\"device-" + i + "\",\"temperature\":21.5}");
+			message.clientId = "client-" + i;
+			message.encoding = "json";
+			msg.messages[i] = message;
+		}
+		return msg;
+	}
+
+	private static ProtocolMessage presence(int count) {
+		ProtocolMessage msg = new ProtocolMessage(Action.presence, "benchmark:channel");
+		msg.id = "a1b2c3d4e5:0";
+		msg.connectionId = "a1b2c3d4e5";
+		msg.timestamp = System.currentTimeMillis();
+		msg.presence = new PresenceMessage[count];
+		for(int i = 0; i < count; i++)
+			msg.presence[i] = new PresenceMessage(PresenceMessage.Action.enter, "client-" + i, "status");
+		return msg;
+	}
+
+	private static ProtocolMessage attached() {
+		ProtocolMessage msg = new ProtocolMessage(Action.attached, "benchmark:channel");
+		msg.channelSerial = "a1b2c3d4e5:42";
+		msg.flags = 1;
+		msg.error = new ErrorInfo("Channel attached after suspension", 200, 91001);
+		return msg;
+	}
+
+	private static void run(String name, ProtocolMessage msg, int seconds) throws AblyException {
+		byte[] packed = ProtocolSerializer.writeMsgpack(msg);
+		decodeFor(packed, WARMUP_SECONDS);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long allocated = getAllocatedBytes(threads);
+		long start = System.nanoTime();
+		long decodes = decodeFor(packed, seconds);
+		long elapsed = System.nanoTime() - start;
+		allocated = (allocated < 0) ? -1 : getAllocatedBytes(threads) - allocated;
+
+		System.out.println(String.format(Locale.ROOT, "%-24s %10d %14.0f %14s",
+				name, packed.length, decodes * 1e9 / elapsed,
+				(allocated < 0) ? "n/a" : String.format(Locale.ROOT, "%.0f", (double)allocated / decodes)));
+	}
+
+	private static long decodeFor(byte[] packed, int seconds) throws AblyException {
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		long decodes = 0;
+		int check = 0;
+		do {
+			for(int i = 0; i < BATCH; i++)
+				check += ProtocolSerializer.readMsgpack(packed).action.ordinal();
+			decodes += BATCH;
+		} while(System.nanoTime() < deadline);
+		/* consume the result so that decoding cannot be optimised away */
+		if(check == 42)
+			System.out.println();
+		return decodes;
+	}
+
+	/**
+	 * Get the bytes allocated by the current thread, or -1 if unavailable
+	 */
+	private static long getAllocatedBytes(ThreadMXBean threads) {
+		if(threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+}
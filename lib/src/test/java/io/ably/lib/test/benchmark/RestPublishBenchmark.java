@@ -0,0 +1,148 @@
+package io.ably.lib.test.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import fi.iki.elonen.NanoHTTPD;
+import io.ably.lib.rest.AblyRest;
+import io.ably.lib.rest.Channel;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+
+/**
+ * Measures the throughput of synchronous REST publishes to a local
+ * stand-in for the REST endpoint, with and without connection keep-alive,
+ * over plain HTTP and TLS, reporting the publishes per second and the
+ * connections opened. The TLS stand-in uses a self-signed certificate
+ * generated with keytool.
+ * This is not run as part of the test suite; run it with
+ * java io.ably.lib.test.benchmark.RestPublishBenchmark [seconds]
+ */
+public class RestPublishBenchmark {
+
+	private static final int PORT = 27350;
+	private static final int WARMUP_SECONDS = 2;
+	private static final char[] PASSWORD = "benchmark".toCharArray();
+	private static final AtomicInteger connections = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+		System.out.println(String.format(Locale.ROOT, "%-24s %14s %14s",
+				"mode", "publishes/s", "connections"));
+
+		NanoHTTPD server = newServer(PORT);
+		server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+		run("http close", newOptions(PORT, null), false, seconds);
+		run("http keep-alive", newOptions(PORT, null), true, seconds);
+		server.stop();
+
+		KeyStore keyStore = newKeyStore();
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, PASSWORD);
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(keyStore);
+		SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(null, trustManagers.getTrustManagers(), null);
+
+		server = newServer(PORT + 1);
+		server.makeSecure(NanoHTTPD.makeSSLSocketFactory(keyStore, keyManagers), null);
+		server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+		run("https close", newOptions(PORT + 1, sslContext), false, seconds);
+		run("https keep-alive", newOptions(PORT + 1, sslContext), true, seconds);
+		server.stop();
+		System.exit(0);
+	}
+
+	private static NanoHTTPD newServer(int port) {
+		return new NanoHTTPD(port) {
+			@Override
+			protected ClientHandler createClientHandler(Socket socket, InputStream inputStream) {
+				connections.incrementAndGet();
+				return super.createClientHandler(socket, inputStream);
+			}
+
+			@Override
+			public Response serve(IHTTPSession session) {
+				/* consume the request body, so the connection can be reused */
+				try { session.parseBody(new HashMap<String, String>()); } catch(Exception e) {}
+				/* an empty body: NanoHTTPD writes a body separately from the
+				 * headers without TCP_NODELAY, so on a reused connection it
+				 * would wait on the client's delayed acknowledgement */
+				return newFixedLengthResponse(Response.Status.CREATED, "application/json", "");
+			}
+		};
+	}
+
+	private static ClientOptions newOptions(int port, SSLContext sslContext) throws AblyException {
+		ClientOptions opts = new ClientOptions("standin.key:secret");
+		opts.restHost = "localhost";
+		opts.tls = (sslContext != null);
+		opts.port = port;
+		opts.tlsPort = port;
+		opts.sslContext = sslContext;
+		return opts;
+	}
+
+	/**
+	 * Generate a keystore holding a self-signed certificate for localhost
+	 */
+	private static KeyStore newKeyStore() throws Exception {
+		File file = File.createTempFile("benchmark", ".jks");
+		file.delete();
+		try {
+			String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+			Process process = new ProcessBuilder(keytool, "-genkeypair", "-keyalg", "RSA", "-keysize", "2048",
+					"-alias", "localhost", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost", "-validity", "1",
+					"-storetype", "JKS", "-keystore", file.getPath(),
+					"-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+					.redirectErrorStream(true).start();
+			if(process.waitFor() != 0)
+				throw new IllegalStateException("keytool failed");
+			KeyStore keyStore = KeyStore.getInstance("JKS");
+			FileInputStream in = new FileInputStream(file);
+			try {
+				keyStore.load(in, PASSWORD);
+			} finally {
+				in.close();
+			}
+			return keyStore;
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void run(String name, ClientOptions opts, boolean keepAlive, int seconds) throws AblyException {
+		opts.httpKeepAlive = keepAlive;
+		Channel channel = new AblyRest(opts).channels.get("benchmark");
+		publishFor(channel, WARMUP_SECONDS);
+
+		int opened = connections.get();
+		long start = System.nanoTime();
+		long publishes = publishFor(channel, seconds);
+		long elapsed = System.nanoTime() - start;
+		opened = connections.get() - opened;
+
+		System.out.println(String.format(Locale.ROOT, "%-24s %14.0f %14d",
+				name, publishes * 1e9 / elapsed, opened));
+	}
+
+	private static long publishFor(Channel channel, int seconds) throws AblyException {
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		long publishes = 0;
+		do {
+			channel.publish("event", "{\"deviceId\":\"device-0\",\"temperature\":21.5}");
+			++publishes;
+		} while(System.nanoTime() < deadline);
+		return publishes;
+	}
+}
@@ -2,8 +2,12 @@ package io.ably.lib.test.realtime;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -175,4 +179,139 @@ public class EventEmitterTest {
 		assertNull(listener.counts.get(MyEvents.event_1));
 	}
 
+	/**
+	 * Register a listener that throws, and verify that
+	 * the other listeners are still called
+	 */
+	@Test
+	public void emit_listener_exception() {
+		MyEmitter emitter = new MyEmitter();
+		CountingListener listener1 = new CountingListener();
+		CountingListener listener2 = new CountingListener();
+		MyListener failing = new MyListener() {
+			@Override
+			public void onMyThingHappened(MyEventPayload theThing) {
+				throw new RuntimeException("emit_listener_exception");
+			}
+		};
+		emitter.on(listener1);
+		emitter.on(failing);
+		emitter.on(MyEvents.event_0, new MyListener() {
+			@Override
+			public void onMyThingHappened(MyEventPayload theThing) {
+				throw new RuntimeException("emit_listener_exception");
+			}
+		});
+		emitter.on(MyEvents.event_0, listener2);
+		emitter.emit(MyEvents.event_0, "emit_listener_exception");
+		assertEquals(listener1.counts.get(MyEvents.event_0), Integer.valueOf(1));
+		assertEquals(listener2.counts.get(MyEvents.event_0), Integer.valueOf(1));
+	}
+
+	/**
+	 * Register listeners that remove themselves, or register
+	 * others, when called, and verify that the event in progress
+	 * reaches the listeners registered when it was emitted
+	 */
+	@Test
+	public void emit_reentrant_registration() {
+		final MyEmitter emitter = new MyEmitter();
+		final CountingListener added = new CountingListener();
+		CountingListener listener = new CountingListener();
+		emitter.on(new MyListener() {
+			@Override
+			public void onMyThingHappened(MyEventPayload theThing) {
+				emitter.off(this);
+				emitter.on(MyEvents.event_0, added);
+			}
+		});
+		emitter.on(MyEvents.event_0, listener);
+		emitter.emit(MyEvents.event_0, "emit_reentrant_registration");
+		assertNull(added.counts.get(MyEvents.event_0));
+		assertEquals(listener.counts.get(MyEvents.event_0), Integer.valueOf(1));
+		emitter.emit(MyEvents.event_0, "emit_reentrant_registration");
+		assertEquals(added.counts.get(MyEvents.event_0), Integer.valueOf(1));
+		assertEquals(listener.counts.get(MyEvents.event_0), Integer.valueOf(2));
+	}
+
+	/**
+	 * Emit an event concurrently from several threads, and verify
+	 * that "once" listeners are called exactly once
+	 */
+	@Test
+	public void once_concurrent_emit() throws InterruptedException {
+		final MyEmitter emitter = new MyEmitter();
+		final AtomicInteger eventCount = new AtomicInteger();
+		final AtomicInteger anyCount = new AtomicInteger();
+		emitter.once(MyEvents.event_0, new MyListener() {
+			@Override
+			public void onMyThingHappened(MyEventPayload theThing) {
+				eventCount.incrementAndGet();
+			}
+		});
+		emitter.once(new MyListener() {
+			@Override
+			public void onMyThingHappened(MyEventPayload theThing) {
+				anyCount.incrementAndGet();
+			}
+		});
+		int threadCount = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threadCount);
+		for(int i = 0; i < threadCount; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for(int j = 0; j < 100; j++)
+							emitter.emit(MyEvents.event_0, "once_concurrent_emit");
+					} catch(InterruptedException e) {
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(eventCount.get(), 1);
+		assertEquals(anyCount.get(), 1);
+	}
+
+	/**
+	 * Verify that an emitter whose events are not enum values
+	 * calls event-specific listeners for their event only
+	 */
+	@Test
+	public void on_non_enum_event() {
+		final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		EventEmitter<String, MyListener> emitter = new EventEmitter<String, MyListener>() {
+			@Override
+			protected void apply(MyListener listener, String event, Object... args) {
+				listener.onMyThingHappened(null);
+			}
+		};
+		emitter.on("a", new MyListener() {
+			@Override
+			public void onMyThingHappened(MyEventPayload theThing) {
+				Integer count = counts.get("a"); if(count == null) count = 0;
+				counts.put("a", count + 1);
+			}
+		});
+		emitter.once("b", new MyListener() {
+			@Override
+			public void onMyThingHappened(MyEventPayload theThing) {
+				Integer count = counts.get("b"); if(count == null) count = 0;
+				counts.put("b", count + 1);
+			}
+		});
+		emitter.emit("a");
+		emitter.emit("b");
+		emitter.emit("b");
+		emitter.emit("c");
+		assertEquals(counts.get("a"), Integer.valueOf(1));
+		assertEquals(counts.get("b"), Integer.valueOf(1));
+	}
+
 }
@@ -0,0 +1,277 @@
+package io.ably.lib.test.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import io.ably.lib.transport.PerMessageDeflateDraft;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.DeflateOptions;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolMessage.Action;
+import io.ably.lib.types.ProtocolSerializer;
+import io.ably.lib.util.Serialisation;
+
+/**
+ * A minimal local stand-in for the Ably realtime endpoint.
+ * It accepts any connection, responds to attach, detach, heartbeat
+ * and close requests, and acks every message and presence
+ * ProtocolMessage it receives. Responses are always sent as JSON
+ * text frames; requests are accepted in either JSON or msgpack,
+ * in text or binary frames.
+ * Bytes are counted as they are read from and written to the socket,
+ * so compressed and uncompressed traffic can be compared.
+ */
+public class WebSocketStandIn extends WebSocketServer {
+
+	public WebSocketStandIn(int port) {
+		this(port, null);
+	}
+
+	/**
+	 * Start a stand-in on a free local port, for a test class to share
+	 * @return the started stand-in; call stop() when done
+	 * @throws IOException
+	 */
+	public static WebSocketStandIn startLocal() throws IOException {
+		return startLocal(null);
+	}
+
+	/**
+	 * Start a stand-in on a free local port that accepts the
+	 * permessage-deflate extension, compressing with the given options
+	 * @param deflateOptions
+	 * @return the started stand-in; call stop() when done
+	 * @throws IOException
+	 */
+	public static WebSocketStandIn startLocal(DeflateOptions deflateOptions) throws IOException {
+		WebSocketStandIn standIn = new WebSocketStandIn(freePort(), deflateOptions);
+		standIn.start();
+		return standIn;
+	}
+
+	/**
+	 * Find a local port that is not in use
+	 * @throws IOException
+	 */
+	public static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Create options for a client that connects to this stand-in
+	 * @throws AblyException
+	 */
+	public ClientOptions createOptions() throws AblyException {
+		ClientOptions opts = new ClientOptions("standin.key:secret");
+		opts.realtimeHost = "localhost";
+		opts.restHost = "localhost";
+		opts.tls = false;
+		opts.port = getPort();
+		return opts;
+	}
+
+	/**
+	 * Construct a stand-in that accepts the permessage-deflate
+	 * extension if offered, compressing with the given options
+	 * @param port
+	 * @param deflateOptions
+	 */
+	public WebSocketStandIn(int port, DeflateOptions deflateOptions) {
+		super(new InetSocketAddress(port), (deflateOptions == null) ? null : Collections.<Draft>singletonList(new PerMessageDeflateDraft(deflateOptions)));
+		setWebSocketFactory(new CountingFactory());
+	}
+
+	/**
+	 * Total number of frames received from clients
+	 */
+	public final AtomicLong framesReceived = new AtomicLong();
+
+	/**
+	 * Total number of payload bytes received from clients
+	 */
+	public final AtomicLong bytesReceived = new AtomicLong();
+
+	/**
+	 * Total number of Messages received in message ProtocolMessages
+	 */
+	public final AtomicLong messagesReceived = new AtomicLong();
+
+	/**
+	 * Total number of bytes read from client sockets, including framing and handshakes
+	 */
+	public final AtomicLong wireBytesReceived = new AtomicLong();
+
+	/**
+	 * Total number of bytes written to client sockets, including framing and handshakes
+	 */
+	public final AtomicLong wireBytesSent = new AtomicLong();
+
+	/**
+	 * Number of connections currently open
+	 */
+	public final AtomicInteger openConnections = new AtomicInteger();
+
+	@Override
+	public void onOpen(WebSocket conn, ClientHandshake handshake) {
+		int id = connectionCount.incrementAndGet();
+		openConnections.incrementAndGet();
+		ProtocolMessage connected = new ProtocolMessage(Action.connected);
+		connected.connectionId = "standin-" + id;
+		connected.connectionKey = "standin-key-" + id;
+		connected.connectionSerial = Long.valueOf(-1);
+		send(conn, connected);
+	}
+
+	@Override
+	public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+		openConnections.decrementAndGet();
+	}
+
+	@Override
+	public void onMessage(WebSocket conn, String message) {
+		framesReceived.incrementAndGet();
+		bytesReceived.addAndGet(message.length());
+		try {
+			onProtocolMessage(conn, ProtocolSerializer.fromJSON(message));
+		} catch (AblyException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void onMessage(WebSocket conn, ByteBuffer message) {
+		framesReceived.incrementAndGet();
+		bytesReceived.addAndGet(message.remaining());
+		try {
+			/* clients using the JSON protocol send JSON in binary frames */
+			if(message.hasRemaining() && message.get(message.position()) == '{')
+				onProtocolMessage(conn, ProtocolSerializer.fromJSON(Charset.forName("UTF-8").decode(message).toString()));
+			else
+				onProtocolMessage(conn, ProtocolSerializer.readMsgpack(message));
+		} catch (AblyException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void onError(WebSocket conn, Exception ex) {}
+
+	/**
+	 * Close any open connections before stopping the server; stopping with
+	 * connections still open can deadlock against the selector thread
+	 */
+	@Override
+	public void stop(int timeout) throws IOException, InterruptedException {
+		WebSocket[] open;
+		synchronized(connections()) {
+			open = connections().toArray(new WebSocket[0]);
+		}
+		for(WebSocket conn : open)
+			conn.close(CloseFrame.GOING_AWAY);
+		long deadline = System.currentTimeMillis() + 2000;
+		while(openConnections.get() > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		super.stop(timeout);
+	}
+
+	protected void onProtocolMessage(WebSocket conn, ProtocolMessage msg) {
+		switch(msg.action) {
+		case heartbeat:
+			send(conn, new ProtocolMessage(Action.heartbeat));
+			break;
+		case attach:
+			send(conn, new ProtocolMessage(Action.attached, msg.channel));
+			break;
+		case detach:
+			send(conn, new ProtocolMessage(Action.detached, msg.channel));
+			break;
+		case message:
+		case presence:
+			if(msg.messages != null)
+				messagesReceived.addAndGet(msg.messages.length);
+			ProtocolMessage ack = new ProtocolMessage(Action.ack);
+			ack.msgSerial = msg.msgSerial;
+			ack.count = 1;
+			send(conn, ack);
+			break;
+		case close:
+			send(conn, new ProtocolMessage(Action.closed));
+			conn.close(CloseFrame.NORMAL);
+			break;
+		default:
+		}
+	}
+
+	protected void send(WebSocket conn, ProtocolMessage msg) {
+		conn.send(Serialisation.gson.toJson(msg));
+	}
+
+	private class CountingFactory implements WebSocketServerFactory {
+		@Override
+		public WebSocketImpl createWebSocket(WebSocketAdapter a, Draft d, Socket s) {
+			return new WebSocketImpl(a, d);
+		}
+
+		@Override
+		public WebSocketImpl createWebSocket(WebSocketAdapter a, List<Draft> drafts, Socket s) {
+			return new WebSocketImpl(a, drafts);
+		}
+
+		@Override
+		public ByteChannel wrapChannel(final SocketChannel channel, SelectionKey key) {
+			return new ByteChannel() {
+				@Override
+				public int read(ByteBuffer dst) throws IOException {
+					int count = channel.read(dst);
+					if(count > 0)
+						wireBytesReceived.addAndGet(count);
+					return count;
+				}
+
+				@Override
+				public int write(ByteBuffer src) throws IOException {
+					int count = channel.write(src);
+					wireBytesSent.addAndGet(count);
+					return count;
+				}
+
+				@Override
+				public boolean isOpen() {
+					return channel.isOpen();
+				}
+
+				@Override
+				public void close() throws IOException {
+					channel.close();
+				}
+			};
+		}
+	}
+
+	private final AtomicInteger connectionCount = new AtomicInteger();
+}
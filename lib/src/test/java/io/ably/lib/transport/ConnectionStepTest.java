@@ -0,0 +1,133 @@
+package io.ably.lib.transport;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.realtime.ConnectionStateListener;
+import io.ably.lib.test.common.Helpers;
+import io.ably.lib.test.util.WebSocketStandIn;
+import io.ably.lib.transport.ITransport.TransportParams;
+import io.ably.lib.types.ClientOptions;
+
+/**
+ * Tests that connections whose state processing is held up, by a slow
+ * connectivity check or a slow listener, do not hold up other connections
+ * sharing the connection state pool
+ */
+public class ConnectionStepTest {
+
+	private static WebSocketStandIn server;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		server = WebSocketStandIn.startLocal();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		server.stop();
+	}
+
+	private static boolean waitForState(ConnectionManager connectionManager, ConnectionState state, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while(connectionManager.getConnectionState().state != state) {
+			if(System.currentTimeMillis() > deadline)
+				return false;
+			Thread.sleep(20);
+		}
+		return true;
+	}
+
+	/**
+	 * Verify that connectivity checks that do not complete, on more
+	 * connections than there are state threads, do not prevent another
+	 * connection from connecting, and that each blocked connection
+	 * fails once its check completes
+	 */
+	@Test
+	public void step_connectivity_check_not_blocking() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		List<ConnectionManager> blocked = new ArrayList<ConnectionManager>();
+		for(int i = 0; i <= ConnectionManager.STEP_THREADS; i++) {
+			ClientOptions opts = server.createOptions();
+			opts.autoConnect = false;
+			opts.transportFactory = new ITransport.Factory() {
+				@Override
+				public ITransport getTransport(TransportParams params, ConnectionManager connectionManager) {
+					return new FallbackRaceTest.FailingTransport(params, connectionManager);
+				}
+			};
+			AblyRealtime ably = new AblyRealtime(opts);
+			ConnectionManager connectionManager = new ConnectionManager(ably, ably.connection) {
+				@Override
+				protected boolean checkConnectivity() {
+					try { release.await(); } catch(InterruptedException e) {}
+					return false;
+				}
+			};
+			connectionManager.connect();
+			blocked.add(connectionManager);
+		}
+		try {
+			AblyRealtime ably = new AblyRealtime(server.createOptions());
+			assertThat(waitForState(ably.connection.connectionManager, ConnectionState.connected, 10000), is(true));
+			ably.close();
+			new Helpers.ConnectionManagerWaiter(ably.connection.connectionManager).waitFor(ConnectionState.closed);
+		} finally {
+			release.countDown();
+		}
+		for(ConnectionManager connectionManager : blocked)
+			assertThat(waitForState(connectionManager, ConnectionState.failed, 10000), is(true));
+	}
+
+	/**
+	 * Verify that connection state listeners that do not return, on more
+	 * connections than there are state threads, do not prevent another
+	 * connection from connecting. The listeners occupy every callback
+	 * thread, so only as many of them as there are callback threads run
+	 */
+	@Test
+	public void step_listener_not_blocking() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch entered = new CountDownLatch(Math.min(ConnectionManager.STEP_THREADS + 1, ConnectionManager.CALLBACK_THREADS));
+		List<AblyRealtime> blocked = new ArrayList<AblyRealtime>();
+		for(int i = 0; i <= ConnectionManager.STEP_THREADS; i++) {
+			ClientOptions opts = server.createOptions();
+			opts.autoConnect = false;
+			AblyRealtime ably = new AblyRealtime(opts);
+			ably.connection.on(ConnectionState.connected, new ConnectionStateListener() {
+				@Override
+				public void onConnectionStateChanged(ConnectionStateChange state) {
+					entered.countDown();
+					try { release.await(); } catch(InterruptedException e) {}
+				}
+			});
+			ably.connection.connect();
+			blocked.add(ably);
+		}
+		try {
+			assertThat(entered.await(10, TimeUnit.SECONDS), is(true));
+			AblyRealtime ably = new AblyRealtime(server.createOptions());
+			assertThat(waitForState(ably.connection.connectionManager, ConnectionState.connected, 10000), is(true));
+			ably.close();
+			new Helpers.ConnectionManagerWaiter(ably.connection.connectionManager).waitFor(ConnectionState.closed);
+		} finally {
+			release.countDown();
+		}
+		for(AblyRealtime ably : blocked)
+			ably.close();
+		for(AblyRealtime ably : blocked)
+			new Helpers.ConnectionManagerWaiter(ably.connection.connectionManager).waitFor(ConnectionState.closed);
+	}
+}
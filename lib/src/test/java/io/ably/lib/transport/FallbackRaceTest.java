@@ -0,0 +1,164 @@
+package io.ably.lib.transport;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers;
+import io.ably.lib.test.util.WebSocketStandIn;
+import io.ably.lib.transport.ConnectionManager.StateIndication;
+import io.ably.lib.transport.ITransport.TransportParams;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.ProtocolMessage;
+
+/**
+ * Tests of parallel fallback host connection attempts, using a transport
+ * factory that simulates an unavailable primary host and an unresponsive
+ * first fallback host, and connects the second fallback host to a local
+ * stand-in for the realtime endpoint
+ */
+public class FallbackRaceTest {
+
+	private static WebSocketStandIn server;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		server = WebSocketStandIn.startLocal();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		server.stop();
+	}
+
+	/**
+	 * A transport that fails shortly after connecting, without a reason,
+	 * so that the connection manager moves on to a fallback host
+	 */
+	static class FailingTransport implements ITransport {
+		FailingTransport(TransportParams params, ConnectionManager connectionManager) {
+			this.params = params;
+			this.connectionManager = connectionManager;
+		}
+
+		@Override
+		public void connect(ConnectListener connectListener) {
+			new Thread() {
+				@Override
+				public void run() {
+					try { Thread.sleep(50); } catch(InterruptedException e) {}
+					connectionManager.notifyState(new StateIndication(ConnectionState.disconnected, null));
+				}
+			}.start();
+		}
+
+		@Override
+		public void close(boolean sendDisconnect) {}
+
+		@Override
+		public void abort(ErrorInfo reason) {}
+
+		@Override
+		public void send(ProtocolMessage msg) throws AblyException {}
+
+		@Override
+		public String getHost() { return params.host; }
+
+		private final TransportParams params;
+		private final ConnectionManager connectionManager;
+	}
+
+	/**
+	 * A transport that never connects
+	 */
+	private static class HangingTransport implements ITransport {
+		HangingTransport(TransportParams params) {
+			this.params = params;
+		}
+
+		@Override
+		public void connect(ConnectListener connectListener) {}
+
+		@Override
+		public void close(boolean sendDisconnect) { closed = true; }
+
+		@Override
+		public void abort(ErrorInfo reason) { closed = true; }
+
+		@Override
+		public void send(ProtocolMessage msg) throws AblyException {}
+
+		@Override
+		public String getHost() { return params.host; }
+
+		private final TransportParams params;
+		volatile boolean closed;
+	}
+
+	/**
+	 * Verify that when the primary host fails, several fallback hosts are
+	 * tried in parallel, the first to connect is used, and the attempts
+	 * still in progress are closed
+	 */
+	@Test
+	public void fallback_race_first_available_wins() throws AblyException {
+		final List<String> hosts = Collections.synchronizedList(new ArrayList<String>());
+		final List<HangingTransport> hanging = Collections.synchronizedList(new ArrayList<HangingTransport>());
+		ClientOptions opts = server.createOptions();
+		opts.realtimeHost = Defaults.HOST_REALTIME;
+		opts.autoConnect = false;
+		opts.fallbackRaceCount = 3;
+		opts.fallbackRaceDelay = 200;
+		opts.transportFactory = new ITransport.Factory() {
+			@Override
+			public ITransport getTransport(TransportParams params, ConnectionManager connectionManager) {
+				hosts.add(params.host);
+				if(params.host.equals(Defaults.HOST_REALTIME))
+					return new FailingTransport(params, connectionManager);
+				if(hosts.size() == 3) {
+					params.host = "localhost";
+					return new WebSocketTransport.Factory().getTransport(params, connectionManager);
+				}
+				HangingTransport transport = new HangingTransport(params);
+				hanging.add(transport);
+				return transport;
+			}
+		};
+		AblyRealtime ably = new AblyRealtime(opts);
+		ConnectionManager connectionManager = new ConnectionManager(ably, ably.connection) {
+			@Override
+			protected boolean checkConnectivity() {
+				return true;
+			}
+		};
+		try {
+			connectionManager.connect();
+			new Helpers.ConnectionManagerWaiter(connectionManager).waitFor(ConnectionState.connected);
+
+			/* the primary host was tried first, then the fallback hosts in turn */
+			assertThat(hosts.get(0), is(Defaults.HOST_REALTIME));
+			assertTrue(Hosts.isFallback(hosts.get(1)));
+			assertThat(connectionManager.getHost(), is("localhost"));
+			assertThat(ably.http.getHost(), is("localhost"));
+
+			/* attempts that had not connected were closed */
+			for(HangingTransport transport : hanging)
+				assertThat(transport.closed, is(true));
+		} finally {
+			connectionManager.close();
+			new Helpers.ConnectionManagerWaiter(connectionManager).waitFor(ConnectionState.closed);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package io.ably.lib.transport;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.rest.AblyRest;
+import io.ably.lib.rest.Channel;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+
+/**
+ * Tests of REST requests made with the HTTP/2 engine, using a local
+ * HTTP/2 server and a local server that only speaks HTTP/1.1
+ */
+public class Http2EngineTest {
+
+	private static final int PORT = 27342;
+	private static final int HTTP11_PORT = 27343;
+	private static final int LIMITS_PORT = 27348;
+	private static final long RESPONSE_TIME = 200L;
+	private static final AtomicInteger http11Requests = new AtomicInteger();
+	private static final AtomicInteger http11InProgress = new AtomicInteger();
+	private static final AtomicInteger http11MaxInProgress = new AtomicInteger();
+	private static Http2TestServer server;
+	private static NanoHTTPD http11Server;
+
+	@BeforeClass
+	public static void setUp() throws IOException {
+		server = new Http2TestServer(PORT, RESPONSE_TIME);
+		server.start();
+		http11Server = new NanoHTTPD(HTTP11_PORT) {
+			@Override
+			public Response serve(IHTTPSession session) {
+				try { session.parseBody(new HashMap<String, String>()); } catch(Exception e) {}
+				http11Requests.incrementAndGet();
+				int inProgress = http11InProgress.incrementAndGet();
+				for(int max; inProgress > (max = http11MaxInProgress.get()) && !http11MaxInProgress.compareAndSet(max, inProgress););
+				try { Thread.sleep(20); } catch(InterruptedException e) {}
+				http11InProgress.decrementAndGet();
+				return newFixedLengthResponse(Response.Status.CREATED, "application/json", "");
+			}
+		};
+		http11Server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		server.stop();
+		http11Server.stop();
+	}
+
+	private static AblyRest client(int port, int threads) throws AblyException {
+		ClientOptions opts = new ClientOptions("standin.key:secret");
+		opts.restHost = "localhost";
+		opts.tls = false;
+		opts.port = port;
+		opts.useBinaryProtocol = false;
+		opts.asyncHttpThreadpoolSize = threads;
+		opts.httpEngineFactory = new Http2Engine.Factory();
+		return new AblyRest(opts);
+	}
+
+	private static class Completion implements CompletionListener {
+		private final CountDownLatch latch;
+		private final List<ErrorInfo> errors = Collections.synchronizedList(new ArrayList<ErrorInfo>());
+
+		Completion(int count) { latch = new CountDownLatch(count); }
+
+		@Override
+		public void onSuccess() { latch.countDown(); }
+
+		@Override
+		public void onError(ErrorInfo reason) { errors.add(reason); latch.countDown(); }
+
+		void await() throws InterruptedException { assertTrue(latch.await(10, TimeUnit.SECONDS)); }
+	}
+
+	/**
+	 * Verify that async publishes are multiplexed over few connections,
+	 * and are not limited by the number of async threads
+	 */
+	@Test
+	public void http2_multiplexed_publish() throws Exception {
+		AblyRest ably = client(PORT, 1);
+		Channel channel = ably.channels.get("multiplexed");
+		int count = 200;
+		int connections = server.getConnectionCount();
+		Completion completion = new Completion(count);
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < count; i++)
+			channel.publishAsync(new Message[] { new Message("event", "data " + i) }, completion);
+		completion.await();
+
+		/* one thread, making one request at a time, would take count * RESPONSE_TIME */
+		assertThat(System.currentTimeMillis() - start, is(lessThan(10 * RESPONSE_TIME)));
+		assertThat(completion.errors.size(), is(0));
+		assertThat(server.getConnectionCount() - connections, is(lessThanOrEqualTo(count / Http2Connection.DEFAULT_MAX_STREAMS)));
+		assertThat(server.getMaxStreamsInProgress(), is(greaterThan(1)));
+		ably.asyncHttp.dispose();
+	}
+
+	/**
+	 * Verify sync requests, including one whose body exceeds the server's
+	 * flow control window, and the request headers
+	 */
+	@Test
+	public void http2_sync_requests() throws AblyException {
+		AblyRest ably = client(PORT, 1);
+		Channel channel = ably.channels.get("sync");
+		channel.publish("event", "data");
+		assertThat(server.getLastRequestHeaders().get(":path"), startsWith("/channels/sync/messages"));
+		assertThat(server.getLastRequestHeaders().get(":authority"), is("localhost:" + PORT));
+		assertThat(server.getLastRequestHeaders().get("accept"), is("application/json"));
+
+		char[] large = new char[200000];
+		Arrays.fill(large, 'x');
+		channel.publish("event", new String(large));
+		assertThat(server.getLastRequestBodyLength(), is(greaterThan(large.length)));
+
+		assertThat(channel.history(null).items().length, is(0));
+	}
+
+	/**
+	 * Verify that requests to a server that does not speak HTTP/2
+	 * are made with HTTP/1.1
+	 */
+	@Test
+	public void http2_fallback_http11() throws Exception {
+		AblyRest ably = client(HTTP11_PORT, 2);
+		Channel channel = ably.channels.get("fallback");
+		int start = http11Requests.get();
+		channel.publish("event", "data");
+		Completion completion = new Completion(2);
+		channel.publishAsync(new Message[] { new Message("event", "async 0") }, completion);
+		channel.publishAsync(new Message[] { new Message("event", "async 1") }, completion);
+		completion.await();
+		assertThat(completion.errors.size(), is(0));
+		assertThat(http11Requests.get() - start, is(3));
+		ably.asyncHttp.dispose();
+	}
+
+	/**
+	 * Verify that a header block that is continued without end is refused
+	 * with ENHANCE_YOUR_CALM, and that a response declaring a body over the
+	 * limit is refused on receipt of its headers, each failing the request
+	 */
+	@Test
+	public void http2_response_limits() throws Exception {
+		Http2TestServer limitsServer = new Http2TestServer(LIMITS_PORT, 0);
+		limitsServer.start();
+		try {
+			limitsServer.setContinuationFlood(1 << 20);
+			Channel channel = client(LIMITS_PORT, 1).channels.get("limits");
+			try {
+				channel.publish("event", "data");
+				fail("Expected the publish to fail");
+			} catch(AblyException e) {}
+			for(int i = 0; i < 100 && limitsServer.getLastGoAwayErrorCode() == -1; i++)
+				Thread.sleep(20);
+			assertThat(limitsServer.getLastGoAwayErrorCode(), is(0xb));
+
+			limitsServer.setContinuationFlood(0);
+			limitsServer.setDeclaredContentLength(1L << 32);
+			long start = System.currentTimeMillis();
+			try {
+				channel.history(null);
+				fail("Expected the request to fail");
+			} catch(AblyException e) {}
+			assertThat(System.currentTimeMillis() - start, is(lessThan(2000L)));
+		} finally {
+			limitsServer.stop();
+		}
+	}
+
+	/**
+	 * Verify that async requests to a server that does not speak HTTP/2
+	 * are made on the async threads, so that no more are in progress at
+	 * once than there are threads
+	 */
+	@Test
+	public void http2_fallback_bounded() throws Exception {
+		AblyRest ably = client(HTTP11_PORT, 2);
+		ably.channels.get("bounded").publish("event", "data");
+		http11MaxInProgress.set(0);
+		int count = 30;
+		Completion completion = new Completion(count);
+		for(int i = 0; i < count; i++)
+			ably.channels.get("bounded-" + i).publishAsync(new Message[] { new Message("event", "async " + i) }, completion);
+		completion.await();
+		assertThat(completion.errors.size(), is(0));
+		assertThat(http11MaxInProgress.get(), is(lessThanOrEqualTo(2)));
+		ably.asyncHttp.dispose();
+	}
+}
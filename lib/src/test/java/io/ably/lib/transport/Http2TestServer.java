@@ -0,0 +1,392 @@
+package io.ably.lib.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+
+/**
+ * A minimal HTTP/2 server standing in for the REST endpoint in tests and
+ * benchmarks. Over plain connections it expects prior knowledge; over TLS
+ * it negotiates h2 with ALPN. Each request is answered after a fixed delay,
+ * with 201 and an empty body for POST and 200 and an empty JSON array
+ * otherwise, and the requests on a connection are served concurrently.
+ */
+public class Http2TestServer {
+
+	public Http2TestServer(int port, long delay) {
+		this.port = port;
+		this.delay = delay;
+	}
+
+	/**
+	 * Serve over TLS, using the given context for the server's certificate
+	 */
+	public void setSSLContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Advertise a limit on the number of concurrent streams per connection
+	 */
+	public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+		this.maxConcurrentStreams = maxConcurrentStreams;
+	}
+
+	/**
+	 * Follow each response header block with CONTINUATION frames
+	 * carrying this many bytes, without ever ending the block
+	 */
+	public void setContinuationFlood(int continuationFlood) {
+		this.continuationFlood = continuationFlood;
+	}
+
+	/**
+	 * Declare this content-length in each response, without sending a body
+	 */
+	public void setDeclaredContentLength(long declaredContentLength) {
+		this.declaredContentLength = declaredContentLength;
+	}
+
+	public void start() throws IOException {
+		if(sslContext != null) {
+			SSLServerSocket sslServerSocket = (SSLServerSocket)sslContext.getServerSocketFactory().createServerSocket();
+			SSLParameters params = sslServerSocket.getSSLParameters();
+			Http2Engine.requestAlpn(params);
+			sslServerSocket.setSSLParameters(params);
+			serverSocket = sslServerSocket;
+		} else {
+			serverSocket = new ServerSocket();
+		}
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress("localhost", port));
+		Thread acceptor = new Thread("http2-test-server") {
+			@Override
+			public void run() {
+				while(!serverSocket.isClosed()) {
+					try {
+						final Socket socket = serverSocket.accept();
+						connections.incrementAndGet();
+						new Thread("http2-test-connection") {
+							@Override
+							public void run() {
+								new Connection(socket).run();
+							}
+						}.start();
+					} catch(IOException e) {}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public void stop() {
+		try {
+			serverSocket.close();
+		} catch(IOException e) {}
+		for(Socket socket : sockets.keySet()) {
+			try {
+				socket.close();
+			} catch(IOException e) {}
+		}
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * The number of connections accepted
+	 */
+	public int getConnectionCount() {
+		return connections.get();
+	}
+
+	/**
+	 * The number of requests received
+	 */
+	public int getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * The greatest number of requests in progress at once on any one connection
+	 */
+	public int getMaxStreamsInProgress() {
+		return maxStreamsInProgress.get();
+	}
+
+	/**
+	 * The header fields of the last request received
+	 */
+	public Map<String, String> getLastRequestHeaders() {
+		return lastRequestHeaders;
+	}
+
+	/**
+	 * The error code of the last GOAWAY frame received, or -1
+	 */
+	public int getLastGoAwayErrorCode() {
+		return lastGoAwayErrorCode;
+	}
+
+	/**
+	 * The length of the body of the last request received
+	 */
+	public int getLastRequestBodyLength() {
+		return lastRequestBodyLength;
+	}
+
+	/**
+	 * Serves a single connection; frames are read on the connection's
+	 * thread and responses are written from the scheduler
+	 */
+	private class Connection implements Hpack.HeaderListener {
+		private Connection(Socket socket) {
+			this.socket = socket;
+		}
+
+		private void run() {
+			sockets.put(socket, Boolean.TRUE);
+			try {
+				socket.setTcpNoDelay(true);
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				out = new BufferedOutputStream(socket.getOutputStream());
+				byte[] preface = new byte[PREFACE.length];
+				in.readFully(preface);
+				if(!Arrays.equals(preface, PREFACE))
+					return;
+				synchronized(this) {
+					if(maxConcurrentStreams > 0) {
+						writeFrameHeader(6, TYPE_SETTINGS, 0, 0);
+						writeShort(SETTINGS_MAX_CONCURRENT_STREAMS);
+						writeInt(maxConcurrentStreams);
+					} else {
+						writeFrameHeader(0, TYPE_SETTINGS, 0, 0);
+					}
+					out.flush();
+				}
+				while(readFrame());
+			} catch(IOException e) {
+				/* connection closed */
+			} finally {
+				sockets.remove(socket);
+				try {
+					socket.close();
+				} catch(IOException e) {}
+			}
+		}
+
+		private boolean readFrame() throws IOException {
+			int length = (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+			int type = in.readUnsignedByte();
+			int flags = in.readUnsignedByte();
+			int streamId = in.readInt() & 0x7fffffff;
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			switch(type) {
+			case TYPE_HEADERS:
+			case TYPE_CONTINUATION:
+				int start = 0, end = length;
+				if(type == TYPE_HEADERS) {
+					headerBlock.reset();
+					headerFlags = flags;
+					if((flags & FLAG_PADDED) != 0)
+						end -= payload[start++] & 0xff;
+					if((flags & FLAG_PRIORITY) != 0)
+						start += 5;
+				}
+				headerBlock.write(payload, start, end - start);
+				if((flags & FLAG_END_HEADERS) != 0) {
+					fields = new HashMap<String, String>();
+					decoder.decode(headerBlock.toByteArray(), 0, headerBlock.size(), this);
+					requests.incrementAndGet();
+					lastRequestHeaders = fields;
+					bodies.put(streamId, new ByteArrayOutputStream());
+					int inProgress = streamsInProgress.incrementAndGet();
+					for(int max; inProgress > (max = maxStreamsInProgress.get()) && !maxStreamsInProgress.compareAndSet(max, inProgress););
+					methods.put(streamId, fields.get(":method"));
+					if((headerFlags & FLAG_END_STREAM) != 0)
+						respond(streamId);
+				}
+				break;
+			case TYPE_DATA:
+				bodies.get(streamId).write(payload, 0, length);
+				if(length > 0) {
+					synchronized(this) {
+						writeFrameHeader(4, TYPE_WINDOW_UPDATE, 0, 0);
+						writeInt(length);
+						writeFrameHeader(4, TYPE_WINDOW_UPDATE, 0, streamId);
+						writeInt(length);
+						out.flush();
+					}
+				}
+				if((flags & FLAG_END_STREAM) != 0)
+					respond(streamId);
+				break;
+			case TYPE_SETTINGS:
+				if((flags & FLAG_ACK) == 0) {
+					synchronized(this) {
+						writeFrameHeader(0, TYPE_SETTINGS, FLAG_ACK, 0);
+						out.flush();
+					}
+				}
+				break;
+			case TYPE_PING:
+				if((flags & FLAG_ACK) == 0) {
+					synchronized(this) {
+						writeFrameHeader(8, TYPE_PING, FLAG_ACK, 0);
+						out.write(payload);
+						out.flush();
+					}
+				}
+				break;
+			case TYPE_GOAWAY:
+				if(length >= 8)
+					lastGoAwayErrorCode = ((payload[4] & 0xff) << 24) | ((payload[5] & 0xff) << 16) | ((payload[6] & 0xff) << 8) | (payload[7] & 0xff);
+				return false;
+			default:
+			}
+			return true;
+		}
+
+		@Override
+		public void onHeader(String name, String value) {
+			fields.put(name, value);
+		}
+
+		private void respond(final int streamId) {
+			lastRequestBodyLength = bodies.remove(streamId).size();
+			final boolean isPost = "POST".equals(methods.remove(streamId));
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					streamsInProgress.decrementAndGet();
+					byte[] body = isPost ? new byte[0] : EMPTY_ARRAY;
+					ByteArrayOutputStream block = new ByteArrayOutputStream();
+					try {
+						synchronized(Connection.this) {
+							encoder.begin(block);
+							encoder.encode(":status", isPost ? "201" : "200", block);
+							encoder.encode("content-type", "application/json", block);
+							if(continuationFlood > 0) {
+								writeFrameHeader(block.size(), TYPE_HEADERS, 0, streamId);
+								block.writeTo(out);
+								byte[] fragment = new byte[16384];
+								for(int sent = 0; sent < continuationFlood; sent += fragment.length) {
+									writeFrameHeader(fragment.length, TYPE_CONTINUATION, 0, streamId);
+									out.write(fragment);
+								}
+								out.flush();
+								return;
+							}
+							if(declaredContentLength > 0) {
+								encoder.encode("content-length", String.valueOf(declaredContentLength), block);
+								writeFrameHeader(block.size(), TYPE_HEADERS, FLAG_END_HEADERS, streamId);
+								block.writeTo(out);
+								out.flush();
+								return;
+							}
+							encoder.encode("content-length", String.valueOf(body.length), block);
+							writeFrameHeader(block.size(), TYPE_HEADERS, FLAG_END_HEADERS | (body.length == 0 ? FLAG_END_STREAM : 0), streamId);
+							block.writeTo(out);
+							if(body.length > 0) {
+								writeFrameHeader(body.length, TYPE_DATA, FLAG_END_STREAM, streamId);
+								out.write(body);
+							}
+							out.flush();
+						}
+					} catch(IOException e) {
+						try {
+							socket.close();
+						} catch(IOException e2) {}
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		private void writeFrameHeader(int length, int type, int flags, int streamId) throws IOException {
+			out.write(length >>> 16);
+			out.write(length >>> 8);
+			out.write(length);
+			out.write(type);
+			out.write(flags);
+			writeInt(streamId);
+		}
+
+		private void writeShort(int value) throws IOException {
+			out.write(value >>> 8);
+			out.write(value);
+		}
+
+		private void writeInt(int value) throws IOException {
+			out.write(value >>> 24);
+			out.write(value >>> 16);
+			out.write(value >>> 8);
+			out.write(value);
+		}
+
+		private final Socket socket;
+		private DataInputStream in;
+		private OutputStream out;
+		private final Hpack.Decoder decoder = new Hpack.Decoder();
+		private final Hpack.Encoder encoder = new Hpack.Encoder();
+		private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+		private int headerFlags;
+		private HashMap<String, String> fields;
+		private final HashMap<Integer, ByteArrayOutputStream> bodies = new HashMap<Integer, ByteArrayOutputStream>();
+		private final ConcurrentHashMap<Integer, String> methods = new ConcurrentHashMap<Integer, String>();
+		private final AtomicInteger streamsInProgress = new AtomicInteger();
+	}
+
+	private final int port;
+	private final long delay;
+	private SSLContext sslContext;
+	private int maxConcurrentStreams;
+	private volatile int continuationFlood;
+	private volatile long declaredContentLength;
+	private volatile int lastGoAwayErrorCode = -1;
+	private ServerSocket serverSocket;
+	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+	private final ConcurrentHashMap<Socket, Boolean> sockets = new ConcurrentHashMap<Socket, Boolean>();
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger maxStreamsInProgress = new AtomicInteger();
+	private volatile Map<String, String> lastRequestHeaders;
+	private volatile int lastRequestBodyLength;
+
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charset.forName("US-ASCII"));
+	private static final byte[] EMPTY_ARRAY = "[]".getBytes(Charset.forName("US-ASCII"));
+
+	private static final int TYPE_DATA = 0x0;
+	private static final int TYPE_HEADERS = 0x1;
+	private static final int TYPE_SETTINGS = 0x4;
+	private static final int TYPE_PING = 0x6;
+	private static final int TYPE_GOAWAY = 0x7;
+	private static final int TYPE_WINDOW_UPDATE = 0x8;
+	private static final int TYPE_CONTINUATION = 0x9;
+
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+}
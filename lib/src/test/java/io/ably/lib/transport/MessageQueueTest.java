@@ -0,0 +1,148 @@
+package io.ably.lib.transport;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.ably.lib.test.common.Helpers;
+import io.ably.lib.transport.ConnectionManager.QueuedMessage;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolMessage.Action;
+import io.ably.lib.types.QueueOverflowPolicy;
+
+public class MessageQueueTest {
+
+	private static ProtocolMessage message(String channel, String data) {
+		ProtocolMessage msg = new ProtocolMessage(Action.message, channel);
+		msg.messages = new Message[] {new Message(null, data)};
+		return msg;
+	}
+
+	/**
+	 * Verify FIFO order is preserved as the ring buffer wraps and grows
+	 */
+	@Test
+	public void queue_order_preserved() throws AblyException {
+		MessageQueue queue = new MessageQueue(0, 0, QueueOverflowPolicy.failFast);
+		int next = 0;
+		for(int i = 0; i < 10; i++)
+			queue.put(message("channel" + i, "data"), null);
+		for(int i = 0; i < 5; i++)
+			assertThat(queue.poll().msg.channel, is("channel" + next++));
+		for(int i = 10; i < 50; i++)
+			queue.put(message("channel" + i, "data"), null);
+		assertThat(queue.size(), is(45));
+		QueuedMessage queued;
+		while((queued = queue.poll()) != null)
+			assertThat(queued.msg.channel, is("channel" + next++));
+		assertThat(next, is(50));
+		assertThat(queue.getStats().messages, is(0));
+	}
+
+	/**
+	 * Verify that consecutive messages for the same channel are merged,
+	 * and that addFirst returns messages to the head in order
+	 */
+	@Test
+	public void queue_merge_and_add_first() throws AblyException {
+		MessageQueue queue = new MessageQueue(0, 0, QueueOverflowPolicy.failFast);
+		String channel = "channel";
+		queue.put(message(channel, "one"), null);
+		queue.put(message(channel, "two"), null);
+		queue.put(message("other", "three"), null);
+		MessageQueue.Stats stats = queue.getStats();
+		assertThat(stats.depth, is(2));
+		assertThat(stats.messages, is(3));
+
+		QueuedMessage first = new QueuedMessage(message("first", "a"), null);
+		QueuedMessage second = new QueuedMessage(message("second", "b"), null);
+		queue.addFirst(Arrays.asList(first, second));
+		assertThat(queue.poll(), is(first));
+		assertThat(queue.poll(), is(second));
+		assertThat(queue.poll().msg.messages.length, is(2));
+	}
+
+	/**
+	 * Verify the failFast policy when the message limit is reached
+	 */
+	@Test
+	public void queue_fail_fast() throws AblyException {
+		MessageQueue queue = new MessageQueue(2, 0, QueueOverflowPolicy.failFast);
+		queue.put(message("a", "1"), null);
+		queue.put(message("b", "2"), null);
+		try {
+			queue.put(message("c", "3"), null);
+			fail("Expected exception");
+		} catch(AblyException e) {
+			assertThat(e.errorInfo.code, is(42910));
+		}
+		assertThat(queue.getStats().rejected, is(1L));
+		assertThat(queue.size(), is(2));
+	}
+
+	/**
+	 * Verify the dropNewest policy when the byte limit is reached
+	 */
+	@Test
+	public void queue_drop_newest() throws AblyException {
+		MessageQueue queue = new MessageQueue(0, 10, QueueOverflowPolicy.dropNewest);
+		queue.put(message("a", "12345"), null);
+		queue.put(message("b", "12345"), null);
+		Helpers.CompletionWaiter waiter = new Helpers.CompletionWaiter();
+		assertThat(queue.put(message("c", "12345"), waiter), is(true));
+		assertThat(waiter.waitFor().code, is(42910));
+		assertThat(queue.getStats().dropped, is(1L));
+		assertThat(queue.poll().msg.channel, is("a"));
+		assertThat(queue.poll().msg.channel, is("b"));
+		assertThat(queue.poll(), is(nullValue()));
+	}
+
+	/**
+	 * Verify the dropOldest policy evicts from the head
+	 */
+	@Test
+	public void queue_drop_oldest() throws AblyException {
+		MessageQueue queue = new MessageQueue(2, 0, QueueOverflowPolicy.dropOldest);
+		Helpers.CompletionWaiter waiter = new Helpers.CompletionWaiter();
+		queue.put(message("a", "1"), waiter);
+		queue.put(message("b", "2"), null);
+		queue.put(message("c", "3"), null);
+		assertThat(waiter.waitFor().code, is(42910));
+		assertThat(queue.getStats().dropped, is(1L));
+		assertThat(queue.getStats().maxMessages, is(2));
+		assertThat(queue.poll().msg.channel, is("b"));
+		assertThat(queue.poll().msg.channel, is("c"));
+	}
+
+	/**
+	 * Verify that with the block policy a full queue reports that the caller
+	 * must wait, and that a waiter is released when a message is removed
+	 */
+	@Test
+	public void queue_block() throws Exception {
+		final MessageQueue queue = new MessageQueue(1, 0, QueueOverflowPolicy.block);
+		assertThat(queue.put(message("a", "1"), null), is(true));
+		long removedCount = queue.getRemovedCount();
+		assertThat(queue.put(message("b", "2"), null), is(false));
+
+		Thread remover = new Thread() {
+			@Override
+			public void run() {
+				try { Thread.sleep(100); } catch(InterruptedException e) {}
+				queue.poll();
+			}
+		};
+		remover.start();
+		queue.awaitRemoval(removedCount);
+		assertThat(queue.put(message("b", "2"), null), is(true));
+		assertThat(queue.poll().msg.channel, is("b"));
+		remover.join();
+	}
+}
@@ -0,0 +1,170 @@
+package io.ably.lib.transport;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers;
+import io.ably.lib.test.util.WebSocketStandIn;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+
+public class NioWebSocketTransportTest {
+
+	private static WebSocketStandIn server;
+	private static NioEventLoopGroup group;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		server = WebSocketStandIn.startLocal();
+		group = new NioEventLoopGroup(2);
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		group.shutdown();
+		server.stop();
+	}
+
+	private static ClientOptions createOptions(boolean useBinaryProtocol) throws AblyException {
+		ClientOptions opts = server.createOptions();
+		opts.useBinaryProtocol = useBinaryProtocol;
+		opts.transportFactory = new NioWebSocketTransport.Factory(group);
+		return opts;
+	}
+
+	/**
+	 * Connect several clients through a two-thread group and verify
+	 * that each connects and can complete a heartbeat round trip
+	 */
+	@Test
+	public void nio_connect_multiple() throws AblyException {
+		AblyRealtime[] clients = new AblyRealtime[8];
+		for(int i = 0; i < clients.length; i++)
+			clients[i] = new AblyRealtime(createOptions((i & 1) == 0));
+
+		for(AblyRealtime ably : clients) {
+			new Helpers.ConnectionManagerWaiter(ably.connection.connectionManager).waitFor(ConnectionState.connected);
+			Helpers.CompletionWaiter pingWaiter = new Helpers.CompletionWaiter();
+			ably.connection.ping(pingWaiter);
+			assertThat(pingWaiter.waitFor(), is(nullValue()));
+		}
+
+		for(AblyRealtime ably : clients)
+			ably.close();
+		for(AblyRealtime ably : clients)
+			new Helpers.ConnectionManagerWaiter(ably.connection.connectionManager).waitFor(ConnectionState.closed);
+	}
+
+	/**
+	 * Verify that the number of threads does not grow with the number of
+	 * connections, as neither the transports nor the connection state
+	 * machines have threads of their own
+	 */
+	@Test
+	public void nio_connect_threads() throws AblyException {
+		int threadsBefore = Thread.activeCount();
+		AblyRealtime[] clients = new AblyRealtime[32];
+		for(int i = 0; i < clients.length; i++)
+			clients[i] = new AblyRealtime(createOptions(true));
+		for(AblyRealtime ably : clients)
+			new Helpers.ConnectionManagerWaiter(ably.connection.connectionManager).waitFor(ConnectionState.connected);
+		assertThat(Thread.activeCount() - threadsBefore, is(lessThan(clients.length / 2)));
+
+		for(AblyRealtime ably : clients)
+			ably.close();
+		for(AblyRealtime ably : clients)
+			new Helpers.ConnectionManagerWaiter(ably.connection.connectionManager).waitFor(ConnectionState.closed);
+	}
+
+	/**
+	 * Verify that a connection attempt to a port with no listener
+	 * is reported as a transport failure
+	 */
+	@Test
+	public void nio_connect_refused() throws Exception {
+		ClientOptions opts = createOptions(true);
+		opts.port = WebSocketStandIn.freePort();
+		AblyRealtime ably = new AblyRealtime(opts);
+		ConnectionManager connectionManager = ably.connection.connectionManager;
+		new Helpers.ConnectionManagerWaiter(connectionManager).waitFor(ConnectionState.disconnected);
+		ably.close();
+	}
+
+	/**
+	 * Verify that TLS connections share a single default context, so that
+	 * sessions may be resumed, unless a context is given in the options
+	 */
+	@Test
+	public void nio_ssl_context_shared() throws Exception {
+		ClientOptions opts = createOptions(true);
+		SSLContext sslContext = WebSocketTransport.getSSLContext(opts);
+		assertThat(WebSocketTransport.getSSLContext(createOptions(false)), is(sameInstance(sslContext)));
+
+		SSLContext custom = SSLContext.getInstance("TLS");
+		custom.init(null, null, null);
+		opts.sslContext = custom;
+		assertThat(WebSocketTransport.getSSLContext(opts), is(sameInstance(custom)));
+		assertThat(custom, is(not(sameInstance(sslContext))));
+	}
+
+	/**
+	 * Verify that TLS delegated tasks submitted while the task threads
+	 * are busy are queued rather than each starting a thread, and that
+	 * once the queue is full a task runs on the thread that submitted it
+	 */
+	@Test
+	public void nio_task_executor_bounded() throws Exception {
+		NioEventLoopGroup taskGroup = new NioEventLoopGroup(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(NioEventLoopGroup.TASK_THREADS + NioEventLoopGroup.TASK_QUEUE_SIZE);
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		try {
+			ExecutorService executor = taskGroup.getTaskExecutor();
+			for(int i = 0; i < NioEventLoopGroup.TASK_THREADS + NioEventLoopGroup.TASK_QUEUE_SIZE; i++) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						threads.add(Thread.currentThread());
+						try { release.await(); } catch(InterruptedException e) {}
+						done.countDown();
+					}
+				});
+			}
+			final Thread[] overflowThread = new Thread[1];
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					overflowThread[0] = Thread.currentThread();
+				}
+			});
+			assertThat(overflowThread[0], is(sameInstance(Thread.currentThread())));
+
+			release.countDown();
+			assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+			assertThat(threads.size(), is(lessThanOrEqualTo(NioEventLoopGroup.TASK_THREADS)));
+		} finally {
+			release.countDown();
+			taskGroup.shutdown();
+		}
+	}
+}
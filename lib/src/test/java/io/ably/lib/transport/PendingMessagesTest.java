@@ -0,0 +1,88 @@
+package io.ably.lib.transport;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers;
+import io.ably.lib.test.util.WebSocketStandIn;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ErrorInfo;
+
+/**
+ * Tests of ConnectionManager ack handling that run against a local stand-in
+ * for the realtime endpoint
+ */
+public class PendingMessagesTest {
+
+	private static WebSocketStandIn server;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		server = WebSocketStandIn.startLocal();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		server.stop();
+	}
+
+	/**
+	 * Publish many messages without waiting for acks, so that the pending
+	 * queue grows, and verify that all are acked in order and that ack
+	 * latencies are recorded
+	 */
+	@Test
+	public void pending_messages_acked() throws AblyException {
+		AblyRealtime ably = new AblyRealtime(server.createOptions());
+		try {
+			ConnectionManager connectionManager = ably.connection.connectionManager;
+			new Helpers.ConnectionManagerWaiter(connectionManager).waitFor(ConnectionState.connected);
+			Channel channel = ably.channels.get("pending_messages_acked");
+			channel.attach();
+			new Helpers.ChannelWaiter(channel).waitFor(ChannelState.attached);
+
+			int count = 500;
+			final int[] order = new int[] {0};
+			final boolean[] inOrder = new boolean[] {true};
+			Helpers.CompletionSet publishes = new Helpers.CompletionSet();
+			for(int i = 0; i < count; i++) {
+				final int expected = i;
+				final Helpers.CompletionSet.Member member = publishes.add();
+				channel.publish("event", "data_" + i, new io.ably.lib.realtime.CompletionListener() {
+					@Override
+					public void onSuccess() {
+						if(order[0]++ != expected)
+							inOrder[0] = false;
+						member.onSuccess();
+					}
+
+					@Override
+					public void onError(ErrorInfo reason) {
+						member.onError(reason);
+					}
+				});
+			}
+			ErrorInfo[] errors = publishes.waitFor();
+			assertThat(errors.length, is(0));
+			assertThat(inOrder[0], is(true));
+
+			ConnectionManager.AckLatencyStats latency = connectionManager.getAckLatencyStats();
+			assertThat(latency.count, is(count));
+			assertThat(latency.max, is(greaterThan(0.0)));
+			assertThat(latency.p50, is(lessThanOrEqualTo(latency.p99)));
+			assertThat(latency.p99, is(lessThanOrEqualTo(latency.max)));
+		} finally {
+			ably.close();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package io.ably.lib.transport;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import org.java_websocket.WebSocket;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers;
+import io.ably.lib.test.util.WebSocketStandIn;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.DeflateOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+
+public class PerMessageDeflateTest {
+
+	private static WebSocketStandIn deflateServer;
+	private static WebSocketStandIn plainServer;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		deflateServer = WebSocketStandIn.startLocal(new DeflateOptions());
+		plainServer = WebSocketStandIn.startLocal();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		deflateServer.stop();
+		plainServer.stop();
+	}
+
+	private static ClientOptions createOptions(WebSocketStandIn server, boolean useBinaryProtocol) throws AblyException {
+		ClientOptions opts = server.createOptions();
+		opts.useBinaryProtocol = useBinaryProtocol;
+		opts.compressTransport = true;
+		return opts;
+	}
+
+	private static void publishRepetitive(AblyRealtime ably, String channelName, int count) throws AblyException {
+		new Helpers.ConnectionManagerWaiter(ably.connection.connectionManager).waitFor(ConnectionState.connected);
+		Channel channel = ably.channels.get(channelName);
+		channel.attach();
+		new Helpers.ChannelWaiter(channel).waitFor(ChannelState.attached);
+
+		StringBuilder data = new StringBuilder();
+		for(int i = 0; i < 100; i++)
+			data.append("{\"sensor\":\"temperature\",\"unit\":\"celsius\",\"value\":").append(i).append('}');
+
+		Helpers.CompletionSet publishes = new Helpers.CompletionSet();
+		for(int i = 0; i < count; i++)
+			channel.publish("reading", data.toString(), publishes.add());
+		ErrorInfo[] errors = publishes.waitFor();
+		assertThat(errors.length, is(0));
+
+		Helpers.CompletionWaiter pingWaiter = new Helpers.CompletionWaiter();
+		ably.connection.ping(pingWaiter);
+		assertThat(pingWaiter.waitFor(), is(nullValue()));
+	}
+
+	/**
+	 * Publish repetitive payloads with compression negotiated, using both
+	 * the JSON and msgpack protocols, and verify that fewer bytes are sent
+	 * on the wire than the frame payloads contain
+	 */
+	@Test
+	public void deflate_publish_compressed() throws AblyException {
+		for(boolean useBinaryProtocol : new boolean[] {false, true}) {
+			long wireBytes = deflateServer.wireBytesReceived.get();
+			long payloadBytes = deflateServer.bytesReceived.get();
+			AblyRealtime ably = new AblyRealtime(createOptions(deflateServer, useBinaryProtocol));
+			try {
+				publishRepetitive(ably, "deflate_publish_compressed", 20);
+			} finally {
+				ably.close();
+			}
+			wireBytes = deflateServer.wireBytesReceived.get() - wireBytes;
+			payloadBytes = deflateServer.bytesReceived.get() - payloadBytes;
+			assertThat(wireBytes, is(lessThan(payloadBytes / 4)));
+		}
+	}
+
+	/**
+	 * Verify that compression without context takeover, and with a reduced
+	 * server window, is negotiated and works
+	 */
+	@Test
+	public void deflate_no_context_takeover() throws AblyException {
+		ClientOptions opts = createOptions(deflateServer, true);
+		opts.deflateOptions = new DeflateOptions();
+		opts.deflateOptions.clientNoContextTakeover = true;
+		opts.deflateOptions.serverNoContextTakeover = true;
+		opts.deflateOptions.serverMaxWindowBits = 10;
+		opts.deflateOptions.level = 1;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			publishRepetitive(ably, "deflate_no_context_takeover", 20);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that a client requesting compression connects
+	 * normally to a server that does not support it
+	 */
+	@Test
+	public void deflate_not_supported_by_server() throws AblyException {
+		AblyRealtime ably = new AblyRealtime(createOptions(plainServer, true));
+		try {
+			publishRepetitive(ably, "deflate_not_supported_by_server", 5);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that compression is negotiated when using the NIO transport
+	 */
+	@Test
+	public void deflate_nio_transport() throws AblyException {
+		NioEventLoopGroup group = new NioEventLoopGroup(1);
+		try {
+			long wireBytes = deflateServer.wireBytesReceived.get();
+			long payloadBytes = deflateServer.bytesReceived.get();
+			ClientOptions opts = createOptions(deflateServer, true);
+			opts.transportFactory = new NioWebSocketTransport.Factory(group);
+			AblyRealtime ably = new AblyRealtime(opts);
+			try {
+				publishRepetitive(ably, "deflate_nio_transport", 20);
+			} finally {
+				ably.close();
+			}
+			wireBytes = deflateServer.wireBytesReceived.get() - wireBytes;
+			payloadBytes = deflateServer.bytesReceived.get() - payloadBytes;
+			assertThat(wireBytes, is(lessThan(payloadBytes / 4)));
+		} finally {
+			group.shutdown();
+		}
+	}
+
+	/**
+	 * Verify that an inbound message that inflates beyond the maximum
+	 * size closes the connection with 1009 (message too big)
+	 */
+	@Test
+	public void deflate_inflated_size_limit() throws Exception {
+		final char[] data = new char[1024 * 1024];
+		Arrays.fill(data, 'x');
+		WebSocketStandIn server = new WebSocketStandIn(WebSocketStandIn.freePort(), new DeflateOptions()) {
+			@Override
+			protected void onProtocolMessage(WebSocket conn, ProtocolMessage msg) {
+				super.onProtocolMessage(conn, msg);
+				if(msg.action == ProtocolMessage.Action.attach) {
+					ProtocolMessage large = new ProtocolMessage(ProtocolMessage.Action.message, msg.channel);
+					large.messages = new Message[] { new Message("large", new String(data)) };
+					send(conn, large);
+				}
+			}
+		};
+		server.start();
+		try {
+			ClientOptions opts = createOptions(server, true);
+			opts.deflateOptions = new DeflateOptions();
+			opts.deflateOptions.maxInflatedSize = 64 * 1024;
+			AblyRealtime ably = new AblyRealtime(opts);
+			try {
+				Helpers.ConnectionManagerWaiter waiter = new Helpers.ConnectionManagerWaiter(ably.connection.connectionManager);
+				waiter.waitFor(ConnectionState.connected);
+				ably.channels.get("deflate_inflated_size_limit").attach();
+				waiter.waitFor(ConnectionState.failed);
+				assertThat(ably.connection.reason.message, is(ConnectionManager.REASON_TOO_BIG.message));
+				/* the compressed frame is far smaller than the limit */
+				assertThat(server.wireBytesSent.get(), is(lessThan((long)opts.deflateOptions.maxInflatedSize)));
+			} finally {
+				ably.close();
+			}
+		} finally {
+			server.stop();
+		}
+	}
+}
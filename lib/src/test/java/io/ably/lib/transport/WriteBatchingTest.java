@@ -0,0 +1,99 @@
+package io.ably.lib.transport;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers;
+import io.ably.lib.test.util.WebSocketStandIn;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+
+public class WriteBatchingTest {
+
+	private static WebSocketStandIn server;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		server = WebSocketStandIn.startLocal();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		server.stop();
+	}
+
+	/**
+	 * Publish a burst of messages with a linger interval set and verify
+	 * that they are merged into fewer frames, and that every publish is acked
+	 */
+	@Test
+	public void write_batching_merges_messages() throws AblyException {
+		ClientOptions opts = server.createOptions();
+		opts.writeLingerInterval = 50;
+		opts.writeBufferSize = 1000;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ConnectionManager connectionManager = ably.connection.connectionManager;
+			new Helpers.ConnectionManagerWaiter(connectionManager).waitFor(ConnectionState.connected);
+			Channel channel = ably.channels.get("write_batching_merges_messages");
+			channel.attach();
+			new Helpers.ChannelWaiter(channel).waitFor(ChannelState.attached);
+
+			long received = server.messagesReceived.get();
+			int count = 50;
+			Helpers.CompletionSet publishes = new Helpers.CompletionSet();
+			for(int i = 0; i < count; i++)
+				channel.publish("event", "data_" + i, publishes.add());
+			ErrorInfo[] errors = publishes.waitFor();
+
+			assertThat(errors.length, is(0));
+			assertThat(server.messagesReceived.get() - received, is((long)count));
+			ConnectionManager.WriteStats stats = connectionManager.getWriteStats();
+			assertThat(stats.messages, is((long)count));
+			assertThat(stats.frames, is(lessThan((long)count)));
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that the buffer is flushed once it reaches its size limit
+	 * without waiting for the linger interval
+	 */
+	@Test
+	public void write_batching_flushes_when_full() throws AblyException {
+		ClientOptions opts = server.createOptions();
+		opts.writeLingerInterval = 60000;
+		opts.writeBufferSize = 10;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ConnectionManager connectionManager = ably.connection.connectionManager;
+			new Helpers.ConnectionManagerWaiter(connectionManager).waitFor(ConnectionState.connected);
+			Channel channel = ably.channels.get("write_batching_flushes_when_full");
+			channel.attach();
+			new Helpers.ChannelWaiter(channel).waitFor(ChannelState.attached);
+
+			Helpers.CompletionSet publishes = new Helpers.CompletionSet();
+			for(int i = 0; i < 30; i++)
+				channel.publish("event", "data_" + i, publishes.add());
+			ErrorInfo[] errors = publishes.waitFor();
+
+			assertThat(errors.length, is(0));
+			ConnectionManager.WriteStats stats = connectionManager.getWriteStats();
+			assertThat(stats.flushes, is(3L));
+			assertThat(stats.getFramesPerFlush(), is(1.0));
+		} finally {
+			ably.close();
+		}
+	}
+}
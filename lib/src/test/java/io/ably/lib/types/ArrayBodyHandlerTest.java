@@ -0,0 +1,65 @@
+package io.ably.lib.types;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.ably.lib.http.Http.ItemHandler;
+import io.ably.lib.http.Http.StreamingBodyHandler;
+
+public class ArrayBodyHandlerTest {
+
+	private static final String body = "[{\"name\":\"one\",\"data\":\"first\"},{\"name\":\"two\",\"data\":\"{\\\"a\\\":1}\",\"encoding\":\"json\"}]";
+
+	/**
+	 * Verify that a JSON array body read from a stream is decoded
+	 * into an array of messages
+	 */
+	@Test
+	public void read_json_stream() throws Exception {
+		StreamingBodyHandler<Message> handler = (StreamingBodyHandler<Message>)MessageSerializer.getMessageResponseHandler(null);
+		Message[] messages = handler.handleResponseBody("application/json", new ByteArrayInputStream(body.getBytes("UTF-8")), null);
+		assertEquals(2, messages.length);
+		assertEquals("one", messages[0].name);
+		assertEquals("first", messages[0].data);
+		assertEquals("two", messages[1].name);
+		assertEquals(null, messages[1].encoding);
+	}
+
+	/**
+	 * Verify that, when an ItemHandler is given, each decoded message
+	 * is passed to it and none are retained in the result
+	 */
+	@Test
+	public void read_json_stream_item_handler() throws Exception {
+		StreamingBodyHandler<Message> handler = (StreamingBodyHandler<Message>)MessageSerializer.getMessageResponseHandler(null);
+		final List<String> names = new ArrayList<String>();
+		Message[] messages = handler.handleResponseBody("application/json", new ByteArrayInputStream(body.getBytes("UTF-8")), new ItemHandler<Message>() {
+			@Override
+			public void onItem(Message item) {
+				names.add(item.name);
+			}
+		});
+		assertEquals(0, messages.length);
+		assertEquals(2, names.size());
+		assertEquals("two", names.get(1));
+	}
+
+	/**
+	 * Verify that a msgpack array body read from a stream is decoded
+	 * into an array of messages
+	 */
+	@Test
+	public void read_msgpack_stream() throws Exception {
+		byte[] packed = MessageSerializer.writeMsgpackArray(new Message[] { new Message("one", "first"), new Message("two", "second") });
+		StreamingBodyHandler<Message> handler = (StreamingBodyHandler<Message>)MessageSerializer.getMessageResponseHandler(null);
+		Message[] messages = handler.handleResponseBody("application/x-msgpack", new ByteArrayInputStream(packed), null);
+		assertEquals(2, messages.length);
+		assertEquals("one", messages[0].name);
+		assertEquals("second", messages[1].data);
+	}
+}
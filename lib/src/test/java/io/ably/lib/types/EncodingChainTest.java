@@ -0,0 +1,54 @@
+package io.ably.lib.types;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import io.ably.lib.types.EncodingChain.Transform;
+import io.ably.lib.util.Crypto;
+
+public class EncodingChainTest {
+
+	/**
+	 * Verify that an encoding is parsed once, and that
+	 * appended transforms resolve to the cached chain
+	 */
+	@Test
+	public void encoding_chain_cached() {
+		EncodingChain chain = EncodingChain.forEncoding("utf-8/cipher+aes-128-cbc/base64");
+		assertSame(chain, EncodingChain.forEncoding("utf-8/cipher+aes-128-cbc/base64"));
+		assertArrayEquals(new Transform[] {Transform.utf8, Transform.cipher, Transform.base64}, chain.transforms);
+		assertNull(chain.prefix(0));
+		assertEquals("utf-8", chain.prefix(1));
+		assertEquals("utf-8/cipher+aes-128-cbc", chain.prefix(2));
+		assertSame(chain, EncodingChain.forEncoding(null).append("utf-8").append("cipher+aes-128-cbc").append("base64"));
+	}
+
+	/**
+	 * Verify that decoding stops at a transform that cannot be
+	 * reversed, leaving it and those before it in the encoding
+	 */
+	@Test
+	public void encoding_chain_partial_decode() throws AblyException {
+		ChannelOptions opts = new ChannelOptions();
+		opts.encrypted = true;
+		opts.cipherParams = Crypto.getDefaultParams();
+		Message message = new Message("event", "text");
+		message.encode(opts);
+		assertEquals("utf-8/cipher+aes-128-cbc", message.encoding);
+
+		message.encoding = "custom/" + message.encoding;
+		message.decode(opts);
+		assertEquals("text", message.data);
+		assertEquals("custom", message.encoding);
+
+		message.encoding = "utf-8/base64";
+		message.data = "dGV4dA==";
+		message.decode(null);
+		assertEquals("text", message.data);
+		assertNull(message.encoding);
+	}
+}
@@ -0,0 +1,71 @@
+package io.ably.lib.types;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+import io.ably.lib.util.Crypto;
+
+public class LazyDecodeTest {
+
+	/**
+	 * Verify that a deferred decode leaves the payload as received
+	 * until getData() is called, and then decodes it once
+	 */
+	@Test
+	public void decode_deferred_json() throws AblyException {
+		JsonObject json = new JsonObject();
+		json.addProperty("key", "value");
+		Message message = new Message("event", json);
+		message.encode(null);
+		String encoded = (String)message.data;
+
+		message.decodeLater(null);
+		assertEquals("json", message.encoding);
+		assertSame(encoded, message.data);
+
+		Object decoded = message.getData();
+		assertTrue(decoded instanceof JsonObject);
+		assertEquals("value", ((JsonObject)decoded).get("key").getAsString());
+		assertNull(message.encoding);
+		assertSame(decoded, message.getData());
+	}
+
+	/**
+	 * Verify that an encrypted presence payload is decrypted on first
+	 * access, and that a clone made beforehand also decodes its payload
+	 */
+	@Test
+	public void decode_deferred_encrypted() throws AblyException {
+		ChannelOptions opts = new ChannelOptions();
+		opts.encrypted = true;
+		opts.cipherParams = Crypto.getDefaultParams();
+		opts.lazyDecode = true;
+		byte[] payload = new byte[] { 1, 2, 3, 4 };
+		PresenceMessage message = new PresenceMessage(PresenceMessage.Action.enter, "client", payload);
+		message.encode(opts);
+
+		message.decodeLater(opts);
+		PresenceMessage clone = (PresenceMessage)message.clone();
+		assertArrayEquals(payload, (byte[])message.getData());
+		assertNull(message.encoding);
+		assertArrayEquals(payload, (byte[])clone.getData());
+	}
+
+	/**
+	 * Verify that a message without encoding is unaffected
+	 */
+	@Test
+	public void decode_deferred_unencoded() throws AblyException {
+		Message message = new Message("event", "text");
+		message.decodeLater(null);
+		assertEquals("text", message.getData());
+		assertEquals("text", message.data);
+	}
+}
@@ -0,0 +1,170 @@
+package io.ably.lib.types;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+
+import io.ably.lib.types.ProtocolMessage.Action;
+
+public class ProtocolSerializerTest {
+
+	private static ProtocolMessage testMessage() {
+		ProtocolMessage msg = new ProtocolMessage(Action.message, "test_channel");
+		msg.msgSerial = Long.valueOf(42);
+		msg.messages = new Message[] {
+			new Message("event_0", "text payload"),
+			new Message("event_1", new byte[] { 1, 2, 3, 4 })
+		};
+		return msg;
+	}
+
+	private static void assertDecoded(ProtocolMessage decoded) {
+		assertEquals(Action.message, decoded.action);
+		assertEquals("test_channel", decoded.channel);
+		assertEquals(Long.valueOf(42), decoded.msgSerial);
+		assertEquals(2, decoded.messages.length);
+		assertEquals("event_0", decoded.messages[0].name);
+		assertEquals("text payload", decoded.messages[0].data);
+		assertEquals(4, ((byte[])decoded.messages[1].data).length);
+	}
+
+	/**
+	 * Decode from a heap buffer that is a slice of a larger array,
+	 * verifying that position and limit are honoured
+	 */
+	@Test
+	public void read_msgpack_heap_slice() throws AblyException {
+		byte[] packed = ProtocolSerializer.writeMsgpack(testMessage());
+		byte[] framed = new byte[packed.length + 16];
+		System.arraycopy(packed, 0, framed, 8, packed.length);
+		ByteBuffer buffer = ByteBuffer.wrap(framed, 8, packed.length);
+
+		assertDecoded(ProtocolSerializer.readMsgpack(buffer));
+		assertEquals(8, buffer.position());
+		assertEquals(8 + packed.length, buffer.limit());
+	}
+
+	/**
+	 * Decode from a direct buffer
+	 */
+	@Test
+	public void read_msgpack_direct() throws AblyException {
+		byte[] packed = ProtocolSerializer.writeMsgpack(testMessage());
+		ByteBuffer buffer = ByteBuffer.allocateDirect(packed.length + 4);
+		buffer.position(4);
+		buffer.put(packed);
+		buffer.position(4);
+
+		assertDecoded(ProtocolSerializer.readMsgpack(buffer));
+		assertEquals(4, buffer.position());
+	}
+
+	/**
+	 * Decode from a read-only buffer, which does not expose its backing array
+	 */
+	@Test
+	public void read_msgpack_readonly() throws AblyException {
+		byte[] packed = ProtocolSerializer.writeMsgpack(testMessage());
+		ByteBuffer buffer = ByteBuffer.wrap(packed).asReadOnlyBuffer();
+
+		assertDecoded(ProtocolSerializer.readMsgpack(buffer));
+		assertEquals(0, buffer.position());
+	}
+
+	/**
+	 * Decode a message containing unknown keys, including keys of the same
+	 * length as known fields and keys longer than any known field,
+	 * verifying that only the known fields are matched
+	 */
+	@Test
+	public void read_msgpack_unknown_fields() throws AblyException, IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MessagePacker packer = MessagePack.newDefaultPacker(out);
+		packer.packMapHeader(5);
+		packer.packString("action");
+		packer.packInt(Action.message.getValue());
+		packer.packString("chanxel");
+		packer.packString("unknown");
+		packer.packString("channel");
+		packer.packString("test_channel");
+		packer.packString("an_unknown_field_longer_than_any_known_field");
+		packer.packInt(1);
+		packer.packString("messages");
+		packer.packArrayHeader(1);
+		packer.packMapHeader(3);
+		packer.packString("name");
+		packer.packString("event_0");
+		packer.packString("nane");
+		packer.packString("unknown");
+		packer.packString("data");
+		packer.packString("text payload");
+		packer.flush();
+
+		ProtocolMessage decoded = ProtocolSerializer.readMsgpack(out.toByteArray());
+		assertEquals(Action.message, decoded.action);
+		assertEquals("test_channel", decoded.channel);
+		assertEquals(1, decoded.messages.length);
+		assertEquals("event_0", decoded.messages[0].name);
+		assertEquals("text payload", decoded.messages[0].data);
+	}
+
+	/**
+	 * Encode to the reused buffer, verifying that the view matches the
+	 * array encoding, that the buffer is reused for later messages, and
+	 * that it grows to hold a message larger than any before
+	 */
+	@Test
+	public void write_msgpack_buffer_reused() throws AblyException {
+		ProtocolMessage msg = testMessage();
+		byte[] packed = ProtocolSerializer.writeMsgpack(msg);
+		ByteBuffer view = ProtocolSerializer.writeMsgpackToBuffer(msg);
+		assertEquals(0, view.position());
+		assertArrayEquals(packed, Arrays.copyOf(view.array(), view.limit()));
+		assertDecoded(ProtocolSerializer.readMsgpack(view));
+		assertSame(view.array(), ProtocolSerializer.writeMsgpackToBuffer(msg).array());
+
+		ProtocolMessage large = testMessage();
+		large.messages[1].data = new byte[100000];
+		view = ProtocolSerializer.writeMsgpackToBuffer(large);
+		assertEquals(100000, ((byte[])ProtocolSerializer.readMsgpack(view).messages[1].data).length);
+
+		view = ProtocolSerializer.writeMsgpackToBuffer(msg);
+		assertArrayEquals(packed, Arrays.copyOf(view.array(), view.limit()));
+	}
+
+	/**
+	 * Encode to JSON and decode again, verifying message and presence
+	 * fields, base64 encoding of binary data, and that null and unknown
+	 * fields are skipped
+	 */
+	@Test
+	public void json_roundtrip() throws AblyException, UnsupportedEncodingException {
+		ProtocolMessage msg = testMessage();
+		msg.presence = new PresenceMessage[] { new PresenceMessage(PresenceMessage.Action.update, "client_0", "status") };
+		String json = new String(ProtocolSerializer.writeJSON(msg), "UTF-8");
+		ProtocolMessage decoded = ProtocolSerializer.fromJSON(json);
+		assertEquals("base64", decoded.messages[1].encoding);
+		decoded.messages[1].decode(null);
+		assertDecoded(decoded);
+		assertEquals(PresenceMessage.Action.update, decoded.presence[0].action);
+		assertEquals("client_0", decoded.presence[0].clientId);
+		assertEquals("status", decoded.presence[0].data);
+
+		decoded = ProtocolSerializer.fromJSON("{\"action\":15,\"messages\":[{\"name\":\"event_0\",\"clientId\":null,\"extras\":{\"a\":[1,2]},\"timestamp\":1234,\"data\":\"text\"}]}");
+		assertEquals("event_0", decoded.messages[0].name);
+		assertNull(decoded.messages[0].clientId);
+		assertEquals(1234, decoded.messages[0].timestamp);
+		assertEquals("text", decoded.messages[0].data);
+	}
+}
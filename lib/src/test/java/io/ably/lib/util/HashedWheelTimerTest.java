@@ -0,0 +1,126 @@
+package io.ably.lib.util;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashedWheelTimerTest {
+
+	private HashedWheelTimer timer;
+
+	@Before
+	public void setUp() {
+		timer = new HashedWheelTimer("test-timer", 5, 8);
+	}
+
+	@After
+	public void tearDown() {
+		timer.shutdown();
+	}
+
+	/**
+	 * Verify that a task runs no earlier than its delay
+	 */
+	@Test
+	public void timer_expiry() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		long start = System.nanoTime();
+		HashedWheelTimer.Timeout timeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, 100);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(greaterThanOrEqualTo(100L)));
+		assertThat(timeout.isExpired(), is(true));
+		assertThat(timeout.cancel(), is(false));
+	}
+
+	/**
+	 * Verify that cancelled tasks do not run and are removed from the wheel
+	 */
+	@Test
+	public void timer_cancel() throws InterruptedException {
+		final AtomicInteger runs = new AtomicInteger();
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+		List<HashedWheelTimer.Timeout> timeouts = new ArrayList<HashedWheelTimer.Timeout>();
+		/* the delay leaves time to cancel every task, even on a cold JVM */
+		for(int i = 0; i < 100; i++)
+			timeouts.add(timer.schedule(task, 500));
+		for(HashedWheelTimer.Timeout timeout : timeouts)
+			assertThat(timeout.cancel(), is(true));
+		Thread.sleep(700);
+		assertThat(runs.get(), is(0));
+		assertThat(timer.getPendingCount(), is(0));
+	}
+
+	/**
+	 * Verify that tasks with delays spanning several revolutions
+	 * of the wheel all run, in order of their deadlines
+	 */
+	@Test
+	public void timer_multiple_rounds() throws InterruptedException {
+		final int count = 20;
+		final CountDownLatch latch = new CountDownLatch(count);
+		final List<Integer> order = new ArrayList<Integer>();
+		for(int i = count - 1; i >= 0; i--) {
+			final int index = i;
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized(order) {
+						order.add(index);
+					}
+					latch.countDown();
+				}
+			}, 20 + index * 15);
+		}
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		for(int i = 0; i < count; i++)
+			assertThat(order.get(i), is(i));
+	}
+
+	/**
+	 * Verify that many tasks expiring together, each of which blocks for a
+	 * time, all run without a thread being started for each
+	 */
+	@Test
+	public void timer_bounded_threads() throws InterruptedException {
+		final int count = 50;
+		final CountDownLatch latch = new CountDownLatch(count);
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		for(int i = 0; i < count; i++) {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					threads.add(Thread.currentThread());
+					try { Thread.sleep(10); } catch(InterruptedException e) {}
+					latch.countDown();
+				}
+			}, 20);
+		}
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertThat(threads.size(), is(lessThanOrEqualTo(4)));
+	}
+}
@@ -0,0 +1,99 @@
+package io.ably.lib.util;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import io.ably.lib.util.SubscriptionList.Subscription;
+
+public class SubscriptionListTest {
+
+	private static List<String> toList(SubscriptionList<String> list) {
+		List<String> result = new ArrayList<String>();
+		for(String item : list)
+			result.add(item);
+		return result;
+	}
+
+	/**
+	 * Verify that a subscription handle removes only its own entry,
+	 * and that removal by listener removes every entry
+	 */
+	@Test
+	public void subscription_list_remove() {
+		SubscriptionList<String> list = new SubscriptionList<String>();
+		Subscription a1 = list.add("a");
+		list.add("b");
+		list.add("a");
+		a1.unsubscribe();
+		assertThat(toList(list), contains("b", "a"));
+		a1.unsubscribe();
+		assertThat(list.size(), is(2));
+
+		list.add("a");
+		assertThat(list.remove("a"), is(true));
+		assertThat(toList(list), contains("b"));
+		list.clear();
+		assertThat(toList(list), is(empty()));
+		assertThat(list.isEmpty(), is(true));
+	}
+
+	/**
+	 * Verify that an iteration sees the listeners present when it began,
+	 * skipping those removed during the iteration
+	 */
+	@Test
+	public void subscription_list_snapshot() {
+		SubscriptionList<String> list = new SubscriptionList<String>();
+		list.add("a");
+		Subscription b = list.add("b");
+		list.add("c");
+		Iterator<String> it = list.iterator();
+		assertThat(it.next(), is("a"));
+		list.add("d");
+		b.unsubscribe();
+		assertThat(it.next(), is("c"));
+		assertThat(it.hasNext(), is(false));
+		assertThat(toList(list), contains("a", "c", "d"));
+	}
+
+	/**
+	 * Add and remove many short-lived subscriptions while another thread
+	 * iterates, and verify that the long-lived listener is always seen
+	 * and that the list is compacted afterwards
+	 */
+	@Test
+	public void subscription_list_concurrent() throws InterruptedException {
+		final SubscriptionList<String> list = new SubscriptionList<String>();
+		list.add("permanent");
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicBoolean missed = new AtomicBoolean(false);
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				while(running.get()) {
+					boolean found = false;
+					for(String item : list)
+						found |= item.equals("permanent");
+					if(!found)
+						missed.set(true);
+				}
+			}
+		};
+		reader.start();
+		for(int i = 0; i < 100000; i++)
+			list.add("transient").unsubscribe();
+		running.set(false);
+		reader.join();
+		assertThat(missed.get(), is(false));
+		assertThat(toList(list), contains("permanent"));
+	}
+}
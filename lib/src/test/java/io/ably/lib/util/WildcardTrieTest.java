@@ -0,0 +1,76 @@
+package io.ably.lib.util;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.ably.lib.util.SubscriptionList.Subscription;
+
+public class WildcardTrieTest {
+
+	private static List<String> match(WildcardTrie<String> trie, String name) {
+		List<SubscriptionList<String>> matches = new ArrayList<SubscriptionList<String>>();
+		trie.match(name, matches);
+		List<String> result = new ArrayList<String>();
+		for(SubscriptionList<String> list : matches)
+			for(String listener : list)
+				result.add(listener);
+		return result;
+	}
+
+	/**
+	 * Verify prefix, infix and exact patterns, and that a pattern
+	 * that matches a name in more than one way is matched once
+	 */
+	@Test
+	public void wildcard_trie_match() {
+		WildcardTrie<String> trie = new WildcardTrie<String>();
+		trie.add("orders.*", "orders");
+		trie.add("price:EUR*", "eur");
+		trie.add("*.created", "created");
+		trie.add("orders.created", "exact");
+		trie.add("*", "all");
+		trie.add("*a**a*", "twoA");
+
+		assertThat(match(trie, "orders.created"), containsInAnyOrder("orders", "created", "exact", "all"));
+		assertThat(match(trie, "orders."), containsInAnyOrder("orders", "all"));
+		assertThat(match(trie, "price:EURUSD"), containsInAnyOrder("eur", "all"));
+		assertThat(match(trie, "price:GBP"), containsInAnyOrder("all"));
+		assertThat(match(trie, "banana"), containsInAnyOrder("twoA", "all"));
+		assertThat(match(trie, ""), containsInAnyOrder("all"));
+	}
+
+	/**
+	 * Verify removal by subscription, by pattern and by listener,
+	 * and that the trie is empty once every pattern is removed
+	 */
+	@Test
+	public void wildcard_trie_remove() {
+		WildcardTrie<String> trie = new WildcardTrie<String>();
+		Subscription a = trie.add("a.*", "x");
+		trie.add("a.*", "y");
+		trie.add("a.b*", "x");
+		trie.add("*.b", "z");
+
+		a.unsubscribe();
+		assertThat(match(trie, "a.b"), containsInAnyOrder("y", "x", "z"));
+		trie.remove("a.*", "y");
+		assertThat(match(trie, "a.b"), containsInAnyOrder("x", "z"));
+		trie.remove("x");
+		assertThat(match(trie, "a.b"), containsInAnyOrder("z"));
+		trie.remove("*.b", "z");
+		assertThat(match(trie, "a.b"), is(empty()));
+		assertThat(trie.isEmpty(), is(true));
+
+		trie.add("c*", "w");
+		trie.clear();
+		assertThat(match(trie, "c"), is(empty()));
+		assertThat(trie.isEmpty(), is(true));
+	}
+}